@@ -6,11 +6,13 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.autoconfigure.domain.EntityScan;
 import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
 import org.springframework.cloud.openfeign.EnableFeignClients;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
 @EntityScan(basePackages = {"com.smartretail.inventoryservice.model"})
 @EnableDiscoveryClient
 @EnableFeignClients
+@EnableScheduling
 public class InventoryServiceApplication {
 
 	public static void main(String[] args) {
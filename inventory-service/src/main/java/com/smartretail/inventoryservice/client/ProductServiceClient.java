@@ -3,6 +3,8 @@ package com.smartretail.inventoryservice.client;
 import org.springframework.cloud.openfeign.FeignClient;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestParam;
 
 @FeignClient(name = "service-product", url = "${service.product.url:http://localhost:8085}")
@@ -21,6 +23,18 @@ public interface ProductServiceClient {
     @GetMapping("/api/products/units/list")
     java.util.List<ProductUnitResponse> getProductUnitsByProductId(@RequestParam("productId") Long productId);
 
+    // Lấy nhiều đơn vị theo danh sách ID (kể cả inactive)
+    @PostMapping("/api/products/units/bulk")
+    java.util.List<ProductUnitResponse> getProductUnitsByIds(@RequestBody java.util.List<Long> ids);
+
+    // Toàn bộ đơn vị (kể cả inactive) của nhiều sản phẩm
+    @PostMapping("/api/products/units/bulk/by-products")
+    java.util.List<ProductUnitResponse> getProductUnitsByProductIds(@RequestBody java.util.List<Long> productIds);
+
+    // Toàn bộ đơn vị (kể cả inactive), dùng để warm-up cache quy đổi
+    @GetMapping("/api/products/units/all")
+    java.util.List<ProductUnitResponse> getAllProductUnits();
+
     // DTO class for response
     class ProductUnitResponse {
         private Long id;
@@ -108,4 +122,21 @@ public interface ProductServiceClient {
         public void setMessage(String message) { this.message = message; }
     }
 
+    // Giá hiện tại của nhiều product unit: data = {productUnitId: price}
+    @PostMapping("/api/products/prices/current/bulk")
+    BulkPriceResponse getCurrentPrices(@RequestBody java.util.List<Long> productUnitIds);
+
+    class BulkPriceResponse {
+        private Boolean success;
+        private java.util.Map<Long, java.math.BigDecimal> data;
+        private String message;
+
+        public Boolean getSuccess() { return success; }
+        public void setSuccess(Boolean success) { this.success = success; }
+        public java.util.Map<Long, java.math.BigDecimal> getData() { return data; }
+        public void setData(java.util.Map<Long, java.math.BigDecimal> data) { this.data = data; }
+        public String getMessage() { return message; }
+        public void setMessage(String message) { this.message = message; }
+    }
+
 }
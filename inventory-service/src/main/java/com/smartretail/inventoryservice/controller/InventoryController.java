@@ -8,6 +8,7 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import java.io.IOException;
 import java.io.ByteArrayOutputStream;
 import java.util.List;
@@ -32,54 +33,84 @@ public class InventoryController {
     private final StockReservationService stockReservationService;
     private final InventoryAnalyticsService inventoryAnalyticsService;
     private final LotManagementService lotManagementService;
-
-    // Import file nhập kho
+    private final ProductUnitCache productUnitCache;
+    private final StocktakingExportService stocktakingExportService;
+    private final StockLedgerService stockLedgerService;
+    private final LowStockMonitor lowStockMonitor;
+    private final ReorderThresholdService reorderThresholdService;
+    private final LotExpiryJob lotExpiryJob;
+    private final StockTransferService stockTransferService;
+    private final FefoPlanningService fefoPlanningService;
+    private final StockEventOutbox stockEventOutbox;
+    private final FefoLotIndex fefoLotIndex;
+    private final WarehouseLocationCache warehouseLocationCache;
+
+    // Import file nhập kho (đọc streaming, ghi theo lô). async=true thì trả jobId để theo dõi tiến độ
     @PostMapping("/inbound/import")
     public ResponseEntity<?> importInventoryFile(
             @RequestParam("file") MultipartFile file,
             @RequestParam("warehouseId") Long warehouseId,
             @RequestParam("stockLocationId") Long stockLocationId,
             @RequestParam(value = "referenceNumber", required = false) String referenceNumber,
-            @RequestParam(value = "note", required = false) String note) {
+            @RequestParam(value = "note", required = false) String note,
+            @RequestParam(value = "async", defaultValue = "false") boolean async) {
 
         try {
-            String fileName = file.getOriginalFilename();
-            List<InventoryImportDto.InventoryImportDetailDto> importDetails;
-
-            if (fileName != null && fileName.toLowerCase().endsWith(".xlsx")) {
-                importDetails = fileImportService.importExcelFile(file);
-            } else if (fileName != null && fileName.toLowerCase().endsWith(".csv")) {
-                importDetails = fileImportService.importCsvFile(file);
-            } else {
-                return ResponseEntity.badRequest().body("Unsupported file format. Please use .xlsx or .csv files.");
+            if (async) {
+                FileImportService.ImportJob job = fileImportService.startImport(
+                    file, warehouseId, stockLocationId, referenceNumber, note);
+                return ResponseEntity.status(HttpStatus.ACCEPTED).body(Map.of(
+                    "message", "File import started",
+                    "jobId", job.getJobId(),
+                    "warehouseId", warehouseId,
+                    "stockLocationId", stockLocationId
+                ));
             }
 
-            if (importDetails.isEmpty()) {
-                return ResponseEntity.badRequest().body("No valid data found in the file.");
-            }
+            FileImportService.ImportJob job = fileImportService.importInbound(
+                file, warehouseId, stockLocationId, referenceNumber, note);
 
-            // Process the import details and save to database
-            List<InventoryDto> createdTransactions = fileImportService.processImportedInventory(
-                importDetails, warehouseId, stockLocationId, referenceNumber, note);
+            if ("FAILED".equals(job.getStatus()) && job.getProcessedRows() == 0) {
+                return ResponseEntity.badRequest().body(job);
+            }
+            if (job.getProcessedRows() == 0) {
+                return ResponseEntity.badRequest().body(Map.of(
+                    "message", "No valid data found in the file.",
+                    "totalRecords", job.getTotalRows(),
+                    "failedRecords", job.getFailedRows(),
+                    "errors", job.getErrors()
+                ));
+            }
 
-            return ResponseEntity.ok(Map.of(
-                "message", "File imported successfully",
-                "totalRecords", importDetails.size(),
-                "processedRecords", createdTransactions.size(),
-                "warehouseId", warehouseId,
-                "stockLocationId", stockLocationId,
-                "referenceNumber", referenceNumber,
-                "createdTransactions", createdTransactions
-            ));
+            Map<String, Object> body = new java.util.HashMap<>();
+            body.put("message", "FAILED".equals(job.getStatus()) ? job.getMessage() : "File imported successfully");
+            body.put("jobId", job.getJobId());
+            body.put("totalRecords", job.getTotalRows());
+            body.put("processedRecords", job.getProcessedRows());
+            body.put("failedRecords", job.getFailedRows());
+            body.put("errors", job.getErrors());
+            body.put("warehouseId", warehouseId);
+            body.put("stockLocationId", stockLocationId);
+            body.put("referenceNumber", referenceNumber);
+            return ResponseEntity.ok(body);
 
         } catch (IOException e) {
             log.error("Error processing file import: {}", e.getMessage());
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
                     .body("Error processing file: " + e.getMessage());
+        } catch (RuntimeException e) {
+            log.error("Invalid file import request: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    // Tiến độ/kết quả của một lần import bất đồng bộ
+    @GetMapping("/inbound/import/{jobId}")
+    public ResponseEntity<?> getImportJob(@PathVariable String jobId) {
+        try {
+            return ResponseEntity.ok(fileImportService.getJob(jobId));
         } catch (Exception e) {
-            log.error("Unexpected error during file import: {}", e.getMessage());
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .body("Unexpected error: " + e.getMessage());
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(Map.of("success", false, "message", e.getMessage()));
         }
     }
 
@@ -397,6 +428,22 @@ public class InventoryController {
         }
     }
 
+    // Tồn kho cuối ngày date (yyyy-MM-dd) theo snapshot ngày + sổ cái
+    @GetMapping("/stock/as-of")
+    public ResponseEntity<?> getStockAsOf(
+            @RequestParam Long warehouseId,
+            @RequestParam(required = false) Long stockLocationId,
+            @RequestParam(required = false) Long productUnitId,
+            @RequestParam @org.springframework.format.annotation.DateTimeFormat(iso = org.springframework.format.annotation.DateTimeFormat.ISO.DATE) java.time.LocalDate date) {
+        try {
+            List<StockAsOfDto> data = stockLedgerService.getStockAsOf(warehouseId, stockLocationId, productUnitId, date);
+            return ResponseEntity.ok(Map.of("success", true, "data", data));
+        } catch (Exception e) {
+            log.error("Error getting stock as of {}: {}", date, e.getMessage());
+            return ResponseEntity.badRequest().body(Map.of("success", false, "message", e.getMessage()));
+        }
+    }
+
     // Tồn kho chi tiết của 1 sản phẩm
     @GetMapping("/stock/{productUnitId}")
     public ResponseEntity<List<StockBalanceDto>> getStockBalanceByProduct(@PathVariable Long productUnitId) {
@@ -492,6 +539,41 @@ public class InventoryController {
         }
     }
 
+    // Chuyển kho nhiều dòng trong một giao dịch, lô được chuyển theo FEFO và giữ nguyên hạn dùng
+    @PostMapping("/transfer/batch")
+    public ResponseEntity<?> processBatchTransfer(@RequestBody BatchTransferRequestDto request) {
+        try {
+            StockTransferDto transfer = stockTransferService.transfer(request);
+            return ResponseEntity.status(HttpStatus.CREATED).body(Map.of(
+                    "success", true,
+                    "message", "Đã chuyển kho " + transfer.getLines().size() + " dòng",
+                    "data", transfer
+            ));
+        } catch (Exception e) {
+            log.error("Error processing batch transfer: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(Map.of(
+                    "success", false,
+                    "message", e.getMessage()
+            ));
+        }
+    }
+
+    @GetMapping("/transfer/batch/{id}")
+    public ResponseEntity<?> getBatchTransfer(@PathVariable Long id) {
+        try {
+            return ResponseEntity.ok(Map.of(
+                    "success", true,
+                    "data", stockTransferService.getTransfer(id)
+            ));
+        } catch (Exception e) {
+            log.error("Error getting batch transfer {}: {}", id, e.getMessage());
+            return ResponseEntity.badRequest().body(Map.of(
+                    "success", false,
+                    "message", e.getMessage()
+            ));
+        }
+    }
+
     // ==================== STOCKTAKING ====================
 
     // Tạo phiếu kiểm kê
@@ -537,14 +619,28 @@ public class InventoryController {
         }
     }
 
-    // Danh sách phiếu kiểm kê
+    // Danh sách phiếu kiểm kê (truyền page để lấy theo trang)
     @GetMapping("/stocktaking")
     public ResponseEntity<?> listStocktakings(
             @RequestParam(required = false) Long warehouseId,
             @RequestParam(required = false) Long stockLocationId,
-            @RequestParam(required = false) String status
+            @RequestParam(required = false) String status,
+            @RequestParam(required = false) Integer page,
+            @RequestParam(defaultValue = "20") Integer size
     ) {
         try {
+            if (page != null) {
+                var result = stocktakingService.listStocktakings(warehouseId, stockLocationId, status,
+                        Math.max(page, 0), Math.min(Math.max(size, 1), 200));
+                return ResponseEntity.ok(Map.of(
+                        "success", true,
+                        "total", result.getTotalElements(),
+                        "page", result.getNumber(),
+                        "size", result.getSize(),
+                        "totalPages", result.getTotalPages(),
+                        "data", stocktakingService.toDtoList(result.getContent())
+                ));
+            }
             var items = stocktakingService.toDtoList(
                     stocktakingService.listStocktakings(warehouseId, stockLocationId, status)
             );
@@ -575,6 +671,31 @@ public class InventoryController {
         }
     }
 
+    // Chụp tồn hệ thống của cả kho/vị trí vào phiếu (thay cho việc gửi systemQuantity từng dòng)
+    @PostMapping("/stocktaking/{id}/snapshot")
+    public ResponseEntity<?> snapshotStocktaking(@PathVariable Long id) {
+        try {
+            int lines = stocktakingService.snapshot(id);
+            return ResponseEntity.ok(Map.of("success", true, "lines", lines));
+        } catch (Exception e) {
+            log.error("Error snapshotting stocktaking: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(Map.of("success", false, "message", e.getMessage()));
+        }
+    }
+
+    // Nhập số lượng đếm thực tế hàng loạt cho phiếu đã snapshot: [{productUnitId, actualQuantity, note}]
+    @PutMapping("/stocktaking/{id}/counts")
+    public ResponseEntity<?> applyStocktakingCounts(@PathVariable Long id,
+                                                    @RequestBody java.util.List<com.smartretail.inventoryservice.dto.StocktakingDetailDto> counts) {
+        try {
+            var result = stocktakingService.applyCounts(id, counts);
+            return ResponseEntity.ok(Map.of("success", true, "data", result));
+        } catch (Exception e) {
+            log.error("Error applying stocktaking counts: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(Map.of("success", false, "message", e.getMessage()));
+        }
+    }
+
     // Lấy 1 phiếu kiểm kê theo ID
     @GetMapping("/stocktaking/{id}")
     public ResponseEntity<?> getStocktaking(@PathVariable Long id) {
@@ -587,10 +708,23 @@ public class InventoryController {
         }
     }
 
-    // Lấy danh sách chi tiết của 1 phiếu
+    // Lấy danh sách chi tiết của 1 phiếu (truyền page để lấy theo trang)
     @GetMapping("/stocktaking/{id}/details")
-    public ResponseEntity<?> getStocktakingDetails(@PathVariable Long id) {
+    public ResponseEntity<?> getStocktakingDetails(@PathVariable Long id,
+                                                   @RequestParam(required = false) Integer page,
+                                                   @RequestParam(defaultValue = "100") Integer size) {
         try {
+            if (page != null) {
+                var result = stocktakingService.getDetailsByStocktakingId(id, Math.max(page, 0), Math.min(Math.max(size, 1), 1000));
+                return ResponseEntity.ok(Map.of(
+                        "success", true,
+                        "total", result.getTotalElements(),
+                        "page", result.getNumber(),
+                        "size", result.getSize(),
+                        "totalPages", result.getTotalPages(),
+                        "data", stocktakingService.toDetailDtoList(result.getContent())
+                ));
+            }
             var details = stocktakingService.toDetailDtoList(stocktakingService.getDetailsByStocktakingId(id));
             return ResponseEntity.ok(Map.of("success", true, "total", details.size(), "data", details));
         } catch (Exception e) {
@@ -611,77 +745,18 @@ public class InventoryController {
         }
     }
 
-    // Xuất Excel 1 phiếu kiểm kê
+    // Xuất Excel 1 phiếu kiểm kê (ghi streaming thẳng ra response)
     @GetMapping("/stocktaking/{id}/export.xlsx")
-    public ResponseEntity<byte[]> exportStocktakingExcel(@PathVariable Long id) {
-        try (Workbook workbook = new XSSFWorkbook(); ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+    public ResponseEntity<StreamingResponseBody> exportStocktakingExcel(@PathVariable Long id) {
+        try {
+            // Đọc phiếu trước khi stream để lỗi "không tìm thấy" vẫn trả được mã lỗi
             var st = stocktakingService.toDto(stocktakingService.getStocktakingById(id));
-            var details = stocktakingService.toDetailDtoList(stocktakingService.getDetailsByStocktakingId(id));
-
-            Sheet sheet = workbook.createSheet("Stocktaking");
-
-            int r = 0;
-            Row title = sheet.createRow(r++);
-            title.createCell(0).setCellValue("Phiếu kiểm kê");
-
-            Row meta1 = sheet.createRow(r++);
-            meta1.createCell(0).setCellValue("Số phiếu");
-            meta1.createCell(1).setCellValue(st.getStocktakingNumber());
-            meta1.createCell(3).setCellValue("Trạng thái");
-            meta1.createCell(4).setCellValue(st.getStatus());
-
-            Row meta2 = sheet.createRow(r++);
-            meta2.createCell(0).setCellValue("Kho");
-            meta2.createCell(1).setCellValue(st.getWarehouseId() != null ? st.getWarehouseId() : 0);
-            meta2.createCell(3).setCellValue("Vị trí");
-            meta2.createCell(4).setCellValue(st.getStockLocationId() != null ? st.getStockLocationId() : 0);
-
-            Row meta3 = sheet.createRow(r++);
-            meta3.createCell(0).setCellValue("Ngày kiểm kê");
-            meta3.createCell(1).setCellValue(st.getStocktakingDate() != null ? st.getStocktakingDate().toString() : "");
-            meta3.createCell(3).setCellValue("Ngày hoàn tất");
-            meta3.createCell(4).setCellValue(st.getCompletedDate() != null ? st.getCompletedDate().toString() : "");
-
-            Row meta4 = sheet.createRow(r++);
-            meta4.createCell(0).setCellValue("Người tạo");
-            meta4.createCell(1).setCellValue(st.getCreatedBy() != null ? st.getCreatedBy().toString() : (st.getCreatedByUsername() != null ? st.getCreatedByUsername() : ""));
-
-            Row meta5 = sheet.createRow(r++);
-            meta5.createCell(0).setCellValue("Ghi chú");
-            meta5.createCell(1).setCellValue(st.getNote() != null ? st.getNote() : "");
-
-            r++;
-            Row header = sheet.createRow(r++);
-            header.createCell(0).setCellValue("#");
-            header.createCell(1).setCellValue("Sản phẩm");
-            header.createCell(2).setCellValue("Đơn vị");
-            header.createCell(3).setCellValue("Tồn hệ thống");
-            header.createCell(4).setCellValue("Thực tế");
-            header.createCell(5).setCellValue("Chênh lệch");
-            header.createCell(6).setCellValue("Ghi chú");
-
-            int idx = 1;
-            for (var d : details) {
-                Row row = sheet.createRow(r++);
-                row.createCell(0).setCellValue(idx++);
-                row.createCell(1).setCellValue(d.getProductName() != null ? d.getProductName() : "");
-                row.createCell(2).setCellValue(d.getUnitName() != null ? d.getUnitName() : "");
-                row.createCell(3).setCellValue(d.getSystemQuantity() != null ? d.getSystemQuantity() : 0);
-                row.createCell(4).setCellValue(d.getActualQuantity() != null ? d.getActualQuantity() : 0);
-                row.createCell(5).setCellValue(d.getDifferenceQuantity() != null ? d.getDifferenceQuantity() : 0);
-                row.createCell(6).setCellValue(d.getNote() != null ? d.getNote() : "");
-            }
-
-            for (int c = 0; c <= 6; c++) sheet.autoSizeColumn(c);
-
-            workbook.write(out);
-            byte[] bytes = out.toByteArray();
+            StreamingResponseBody body = out -> stocktakingExportService.writeExcel(st, out);
 
             HttpHeaders headers = new HttpHeaders();
             headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
             headers.set(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=stocktaking_" + id + ".xlsx");
-            headers.setContentLength(bytes.length);
-            return new ResponseEntity<>(bytes, headers, HttpStatus.OK);
+            return new ResponseEntity<>(body, headers, HttpStatus.OK);
         } catch (Exception e) {
             log.error("Error exporting stocktaking excel: {}", e.getMessage());
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
@@ -839,8 +914,22 @@ public class InventoryController {
 
     // Lấy lô sắp hết hạn
     @GetMapping("/lots/near-expiry")
-    public ResponseEntity<?> getLotsNearExpiry(@RequestParam(defaultValue = "30") int days) {
+    public ResponseEntity<?> getLotsNearExpiry(@RequestParam(defaultValue = "30") int days,
+                                               @RequestParam(required = false) Integer page,
+                                               @RequestParam(defaultValue = "50") Integer size) {
         try {
+            if (page != null) {
+                var result = lotManagementService.getLotsNearExpiry(days, Math.max(page, 0), Math.min(Math.max(size, 1), 500));
+                return ResponseEntity.ok(Map.of(
+                        "success", true,
+                        "total", result.getTotalElements(),
+                        "page", result.getNumber(),
+                        "size", result.getSize(),
+                        "totalPages", result.getTotalPages(),
+                        "days", days,
+                        "data", result.getContent()
+                ));
+            }
             List<com.smartretail.inventoryservice.dto.StockLotDto> lots = lotManagementService.getLotsNearExpiry(days);
             return ResponseEntity.ok(Map.of(
                     "success", true,
@@ -856,8 +945,20 @@ public class InventoryController {
 
     // Lấy lô đã hết hạn
     @GetMapping("/lots/expired")
-    public ResponseEntity<?> getExpiredLots() {
+    public ResponseEntity<?> getExpiredLots(@RequestParam(required = false) Integer page,
+                                            @RequestParam(defaultValue = "50") Integer size) {
         try {
+            if (page != null) {
+                var result = lotManagementService.getExpiredLots(Math.max(page, 0), Math.min(Math.max(size, 1), 500));
+                return ResponseEntity.ok(Map.of(
+                        "success", true,
+                        "total", result.getTotalElements(),
+                        "page", result.getNumber(),
+                        "size", result.getSize(),
+                        "totalPages", result.getTotalPages(),
+                        "data", result.getContent()
+                ));
+            }
             List<com.smartretail.inventoryservice.dto.StockLotDto> lots = lotManagementService.getExpiredLots();
             return ResponseEntity.ok(Map.of(
                     "success", true,
@@ -870,6 +971,18 @@ public class InventoryController {
         }
     }
 
+    // Chạy ngay job chuyển lô quá hạn sang EXPIRED (bình thường chạy theo lịch hằng ngày)
+    @PostMapping("/lots/expire")
+    public ResponseEntity<?> expireLots() {
+        try {
+            int groups = lotExpiryJob.run();
+            return ResponseEntity.ok(Map.of("success", true, "affectedGroups", groups));
+        } catch (Exception e) {
+            log.error("Error expiring lots: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(Map.of("success", false, "message", e.getMessage()));
+        }
+    }
+
     // ==================== FEFO ALLOCATION ====================
 
     // Phân bổ số lượng theo FEFO
@@ -896,6 +1009,22 @@ public class InventoryController {
         }
     }
 
+    // Lập kế hoạch lấy hàng FEFO cho nhiều SKU trong một lần gọi (không dự trữ, không thay đổi tồn)
+    @PostMapping("/lots/plan-fefo")
+    public ResponseEntity<?> planFEFO(@RequestBody FefoPlanRequestDto request) {
+        try {
+            FefoPlanDto plan = fefoPlanningService.plan(request);
+            return ResponseEntity.ok(Map.of(
+                    "success", true,
+                    "fulfilled", plan.getShortLineCount() == 0,
+                    "data", plan
+            ));
+        } catch (Exception e) {
+            log.error("Error planning FEFO allocation: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(Map.of("success", false, "message", e.getMessage()));
+        }
+    }
+
     // Kiểm tra tồn kho có sẵn (không thực hiện xuất kho)
     @PostMapping("/stock/check-availability")
     public ResponseEntity<?> checkStockAvailability(@RequestBody Map<String, Object> request) {
@@ -1001,6 +1130,148 @@ public class InventoryController {
         }
     }
 
+    // SKU đang sắp hết theo ngưỡng riêng từng SKU, đọc từ bộ nhớ (không truy vấn DB)
+    @GetMapping("/stock/alerts/low/live")
+    public ResponseEntity<?> getLiveLowStockAlerts(@RequestParam(required = false) Long warehouseId) {
+        try {
+            List<LowStockAlertDto> data = lowStockMonitor.getLowStock(warehouseId);
+            return ResponseEntity.ok(Map.of(
+                    "success", true,
+                    "total", data.size(),
+                    "data", data
+            ));
+        } catch (Exception e) {
+            log.error("Error getting live low stock alerts: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(Map.of("success", false, "message", e.getMessage()));
+        }
+    }
+
+    // Dashboard đăng ký SSE: sự kiện "snapshot" khi kết nối, sau đó "low-stock"/"recovered" khi vượt ngưỡng
+    @GetMapping(value = "/stock/alerts/low/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public org.springframework.web.servlet.mvc.method.annotation.SseEmitter streamLowStockAlerts(
+            @RequestParam(required = false) Long warehouseId) {
+        return lowStockMonitor.subscribe(warehouseId);
+    }
+
+    // ==================== STOCK CHANGE EVENTS ====================
+
+    // seq mới nhất: consumer lấy head, nạp toàn bộ /stock một lần rồi đọc sự kiện từ head
+    @GetMapping("/stock/events/head")
+    public ResponseEntity<?> getStockEventHead() {
+        try {
+            return ResponseEntity.ok(Map.of("success", true, "offset", stockEventOutbox.head()));
+        } catch (Exception e) {
+            log.error("Error getting stock event head: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(Map.of("success", false, "message", e.getMessage()));
+        }
+    }
+
+    // Long-poll sự kiện thay đổi tồn sau offset; không có sự kiện thì giữ kết nối tối đa waitMs
+    @GetMapping("/stock/events")
+    public org.springframework.web.context.request.async.DeferredResult<StockChangeBatchDto> pollStockEvents(
+            @RequestParam(defaultValue = "0") long offset,
+            @RequestParam(defaultValue = "500") int limit,
+            @RequestParam(defaultValue = "25000") long waitMs) {
+        return stockEventOutbox.poll(offset, limit, Math.min(waitMs, 60000));
+    }
+
+    // SSE sự kiện thay đổi tồn; nối lại bằng Last-Event-ID hoặc offset
+    @GetMapping(value = "/stock/events/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public org.springframework.web.servlet.mvc.method.annotation.SseEmitter streamStockEvents(
+            @RequestParam(required = false) Long offset,
+            @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
+        long from = offset != null ? offset : 0L;
+        if (offset == null && lastEventId != null && !lastEventId.isBlank()) {
+            from = Long.parseLong(lastEventId.trim());
+        }
+        return stockEventOutbox.subscribe(from);
+    }
+
+    // Ngưỡng đặt hàng lại theo SKU
+    @GetMapping("/stock/thresholds")
+    public ResponseEntity<?> getReorderThresholds(
+            @RequestParam(required = false) Long productUnitId,
+            @RequestParam(required = false) Long warehouseId) {
+        try {
+            List<ReorderThresholdDto> data = reorderThresholdService.getThresholds(productUnitId, warehouseId);
+            return ResponseEntity.ok(Map.of("success", true, "data", data));
+        } catch (Exception e) {
+            log.error("Error getting reorder thresholds: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(Map.of("success", false, "message", e.getMessage()));
+        }
+    }
+
+    @PutMapping("/stock/thresholds")
+    public ResponseEntity<?> saveReorderThresholds(@RequestBody List<ReorderThresholdDto> thresholds) {
+        try {
+            List<ReorderThresholdDto> data = reorderThresholdService.saveThresholds(thresholds);
+            return ResponseEntity.ok(Map.of("success", true, "data", data));
+        } catch (Exception e) {
+            log.error("Error saving reorder thresholds: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(Map.of("success", false, "message", e.getMessage()));
+        }
+    }
+
+    @DeleteMapping("/stock/thresholds/{id}")
+    public ResponseEntity<?> deleteReorderThreshold(@PathVariable Long id) {
+        try {
+            reorderThresholdService.deleteThreshold(id);
+            return ResponseEntity.ok(Map.of("success", true));
+        } catch (Exception e) {
+            log.error("Error deleting reorder threshold: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(Map.of("success", false, "message", e.getMessage()));
+        }
+    }
+
+    // ==================== PRODUCT UNIT CACHE ====================
+
+    // product-service gọi khi đơn vị của sản phẩm thay đổi; không truyền productId thì nạp lại toàn bộ
+    @PostMapping("/cache/product-units/invalidate")
+    public ResponseEntity<?> invalidateProductUnitCache(@RequestParam(required = false) Long productId) {
+        try {
+            if (productId != null) {
+                productUnitCache.invalidateProduct(productId);
+                return ResponseEntity.ok(Map.of("success", true, "productId", productId));
+            }
+            int loaded = productUnitCache.refreshAll();
+            return ResponseEntity.ok(Map.of("success", true, "loaded", loaded));
+        } catch (Exception e) {
+            log.error("Error invalidating product unit cache: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(Map.of("success", false, "message", e.getMessage()));
+        }
+    }
+
+    // Kho/vị trí đổi ở instance khác: bỏ một kho (kèm vị trí của kho) hoặc một vị trí, không truyền gì thì nạp lại toàn bộ
+    @PostMapping("/cache/warehouses/invalidate")
+    public ResponseEntity<?> invalidateWarehouseCache(@RequestParam(required = false) Long warehouseId,
+                                                      @RequestParam(required = false) Long stockLocationId) {
+        try {
+            if (warehouseId == null && stockLocationId == null) {
+                int loaded = warehouseLocationCache.refreshAll();
+                return ResponseEntity.ok(Map.of("success", true, "loaded", loaded));
+            }
+            warehouseLocationCache.invalidateWarehouse(warehouseId);
+            warehouseLocationCache.invalidateLocation(stockLocationId);
+            return ResponseEntity.ok(Map.of("success", true));
+        } catch (Exception e) {
+            log.error("Error invalidating warehouse cache: {}", e.getMessage());
+            return ResponseEntity.badRequest().body(Map.of("success", false, "message", e.getMessage()));
+        }
+    }
+
+    // Bỏ chỉ mục FEFO của một SKU tại kho/vị trí (hoặc toàn bộ nếu thiếu tham số), lần dùng sau nạp lại từ DB
+    @PostMapping("/cache/fefo-index/invalidate")
+    public ResponseEntity<?> invalidateFefoIndex(@RequestParam(required = false) Long productUnitId,
+                                                 @RequestParam(required = false) Long warehouseId,
+                                                 @RequestParam(required = false) Long stockLocationId) {
+        if (productUnitId != null && warehouseId != null && stockLocationId != null) {
+            fefoLotIndex.evict(productUnitId, warehouseId, stockLocationId);
+        } else {
+            fefoLotIndex.evictAll();
+        }
+        return ResponseEntity.ok(Map.of("success", true));
+    }
+
     // ==================== RETURN PROCESSING ====================
 
     // Xử lý trả hàng với lot tracking
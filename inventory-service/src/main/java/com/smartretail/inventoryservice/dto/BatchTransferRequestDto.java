@@ -0,0 +1,56 @@
+package com.smartretail.inventoryservice.dto;
+
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.NotNull;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+// Phiếu chuyển kho nhiều dòng: toàn bộ dòng được chuyển trong một transaction
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class BatchTransferRequestDto {
+
+    @NotNull
+    private Long sourceWarehouseId;
+
+    @NotNull
+    private Long sourceStockLocationId;
+
+    @NotNull
+    private Long destinationWarehouseId;
+
+    @NotNull
+    private Long destinationStockLocationId;
+
+    // Để trống thì tự sinh số phiếu
+    private String transferNumber;
+
+    private LocalDateTime transactionDate;
+
+    private String note;
+
+    @NotEmpty
+    @Valid
+    private List<Line> lines;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Line {
+        @NotNull
+        private Long productUnitId;
+
+        @NotNull
+        @Min(1)
+        private Integer quantity;
+
+        private String note;
+    }
+}
@@ -0,0 +1,46 @@
+package com.smartretail.inventoryservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDate;
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class FefoPlanDto {
+    private Long warehouseId;
+    private Long stockLocationId;
+    private Integer totalRequested;
+    private Integer totalPlanned;
+    private Integer shortLineCount;
+    private List<Line> lines;
+
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Line {
+        private Long productUnitId;
+        private Integer requestedQuantity;
+        private Integer plannedQuantity;
+        private Integer shortageQuantity;
+        private List<Pick> picks;
+    }
+
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Pick {
+        private Long lotId;
+        private String lotNumber;
+        private Long stockLocationId;
+        private LocalDate expiryDate;
+        private Integer quantity;
+    }
+}
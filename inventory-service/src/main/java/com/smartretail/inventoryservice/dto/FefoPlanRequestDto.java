@@ -0,0 +1,26 @@
+package com.smartretail.inventoryservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+// Yêu cầu lập kế hoạch lấy hàng FEFO cho nhiều SKU trong một kho (không thay đổi tồn)
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class FefoPlanRequestDto {
+    private Long warehouseId;
+    // Để trống thì lấy từ mọi vị trí trong kho
+    private Long stockLocationId;
+    private List<Line> lines;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Line {
+        private Long productUnitId;
+        private Integer quantity;
+    }
+}
@@ -11,6 +11,7 @@ import lombok.NoArgsConstructor;
 @AllArgsConstructor
 public class LowStockAlertDto {
     private Long productUnitId;
+    private Long warehouseId;
     private Long productId;
     private String productName;
     private String unitName;
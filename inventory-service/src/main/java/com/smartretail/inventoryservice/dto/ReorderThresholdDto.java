@@ -0,0 +1,19 @@
+package com.smartretail.inventoryservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ReorderThresholdDto {
+    private Long id;
+    private Long productUnitId;
+    // null: áp dụng cho mọi kho
+    private Long warehouseId;
+    private Integer threshold;
+    private LocalDateTime updatedAt;
+}
@@ -0,0 +1,20 @@
+package com.smartretail.inventoryservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDate;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class StockAsOfDto {
+    private Long productUnitId;
+    private Long warehouseId;
+    private Long stockLocationId;
+    private LocalDate asOfDate;
+    private Integer quantity;
+}
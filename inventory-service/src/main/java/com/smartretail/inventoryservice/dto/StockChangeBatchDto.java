@@ -0,0 +1,20 @@
+package com.smartretail.inventoryservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class StockChangeBatchDto {
+    private List<StockChangeEventDto> events;
+    // Offset để gửi ở lần đọc tiếp theo
+    private Long nextOffset;
+    // true khi các sự kiện sau offset đã bị xoá theo thời hạn lưu: consumer cần nạp lại toàn bộ rồi đọc tiếp
+    private Boolean reset;
+}
@@ -0,0 +1,24 @@
+package com.smartretail.inventoryservice.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+// Trạng thái mới của một dòng stock_balance; version là offset trong luồng sự kiện
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class StockChangeEventDto {
+    private Long version;
+    private Long productUnitId;
+    private Long warehouseId;
+    private Long stockLocationId;
+    private Integer quantity;
+    private Integer availableQuantity;
+    private Integer reservedQuantity;
+    private LocalDateTime changedAt;
+}
@@ -0,0 +1,56 @@
+package com.smartretail.inventoryservice.dto;
+
+import com.smartretail.inventoryservice.model.StockTransfer;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class StockTransferDto {
+    private Long id;
+    private String transferNumber;
+    private StockTransfer.TransferStatus status;
+    private Long fromWarehouseId;
+    private Long fromStockLocationId;
+    private Long toWarehouseId;
+    private Long toStockLocationId;
+    private LocalDateTime transferDate;
+    private LocalDateTime completedDate;
+    private String note;
+    private Integer totalQuantity;
+    private List<Line> lines;
+
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Line {
+        private Long productUnitId;
+        private Integer quantity;
+        private Integer transferredQuantity;
+        // Phần không gắn lô (tồn nhập không qua lô) được chuyển theo stock_balance
+        private Integer untrackedQuantity;
+        private String note;
+        private List<LotMove> lots;
+    }
+
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class LotMove {
+        private Long sourceLotId;
+        private Long destinationLotId;
+        private String lotNumber;
+        private LocalDate expiryDate;
+        private Integer quantity;
+    }
+}
@@ -12,6 +12,7 @@ public class StocktakingDto {
     private String status;
     private LocalDateTime stocktakingDate;
     private LocalDateTime completedDate;
+    private LocalDateTime snapshotAt;
     private String note;
     private Long createdBy;
     private String createdByUsername;
@@ -0,0 +1,43 @@
+package com.smartretail.inventoryservice.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import java.time.LocalDateTime;
+
+/**
+ * Ngưỡng đặt hàng lại của một SKU: tồn khả dụng trong kho <= threshold thì coi là sắp hết.
+ * warehouse_id NULL là ngưỡng chung cho mọi kho (ngưỡng riêng của kho được ưu tiên).
+ */
+@Entity
+@Table(name = "reorder_threshold", uniqueConstraints = {
+        @UniqueConstraint(name = "uk_reorder_threshold_pu_wh", columnNames = {"product_unit_id", "warehouse_id"})
+})
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ReorderThreshold {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "product_unit_id", nullable = false)
+    private Long productUnitId;
+
+    @Column(name = "warehouse_id")
+    private Long warehouseId;
+
+    @Column(nullable = false)
+    private Integer threshold;
+
+    @Column(name = "updated_at", nullable = false)
+    private LocalDateTime updatedAt;
+
+    @PrePersist
+    @PreUpdate
+    protected void onSave() {
+        updatedAt = LocalDateTime.now();
+    }
+}
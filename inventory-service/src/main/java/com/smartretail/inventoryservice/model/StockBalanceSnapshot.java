@@ -0,0 +1,50 @@
+package com.smartretail.inventoryservice.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * Tồn cuối ngày của một sản phẩm tại kho/vị trí, chỉ ghi cho những ngày có phát sinh trên sổ cái.
+ * Tồn tại ngày D = snapshot gần nhất <= D (ngày nào không có dòng nghĩa là tồn không đổi).
+ */
+@Entity
+@Table(name = "stock_balance_snapshot",
+        uniqueConstraints = {
+                // Vừa chống ghi trùng khi chạy lại, vừa phục vụ tìm snapshot gần nhất của một sản phẩm
+                @UniqueConstraint(name = "uk_snapshot_pu_wh_loc_date",
+                        columnNames = {"product_unit_id", "warehouse_id", "stock_location_id", "snapshot_date"})
+        },
+        indexes = {
+                @Index(name = "idx_snapshot_wh_date", columnList = "warehouse_id, snapshot_date")
+        })
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StockBalanceSnapshot {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "snapshot_date", nullable = false)
+    private LocalDate snapshotDate;
+
+    @Column(name = "product_unit_id", nullable = false)
+    private Long productUnitId;
+
+    @Column(name = "warehouse_id", nullable = false)
+    private Long warehouseId;
+
+    @Column(name = "stock_location_id", nullable = false)
+    private Long stockLocationId;
+
+    @Column(nullable = false)
+    private Integer quantity;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+}
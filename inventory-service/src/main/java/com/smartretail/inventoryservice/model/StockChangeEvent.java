@@ -0,0 +1,52 @@
+package com.smartretail.inventoryservice.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import java.time.LocalDateTime;
+
+/**
+ * Outbox sự kiện thay đổi stock_balance, ghi trong cùng transaction với thay đổi.
+ * seq được gán sau khi commit theo thứ tự hiển thị (xem StockEventSequencer), là offset để service khác
+ * đọc tiếp và cũng là version: cùng một sản phẩm/kho/vị trí thì seq lớn hơn là trạng thái mới hơn.
+ */
+@Entity
+@Table(name = "stock_change_event", indexes = {
+        @Index(name = "uk_stock_change_event_seq", columnList = "seq", unique = true),
+        @Index(name = "idx_stock_change_event_created", columnList = "created_at")
+})
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StockChangeEvent {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    // null cho tới khi được gán thứ tự
+    @Column(name = "seq")
+    private Long seq;
+
+    @Column(name = "product_unit_id", nullable = false)
+    private Long productUnitId;
+
+    @Column(name = "warehouse_id", nullable = false)
+    private Long warehouseId;
+
+    @Column(name = "stock_location_id", nullable = false)
+    private Long stockLocationId;
+
+    @Column(nullable = false)
+    private Integer quantity;
+
+    @Column(name = "available_quantity", nullable = false)
+    private Integer availableQuantity;
+
+    @Column(name = "reserved_quantity", nullable = false)
+    private Integer reservedQuantity;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+}
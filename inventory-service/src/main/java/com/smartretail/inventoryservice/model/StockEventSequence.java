@@ -0,0 +1,25 @@
+package com.smartretail.inventoryservice.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+
+/**
+ * Một dòng duy nhất giữ seq đã cấp cuối cùng; khoá ghi dòng này để nhiều instance gán seq lần lượt.
+ */
+@Entity
+@Table(name = "stock_event_sequence")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StockEventSequence {
+
+    public static final Integer SINGLETON_ID = 1;
+
+    @Id
+    private Integer id;
+
+    @Column(name = "last_seq", nullable = false)
+    private Long lastSeq;
+}
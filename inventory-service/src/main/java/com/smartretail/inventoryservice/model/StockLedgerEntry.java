@@ -0,0 +1,71 @@
+package com.smartretail.inventoryservice.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import java.time.LocalDateTime;
+
+/**
+ * Sổ cái tồn kho chỉ ghi thêm (append-only): mỗi lần quantity của stock_balance thay đổi
+ * sinh một dòng với số lượng thay đổi có dấu và tồn sau thay đổi.
+ * period_month (yyyyMM) là khoá phân vùng theo tháng, xem db/stock_ledger_partitioning.sql.
+ * Kho/vị trí lưu dạng id thuần vì bảng phân vùng của MySQL không hỗ trợ khoá ngoại.
+ */
+@Entity
+@Table(name = "stock_ledger", indexes = {
+        // Tra cứu tồn tại thời điểm: theo sản phẩm/kho/vị trí rồi khoảng thời gian
+        @Index(name = "idx_stock_ledger_pu_wh_loc_time", columnList = "product_unit_id, warehouse_id, stock_location_id, occurred_at"),
+        // Chụp snapshot ngày và tra cứu theo cả kho
+        @Index(name = "idx_stock_ledger_wh_time", columnList = "warehouse_id, occurred_at")
+})
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StockLedgerEntry {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "product_unit_id", nullable = false)
+    private Long productUnitId;
+
+    @Column(name = "warehouse_id", nullable = false)
+    private Long warehouseId;
+
+    @Column(name = "stock_location_id", nullable = false)
+    private Long stockLocationId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "movement_type", nullable = false, length = 20)
+    private MovementType movementType;
+
+    // Số lượng thay đổi có dấu: dương là tăng tồn, âm là giảm tồn
+    @Column(name = "quantity_change", nullable = false)
+    private Integer quantityChange;
+
+    @Column(name = "balance_after", nullable = false)
+    private Integer balanceAfter;
+
+    @Column(name = "reference_number")
+    private String referenceNumber;
+
+    @Column(name = "occurred_at", nullable = false)
+    private LocalDateTime occurredAt;
+
+    @Column(name = "period_month", nullable = false)
+    private Integer periodMonth;
+
+    public enum MovementType {
+        OPENING,    // Tồn đầu kỳ khi bắt đầu ghi sổ cái
+        IMPORT,     // Nhập kho
+        EXPORT,     // Xuất kho
+        ADJUST,     // Điều chỉnh về số lượng kiểm đếm
+        TRANSFER,   // Chuyển kho
+        CONSUME,    // Duyệt phiếu xuất đã reserve
+        REVERSAL,   // Xoá giao dịch kho
+        EXPIRE,     // Loại phần khả dụng của lô hết hạn khỏi tồn
+        MANUAL      // Cập nhật tồn thủ công
+    }
+}
@@ -9,7 +9,10 @@ import java.time.LocalDate;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "stock_lots")
+@Table(name = "stock_lots", indexes = {
+        // Job hết hạn và báo cáo lô sắp hết hạn đọc theo trạng thái rồi khoảng ngày hết hạn
+        @Index(name = "idx_stock_lots_status_expiry", columnList = "status, expiry_date")
+})
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
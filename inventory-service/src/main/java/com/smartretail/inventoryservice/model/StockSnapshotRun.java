@@ -0,0 +1,30 @@
+package com.smartretail.inventoryservice.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * Đánh dấu ngày đã chụp snapshot xong (kể cả ngày không có phát sinh),
+ * để truy vấn tồn tại thời điểm biết từ đâu phải cộng thêm sổ cái.
+ */
+@Entity
+@Table(name = "stock_snapshot_run")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StockSnapshotRun {
+
+    @Id
+    @Column(name = "snapshot_date")
+    private LocalDate snapshotDate;
+
+    @Column(name = "row_count", nullable = false)
+    private Integer rowCount;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+}
@@ -0,0 +1,44 @@
+package com.smartretail.inventoryservice.model;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import java.time.LocalDate;
+
+/**
+ * Một lần chuyển lô trong phiếu chuyển kho: lô nguồn → lô đích (cùng hạn dùng), để truy vết nguồn gốc lô.
+ */
+@Entity
+@Table(name = "stock_transfer_detail_lots", indexes = {
+        @Index(name = "idx_transfer_detail_lots_detail", columnList = "transfer_detail_id")
+})
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class StockTransferDetailLot {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "transfer_detail_id", nullable = false)
+    private Long transferDetailId;
+
+    @Column(name = "source_lot_id", nullable = false)
+    private Long sourceLotId;
+
+    @Column(name = "destination_lot_id", nullable = false)
+    private Long destinationLotId;
+
+    @Column(name = "lot_number", nullable = false)
+    private String lotNumber;
+
+    @Column(name = "expiry_date")
+    private LocalDate expiryDate;
+
+    @Column(nullable = false)
+    private Integer quantity;
+}
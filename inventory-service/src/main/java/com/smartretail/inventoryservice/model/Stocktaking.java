@@ -7,7 +7,10 @@ import lombok.AllArgsConstructor;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "stocktaking")
+@Table(name = "stocktaking", indexes = {
+        // Phục vụ danh sách phiếu lọc theo kho/vị trí/trạng thái, sắp theo ngày kiểm kê
+        @Index(name = "idx_stocktaking_wh_loc_status_date", columnList = "warehouse_id, stock_location_id, status, stocktaking_date")
+})
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
@@ -38,6 +41,10 @@ public class Stocktaking {
     @Column(name = "completed_date")
     private LocalDateTime completedDate;
 
+    // Thời điểm chụp tồn hệ thống (null nếu chi tiết do client gửi systemQuantity)
+    @Column(name = "snapshot_at")
+    private LocalDateTime snapshotAt;
+
     @Column(length = 500)
     private String note;
 
@@ -7,7 +7,10 @@ import lombok.AllArgsConstructor;
 
 
 @Entity
-@Table(name = "stocktaking_details")
+@Table(name = "stocktaking_details", indexes = {
+        // Ghi số đếm theo (phiếu, sản phẩm) và duyệt chi tiết của một phiếu
+        @Index(name = "idx_stocktaking_details_st_pu", columnList = "stocktaking_id, product_unit_id")
+})
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
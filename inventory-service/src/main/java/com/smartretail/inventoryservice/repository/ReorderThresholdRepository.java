@@ -0,0 +1,18 @@
+package com.smartretail.inventoryservice.repository;
+
+import com.smartretail.inventoryservice.model.ReorderThreshold;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface ReorderThresholdRepository extends JpaRepository<ReorderThreshold, Long> {
+
+    // warehouseId null được dịch thành IS NULL (ngưỡng chung)
+    Optional<ReorderThreshold> findByProductUnitIdAndWarehouseId(Long productUnitId, Long warehouseId);
+
+    List<ReorderThreshold> findByProductUnitId(Long productUnitId);
+
+    List<ReorderThreshold> findByWarehouseId(Long warehouseId);
+}
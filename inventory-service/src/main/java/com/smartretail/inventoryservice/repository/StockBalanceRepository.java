@@ -3,7 +3,9 @@ package com.smartretail.inventoryservice.repository;
 import com.smartretail.inventoryservice.model.StockBalance;
 import com.smartretail.inventoryservice.model.StockLocation;
 import com.smartretail.inventoryservice.model.Warehouse;
+import jakarta.persistence.LockModeType;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
@@ -34,6 +36,18 @@ public interface StockBalanceRepository extends JpaRepository<StockBalance, Long
     // Tìm theo kho và vị trí
     List<StockBalance> findByWarehouse_IdAndStockLocation_Id(Long warehouseId, Long stockLocationId);
 
+    // Tìm nhiều sản phẩm tại một kho/vị trí trong một truy vấn (dùng khi duyệt/hủy phiếu)
+    List<StockBalance> findByWarehouse_IdAndStockLocation_IdAndProductUnitIdIn(
+            Long warehouseId, Long stockLocationId, java.util.Collection<Long> productUnitIds);
+
+    // Khoá ghi nhiều sản phẩm tại một kho/vị trí (chuyển kho); sắp theo id để các giao dịch khoá cùng thứ tự
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT sb FROM StockBalance sb WHERE sb.warehouse.id = :warehouseId " +
+           "AND sb.stockLocation.id = :stockLocationId AND sb.productUnitId IN :productUnitIds ORDER BY sb.id")
+    List<StockBalance> findForUpdate(@Param("warehouseId") Long warehouseId,
+                                     @Param("stockLocationId") Long stockLocationId,
+                                     @Param("productUnitIds") java.util.Collection<Long> productUnitIds);
+
     // Tìm theo sản phẩm, kho và vị trí
     Optional<StockBalance> findByProductUnitIdAndStockLocationAndWarehouse(
             Long productUnitId, StockLocation stockLocation, Warehouse warehouse);
@@ -127,4 +141,16 @@ public interface StockBalanceRepository extends JpaRepository<StockBalance, Long
     List<ProductStockAggregation> getLowStockProducts(@Param("warehouseId") Long warehouseId,
                                                       @Param("stockLocationId") Long stockLocationId,
                                                       @Param("threshold") Integer threshold);
+
+    interface AvailableView {
+        Long getProductUnitId();
+        Long getWarehouseId();
+        Long getStockLocationId();
+        Integer getAvailableQuantity();
+    }
+
+    // Tồn khả dụng từng dòng, dùng để dựng lại trạng thái của LowStockMonitor
+    @Query("SELECT sb.productUnitId as productUnitId, sb.warehouse.id as warehouseId, " +
+           "sb.stockLocation.id as stockLocationId, sb.availableQuantity as availableQuantity FROM StockBalance sb")
+    List<AvailableView> findAllAvailableViews();
 }
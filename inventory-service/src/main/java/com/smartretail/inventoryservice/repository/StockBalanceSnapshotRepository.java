@@ -0,0 +1,50 @@
+package com.smartretail.inventoryservice.repository;
+
+import com.smartretail.inventoryservice.model.StockBalanceSnapshot;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Repository
+public interface StockBalanceSnapshotRepository extends JpaRepository<StockBalanceSnapshot, Long> {
+
+    // Tồn cuối ngày = snapshot gần nhất trước ngày + tổng thay đổi trong ngày, chỉ cho các sản phẩm có phát sinh.
+    // Chạy lại cùng ngày ghi đè bằng ON DUPLICATE KEY
+    @Modifying(flushAutomatically = true)
+    @Query(value = "INSERT INTO stock_balance_snapshot (snapshot_date, product_unit_id, warehouse_id, " +
+            "stock_location_id, quantity, created_at) " +
+            "SELECT :day, l.product_unit_id, l.warehouse_id, l.stock_location_id, " +
+            "COALESCE((SELECT s.quantity FROM stock_balance_snapshot s WHERE s.product_unit_id = l.product_unit_id " +
+            "AND s.warehouse_id = l.warehouse_id AND s.stock_location_id = l.stock_location_id " +
+            "AND s.snapshot_date < :day ORDER BY s.snapshot_date DESC LIMIT 1), 0) + SUM(l.quantity_change), NOW() " +
+            "FROM stock_ledger l WHERE l.period_month = :periodMonth " +
+            "AND l.occurred_at >= :fromTime AND l.occurred_at < :toTime " +
+            "GROUP BY l.product_unit_id, l.warehouse_id, l.stock_location_id " +
+            "ON DUPLICATE KEY UPDATE quantity = VALUES(quantity)", nativeQuery = true)
+    int snapshotDay(@Param("day") LocalDate day,
+                    @Param("periodMonth") Integer periodMonth,
+                    @Param("fromTime") LocalDateTime fromTime,
+                    @Param("toTime") LocalDateTime toTime);
+
+    // Snapshot gần nhất <= day của từng sản phẩm/vị trí trong kho
+    @Query(value = "SELECT s.product_unit_id AS productUnitId, s.warehouse_id AS warehouseId, " +
+            "s.stock_location_id AS stockLocationId, s.quantity AS quantity " +
+            "FROM stock_balance_snapshot s JOIN (" +
+            "SELECT product_unit_id, stock_location_id, MAX(snapshot_date) AS last_date FROM stock_balance_snapshot " +
+            "WHERE warehouse_id = :warehouseId " +
+            "AND (:stockLocationId IS NULL OR stock_location_id = :stockLocationId) " +
+            "AND (:productUnitId IS NULL OR product_unit_id = :productUnitId) " +
+            "AND snapshot_date <= :day GROUP BY product_unit_id, stock_location_id) m " +
+            "ON m.product_unit_id = s.product_unit_id AND m.stock_location_id = s.stock_location_id " +
+            "AND m.last_date = s.snapshot_date " +
+            "WHERE s.warehouse_id = :warehouseId", nativeQuery = true)
+    List<StockLedgerRepository.QuantityView> findLatestOnOrBefore(@Param("warehouseId") Long warehouseId,
+                                                                  @Param("stockLocationId") Long stockLocationId,
+                                                                  @Param("productUnitId") Long productUnitId,
+                                                                  @Param("day") LocalDate day);
+}
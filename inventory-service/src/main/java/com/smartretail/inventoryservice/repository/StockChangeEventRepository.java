@@ -0,0 +1,35 @@
+package com.smartretail.inventoryservice.repository;
+
+import com.smartretail.inventoryservice.model.StockChangeEvent;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Repository
+public interface StockChangeEventRepository extends JpaRepository<StockChangeEvent, Long> {
+
+    // Đọc tiếp từ offset theo thứ tự seq
+    List<StockChangeEvent> findBySeqGreaterThanOrderBySeqAsc(Long seq, Pageable pageable);
+
+    @Query("SELECT MAX(e.seq) FROM StockChangeEvent e")
+    Long findLastSeq();
+
+    @Query("SELECT MIN(e.seq) FROM StockChangeEvent e")
+    Long findFirstSeq();
+
+    // Sự kiện đã commit nhưng chưa có thứ tự
+    @Query(value = "SELECT id FROM stock_change_event WHERE seq IS NULL ORDER BY id LIMIT :limit", nativeQuery = true)
+    List<Long> findUnsequencedIds(@Param("limit") int limit);
+
+    // Xoá theo từng lô để không giữ khoá lâu
+    @Modifying
+    @Query(value = "DELETE FROM stock_change_event WHERE created_at < :before AND seq IS NOT NULL LIMIT :limit",
+           nativeQuery = true)
+    int purgeBefore(@Param("before") LocalDateTime before, @Param("limit") int limit);
+}
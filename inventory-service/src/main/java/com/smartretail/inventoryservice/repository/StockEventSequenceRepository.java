@@ -0,0 +1,19 @@
+package com.smartretail.inventoryservice.repository;
+
+import com.smartretail.inventoryservice.model.StockEventSequence;
+import jakarta.persistence.LockModeType;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Optional;
+
+@Repository
+public interface StockEventSequenceRepository extends JpaRepository<StockEventSequence, Integer> {
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT s FROM StockEventSequence s WHERE s.id = :id")
+    Optional<StockEventSequence> findForUpdate(@Param("id") Integer id);
+}
@@ -0,0 +1,61 @@
+package com.smartretail.inventoryservice.repository;
+
+import com.smartretail.inventoryservice.model.StockLedgerEntry;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Repository
+public interface StockLedgerRepository extends JpaRepository<StockLedgerEntry, Long> {
+
+    @Query("SELECT MIN(l.occurredAt) FROM StockLedgerEntry l")
+    LocalDateTime findFirstOccurredAt();
+
+    // 1 nếu sổ cái có ít nhất một dòng; LIMIT 1 nên không quét bảng
+    @Query(value = "SELECT COUNT(*) FROM (SELECT 1 FROM stock_ledger LIMIT 1) t", nativeQuery = true)
+    long countFirstEntry();
+
+    default boolean hasEntries() {
+        return countFirstEntry() > 0;
+    }
+
+    // Ghi tồn đầu kỳ cho các tồn kho chưa có dòng nào trên sổ cái (chạy lại không sinh trùng)
+    @Modifying(flushAutomatically = true)
+    @Query(value = "INSERT INTO stock_ledger (product_unit_id, warehouse_id, stock_location_id, movement_type, " +
+            "quantity_change, balance_after, reference_number, occurred_at, period_month) " +
+            "SELECT sb.product_unit_id, sb.warehouse_id, sb.stock_location_id, 'OPENING', sb.quantity, sb.quantity, " +
+            "NULL, :occurredAt, :periodMonth FROM stock_balance sb " +
+            "WHERE sb.quantity <> 0 AND NOT EXISTS (SELECT 1 FROM stock_ledger l " +
+            "WHERE l.product_unit_id = sb.product_unit_id AND l.warehouse_id = sb.warehouse_id " +
+            "AND l.stock_location_id = sb.stock_location_id)", nativeQuery = true)
+    int seedOpeningBalances(@Param("occurredAt") LocalDateTime occurredAt,
+                            @Param("periodMonth") Integer periodMonth);
+
+    interface QuantityView {
+        Long getProductUnitId();
+        Long getWarehouseId();
+        Long getStockLocationId();
+        Integer getQuantity();
+    }
+
+    // Tổng thay đổi trong [from, to); điều kiện period_month để MySQL chỉ đọc các phân vùng tháng liên quan
+    @Query(value = "SELECT product_unit_id AS productUnitId, warehouse_id AS warehouseId, " +
+            "stock_location_id AS stockLocationId, SUM(quantity_change) AS quantity FROM stock_ledger " +
+            "WHERE warehouse_id = :warehouseId " +
+            "AND (:stockLocationId IS NULL OR stock_location_id = :stockLocationId) " +
+            "AND (:productUnitId IS NULL OR product_unit_id = :productUnitId) " +
+            "AND period_month BETWEEN :fromPeriod AND :toPeriod " +
+            "AND occurred_at >= :fromTime AND occurred_at < :toTime " +
+            "GROUP BY product_unit_id, warehouse_id, stock_location_id", nativeQuery = true)
+    List<QuantityView> sumChanges(@Param("warehouseId") Long warehouseId,
+                                  @Param("stockLocationId") Long stockLocationId,
+                                  @Param("productUnitId") Long productUnitId,
+                                  @Param("fromPeriod") Integer fromPeriod,
+                                  @Param("toPeriod") Integer toPeriod,
+                                  @Param("fromTime") LocalDateTime fromTime,
+                                  @Param("toTime") LocalDateTime toTime);
+}
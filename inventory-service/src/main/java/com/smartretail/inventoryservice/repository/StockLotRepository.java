@@ -1,12 +1,19 @@
 package com.smartretail.inventoryservice.repository;
 
 import com.smartretail.inventoryservice.model.StockLot;
+import jakarta.persistence.LockModeType;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -16,6 +23,19 @@ public interface StockLotRepository extends JpaRepository<StockLot, Long> {
     // Tìm lô theo số lô
     Optional<StockLot> findByLotNumber(String lotNumber);
 
+    // Khoá ghi nhiều lô theo số lô trong một truy vấn (lô đích khi chuyển kho)
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT l FROM StockLot l WHERE l.lotNumber IN :lotNumbers ORDER BY l.id")
+    List<StockLot> findByLotNumberInForUpdate(@Param("lotNumbers") Collection<String> lotNumbers);
+
+    // Khoá ghi các lô còn hàng của nhiều sản phẩm tại một kho/vị trí (chuyển kho); thứ tự FEFO do caller sắp
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT l FROM StockLot l WHERE l.warehouseId = :warehouseId AND l.stockLocationId = :stockLocationId " +
+           "AND l.productUnitId IN :productUnitIds AND l.status = 'ACTIVE' AND l.availableQuantity > 0 ORDER BY l.id")
+    List<StockLot> findAvailableForUpdate(@Param("warehouseId") Long warehouseId,
+                                          @Param("stockLocationId") Long stockLocationId,
+                                          @Param("productUnitIds") Collection<Long> productUnitIds);
+
     // Tìm lô theo số lô và thông tin sản phẩm/kho/vị trí chính xác
     Optional<StockLot> findByLotNumberAndProductUnitIdAndWarehouseIdAndStockLocationId(
             String lotNumber, Long productUnitId, Long warehouseId, Long stockLocationId);
@@ -33,6 +53,36 @@ public interface StockLotRepository extends JpaRepository<StockLot, Long> {
                                            @Param("warehouseId") Long warehouseId,
                                            @Param("stockLocationId") Long stockLocationId);
 
+    // Projection gọn cho chỉ mục FEFO trong bộ nhớ (không nạp entity vào persistence context)
+    interface FefoLotView {
+        Long getId();
+        String getLotNumber();
+        LocalDate getExpiryDate();
+        LocalDateTime getCreatedAt();
+        Integer getAvailableQuantity();
+    }
+
+    @Query("SELECT l.id as id, l.lotNumber as lotNumber, l.expiryDate as expiryDate, " +
+           "l.createdAt as createdAt, l.availableQuantity as availableQuantity " +
+           "FROM StockLot l WHERE l.productUnitId = :productUnitId " +
+           "AND l.warehouseId = :warehouseId AND l.stockLocationId = :stockLocationId " +
+           "AND l.status = 'ACTIVE' AND l.availableQuantity > 0 " +
+           "ORDER BY l.expiryDate ASC NULLS LAST, l.createdAt ASC")
+    List<FefoLotView> findFefoLotViews(@Param("productUnitId") Long productUnitId,
+                                       @Param("warehouseId") Long warehouseId,
+                                       @Param("stockLocationId") Long stockLocationId);
+
+    // Dự trữ có điều kiện: chỉ cập nhật khi lô còn ACTIVE và đủ số lượng khả dụng; trả về số dòng bị ảnh hưởng.
+    // Không xóa persistence context của caller: StockLot đang được quản lý phải được refresh riêng
+    // (LotManagementService.reserveLotsFEFO) để không giữ số lượng cũ rồi ghi đè kết quả UPDATE khi flush
+    @Modifying(flushAutomatically = true)
+    @Query("UPDATE StockLot l SET l.reservedQuantity = l.reservedQuantity + :quantity, " +
+           "l.availableQuantity = l.availableQuantity - :quantity, l.updatedAt = :now " +
+           "WHERE l.id = :lotId AND l.status = 'ACTIVE' AND l.availableQuantity >= :quantity")
+    int reserveIfAvailable(@Param("lotId") Long lotId,
+                           @Param("quantity") Integer quantity,
+                           @Param("now") LocalDateTime now);
+
     // FEFO: Lấy tất cả lô có sẵn theo sản phẩm trên mọi kho & vị trí
     @Query("SELECT l FROM StockLot l WHERE l.productUnitId = :productUnitId " +
            "AND l.status = 'ACTIVE' AND l.availableQuantity > 0 " +
@@ -68,6 +118,61 @@ public interface StockLotRepository extends JpaRepository<StockLot, Long> {
            "ORDER BY l.expiryDate ASC")
     List<StockLot> findExpiredLots(@Param("currentDate") LocalDate currentDate);
 
+    // Bản phân trang theo chỉ mục (status, expiry_date)
+    Page<StockLot> findByStatusAndExpiryDateLessThanEqualAndAvailableQuantityGreaterThan(
+            StockLot.LotStatus status, LocalDate expiryDate, Integer availableQuantity, Pageable pageable);
+
+    Page<StockLot> findByStatusInAndExpiryDateLessThan(Collection<StockLot.LotStatus> statuses, LocalDate currentDate,
+                                                       Pageable pageable);
+
+    // Lô ACTIVE đã quá hạn; lô đã chuyển EXPIRED tự rơi khỏi kết quả nên job luôn đọc trang đầu
+    @Query("SELECT l.id FROM StockLot l WHERE l.status = 'ACTIVE' AND l.expiryDate < :currentDate ORDER BY l.expiryDate ASC")
+    List<Long> findExpiredActiveLotIds(@Param("currentDate") LocalDate currentDate, Pageable pageable);
+
+    // Lô ứng viên cho kế hoạch lấy hàng nhiều SKU: một truy vấn cho cả đợt, đã sắp theo SKU rồi FEFO
+    interface PickCandidateView {
+        Long getId();
+        String getLotNumber();
+        Long getProductUnitId();
+        Long getStockLocationId();
+        LocalDate getExpiryDate();
+        Integer getAvailableQuantity();
+    }
+
+    @Query("SELECT l.id as id, l.lotNumber as lotNumber, l.productUnitId as productUnitId, " +
+           "l.stockLocationId as stockLocationId, l.expiryDate as expiryDate, l.availableQuantity as availableQuantity " +
+           "FROM StockLot l WHERE l.warehouseId = :warehouseId " +
+           "AND (:stockLocationId IS NULL OR l.stockLocationId = :stockLocationId) " +
+           "AND l.productUnitId IN :productUnitIds AND l.status = 'ACTIVE' AND l.availableQuantity > 0 " +
+           "AND (l.expiryDate IS NULL OR l.expiryDate >= :today) " +
+           "ORDER BY l.productUnitId, l.expiryDate ASC NULLS LAST, l.createdAt ASC, l.id ASC")
+    List<PickCandidateView> findPickCandidates(@Param("warehouseId") Long warehouseId,
+                                               @Param("stockLocationId") Long stockLocationId,
+                                               @Param("productUnitIds") Collection<Long> productUnitIds,
+                                               @Param("today") LocalDate today);
+
+    interface LotKeyView {
+        Long getProductUnitId();
+        Long getWarehouseId();
+        Long getStockLocationId();
+    }
+
+    @Query("SELECT DISTINCT l.productUnitId as productUnitId, l.warehouseId as warehouseId, " +
+           "l.stockLocationId as stockLocationId FROM StockLot l WHERE l.id IN :ids")
+    List<LotKeyView> findLotKeys(@Param("ids") Collection<Long> ids);
+
+    // Khoá ghi các lô còn ACTIVE trong danh sách (đọc bản mới nhất): lần hết hạn chạy song song (job, API,
+    // instance khác) chờ ở đây, sau đó không còn thấy các lô đã chuyển EXPIRED nên không trừ tồn hai lần
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT l FROM StockLot l WHERE l.id IN :ids AND l.status = 'ACTIVE' ORDER BY l.id")
+    List<StockLot> findActiveByIdInForUpdate(@Param("ids") Collection<Long> ids);
+
+    // Caller tự detach các lô đã nạp (xem expireLotsChunk), không xóa cả persistence context
+    @Modifying(flushAutomatically = true)
+    @Query(value = "UPDATE stock_lots SET status = 'EXPIRED', updated_at = NOW() " +
+           "WHERE id IN (:ids) AND status = 'ACTIVE'", nativeQuery = true)
+    int markExpired(@Param("ids") Collection<Long> ids);
+
     // Tìm lô theo supplier batch
     List<StockLot> findBySupplierBatchNumberAndProductUnitId(String supplierBatchNumber, Long productUnitId);
 
@@ -0,0 +1,14 @@
+package com.smartretail.inventoryservice.repository;
+
+import com.smartretail.inventoryservice.model.StockSnapshotRun;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.stereotype.Repository;
+import java.time.LocalDate;
+
+@Repository
+public interface StockSnapshotRunRepository extends JpaRepository<StockSnapshotRun, LocalDate> {
+
+    @Query("SELECT MAX(r.snapshotDate) FROM StockSnapshotRun r")
+    LocalDate findLastSnapshotDate();
+}
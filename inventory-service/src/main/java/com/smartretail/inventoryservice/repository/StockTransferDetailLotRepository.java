@@ -0,0 +1,13 @@
+package com.smartretail.inventoryservice.repository;
+
+import com.smartretail.inventoryservice.model.StockTransferDetailLot;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface StockTransferDetailLotRepository extends JpaRepository<StockTransferDetailLot, Long> {
+    List<StockTransferDetailLot> findByTransferDetailIdIn(Collection<Long> transferDetailIds);
+}
@@ -0,0 +1,12 @@
+package com.smartretail.inventoryservice.repository;
+
+import com.smartretail.inventoryservice.model.StockTransferDetail;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface StockTransferDetailRepository extends JpaRepository<StockTransferDetail, Long> {
+    List<StockTransferDetail> findByStockTransfer_Id(Long stockTransferId);
+}
@@ -0,0 +1,10 @@
+package com.smartretail.inventoryservice.repository;
+
+import com.smartretail.inventoryservice.model.StockTransfer;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface StockTransferRepository extends JpaRepository<StockTransfer, Long> {
+    boolean existsByTransferNumber(String transferNumber);
+}
@@ -2,13 +2,53 @@ package com.smartretail.inventoryservice.repository;
 
 import com.smartretail.inventoryservice.model.StocktakingDetail;
 import com.smartretail.inventoryservice.model.Stocktaking;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 import java.util.List;
 
 @Repository
 public interface StocktakingDetailRepository extends JpaRepository<StocktakingDetail, Long> {
     List<StocktakingDetail> findByStocktaking(Stocktaking stocktaking);
-}
 
+    // Đọc theo keyset (id > afterId) để duyệt phiếu lớn theo từng lô mà không dùng OFFSET
+    List<StocktakingDetail> findByStocktaking_IdAndIdGreaterThanOrderByIdAsc(Long stocktakingId, Long afterId, Pageable pageable);
+
+    Page<StocktakingDetail> findByStocktaking_Id(Long stocktakingId, Pageable pageable);
+
+    long countByStocktaking_Id(Long stocktakingId);
+
+    long countByStocktaking_IdAndActualQuantityIsNull(Long stocktakingId);
+
+    @Query("SELECT d.productUnitId FROM StocktakingDetail d WHERE d.stocktaking.id = :stocktakingId")
+    List<Long> findProductUnitIds(@Param("stocktakingId") Long stocktakingId);
 
+    // Chụp tồn hệ thống của cả kho/vị trí vào chi tiết phiếu bằng một câu INSERT ... SELECT
+    @Modifying(flushAutomatically = true)
+    @Query(value = "INSERT INTO stocktaking_details (stocktaking_id, product_unit_id, system_quantity) " +
+            "SELECT :stocktakingId, sb.product_unit_id, sb.quantity FROM stock_balance sb " +
+            "WHERE sb.warehouse_id = :warehouseId AND sb.stock_location_id = :stockLocationId", nativeQuery = true)
+    int snapshotFromStockBalance(@Param("stocktakingId") Long stocktakingId,
+                                 @Param("warehouseId") Long warehouseId,
+                                 @Param("stockLocationId") Long stockLocationId);
+
+    // Tính chênh lệch cho các dòng đã đếm; dòng chưa đếm (actual_quantity NULL) giữ nguyên
+    @Modifying(flushAutomatically = true)
+    @Query(value = "UPDATE stocktaking_details SET difference_quantity = actual_quantity - system_quantity " +
+            "WHERE stocktaking_id = :stocktakingId AND actual_quantity IS NOT NULL", nativeQuery = true)
+    int computeVariances(@Param("stocktakingId") Long stocktakingId);
+
+    interface VarianceView {
+        Long getProductUnitId();
+        Integer getSystemQuantity();
+        Integer getActualQuantity();
+    }
+
+    @Query(value = "SELECT product_unit_id AS productUnitId, system_quantity AS systemQuantity, actual_quantity AS actualQuantity " +
+            "FROM stocktaking_details WHERE stocktaking_id = :stocktakingId AND difference_quantity <> 0 ORDER BY id", nativeQuery = true)
+    List<VarianceView> findVariances(@Param("stocktakingId") Long stocktakingId);
+}
@@ -1,11 +1,36 @@
 package com.smartretail.inventoryservice.repository;
 
 import com.smartretail.inventoryservice.model.Stocktaking;
+import jakarta.persistence.criteria.Predicate;
+import org.springframework.data.jpa.domain.Specification;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
 import org.springframework.stereotype.Repository;
 
-@Repository
-public interface StocktakingRepository extends JpaRepository<Stocktaking, Long> {
-}
+import java.util.ArrayList;
+import java.util.List;
 
+@Repository
+public interface StocktakingRepository extends JpaRepository<Stocktaking, Long>, JpaSpecificationExecutor<Stocktaking> {
 
+    /**
+     * Bộ lọc danh sách phiếu; chỉ thêm điều kiện cho tham số khác null để câu SQL không có dạng
+     * (:x IS NULL OR cột = :x) và MySQL dùng được idx_stocktaking_wh_loc_status_date
+     */
+    static Specification<Stocktaking> filter(Long warehouseId, Long stockLocationId,
+                                             Stocktaking.StocktakingStatus status) {
+        return (root, query, cb) -> {
+            List<Predicate> predicates = new ArrayList<>();
+            if (warehouseId != null) {
+                predicates.add(cb.equal(root.get("warehouse").get("id"), warehouseId));
+            }
+            if (stockLocationId != null) {
+                predicates.add(cb.equal(root.get("stockLocation").get("id"), stockLocationId));
+            }
+            if (status != null) {
+                predicates.add(cb.equal(root.get("status"), status));
+            }
+            return cb.and(predicates.toArray(new Predicate[0]));
+        };
+    }
+}
@@ -0,0 +1,315 @@
+package com.smartretail.inventoryservice.service;
+
+import com.smartretail.inventoryservice.model.StockLot;
+import com.smartretail.inventoryservice.repository.StockLotRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chỉ mục FEFO trong bộ nhớ cho các lô còn hàng, theo (productUnitId, warehouseId, stockLocationId).
+ * - Nạp lười (lazy) bằng một truy vấn projection khi key được dùng lần đầu
+ * - Cập nhật sau mỗi lần tạo/dự trữ/tiêu thụ/hết hạn lô
+ * - Nếu transaction rollback thì bỏ key khỏi chỉ mục để lần sau nạp lại từ DB
+ * - Bucket sống tối đa inventory.fefo-index.ttl-ms (mặc định 1 phút) rồi nạp lại: thay đổi ở instance khác
+ *   chỉ lệch tối đa một TTL; /api/inventory/cache/fefo-index/invalidate bỏ ngay một key hoặc toàn bộ
+ * - Bucket nạp song song với một thay đổi đã commit trên cùng key bị coi là cũ và nạp lại ở lần dùng sau
+ * Chỉ dùng để lập kế hoạch phân bổ; việc trừ tồn thực tế vẫn là câu UPDATE có điều kiện trên stock_lots.
+ * Chỉ mục có thể báo thiếu trong khi DB đủ hàng: kiểm tra tồn dùng availableAtLeast để xác nhận với DB.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class FefoLotIndex {
+
+    // Thứ tự giống truy vấn cũ: expiryDate ASC NULLS LAST, createdAt ASC (id để phân biệt khi trùng)
+    private static final Comparator<LotEntry> FEFO_ORDER = Comparator
+            .comparing((LotEntry e) -> e.expiryDate, Comparator.nullsLast(Comparator.naturalOrder()))
+            .thenComparing(e -> e.createdAt, Comparator.nullsLast(Comparator.naturalOrder()))
+            .thenComparing(e -> e.lotId);
+
+    private final StockLotRepository stockLotRepository;
+
+    private final Map<LotKey, Bucket> buckets = new ConcurrentHashMap<>();
+    // Thời điểm (nanoTime) commit gần nhất làm đổi lô của key, để phát hiện bucket nạp trùng lúc đó
+    private final Map<LotKey, Long> lastCommittedChange = new ConcurrentHashMap<>();
+
+    @Value("${inventory.fefo-index.ttl-ms:60000}")
+    private long ttlMs;
+
+    // Tổng số lượng khả dụng của một SKU tại kho/vị trí
+    public int totalAvailable(Long productUnitId, Long warehouseId, Long stockLocationId) {
+        Bucket bucket = bucket(new LotKey(productUnitId, warehouseId, stockLocationId));
+        synchronized (bucket) {
+            return bucket.totalAvailable;
+        }
+    }
+
+    /**
+     * Tổng khả dụng cho kiểm tra trước khi giữ/xuất hàng. Chỉ mục báo thiếu có thể do lệch với DB
+     * (instance khác nhập hàng, tồn được hoàn lại sau khi nạp) nên nạp lại key từ DB một lần trước khi kết luận.
+     */
+    public int availableAtLeast(Long productUnitId, Long warehouseId, Long stockLocationId, int requiredQuantity) {
+        int total = totalAvailable(productUnitId, warehouseId, stockLocationId);
+        if (total >= requiredQuantity) return total;
+        evict(productUnitId, warehouseId, stockLocationId);
+        return totalAvailable(productUnitId, warehouseId, stockLocationId);
+    }
+
+    // Danh sách lô còn hàng theo thứ tự FEFO (bản sao, không bị ảnh hưởng bởi cập nhật sau đó)
+    public List<LotEntry> availableLots(Long productUnitId, Long warehouseId, Long stockLocationId) {
+        Bucket bucket = bucket(new LotKey(productUnitId, warehouseId, stockLocationId));
+        synchronized (bucket) {
+            return new ArrayList<>(bucket.ordered);
+        }
+    }
+
+    /**
+     * Lập kế hoạch phân bổ theo FEFO, không thay đổi chỉ mục.
+     * Kết quả có thể thiếu so với requiredQuantity nếu không đủ hàng; caller tự kiểm tra tổng.
+     */
+    public List<Allocation> plan(Long productUnitId, Long warehouseId, Long stockLocationId, int requiredQuantity) {
+        Bucket bucket = bucket(new LotKey(productUnitId, warehouseId, stockLocationId));
+        List<Allocation> allocations = new ArrayList<>();
+        synchronized (bucket) {
+            int remaining = requiredQuantity;
+            for (LotEntry entry : bucket.ordered) {
+                if (remaining <= 0) break;
+                int take = Math.min(remaining, entry.availableQuantity);
+                if (take > 0) {
+                    allocations.add(new Allocation(entry.lotId, entry.lotNumber, take));
+                    remaining -= take;
+                }
+            }
+        }
+        return allocations;
+    }
+
+    // Cập nhật chỉ mục từ trạng thái mới nhất của lô (sau khi save)
+    public void update(StockLot lot) {
+        if (lot == null || lot.getId() == null) return;
+        LotKey key = new LotKey(lot.getProductUnitId(), lot.getWarehouseId(), lot.getStockLocationId());
+        trackCompletion(key);
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) return; // chưa nạp, lần truy cập sau sẽ đọc từ DB
+
+        int available = lot.getCurrentQuantity() - lot.getReservedQuantity();
+        synchronized (bucket) {
+            bucket.remove(lot.getId());
+            if (lot.getStatus() == StockLot.LotStatus.ACTIVE && available > 0) {
+                bucket.add(new LotEntry(lot.getId(), lot.getLotNumber(), lot.getExpiryDate(), lot.getCreatedAt(), available));
+            }
+        }
+    }
+
+    // Điều chỉnh số lượng khả dụng của một lô sau câu UPDATE có điều kiện (delta âm khi dự trữ)
+    public void adjustAvailable(Long productUnitId, Long warehouseId, Long stockLocationId, Long lotId, int delta) {
+        LotKey key = new LotKey(productUnitId, warehouseId, stockLocationId);
+        trackCompletion(key);
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) return;
+
+        synchronized (bucket) {
+            LotEntry current = bucket.byId.get(lotId);
+            if (current == null) {
+                // Lô không có trong chỉ mục (ví dụ được giải phóng từ 0) → nạp lại cho chắc
+                buckets.remove(key);
+                return;
+            }
+            bucket.remove(lotId);
+            int available = current.availableQuantity + delta;
+            if (available > 0) {
+                bucket.add(new LotEntry(current.lotId, current.lotNumber, current.expiryDate, current.createdAt, available));
+            }
+        }
+    }
+
+    // Bỏ một key khỏi chỉ mục (khi phát hiện lệch với DB)
+    public void evict(Long productUnitId, Long warehouseId, Long stockLocationId) {
+        buckets.remove(new LotKey(productUnitId, warehouseId, stockLocationId));
+    }
+
+    public void evictAll() {
+        buckets.clear();
+    }
+
+    // Lô của key được ghi ngoài entity (JDBC batch): bỏ bucket, bucket nạp trước khi commit cũng bị coi là cũ
+    public void evictChanged(Long productUnitId, Long warehouseId, Long stockLocationId) {
+        LotKey key = new LotKey(productUnitId, warehouseId, stockLocationId);
+        trackCompletion(key);
+        buckets.remove(key);
+    }
+
+    // Bỏ bucket quá TTL (lần dùng sau nạp lại) và mốc thay đổi không còn bucket nào cần so
+    @Scheduled(fixedDelayString = "${inventory.fefo-index.ttl-ms:60000}")
+    public void evictExpired() {
+        long now = System.nanoTime();
+        buckets.values().removeIf(b -> b.isExpired(now, ttlNanos()));
+        lastCommittedChange.values().removeIf(changedAt -> now - changedAt > ttlNanos());
+    }
+
+    private Bucket bucket(LotKey key) {
+        Bucket bucket = buckets.computeIfAbsent(key, this::load);
+        if (bucket.isExpired(System.nanoTime(), ttlNanos())) {
+            buckets.remove(key, bucket);
+            bucket = buckets.computeIfAbsent(key, this::load);
+        }
+        return bucket;
+    }
+
+    private long ttlNanos() {
+        return ttlMs * 1_000_000L;
+    }
+
+    private Bucket load(LotKey key) {
+        registerRollbackEviction(key);
+        Bucket bucket = new Bucket(System.nanoTime());
+        for (StockLotRepository.FefoLotView v : stockLotRepository.findFefoLotViews(
+                key.productUnitId, key.warehouseId, key.stockLocationId)) {
+            bucket.add(new LotEntry(v.getId(), v.getLotNumber(), v.getExpiryDate(), v.getCreatedAt(),
+                    v.getAvailableQuantity() != null ? v.getAvailableQuantity() : 0));
+        }
+        // Lô commit trong lúc đang đọc có thể không có trong kết quả: bucket() nạp lại ngay một lần
+        Long changedAt = lastCommittedChange.get(key);
+        if (changedAt != null && changedAt - bucket.loadedAt >= 0) {
+            bucket.stale = true;
+        }
+        log.debug("Loaded FEFO index for {}: {} lots, {} available", key, bucket.byId.size(), bucket.totalAvailable);
+        return bucket;
+    }
+
+    // Sau commit ghi mốc thay đổi của key; rollback thì bỏ key để nạp lại từ DB
+    private void trackCompletion(LotKey key) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            lastCommittedChange.put(key, System.nanoTime());
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status == STATUS_COMMITTED) {
+                    lastCommittedChange.put(key, System.nanoTime());
+                } else {
+                    buckets.remove(key);
+                }
+            }
+        });
+    }
+
+    private void registerRollbackEviction(LotKey key) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) return;
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status != STATUS_COMMITTED) {
+                    buckets.remove(key);
+                }
+            }
+        });
+    }
+
+    private static class Bucket {
+        private final TreeSet<LotEntry> ordered = new TreeSet<>(FEFO_ORDER);
+        private final Map<Long, LotEntry> byId = new HashMap<>();
+        private final long loadedAt;
+        private volatile boolean stale;
+        private int totalAvailable;
+
+        Bucket(long loadedAt) {
+            this.loadedAt = loadedAt;
+        }
+
+        boolean isExpired(long now, long ttlNanos) {
+            return stale || now - loadedAt > ttlNanos;
+        }
+
+        void add(LotEntry entry) {
+            ordered.add(entry);
+            byId.put(entry.lotId, entry);
+            totalAvailable += entry.availableQuantity;
+        }
+
+        void remove(Long lotId) {
+            LotEntry existing = byId.remove(lotId);
+            if (existing != null) {
+                ordered.remove(existing);
+                totalAvailable -= existing.availableQuantity;
+            }
+        }
+    }
+
+    public static class LotKey {
+        public final Long productUnitId;
+        public final Long warehouseId;
+        public final Long stockLocationId;
+
+        public LotKey(Long productUnitId, Long warehouseId, Long stockLocationId) {
+            this.productUnitId = productUnitId;
+            this.warehouseId = warehouseId;
+            this.stockLocationId = stockLocationId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof LotKey)) return false;
+            LotKey other = (LotKey) o;
+            return Objects.equals(productUnitId, other.productUnitId)
+                    && Objects.equals(warehouseId, other.warehouseId)
+                    && Objects.equals(stockLocationId, other.stockLocationId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(productUnitId, warehouseId, stockLocationId);
+        }
+
+        @Override
+        public String toString() {
+            return "LotKey(" + productUnitId + ", " + warehouseId + ", " + stockLocationId + ")";
+        }
+    }
+
+    public static class LotEntry {
+        public final Long lotId;
+        public final String lotNumber;
+        public final LocalDate expiryDate;
+        public final LocalDateTime createdAt;
+        public final int availableQuantity;
+
+        public LotEntry(Long lotId, String lotNumber, LocalDate expiryDate, LocalDateTime createdAt, int availableQuantity) {
+            this.lotId = lotId;
+            this.lotNumber = lotNumber;
+            this.expiryDate = expiryDate;
+            this.createdAt = createdAt;
+            this.availableQuantity = availableQuantity;
+        }
+    }
+
+    public static class Allocation {
+        public final Long lotId;
+        public final String lotNumber;
+        public final int quantity;
+
+        public Allocation(Long lotId, String lotNumber, int quantity) {
+            this.lotId = lotId;
+            this.lotNumber = lotNumber;
+            this.quantity = quantity;
+        }
+    }
+}
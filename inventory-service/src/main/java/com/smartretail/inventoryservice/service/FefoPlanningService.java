@@ -0,0 +1,148 @@
+package com.smartretail.inventoryservice.service;
+
+import com.smartretail.inventoryservice.dto.FefoPlanDto;
+import com.smartretail.inventoryservice.dto.FefoPlanRequestDto;
+import com.smartretail.inventoryservice.repository.StockLotRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Lập kế hoạch lấy hàng FEFO cho cả một đợt (wave) nhiều SKU, không dự trữ và không thay đổi tồn.
+ * Lô ứng viên của mọi SKU được nạp bằng một truy vấn; phân bổ từng SKU độc lập nên chạy song song theo nhóm SKU.
+ * Lô đã quá hạn nhưng job hết hạn chưa xử lý không được đưa vào kế hoạch.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class FefoPlanningService {
+
+    private static final int MAX_LINES = 2000;
+    // Đợt nhỏ thì chạy tuần tự, chi phí chia việc lớn hơn phần tính toán
+    private static final int PARALLEL_THRESHOLD = 64;
+    private static final int PLANNER_THREADS = 4;
+
+    private final StockLotRepository stockLotRepository;
+
+    private final ExecutorService plannerExecutor = Executors.newFixedThreadPool(PLANNER_THREADS);
+
+    @PreDestroy
+    public void shutdown() {
+        plannerExecutor.shutdownNow();
+    }
+
+    @Transactional(readOnly = true)
+    public FefoPlanDto plan(FefoPlanRequestDto request) {
+        if (request.getWarehouseId() == null) {
+            throw new RuntimeException("warehouseId is required");
+        }
+        if (request.getLines() == null || request.getLines().isEmpty()) {
+            throw new RuntimeException("At least one line is required");
+        }
+        if (request.getLines().size() > MAX_LINES) {
+            throw new RuntimeException("Plan cannot exceed " + MAX_LINES + " lines");
+        }
+
+        // Gộp các dòng cùng SKU, giữ thứ tự xuất hiện đầu tiên
+        Map<Long, Integer> requested = new LinkedHashMap<>();
+        for (FefoPlanRequestDto.Line line : request.getLines()) {
+            if (line.getProductUnitId() == null || line.getQuantity() == null || line.getQuantity() <= 0) {
+                throw new RuntimeException("Each line requires productUnitId and quantity greater than 0");
+            }
+            requested.merge(line.getProductUnitId(), line.getQuantity(), Integer::sum);
+        }
+
+        Map<Long, List<StockLotRepository.PickCandidateView>> candidates = new HashMap<>();
+        for (StockLotRepository.PickCandidateView v : stockLotRepository.findPickCandidates(
+                request.getWarehouseId(), request.getStockLocationId(), requested.keySet(), LocalDate.now())) {
+            candidates.computeIfAbsent(v.getProductUnitId(), k -> new ArrayList<>()).add(v);
+        }
+
+        List<Long> productUnitIds = new ArrayList<>(requested.keySet());
+        List<FefoPlanDto.Line> lines;
+        if (productUnitIds.size() < PARALLEL_THRESHOLD) {
+            lines = planSlice(productUnitIds, requested, candidates);
+        } else {
+            int sliceSize = (productUnitIds.size() + PLANNER_THREADS - 1) / PLANNER_THREADS;
+            List<CompletableFuture<List<FefoPlanDto.Line>>> futures = new ArrayList<>();
+            for (int i = 0; i < productUnitIds.size(); i += sliceSize) {
+                List<Long> slice = productUnitIds.subList(i, Math.min(i + sliceSize, productUnitIds.size()));
+                futures.add(CompletableFuture.supplyAsync(() -> planSlice(slice, requested, candidates), plannerExecutor));
+            }
+            lines = new ArrayList<>(productUnitIds.size());
+            for (CompletableFuture<List<FefoPlanDto.Line>> future : futures) {
+                lines.addAll(future.join());
+            }
+        }
+
+        int totalRequested = 0;
+        int totalPlanned = 0;
+        int shortLines = 0;
+        for (FefoPlanDto.Line line : lines) {
+            totalRequested += line.getRequestedQuantity();
+            totalPlanned += line.getPlannedQuantity();
+            if (line.getShortageQuantity() > 0) shortLines++;
+        }
+        log.info("FEFO plan for warehouse {}: {} SKUs, {}/{} units planned, {} short",
+                request.getWarehouseId(), lines.size(), totalPlanned, totalRequested, shortLines);
+
+        return FefoPlanDto.builder()
+                .warehouseId(request.getWarehouseId())
+                .stockLocationId(request.getStockLocationId())
+                .totalRequested(totalRequested)
+                .totalPlanned(totalPlanned)
+                .shortLineCount(shortLines)
+                .lines(lines)
+                .build();
+    }
+
+    private static List<FefoPlanDto.Line> planSlice(List<Long> productUnitIds, Map<Long, Integer> requested,
+                                                    Map<Long, List<StockLotRepository.PickCandidateView>> candidates) {
+        List<FefoPlanDto.Line> lines = new ArrayList<>(productUnitIds.size());
+        for (Long productUnitId : productUnitIds) {
+            lines.add(planLine(productUnitId, requested.get(productUnitId),
+                    candidates.getOrDefault(productUnitId, List.of())));
+        }
+        return lines;
+    }
+
+    // Lấy lần lượt theo thứ tự FEFO mà truy vấn đã sắp
+    private static FefoPlanDto.Line planLine(Long productUnitId, int quantity,
+                                             List<StockLotRepository.PickCandidateView> lots) {
+        List<FefoPlanDto.Pick> picks = new ArrayList<>();
+        int remaining = quantity;
+        for (StockLotRepository.PickCandidateView lot : lots) {
+            if (remaining <= 0) break;
+            int available = lot.getAvailableQuantity() != null ? lot.getAvailableQuantity() : 0;
+            int take = Math.min(remaining, available);
+            if (take <= 0) continue;
+            picks.add(FefoPlanDto.Pick.builder()
+                    .lotId(lot.getId())
+                    .lotNumber(lot.getLotNumber())
+                    .stockLocationId(lot.getStockLocationId())
+                    .expiryDate(lot.getExpiryDate())
+                    .quantity(take)
+                    .build());
+            remaining -= take;
+        }
+        return FefoPlanDto.Line.builder()
+                .productUnitId(productUnitId)
+                .requestedQuantity(quantity)
+                .plannedQuantity(quantity - remaining)
+                .shortageQuantity(remaining)
+                .picks(picks)
+                .build();
+    }
+}
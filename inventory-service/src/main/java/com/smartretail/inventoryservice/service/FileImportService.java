@@ -1,201 +1,440 @@
 package com.smartretail.inventoryservice.service;
 
 import com.smartretail.inventoryservice.dto.InventoryImportDto;
-import com.smartretail.inventoryservice.dto.InventoryDto;
-import com.smartretail.inventoryservice.service.InventoryService;
+import com.smartretail.inventoryservice.repository.StockLocationRepository;
+import com.smartretail.inventoryservice.repository.WarehouseRepository;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.poi.ss.usermodel.*;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFComment;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.Reader;
+import java.math.BigDecimal;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Import file nhập kho (.xlsx/.csv) theo kiểu streaming:
+ * - Luồng đọc parse file (SAX cho xlsx, commons-csv cho csv) và đẩy từng dòng vào hàng đợi có giới hạn
+ * - Luồng xử lý kiểm tra dữ liệu, gom CHUNK_SIZE dòng rồi ghi qua InventoryService.processImportChunk
+ * - Lỗi được ghi theo từng dòng, tiến độ xem được qua jobId khi chạy bất đồng bộ
+ * Bộ nhớ không phụ thuộc số dòng của file.
+ */
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class FileImportService {
 
-    private final InventoryService inventoryService;
+    private static final int CHUNK_SIZE = 500;
+    private static final int QUEUE_CAPACITY = 2_000;
+    private static final int MAX_REPORTED_ERRORS = 1_000;
+    private static final int MAX_NOTE_LENGTH = 200;
 
-    public List<InventoryImportDto.InventoryImportDetailDto> importExcelFile(MultipartFile file) throws IOException {
-        List<InventoryImportDto.InventoryImportDetailDto> importDetails = new ArrayList<>();
+    private final InventoryService inventoryService;
+    private final WarehouseRepository warehouseRepository;
+    private final StockLocationRepository stockLocationRepository;
 
-        try (InputStream inputStream = file.getInputStream();
-             Workbook workbook = new XSSFWorkbook(inputStream)) {
+    private final ExecutorService readerExecutor = Executors.newFixedThreadPool(4);
+    private final ExecutorService jobExecutor = Executors.newFixedThreadPool(2);
+    private final Map<String, ImportJob> jobs = new ConcurrentHashMap<>();
 
-            Sheet sheet = workbook.getSheetAt(0);
+    @PreDestroy
+    public void shutdown() {
+        jobExecutor.shutdownNow();
+        readerExecutor.shutdownNow();
+    }
 
-            // Skip header row
-            for (int i = 1; i <= sheet.getLastRowNum(); i++) {
-                Row row = sheet.getRow(i);
-                if (row == null) continue;
+    // Import đồng bộ: trả kết quả khi xử lý xong
+    public ImportJob importInbound(MultipartFile file, Long warehouseId, Long stockLocationId,
+                                   String referenceNumber, String note) throws IOException {
+        FileType type = detectType(file);
+        validateTarget(warehouseId, stockLocationId);
+        Path temp = copyToTempFile(file, type);
+        ImportJob job = newJob(file.getOriginalFilename());
+        try {
+            run(job, temp, type, warehouseId, stockLocationId, referenceNumber, note);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return job;
+    }
 
-                InventoryImportDto.InventoryImportDetailDto detail = parseExcelRow(row);
-                if (detail != null) {
-                    importDetails.add(detail);
+    // Import bất đồng bộ: trả jobId ngay, tiến độ lấy qua getJob
+    public ImportJob startImport(MultipartFile file, Long warehouseId, Long stockLocationId,
+                                 String referenceNumber, String note) throws IOException {
+        FileType type = detectType(file);
+        validateTarget(warehouseId, stockLocationId);
+        // File upload bị xoá khi request kết thúc nên phải chép ra file tạm trước
+        Path temp = copyToTempFile(file, type);
+        ImportJob job = newJob(file.getOriginalFilename());
+        jobExecutor.submit(() -> {
+            try {
+                run(job, temp, type, warehouseId, stockLocationId, referenceNumber, note);
+            } finally {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException e) {
+                    log.warn("Cannot delete import temp file {}: {}", temp, e.getMessage());
                 }
             }
-        }
-
-        return importDetails;
+        });
+        return job;
     }
 
-    public List<InventoryImportDto.InventoryImportDetailDto> importCsvFile(MultipartFile file) throws IOException {
-        List<InventoryImportDto.InventoryImportDetailDto> importDetails = new ArrayList<>();
+    public ImportJob getJob(String jobId) {
+        ImportJob job = jobs.get(jobId);
+        if (job == null) {
+            throw new RuntimeException("Import job not found: " + jobId);
+        }
+        return job;
+    }
 
-        try (InputStream inputStream = file.getInputStream();
-             Reader reader = new InputStreamReader(inputStream, StandardCharsets.UTF_8);
-             CSVParser csvParser = CSVFormat.DEFAULT.withFirstRecordAsHeader().parse(reader)) {
+    private void run(ImportJob job, Path file, FileType type, Long warehouseId, Long stockLocationId,
+                     String referenceNumber, String note) {
+        BlockingQueue<RawRow> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        ReaderOutcome outcome = new ReaderOutcome();
+        Future<?> reader = readerExecutor.submit(() -> {
+            try {
+                if (type == FileType.XLSX) {
+                    readXlsx(file, queue);
+                } else {
+                    readCsv(file, queue);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                outcome.error = e;
+            } finally {
+                // Luôn báo kết thúc để luồng xử lý không chờ mãi
+                outcome.finished = true;
+                queue.offer(RawRow.END);
+            }
+        });
 
-            for (CSVRecord record : csvParser) {
-                InventoryImportDto.InventoryImportDetailDto detail = parseCsvRecord(record);
-                if (detail != null) {
-                    importDetails.add(detail);
+        List<InventoryImportDto.InventoryImportDetailDto> chunk = new ArrayList<>(CHUNK_SIZE);
+        List<Long> chunkRowNumbers = new ArrayList<>(CHUNK_SIZE);
+        try {
+            while (true) {
+                RawRow row = queue.poll(1, TimeUnit.SECONDS);
+                if (row == null) {
+                    if (outcome.finished && queue.isEmpty()) break;
+                    continue;
                 }
+                if (row == RawRow.END) break;
+                if (row.isBlank()) continue;
+
+                job.totalRows++;
+                InventoryImportDto.InventoryImportDetailDto detail = validate(row, job);
+                if (detail == null) continue;
+                chunk.add(detail);
+                chunkRowNumbers.add(row.rowNumber);
+                if (chunk.size() >= CHUNK_SIZE) {
+                    flush(job, chunk, chunkRowNumbers, warehouseId, stockLocationId, referenceNumber, note);
+                }
+            }
+            flush(job, chunk, chunkRowNumbers, warehouseId, stockLocationId, referenceNumber, note);
+
+            if (outcome.error != null) {
+                job.fail("Error reading file: " + outcome.error.getMessage());
+                log.error("Import {} stopped while reading file: {}", job.jobId, outcome.error.getMessage());
+            } else {
+                job.complete();
+                log.info("Import {} finished: {} rows, {} processed, {} failed",
+                        job.jobId, job.totalRows, job.processedRows, job.failedRows);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.fail("Import interrupted");
+        } catch (Exception e) {
+            job.fail("Unexpected error: " + e.getMessage());
+            log.error("Import {} failed: {}", job.jobId, e.getMessage());
+        } finally {
+            reader.cancel(true);
         }
-
-        return importDetails;
     }
 
-    private InventoryImportDto.InventoryImportDetailDto parseExcelRow(Row row) {
+    // Ghi một chunk; nếu cả chunk lỗi thì ghi lại từng dòng để biết chính xác dòng nào hỏng
+    private void flush(ImportJob job, List<InventoryImportDto.InventoryImportDetailDto> chunk, List<Long> rowNumbers,
+                       Long warehouseId, Long stockLocationId, String referenceNumber, String note) {
+        if (chunk.isEmpty()) return;
         try {
-            InventoryImportDto.InventoryImportDetailDto detail = new InventoryImportDto.InventoryImportDetailDto();
-
-            // Assuming columns: ProductUnitId, Quantity, Note
-            detail.setProductUnitId(getLongCellValue(row.getCell(0)));
-            detail.setQuantity(getIntCellValue(row.getCell(1)));
-            detail.setNote(getStringCellValue(row.getCell(2)));
-
-            // Validate required fields
-            if (detail.getProductUnitId() == null || detail.getQuantity() == null || detail.getQuantity() <= 0) {
-                log.warn("Skipping invalid row: {}", row.getRowNum());
-                return null;
+            job.processedRows += inventoryService.processImportChunk(warehouseId, stockLocationId, chunk, referenceNumber, note);
+        } catch (Exception chunkEx) {
+            log.warn("Import {} chunk of {} rows failed, retrying row by row: {}", job.jobId, chunk.size(), chunkEx.getMessage());
+            for (int i = 0; i < chunk.size(); i++) {
+                try {
+                    job.processedRows += inventoryService.processImportChunk(
+                            warehouseId, stockLocationId, List.of(chunk.get(i)), referenceNumber, note);
+                } catch (Exception rowEx) {
+                    job.addError(rowNumbers.get(i), rowEx.getMessage());
+                }
             }
+        }
+        log.debug("Import {} progress: {} rows read, {} processed, {} failed",
+                job.jobId, job.totalRows, job.processedRows, job.failedRows);
+        chunk.clear();
+        rowNumbers.clear();
+    }
 
-            return detail;
-        } catch (Exception e) {
-            log.error("Error parsing Excel row {}: {}", row.getRowNum(), e.getMessage());
+    // Cột: ProductUnitId, Quantity, Note
+    private InventoryImportDto.InventoryImportDetailDto validate(RawRow row, ImportJob job) {
+        Long productUnitId = parseLong(row.cell(0));
+        if (productUnitId == null) {
+            job.addError(row.rowNumber, "Invalid ProductUnitId: " + row.cell(0));
+            return null;
+        }
+        Long quantity = parseLong(row.cell(1));
+        if (quantity == null || quantity <= 0 || quantity > Integer.MAX_VALUE) {
+            job.addError(row.rowNumber, "Invalid Quantity: " + row.cell(1));
             return null;
         }
+        String note = row.cell(2);
+        if (note != null && note.length() > MAX_NOTE_LENGTH) {
+            job.addError(row.rowNumber, "Note cannot exceed " + MAX_NOTE_LENGTH + " characters");
+            return null;
+        }
+
+        InventoryImportDto.InventoryImportDetailDto detail = new InventoryImportDto.InventoryImportDetailDto();
+        detail.setProductUnitId(productUnitId);
+        detail.setQuantity(quantity.intValue());
+        detail.setNote(note);
+        return detail;
     }
 
-    private InventoryImportDto.InventoryImportDetailDto parseCsvRecord(CSVRecord record) {
+    // Chấp nhận "12", "12.0", "1,000" (ô số có định dạng nghìn trong Excel)
+    private Long parseLong(String value) {
+        if (value == null || value.isBlank()) return null;
         try {
-            InventoryImportDto.InventoryImportDetailDto detail = new InventoryImportDto.InventoryImportDetailDto();
-
-            // Assuming columns: ProductUnitId, Quantity, Note
-            detail.setProductUnitId(Long.parseLong(record.get(0)));
-            detail.setQuantity(Integer.parseInt(record.get(1)));
-            detail.setNote(record.get(2));
+            return new BigDecimal(value.trim().replace(",", "")).longValue();
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
 
-            // Validate required fields
-            if (detail.getProductUnitId() == null || detail.getQuantity() == null || detail.getQuantity() <= 0) {
-                log.warn("Skipping invalid CSV record: {}", record.getRecordNumber());
-                return null;
+    private void readXlsx(Path file, BlockingQueue<RawRow> queue) throws Exception {
+        try (OPCPackage pkg = OPCPackage.open(file.toFile(), PackageAccess.READ)) {
+            XSSFReader xssfReader = new XSSFReader(pkg);
+            ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg);
+            StylesTable styles = xssfReader.getStylesTable();
+            Iterator<InputStream> sheets = xssfReader.getSheetsData();
+            if (!sheets.hasNext()) return;
+
+            try (InputStream sheet = sheets.next()) {
+                XMLReader parser = XMLHelper.newXMLReader();
+                parser.setContentHandler(new XSSFSheetXMLHandler(
+                        styles, null, strings, new QueueingSheetHandler(queue), new DataFormatter(), false));
+                parser.parse(new InputSource(sheet));
+            } catch (RuntimeException e) {
+                if (e.getCause() instanceof InterruptedException) {
+                    throw (InterruptedException) e.getCause();
+                }
+                throw e;
             }
+        }
+    }
 
-            return detail;
-        } catch (Exception e) {
-            log.error("Error parsing CSV record {}: {}", record.getRecordNumber(), e.getMessage());
-            return null;
+    private void readCsv(Path file, BlockingQueue<RawRow> queue) throws IOException, InterruptedException {
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+             CSVParser csvParser = CSVFormat.DEFAULT.builder()
+                     .setIgnoreSurroundingSpaces(true)
+                     .build()
+                     .parse(reader)) {
+            for (CSVRecord record : csvParser) {
+                // Bản ghi đầu là dòng tiêu đề
+                if (record.getRecordNumber() == 1) continue;
+                String[] cells = new String[3];
+                for (int i = 0; i < cells.length && i < record.size(); i++) {
+                    cells[i] = record.get(i);
+                }
+                queue.put(new RawRow(record.getRecordNumber(), cells));
+            }
         }
     }
 
-    private Long getLongCellValue(Cell cell) {
-        if (cell == null) return null;
+    private FileType detectType(MultipartFile file) {
+        String fileName = file.getOriginalFilename();
+        if (fileName != null && fileName.toLowerCase().endsWith(".xlsx")) return FileType.XLSX;
+        if (fileName != null && fileName.toLowerCase().endsWith(".csv")) return FileType.CSV;
+        throw new RuntimeException("Unsupported file format. Please use .xlsx or .csv files.");
+    }
 
-        switch (cell.getCellType()) {
-            case NUMERIC:
-                return (long) cell.getNumericCellValue();
-            case STRING:
-                try {
-                    return Long.parseLong(cell.getStringCellValue().trim());
-                } catch (NumberFormatException e) {
-                    return null;
-                }
-            default:
-                return null;
+    private void validateTarget(Long warehouseId, Long stockLocationId) {
+        if (!warehouseRepository.existsById(warehouseId)) {
+            throw new RuntimeException("Warehouse not found with id: " + warehouseId);
+        }
+        if (!stockLocationRepository.existsById(stockLocationId)) {
+            throw new RuntimeException("Stock location not found with id: " + stockLocationId);
         }
     }
 
-    private Integer getIntCellValue(Cell cell) {
-        if (cell == null) return null;
+    private Path copyToTempFile(MultipartFile file, FileType type) throws IOException {
+        Path temp = Files.createTempFile("inventory-import-", type == FileType.XLSX ? ".xlsx" : ".csv");
+        try (InputStream in = file.getInputStream()) {
+            Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return temp;
+    }
 
-        switch (cell.getCellType()) {
-            case NUMERIC:
-                return (int) cell.getNumericCellValue();
-            case STRING:
-                try {
-                    return Integer.parseInt(cell.getStringCellValue().trim());
-                } catch (NumberFormatException e) {
-                    return null;
-                }
-            default:
-                return null;
+    private ImportJob newJob(String fileName) {
+        // Bỏ các job cũ đã xong hơn 1 giờ để registry không phình ra
+        LocalDateTime cutoff = LocalDateTime.now().minusHours(1);
+        jobs.values().removeIf(j -> j.finishedAt != null && j.finishedAt.isBefore(cutoff));
+
+        ImportJob job = new ImportJob(UUID.randomUUID().toString(), fileName);
+        jobs.put(job.jobId, job);
+        return job;
+    }
+
+    private enum FileType { XLSX, CSV }
+
+    // Nhận từng ô từ SAX handler và đẩy cả dòng vào hàng đợi (bỏ dòng tiêu đề)
+    private static class QueueingSheetHandler implements XSSFSheetXMLHandler.SheetContentsHandler {
+        private final BlockingQueue<RawRow> queue;
+        private String[] cells;
+
+        QueueingSheetHandler(BlockingQueue<RawRow> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void startRow(int rowNum) {
+            cells = new String[3];
+        }
+
+        @Override
+        public void endRow(int rowNum) {
+            if (rowNum == 0) return;
+            try {
+                queue.put(new RawRow(rowNum + 1L, cells));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+            int col = cellReference != null ? new CellReference(cellReference).getCol() : -1;
+            if (col >= 0 && col < cells.length) {
+                cells[col] = formattedValue != null ? formattedValue.trim() : null;
+            }
         }
     }
 
-    private String getStringCellValue(Cell cell) {
-        if (cell == null) return null;
+    // Một dòng thô của file; rowNumber tính như số dòng hiển thị trong Excel
+    private static class RawRow {
+        static final RawRow END = new RawRow(-1, new String[0]);
+
+        final long rowNumber;
+        final String[] cells;
 
-        switch (cell.getCellType()) {
-            case STRING:
-                return cell.getStringCellValue().trim();
-            case NUMERIC:
-                return String.valueOf((int) cell.getNumericCellValue());
-            default:
-                return null;
+        RawRow(long rowNumber, String[] cells) {
+            this.rowNumber = rowNumber;
+            this.cells = cells;
+        }
+
+        String cell(int index) {
+            if (index >= cells.length || cells[index] == null || cells[index].isEmpty()) return null;
+            return cells[index];
+        }
+
+        boolean isBlank() {
+            for (String c : cells) {
+                if (c != null && !c.isBlank()) return false;
+            }
+            return true;
         }
     }
 
-    // Process imported data and create inventory transactions
-    public List<InventoryDto> processImportedInventory(
-            List<InventoryImportDto.InventoryImportDetailDto> importDetails,
-            Long warehouseId,
-            Long stockLocationId,
-            String referenceNumber,
-            String note) {
+    private static class ReaderOutcome {
+        volatile boolean finished;
+        volatile Exception error;
+    }
 
-        List<InventoryDto> createdTransactions = new ArrayList<>();
+    // Trạng thái/tiến độ một lần import; chỉ luồng xử lý ghi, luồng khác chỉ đọc
+    @lombok.Getter
+    public static class ImportJob {
+        private final String jobId;
+        private final String fileName;
+        private final LocalDateTime startedAt = LocalDateTime.now();
+        private volatile String status = "RUNNING";
+        private volatile long totalRows;
+        private volatile long processedRows;
+        private volatile long failedRows;
+        private volatile String message;
+        private volatile LocalDateTime finishedAt;
+        private final List<RowError> errors = Collections.synchronizedList(new ArrayList<>());
+
+        ImportJob(String jobId, String fileName) {
+            this.jobId = jobId;
+            this.fileName = fileName;
+        }
 
-        for (InventoryImportDto.InventoryImportDetailDto detail : importDetails) {
-            try {
-                // Create inventory DTO for import
-                InventoryDto inventoryDto = new InventoryDto();
-                inventoryDto.setTransactionType(com.smartretail.inventoryservice.model.Inventory.TransactionType.IMPORT);
-                inventoryDto.setQuantity(detail.getQuantity());
-                inventoryDto.setTransactionDate(LocalDateTime.now());
-                inventoryDto.setNote(detail.getNote() + " - " + note);
-                inventoryDto.setReferenceNumber(referenceNumber + "-" + detail.getProductUnitId());
-                inventoryDto.setProductUnitId(detail.getProductUnitId());
-                inventoryDto.setStockLocationId(stockLocationId);
-                inventoryDto.setWarehouseId(warehouseId);
-
-                // Process the inventory transaction
-                InventoryDto createdTransaction = inventoryService.processInboundInventory(inventoryDto);
-                createdTransactions.add(createdTransaction);
-
-                log.info("Successfully processed import for product unit ID: {}", detail.getProductUnitId());
+        // Bản sao chụp dưới khóa của list: luồng xử lý vẫn có thể thêm lỗi khi endpoint trạng thái serialize job
+        public List<RowError> getErrors() {
+            synchronized (errors) {
+                return List.copyOf(errors);
+            }
+        }
 
-            } catch (Exception e) {
-                log.error("Error processing import for product unit ID {}: {}", detail.getProductUnitId(), e.getMessage());
-                // Continue processing other items
+        void addError(long rowNumber, String message) {
+            failedRows++;
+            // Chỉ giữ MAX_REPORTED_ERRORS lỗi đầu tiên, còn lại chỉ đếm
+            if (errors.size() < MAX_REPORTED_ERRORS) {
+                errors.add(new RowError(rowNumber, message));
             }
         }
 
-        return createdTransactions;
+        void complete() {
+            status = "COMPLETED";
+            finishedAt = LocalDateTime.now();
+        }
+
+        void fail(String message) {
+            this.status = "FAILED";
+            this.message = message;
+            this.finishedAt = LocalDateTime.now();
+        }
+    }
+
+    @lombok.Data
+    @lombok.AllArgsConstructor
+    public static class RowError {
+        private long row;
+        private String message;
     }
 }
@@ -4,11 +4,22 @@ import com.smartretail.inventoryservice.client.ProductServiceClient;
 import com.smartretail.inventoryservice.dto.LowStockAlertDto;
 import com.smartretail.inventoryservice.dto.ProductStockSummaryDto;
 import com.smartretail.inventoryservice.repository.StockBalanceRepository;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
 @Service
@@ -16,135 +27,142 @@ import java.util.stream.Collectors;
 @Slf4j
 public class InventoryAnalyticsService {
 
+    private static final int PRICE_CHUNK_SIZE = 500;
+
     private final StockBalanceRepository stockBalanceRepository;
     private final ProductServiceClient productServiceClient;
+    private final ProductUnitCache productUnitCache;
+
+    // Gọi giá theo lô song song, giới hạn số luồng để không dồn tải lên product-service
+    private final ExecutorService priceExecutor = Executors.newFixedThreadPool(4);
+
+    // Thời gian tối đa chờ giá; lô nào quá hạn thì trả giá 0 thay vì treo cả báo cáo
+    @Value("${inventory.analytics.price-timeout-ms:10000}")
+    private long priceTimeoutMs;
 
     public List<ProductStockSummaryDto> getStockSummaryByProduct(Long warehouseId, Long stockLocationId) {
-        return stockBalanceRepository
-                .getProductStockSummaries(warehouseId, stockLocationId)
-                .stream()
-                .map(this::enrichProductStockSummary)
+        List<StockBalanceRepository.ProductStockAggregation> rows =
+                stockBalanceRepository.getProductStockSummaries(warehouseId, stockLocationId);
+        Enrichment enrichment = enrich(rows);
+        return rows.stream()
+                .map(a -> toProductStockSummary(a, enrichment))
                 .collect(Collectors.toList());
     }
 
     public List<LowStockAlertDto> getLowStockAlerts(Integer threshold, Long warehouseId, Long stockLocationId) {
         int effective = threshold != null ? threshold : 0;
-        return stockBalanceRepository
-                .getLowStockProducts(warehouseId, stockLocationId, effective)
-                .stream()
-                .map(a -> enrichLowStockAlert(a, effective))
+        List<StockBalanceRepository.ProductStockAggregation> rows =
+                stockBalanceRepository.getLowStockProducts(warehouseId, stockLocationId, effective);
+        Enrichment enrichment = enrich(rows);
+        return rows.stream()
+                .map(a -> toLowStockAlert(a, effective, enrichment))
                 .collect(Collectors.toList());
     }
 
-    private ProductStockSummaryDto enrichProductStockSummary(StockBalanceRepository.ProductStockAggregation aggregation) {
-        try {
-            ProductServiceClient.ProductUnitResponse productUnit = productServiceClient.getProductUnitById(aggregation.getProductUnitId());
-
-            String productName = productUnit != null ? productUnit.getProductName() : "Unknown Product";
-            String unitName = productUnit != null ? productUnit.getUnitName() : "Unknown Unit";
-            Long productId = productUnit != null ? productUnit.getProductId() : null;
-
-            // Lấy giá từ API riêng biệt
-            Double unitPrice = 0.0;
-            if (productId != null) {
-                try {
-                    ProductServiceClient.PriceResponse priceResponse = productServiceClient.getCurrentPrice(productId, aggregation.getProductUnitId());
-                    if (priceResponse != null && priceResponse.getSuccess() && priceResponse.getData() != null) {
-                        unitPrice = priceResponse.getData().doubleValue();
-                    }
-                } catch (Exception priceEx) {
-                    log.warn("Failed to get price for productUnitId: {}, error: {}", aggregation.getProductUnitId(), priceEx.getMessage());
-                }
-            }
+    @PreDestroy
+    public void shutdown() {
+        priceExecutor.shutdownNow();
+    }
 
-            Double totalValue = unitPrice * aggregation.getTotalQuantity();
-            Double availableValue = unitPrice * aggregation.getAvailableQuantity();
-
-            return ProductStockSummaryDto.builder()
-                    .productUnitId(aggregation.getProductUnitId())
-                    .productId(productId)
-                    .productName(productName)
-                    .unitName(unitName)
-                    .unitPrice(unitPrice)
-                    .totalQuantity(aggregation.getTotalQuantity())
-                    .availableQuantity(aggregation.getAvailableQuantity())
-                    .reservedQuantity(aggregation.getReservedQuantity())
-                    .totalValue(totalValue)
-                    .availableValue(availableValue)
-                    .build();
-        } catch (Exception e) {
-            log.warn("Failed to enrich product info for productUnitId: {}, error: {}",
-                    aggregation.getProductUnitId(), e.getMessage());
-            return ProductStockSummaryDto.builder()
-                    .productUnitId(aggregation.getProductUnitId())
-                    .productName("Unknown Product")
-                    .unitName("Unknown Unit")
-                    .unitPrice(0.0)
-                    .totalQuantity(aggregation.getTotalQuantity())
-                    .availableQuantity(aggregation.getAvailableQuantity())
-                    .reservedQuantity(aggregation.getReservedQuantity())
-                    .totalValue(0.0)
-                    .availableValue(0.0)
-                    .build();
+    // Lấy tên/đơn vị từ cache và giá bằng các lần gọi bulk, một lần cho cả báo cáo
+    private Enrichment enrich(List<StockBalanceRepository.ProductStockAggregation> rows) {
+        List<Long> productUnitIds = rows.stream()
+                .map(StockBalanceRepository.ProductStockAggregation::getProductUnitId)
+                .distinct()
+                .collect(Collectors.toList());
+        if (productUnitIds.isEmpty()) {
+            return new Enrichment(Map.of(), Map.of());
         }
+        return new Enrichment(productUnitCache.getAll(productUnitIds), loadCurrentPrices(productUnitIds));
     }
 
-    private LowStockAlertDto enrichLowStockAlert(StockBalanceRepository.ProductStockAggregation aggregation, Integer threshold) {
-        try {
-            ProductServiceClient.ProductUnitResponse productUnit = productServiceClient.getProductUnitById(aggregation.getProductUnitId());
-
-            String productName = productUnit != null ? productUnit.getProductName() : "Unknown Product";
-            String unitName = productUnit != null ? productUnit.getUnitName() : "Unknown Unit";
-            Long productId = productUnit != null ? productUnit.getProductId() : null;
-
-            // Lấy giá từ API riêng biệt
-            Double unitPrice = 0.0;
-            if (productId != null) {
-                try {
-                    ProductServiceClient.PriceResponse priceResponse = productServiceClient.getCurrentPrice(productId, aggregation.getProductUnitId());
-                    if (priceResponse != null && priceResponse.getSuccess() && priceResponse.getData() != null) {
-                        unitPrice = priceResponse.getData().doubleValue();
-                    }
-                } catch (Exception priceEx) {
-                    log.warn("Failed to get price for productUnitId: {}, error: {}", aggregation.getProductUnitId(), priceEx.getMessage());
-                }
+    private Map<Long, Double> loadCurrentPrices(List<Long> productUnitIds) {
+        List<CompletableFuture<Map<Long, BigDecimal>>> futures = new ArrayList<>();
+        for (int i = 0; i < productUnitIds.size(); i += PRICE_CHUNK_SIZE) {
+            List<Long> chunk = productUnitIds.subList(i, Math.min(i + PRICE_CHUNK_SIZE, productUnitIds.size()));
+            futures.add(CompletableFuture.supplyAsync(() -> fetchPriceChunk(chunk), priceExecutor));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(priceTimeoutMs);
+        Map<Long, Double> prices = new HashMap<>();
+        for (CompletableFuture<Map<Long, BigDecimal>> future : futures) {
+            try {
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                future.get(remaining, TimeUnit.NANOSECONDS)
+                        .forEach((id, price) -> prices.put(id, price.doubleValue()));
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                log.warn("Timed out after {} ms waiting for a price chunk, using 0 for its units", priceTimeoutMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                log.warn("Failed to get a price chunk, error: {}", e.getMessage());
             }
+        }
+        return prices;
+    }
 
-            Double totalValue = unitPrice * aggregation.getTotalQuantity();
-            Double availableValue = unitPrice * aggregation.getAvailableQuantity();
-
-            return LowStockAlertDto.builder()
-                    .productUnitId(aggregation.getProductUnitId())
-                    .productId(productId)
-                    .productName(productName)
-                    .unitName(unitName)
-                    .unitPrice(unitPrice)
-                    .totalQuantity(aggregation.getTotalQuantity())
-                    .availableQuantity(aggregation.getAvailableQuantity())
-                    .reservedQuantity(aggregation.getReservedQuantity())
-                    .threshold(threshold)
-                    .isLow(aggregation.getAvailableQuantity() <= threshold)
-                    .totalValue(totalValue)
-                    .availableValue(availableValue)
-                    .build();
-        } catch (Exception e) {
-            log.warn("Failed to enrich product info for productUnitId: {}, error: {}",
-                    aggregation.getProductUnitId(), e.getMessage());
-            return LowStockAlertDto.builder()
-                    .productUnitId(aggregation.getProductUnitId())
-                    .productName("Unknown Product")
-                    .unitName("Unknown Unit")
-                    .unitPrice(0.0)
-                    .totalQuantity(aggregation.getTotalQuantity())
-                    .availableQuantity(aggregation.getAvailableQuantity())
-                    .reservedQuantity(aggregation.getReservedQuantity())
-                    .threshold(threshold)
-                    .isLow(aggregation.getAvailableQuantity() <= threshold)
-                    .totalValue(0.0)
-                    .availableValue(0.0)
-                    .build();
+    private Map<Long, BigDecimal> fetchPriceChunk(List<Long> productUnitIds) {
+        ProductServiceClient.BulkPriceResponse response = productServiceClient.getCurrentPrices(productUnitIds);
+        if (response == null || !Boolean.TRUE.equals(response.getSuccess()) || response.getData() == null) {
+            return Map.of();
         }
+        Map<Long, BigDecimal> result = new HashMap<>();
+        response.getData().forEach((id, price) -> {
+            if (id != null && price != null) result.put(id, price);
+        });
+        return result;
     }
-}
 
+    private ProductStockSummaryDto toProductStockSummary(StockBalanceRepository.ProductStockAggregation aggregation,
+                                                         Enrichment enrichment) {
+        ProductUnitCache.UnitInfo productUnit = enrichment.units.get(aggregation.getProductUnitId());
+        Double unitPrice = enrichment.prices.getOrDefault(aggregation.getProductUnitId(), 0.0);
+
+        return ProductStockSummaryDto.builder()
+                .productUnitId(aggregation.getProductUnitId())
+                .productId(productUnit != null ? productUnit.productId : null)
+                .productName(productUnit != null ? productUnit.productName : "Unknown Product")
+                .unitName(productUnit != null ? productUnit.unitName : "Unknown Unit")
+                .unitPrice(unitPrice)
+                .totalQuantity(aggregation.getTotalQuantity())
+                .availableQuantity(aggregation.getAvailableQuantity())
+                .reservedQuantity(aggregation.getReservedQuantity())
+                .totalValue(unitPrice * aggregation.getTotalQuantity())
+                .availableValue(unitPrice * aggregation.getAvailableQuantity())
+                .build();
+    }
+
+    private LowStockAlertDto toLowStockAlert(StockBalanceRepository.ProductStockAggregation aggregation,
+                                             Integer threshold, Enrichment enrichment) {
+        ProductUnitCache.UnitInfo productUnit = enrichment.units.get(aggregation.getProductUnitId());
+        Double unitPrice = enrichment.prices.getOrDefault(aggregation.getProductUnitId(), 0.0);
+
+        return LowStockAlertDto.builder()
+                .productUnitId(aggregation.getProductUnitId())
+                .productId(productUnit != null ? productUnit.productId : null)
+                .productName(productUnit != null ? productUnit.productName : "Unknown Product")
+                .unitName(productUnit != null ? productUnit.unitName : "Unknown Unit")
+                .unitPrice(unitPrice)
+                .totalQuantity(aggregation.getTotalQuantity())
+                .availableQuantity(aggregation.getAvailableQuantity())
+                .reservedQuantity(aggregation.getReservedQuantity())
+                .threshold(threshold)
+                .isLow(aggregation.getAvailableQuantity() <= threshold)
+                .totalValue(unitPrice * aggregation.getTotalQuantity())
+                .availableValue(unitPrice * aggregation.getAvailableQuantity())
+                .build();
+    }
 
+    // Dữ liệu tra cứu dùng chung cho một lần tính báo cáo
+    private static class Enrichment {
+        private final Map<Long, ProductUnitCache.UnitInfo> units;
+        private final Map<Long, Double> prices;
+
+        Enrichment(Map<Long, ProductUnitCache.UnitInfo> units, Map<Long, Double> prices) {
+            this.units = units;
+            this.prices = prices;
+        }
+    }
+}
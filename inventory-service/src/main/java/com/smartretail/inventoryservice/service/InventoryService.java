@@ -1,26 +1,27 @@
 package com.smartretail.inventoryservice.service;
 
 import com.smartretail.inventoryservice.dto.InventoryDto;
-import com.smartretail.inventoryservice.client.ProductServiceClient;
+import com.smartretail.inventoryservice.dto.InventoryImportDto;
 import com.smartretail.inventoryservice.dto.StockAdjustmentDto;
 import com.smartretail.inventoryservice.dto.TransferRequestDto;
 import com.smartretail.inventoryservice.model.Inventory;
 import com.smartretail.inventoryservice.model.StockBalance;
+import com.smartretail.inventoryservice.model.StockLedgerEntry;
 import com.smartretail.inventoryservice.model.StockLocation;
 import com.smartretail.inventoryservice.model.StockLot;
 import com.smartretail.inventoryservice.model.Warehouse;
 import com.smartretail.inventoryservice.repository.InventoryRepository;
 import com.smartretail.inventoryservice.repository.StockBalanceRepository;
 import com.smartretail.inventoryservice.repository.StockLotRepository;
-import com.smartretail.inventoryservice.repository.WarehouseRepository;
-import com.smartretail.inventoryservice.repository.StockLocationRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import java.time.LocalDateTime;
+import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
@@ -33,20 +34,21 @@ public class InventoryService {
     private final InventoryRepository inventoryRepository;
     private final StockBalanceRepository stockBalanceRepository;
     private final StockLotRepository stockLotRepository;
-    private final WarehouseRepository warehouseRepository;
-    private final StockLocationRepository stockLocationRepository;
-    private final ProductServiceClient productServiceClient;
+    private final ProductUnitCache productUnitCache;
     private final LotManagementService lotManagementService;
+    private final FefoLotIndex fefoLotIndex;
+    private final StockLedgerService stockLedgerService;
+    private final LowStockMonitor lowStockMonitor;
+    private final StockEventOutbox stockEventOutbox;
+    private final WarehouseLocationCache warehouseLocationCache;
 
     // Tạo giao dịch kho
     public InventoryDto createInventoryTransaction(InventoryDto inventoryDto) {
         log.info("Creating inventory transaction: {}", inventoryDto);
 
                 // Get warehouse and stock location entities
-        Warehouse warehouse = warehouseRepository.findById(inventoryDto.getWarehouseId())
-                .orElseThrow(() -> new RuntimeException("Warehouse not found with id: " + inventoryDto.getWarehouseId()));
-        StockLocation stockLocation = stockLocationRepository.findById(inventoryDto.getStockLocationId())
-                .orElseThrow(() -> new RuntimeException("Stock location not found with id: " + inventoryDto.getStockLocationId()));
+        Warehouse warehouse = warehouseLocationCache.warehouseRef(inventoryDto.getWarehouseId());
+        StockLocation stockLocation = warehouseLocationCache.locationRef(inventoryDto.getStockLocationId());
 
         // Create inventory record
         Inventory inventory = new Inventory();
@@ -104,10 +106,8 @@ public class InventoryService {
                 .orElseThrow(() -> new RuntimeException("Inventory transaction not found with id: " + id));
 
                 // Get warehouse and stock location entities
-        Warehouse warehouse = warehouseRepository.findById(inventoryDto.getWarehouseId())
-                .orElseThrow(() -> new RuntimeException("Warehouse not found with id: " + inventoryDto.getWarehouseId()));
-        StockLocation stockLocation = stockLocationRepository.findById(inventoryDto.getStockLocationId())
-                .orElseThrow(() -> new RuntimeException("Stock location not found with id: " + inventoryDto.getStockLocationId()));
+        Warehouse warehouse = warehouseLocationCache.warehouseRef(inventoryDto.getWarehouseId());
+        StockLocation stockLocation = warehouseLocationCache.locationRef(inventoryDto.getStockLocationId());
 
         // Update fields
         existingInventory.setTransactionType(inventoryDto.getTransactionType());
@@ -190,6 +190,67 @@ public class InventoryService {
         return createdTransactions;
     }
 
+    /**
+     * Ghi một lô dòng nhập kho từ file import trong một transaction:
+     * kho/vị trí nạp một lần, giao dịch lưu bằng saveAll, tồn kho gộp theo productUnitId
+     * và nạp bằng một câu IN thay vì tra từng dòng. Trả về số dòng đã ghi.
+     */
+    public int processImportChunk(Long warehouseId, Long stockLocationId,
+                                  List<InventoryImportDto.InventoryImportDetailDto> rows,
+                                  String referenceNumber, String note) {
+        if (rows.isEmpty()) return 0;
+        Warehouse warehouse = warehouseLocationCache.warehouseRef(warehouseId);
+        StockLocation stockLocation = warehouseLocationCache.locationRef(stockLocationId);
+
+        LocalDateTime now = LocalDateTime.now();
+        List<Inventory> inventories = new ArrayList<>(rows.size());
+        Map<Long, Integer> quantityByUnit = new HashMap<>();
+        for (InventoryImportDto.InventoryImportDetailDto row : rows) {
+            Inventory inventory = new Inventory();
+            inventory.setTransactionType(Inventory.TransactionType.IMPORT);
+            inventory.setQuantity(row.getQuantity());
+            inventory.setTransactionDate(now);
+            inventory.setNote(row.getNote() + " - " + note);
+            inventory.setReferenceNumber(referenceNumber + "-" + row.getProductUnitId());
+            inventory.setProductUnitId(row.getProductUnitId());
+            inventory.setStockLocation(stockLocation);
+            inventory.setWarehouse(warehouse);
+            inventories.add(inventory);
+            quantityByUnit.merge(row.getProductUnitId(), row.getQuantity(), Integer::sum);
+        }
+        inventoryRepository.saveAll(inventories);
+
+        Map<Long, StockBalance> balances = new HashMap<>();
+        for (StockBalance sb : stockBalanceRepository.findByWarehouse_IdAndStockLocation_IdAndProductUnitIdIn(
+                warehouseId, stockLocationId, quantityByUnit.keySet())) {
+            balances.put(sb.getProductUnitId(), sb);
+        }
+        List<StockBalance> changed = new ArrayList<>(quantityByUnit.size());
+        List<StockLedgerService.Movement> movements = new ArrayList<>(quantityByUnit.size());
+        quantityByUnit.forEach((productUnitId, quantity) -> {
+            StockBalance stockBalance = balances.get(productUnitId);
+            if (stockBalance == null) {
+                stockBalance = new StockBalance();
+                stockBalance.setProductUnitId(productUnitId);
+                stockBalance.setStockLocation(stockLocation);
+                stockBalance.setWarehouse(warehouse);
+                stockBalance.setQuantity(0);
+                stockBalance.setReservedQuantity(0);
+            }
+            stockBalance.setQuantity(stockBalance.getQuantity() + quantity);
+            stockBalance.setAvailableQuantity(stockBalance.getQuantity() - stockBalance.getReservedQuantity());
+            stockBalance.setLastUpdatedAt(now);
+            changed.add(stockBalance);
+            movements.add(new StockLedgerService.Movement(stockBalance, quantity,
+                    StockLedgerEntry.MovementType.IMPORT, referenceNumber));
+        });
+        stockBalanceRepository.saveAll(changed);
+        stockLedgerService.recordAll(movements);
+        lowStockMonitor.onBalancesChanged(changed);
+        stockEventOutbox.appendAll(changed);
+        return rows.size();
+    }
+
     // Xử lý xuất kho
     public InventoryDto processOutboundInventory(InventoryDto outboundDto) {
         // Check stock availability
@@ -384,6 +445,7 @@ public class InventoryService {
                         inventory.getWarehouse());
 
         StockBalance stockBalance;
+        int quantityBefore = stockBalanceOpt.map(StockBalance::getQuantity).orElse(0);
 
         switch (inventory.getTransactionType()) {
             case IMPORT:
@@ -411,6 +473,12 @@ public class InventoryService {
         stockBalance.setAvailableQuantity(stockBalance.getQuantity() - stockBalance.getReservedQuantity());
         stockBalance.setLastUpdatedAt(LocalDateTime.now());
         stockBalanceRepository.save(stockBalance);
+
+        stockLedgerService.record(stockBalance, stockBalance.getQuantity() - quantityBefore,
+                StockLedgerEntry.MovementType.valueOf(inventory.getTransactionType().name()),
+                inventory.getReferenceNumber());
+        lowStockMonitor.onBalanceChanged(stockBalance);
+        stockEventOutbox.append(stockBalance);
     }
 
     // Tạo tồn kho mới
@@ -427,17 +495,13 @@ public class InventoryService {
 
     // Kiểm tra tồn kho - Sử dụng StockLot thay vì StockBalance để đồng bộ
     private void checkStockAvailability(Long productUnitId, Long stockLocationId, Integer quantity) {
-        StockLocation stockLocation = stockLocationRepository.findById(stockLocationId)
-                .orElseThrow(() -> new RuntimeException("Stock location not found with id: " + stockLocationId));
-        Warehouse warehouse = stockLocation.getWarehouse();
-
-        // Kiểm tra tồn kho thực tế từ StockLot
-        List<StockLot> availableLots = stockLotRepository.findAvailableLotsForFEFO(
-                productUnitId, warehouse.getId(), stockLocationId);
+        WarehouseLocationCache.LocationInfo stockLocation = warehouseLocationCache.getLocation(stockLocationId);
+        if (stockLocation == null) {
+            throw new RuntimeException("Stock location not found with id: " + stockLocationId);
+        }
 
-        int totalAvailable = availableLots.stream()
-                .mapToInt(StockLot::getAvailableQuantity)
-                .sum();
+        // Kiểm tra tồn kho thực tế từ StockLot (qua chỉ mục FEFO, thiếu thì xác nhận lại với DB)
+        int totalAvailable = fefoLotIndex.availableAtLeast(productUnitId, stockLocation.warehouseId, stockLocationId, quantity);
 
         if (totalAvailable < quantity) {
             throw new RuntimeException("Số sản phẩm yêu cầu vượt quá số lượng trong kho. " +
@@ -458,6 +522,7 @@ public class InventoryService {
                 .orElse(null);
 
         if (stockBalance != null) {
+            int quantityBefore = stockBalance.getQuantity();
             switch (inventory.getTransactionType()) {
                 case IMPORT:
                     stockBalance.setQuantity(stockBalance.getQuantity() - inventory.getQuantity());
@@ -473,6 +538,10 @@ public class InventoryService {
                     break;
             }
             stockBalanceRepository.save(stockBalance);
+            stockLedgerService.record(stockBalance, stockBalance.getQuantity() - quantityBefore,
+                    StockLedgerEntry.MovementType.REVERSAL, inventory.getReferenceNumber());
+            lowStockMonitor.onBalanceChanged(stockBalance);
+            stockEventOutbox.append(stockBalance);
         }
     }
 
@@ -490,6 +559,8 @@ public class InventoryService {
         dto.setProductUnitId(inventory.getProductUnitId());
         dto.setStockLocationId(inventory.getStockLocation().getId());
         dto.setWarehouseId(inventory.getWarehouse().getId());
+        dto.setWarehouseName(warehouseLocationCache.warehouseName(dto.getWarehouseId()));
+        dto.setStockLocationName(warehouseLocationCache.locationName(dto.getStockLocationId()));
         dto.setCreatedAt(inventory.getCreatedAt());
         dto.setUpdatedAt(inventory.getUpdatedAt());
         return dto;
@@ -498,39 +569,18 @@ public class InventoryService {
     // ===== Helper: Quy đổi về đơn vị cơ bản của sản phẩm =====
     private int normalizeToBaseQuantity(Long productUnitId, Integer quantity) {
         if (quantity == null) return 0;
-        try {
-            ProductServiceClient.ProductUnitResponse unit = productServiceClient.getProductUnitById(productUnitId);
-            if (unit == null) return quantity;
-
-            double conv = unit.getConversionRate() != null ? unit.getConversionRate() : 1.0d;
-            // Nếu đơn vị hiện tại là default (conv=1) thì giữ nguyên; nếu là lốc/thùng thì nhân lên
-            double result = quantity * conv;
-            return (int)Math.round(result);
-        } catch (Exception ex) {
-            // Fallback: nếu không gọi được product-service thì không quy đổi
+        Integer base = productUnitCache.toBaseQuantity(productUnitId, quantity);
+        if (base == null) {
+            // Chưa từng biết đơn vị này và product-service không gọi được
+            log.warn("Unknown product unit {}, quantity {} is not converted", productUnitId, quantity);
             return quantity;
         }
+        return base;
     }
 
     private Long resolveBaseProductUnitId(Long productUnitId) {
-        try {
-            ProductServiceClient.ProductUnitResponse unit = productServiceClient.getProductUnitById(productUnitId);
-            if (unit == null) return productUnitId;
-            if (Boolean.TRUE.equals(unit.getIsDefault())) return productUnitId;
-
-            // Lấy đơn vị default của cùng product
-            java.util.List<ProductServiceClient.ProductUnitResponse> list =
-                    productServiceClient.getProductUnitsByProductId(unit.getProductId());
-            if (list != null) {
-                for (ProductServiceClient.ProductUnitResponse u : list) {
-                    if (Boolean.TRUE.equals(u.getIsDefault())) {
-                        return u.getId();
-                    }
-                }
-            }
-            return productUnitId;
-        } catch (Exception ex) {
-            return productUnitId;
-        }
+        ProductUnitCache.UnitInfo unit = productUnitCache.get(productUnitId);
+        if (unit == null || unit.baseUnitId == null) return productUnitId;
+        return unit.baseUnitId;
     }
 }
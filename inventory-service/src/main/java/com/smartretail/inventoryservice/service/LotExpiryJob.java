@@ -0,0 +1,56 @@
+package com.smartretail.inventoryservice.service;
+
+import com.smartretail.inventoryservice.repository.StockLotRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.util.List;
+
+/**
+ * Job hằng ngày chuyển các lô quá hạn sang EXPIRED theo từng lô CHUNK_SIZE lô (mỗi lô một transaction),
+ * thay cho việc chờ ai đó gọi /lots/expired.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class LotExpiryJob {
+
+    private static final int CHUNK_SIZE = 500;
+
+    private final LotManagementService lotManagementService;
+    private final FefoLotIndex fefoLotIndex;
+    private final LowStockMonitor lowStockMonitor;
+
+    @Scheduled(cron = "${inventory.lots.expiry-cron:0 5 0 * * *}")
+    public void scheduledRun() {
+        try {
+            run();
+        } catch (Exception e) {
+            log.error("Lot expiry job failed: {}", e.getMessage());
+        }
+    }
+
+    // Trả về số nhóm (sản phẩm/kho/vị trí) có lô bị chuyển EXPIRED
+    public int run() {
+        LocalDate today = LocalDate.now();
+        int affected = 0;
+        while (true) {
+            List<StockLotRepository.LotKeyView> keys = lotManagementService.expireLotsChunk(today, CHUNK_SIZE);
+            if (keys.isEmpty()) break;
+            // Transaction của lô đã commit: bỏ các key khỏi chỉ mục FEFO để lần sau nạp lại
+            for (StockLotRepository.LotKeyView k : keys) {
+                fefoLotIndex.evict(k.getProductUnitId(), k.getWarehouseId(), k.getStockLocationId());
+            }
+            affected += keys.size();
+        }
+        if (affected > 0) {
+            // Tồn của các stock_balance liên quan đã giảm: dựng lại trạng thái sắp hết hàng một lần cho cả đợt
+            lowStockMonitor.resync();
+            log.info("Lot expiry job finished, {} product/location groups affected", affected);
+        }
+        return affected;
+    }
+}
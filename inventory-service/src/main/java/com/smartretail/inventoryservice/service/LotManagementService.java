@@ -1,8 +1,12 @@
 package com.smartretail.inventoryservice.service;
 
 import com.smartretail.inventoryservice.dto.StockLotDto;
+import com.smartretail.inventoryservice.model.StockBalance;
+import com.smartretail.inventoryservice.model.StockLedgerEntry;
 import com.smartretail.inventoryservice.model.StockLot;
+import com.smartretail.inventoryservice.repository.StockBalanceRepository;
 import com.smartretail.inventoryservice.repository.StockLotRepository;
+import jakarta.persistence.EntityManager;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
@@ -11,7 +15,9 @@ import org.springframework.transaction.annotation.Transactional;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
@@ -22,6 +28,15 @@ import java.util.stream.Collectors;
 public class LotManagementService {
 
     private final StockLotRepository stockLotRepository;
+    private final FefoLotIndex fefoLotIndex;
+    private final StockEventOutbox stockEventOutbox;
+    private final StockBalanceRepository stockBalanceRepository;
+    private final StockLedgerService stockLedgerService;
+    private final EntityManager entityManager;
+
+    private static final org.springframework.data.domain.Sort EXPIRY_SORT = org.springframework.data.domain.Sort.by(
+            org.springframework.data.domain.Sort.Order.asc("expiryDate"),
+            org.springframework.data.domain.Sort.Order.asc("id"));
 
     // Validate lot number before adding to a draft document line
     public void validateLotNumberForInboundDraft(Long productUnitId,
@@ -51,8 +66,7 @@ public class LotManagementService {
                                              Long stockLocationId,
                                              Integer requiredQuantity) {
         if (requiredQuantity == null || requiredQuantity <= 0) return;
-        List<StockLot> availableLots = stockLotRepository.findAvailableLotsForFEFO(productUnitId, warehouseId, stockLocationId);
-        int totalAvailable = availableLots.stream().mapToInt(StockLot::getAvailableQuantity).sum();
+        int totalAvailable = fefoLotIndex.availableAtLeast(productUnitId, warehouseId, stockLocationId, requiredQuantity);
         if (totalAvailable < requiredQuantity) {
             throw new RuntimeException("Số sản phẩm yêu cầu vượt quá số lượng trong kho. " +
                 "Số lượng yêu cầu: " + requiredQuantity +
@@ -84,7 +98,8 @@ public class LotManagementService {
         } else if (warehouseId == null && stockLocationId != null) {
             availableLots = stockLotRepository.findAvailableLotsForFEFOByLocation(productUnitId, stockLocationId);
         } else {
-            availableLots = stockLotRepository.findAvailableLotsForFEFO(productUnitId, warehouseId, stockLocationId);
+            // Đủ kho + vị trí → đọc thứ tự FEFO từ chỉ mục, chỉ nạp các lô cần trả về theo id
+            availableLots = loadInIndexOrder(fefoLotIndex.availableLots(productUnitId, warehouseId, stockLocationId));
         }
         int totalAvailable = availableLots.stream().mapToInt(StockLot::getAvailableQuantity).sum();
 
@@ -135,6 +150,7 @@ public class LotManagementService {
             if (supplierBatchNumber != null) existing.setSupplierBatchNumber(supplierBatchNumber);
             existing.setUpdatedAt(LocalDateTime.now());
             stockLotRepository.save(existing);
+            fefoLotIndex.update(existing);
             return convertToDto(existing);
         } else {
             // Kiểm tra xem số lô có được sử dụng cho sản phẩm/kho/vị trí khác không
@@ -169,6 +185,7 @@ public class LotManagementService {
                 .note(note)
                 .build();
         stockLotRepository.save(newLot);
+        fefoLotIndex.update(newLot);
         return convertToDto(newLot);
     }
 
@@ -200,6 +217,7 @@ public class LotManagementService {
                 .build();
 
         StockLot savedLot = stockLotRepository.save(lot);
+        fefoLotIndex.update(savedLot);
         return convertToDto(savedLot);
     }
 
@@ -219,6 +237,7 @@ public class LotManagementService {
         lot.setUpdatedAt(LocalDateTime.now());
 
         StockLot savedLot = stockLotRepository.save(lot);
+        fefoLotIndex.update(savedLot);
         return convertToDto(savedLot);
     }
 
@@ -260,6 +279,94 @@ public class LotManagementService {
         return lots.stream().map(this::convertToDto).collect(Collectors.toList());
     }
 
+    // Lô sắp hết hạn, phân trang theo chỉ mục (status, expiry_date)
+    @Transactional(readOnly = true)
+    public org.springframework.data.domain.Page<StockLotDto> getLotsNearExpiry(int days, int page, int size) {
+        return stockLotRepository.findByStatusAndExpiryDateLessThanEqualAndAvailableQuantityGreaterThan(
+                StockLot.LotStatus.ACTIVE, LocalDate.now().plusDays(days), 0,
+                org.springframework.data.domain.PageRequest.of(page, size, EXPIRY_SORT))
+                .map(this::convertToDto);
+    }
+
+    // Lô đã quá hạn: đã chuyển EXPIRED hoặc còn ACTIVE chờ job xử lý
+    @Transactional(readOnly = true)
+    public org.springframework.data.domain.Page<StockLotDto> getExpiredLots(int page, int size) {
+        return stockLotRepository.findByStatusInAndExpiryDateLessThan(
+                List.of(StockLot.LotStatus.ACTIVE, StockLot.LotStatus.EXPIRED), LocalDate.now(),
+                org.springframework.data.domain.PageRequest.of(page, size, EXPIRY_SORT))
+                .map(this::convertToDto);
+    }
+
+    /**
+     * Chuyển một lô tối đa chunkSize lô ACTIVE đã quá hạn sang EXPIRED, cùng một transaction:
+     * khoá các lô trước, phần khả dụng của các lô đã khoá được trừ khỏi quantity của stock_balance
+     * (available = quantity - reserved nên mọi phép tính lại sau đó đều giữ phần đã loại) và ghi sổ cái
+     * EXPIRE, rồi đổi trạng thái lô. Trả về các key bị ảnh hưởng để làm mới chỉ mục.
+     */
+    public List<StockLotRepository.LotKeyView> expireLotsChunk(LocalDate currentDate, int chunkSize) {
+        List<Long> ids = stockLotRepository.findExpiredActiveLotIds(currentDate,
+                org.springframework.data.domain.PageRequest.of(0, chunkSize));
+        if (ids.isEmpty()) return List.of();
+
+        // Danh sách id đọc không khoá: lần chạy khác có thể vừa xử lý xong, chỉ giữ lô còn ACTIVE sau khi khoá
+        List<StockLot> lots = stockLotRepository.findActiveByIdInForUpdate(ids);
+        if (lots.isEmpty()) return List.of();
+        List<Long> lockedIds = lots.stream().map(StockLot::getId).collect(Collectors.toList());
+
+        List<StockLotRepository.LotKeyView> keys = stockLotRepository.findLotKeys(lockedIds);
+        List<StockBalance> balances = deductExpiredFromBalances(lots);
+        int expired = stockLotRepository.markExpired(lockedIds);
+        // Các lô đã khoá vẫn mang trạng thái ACTIVE trong persistence context: tách riêng chúng ra
+        lots.forEach(entityManager::detach);
+        log.info("Expired {} lots, adjusted {} stock balances", expired, balances.size());
+        return keys;
+    }
+
+    // Khoá và trừ tồn theo từng kho/vị trí (một truy vấn mỗi nhóm), ghi sổ cái và sự kiện tồn kho
+    private List<StockBalance> deductExpiredFromBalances(List<StockLot> lots) {
+        Map<String, Map<Long, Integer>> byLocation = new HashMap<>();
+        Map<String, StockLot> locationOf = new HashMap<>();
+        for (StockLot lot : lots) {
+            int available = lot.getAvailableQuantity() != null ? lot.getAvailableQuantity() : 0;
+            if (available <= 0) continue;
+            String key = lot.getWarehouseId() + ":" + lot.getStockLocationId();
+            byLocation.computeIfAbsent(key, k -> new HashMap<>()).merge(lot.getProductUnitId(), available, Integer::sum);
+            locationOf.putIfAbsent(key, lot);
+        }
+
+        List<StockBalance> changed = new ArrayList<>();
+        List<StockLedgerService.Movement> movements = new ArrayList<>();
+        LocalDateTime now = LocalDateTime.now();
+        for (Map.Entry<String, Map<Long, Integer>> group : byLocation.entrySet()) {
+            StockLot first = locationOf.get(group.getKey());
+            Map<Long, Integer> expiring = group.getValue();
+            Map<Long, StockBalance> balances = stockBalanceRepository.findForUpdate(first.getWarehouseId(),
+                            first.getStockLocationId(), expiring.keySet())
+                    .stream()
+                    .collect(Collectors.toMap(StockBalance::getProductUnitId, b -> b));
+            for (Map.Entry<Long, Integer> e : expiring.entrySet()) {
+                StockBalance balance = balances.get(e.getKey());
+                if (balance == null) continue;
+                int reserved = balance.getReservedQuantity() != null ? balance.getReservedQuantity() : 0;
+                int quantity = balance.getQuantity() != null ? balance.getQuantity() : 0;
+                // Không trừ vào phần đang được giữ chỗ
+                int deduct = Math.min(e.getValue(), Math.max(quantity - reserved, 0));
+                if (deduct <= 0) continue;
+                balance.setQuantity(quantity - deduct);
+                balance.setAvailableQuantity(balance.getQuantity() - reserved);
+                balance.setLastUpdatedAt(now);
+                changed.add(balance);
+                movements.add(new StockLedgerService.Movement(balance, -deduct,
+                        StockLedgerEntry.MovementType.EXPIRE, null));
+            }
+        }
+        if (changed.isEmpty()) return changed;
+        stockBalanceRepository.saveAll(changed);
+        stockLedgerService.recordAll(movements);
+        stockEventOutbox.appendAll(changed);
+        return changed;
+    }
+
     // Dự trữ số lượng từ lô (reserve)
     public void reserveQuantity(Long lotId, Integer quantity) {
         log.info("Reserving {} units from lot {}", quantity, lotId);
@@ -273,6 +380,7 @@ public class LotManagementService {
 
         lot.reserveQuantity(quantity);
         stockLotRepository.save(lot);
+        fefoLotIndex.update(lot);
     }
 
     // Giải phóng dự trữ
@@ -284,6 +392,7 @@ public class LotManagementService {
 
         lot.releaseReservation(quantity);
         stockLotRepository.save(lot);
+        fefoLotIndex.update(lot);
     }
 
     // Tiêu thụ số lượng từ lô (consume)
@@ -299,6 +408,7 @@ public class LotManagementService {
 
         lot.consumeQuantity(quantity);
         stockLotRepository.save(lot);
+        fefoLotIndex.update(lot);
     }
 
     // FEFO: Phân bổ số lượng theo thứ tự hết hạn sớm nhất
@@ -306,35 +416,75 @@ public class LotManagementService {
         log.info("Allocating {} units using FEFO for product {} at warehouse {} location {}",
                 requiredQuantity, productUnitId, warehouseId, stockLocationId);
 
-        List<StockLot> availableLots = stockLotRepository.findAvailableLotsForFEFO(productUnitId, warehouseId, stockLocationId);
-        List<StockLotDto> allocatedLots = new ArrayList<>();
-        int remainingQuantity = requiredQuantity;
+        List<FefoLotIndex.Allocation> allocations =
+                reserveLotsFEFO(productUnitId, warehouseId, stockLocationId, requiredQuantity);
 
-        for (StockLot lot : availableLots) {
-            if (remainingQuantity <= 0) break;
+        // Nạp các lô vừa dự trữ (theo id) để trả về DTO đầy đủ, giữ đúng thứ tự FEFO
+        Map<Long, StockLot> lotsById = stockLotRepository.findAllById(
+                        allocations.stream().map(a -> a.lotId).collect(Collectors.toList()))
+                .stream()
+                .collect(Collectors.toMap(StockLot::getId, l -> l));
 
-            int availableInLot = lot.getAvailableQuantity();
-            int toAllocate = Math.min(remainingQuantity, availableInLot);
+        List<StockLotDto> allocatedLots = new ArrayList<>();
+        for (FefoLotIndex.Allocation allocation : allocations) {
+            StockLot lot = lotsById.get(allocation.lotId);
+            if (lot == null) continue;
+            StockLotDto lotDto = convertToDto(lot);
+            lotDto.setAllocatedQuantity(allocation.quantity);
+            allocatedLots.add(lotDto);
+        }
 
-            if (toAllocate > 0) {
-                lot.reserveQuantity(toAllocate);
-                stockLotRepository.save(lot);
+        return allocatedLots;
+    }
 
-                // Tạo DTO và set allocatedQuantity
-                StockLotDto lotDto = convertToDto(lot);
-                lotDto.setAllocatedQuantity(toAllocate);
-                allocatedLots.add(lotDto);
+    /**
+     * Dự trữ số lượng theo FEFO: lập kế hoạch trên chỉ mục trong bộ nhớ, sau đó trừ từng lô
+     * bằng UPDATE có điều kiện. Nếu chỉ mục lệch với DB (UPDATE không khớp dòng nào) thì nạp lại
+     * chỉ mục và lập kế hoạch lại cho phần còn thiếu một lần.
+     */
+    public List<FefoLotIndex.Allocation> reserveLotsFEFO(Long productUnitId, Long warehouseId, Long stockLocationId,
+                                                         Integer requiredQuantity) {
+        List<FefoLotIndex.Allocation> reserved = new ArrayList<>();
+        int remainingQuantity = requiredQuantity;
 
-                remainingQuantity -= toAllocate;
+        for (int attempt = 0; attempt < 2 && remainingQuantity > 0; attempt++) {
+            List<FefoLotIndex.Allocation> plan =
+                    fefoLotIndex.plan(productUnitId, warehouseId, stockLocationId, remainingQuantity);
+            // Chỉ mục báo thiếu hàng cũng có thể do lệch với DB → cho phép nạp lại một lần
+            boolean stale = plan.stream().mapToInt(x -> x.quantity).sum() < remainingQuantity;
+
+            for (FefoLotIndex.Allocation allocation : plan) {
+                int updated = stockLotRepository.reserveIfAvailable(allocation.lotId, allocation.quantity, LocalDateTime.now());
+                if (updated == 0) {
+                    stale = true;
+                    break;
+                }
+                refreshIfManaged(allocation.lotId);
+                fefoLotIndex.adjustAvailable(productUnitId, warehouseId, stockLocationId, allocation.lotId, -allocation.quantity);
+                reserved.add(allocation);
+                remainingQuantity -= allocation.quantity;
             }
+
+            if (!stale) break;
+            log.warn("FEFO index out of date for product {} at warehouse {} location {}, reloading",
+                    productUnitId, warehouseId, stockLocationId);
+            fefoLotIndex.evict(productUnitId, warehouseId, stockLocationId);
         }
 
         if (remainingQuantity > 0) {
             throw new RuntimeException("Insufficient stock. Required: " + requiredQuantity +
                     ", Available: " + (requiredQuantity - remainingQuantity));
         }
+        return reserved;
+    }
 
-        return allocatedLots;
+    // Lô đã được nạp trong transaction này thì đọc lại sau UPDATE có điều kiện, để lần flush sau không ghi đè
+    // số lượng vừa dự trữ; lô chưa nạp thì không truy vấn thêm
+    private void refreshIfManaged(Long lotId) {
+        StockLot lot = entityManager.getReference(StockLot.class, lotId);
+        if (entityManager.getEntityManagerFactory().getPersistenceUnitUtil().isLoaded(lot)) {
+            entityManager.refresh(lot);
+        }
     }
 
     // Cập nhật trạng thái lô
@@ -348,6 +498,7 @@ public class LotManagementService {
         lot.setUpdatedAt(LocalDateTime.now());
 
         StockLot savedLot = stockLotRepository.save(lot);
+        fefoLotIndex.update(savedLot);
         return convertToDto(savedLot);
     }
 
@@ -365,6 +516,7 @@ public class LotManagementService {
         lot.setStatus(StockLot.LotStatus.CANCELLED);
         lot.setUpdatedAt(LocalDateTime.now());
         stockLotRepository.save(lot);
+        fefoLotIndex.update(lot);
     }
 
     // Lấy thống kê lô
@@ -382,6 +534,21 @@ public class LotManagementService {
                 .build();
     }
 
+    // Nạp lô theo id và sắp xếp lại theo thứ tự của chỉ mục FEFO
+    private List<StockLot> loadInIndexOrder(List<FefoLotIndex.LotEntry> entries) {
+        if (entries.isEmpty()) return new ArrayList<>();
+        Map<Long, StockLot> lotsById = stockLotRepository.findAllById(
+                        entries.stream().map(e -> e.lotId).collect(Collectors.toList()))
+                .stream()
+                .collect(Collectors.toMap(StockLot::getId, l -> l));
+        List<StockLot> ordered = new ArrayList<>();
+        for (FefoLotIndex.LotEntry entry : entries) {
+            StockLot lot = lotsById.get(entry.lotId);
+            if (lot != null) ordered.add(lot);
+        }
+        return ordered;
+    }
+
     // Convert entity to DTO
     private StockLotDto convertToDto(StockLot lot) {
         return StockLotDto.builder()
@@ -0,0 +1,387 @@
+package com.smartretail.inventoryservice.service;
+
+import com.smartretail.inventoryservice.dto.LowStockAlertDto;
+import com.smartretail.inventoryservice.model.ReorderThreshold;
+import com.smartretail.inventoryservice.model.StockBalance;
+import com.smartretail.inventoryservice.repository.ReorderThresholdRepository;
+import com.smartretail.inventoryservice.repository.StockBalanceRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+/**
+ * Phát hiện hàng sắp hết theo kiểu tăng dần, thay cho GROUP BY toàn bộ stock_balance mỗi lần poll.
+ * - Giữ tồn khả dụng theo (productUnitId, warehouseId) trong bộ nhớ, cập nhật sau commit mỗi khi
+ *   stock_balance thay đổi (nhập/xuất/reserve/consume/release/điều chỉnh)
+ * - Chỉ phát sự kiện khi tồn vượt qua ngưỡng (LOW khi xuống <= ngưỡng, RECOVERED khi lên trên ngưỡng)
+ * - Tập SKU đang sắp hết phục vụ trực tiếp từ bộ nhớ và đẩy tới dashboard qua SSE
+ * - Định kỳ dựng lại từ DB để tự sửa nếu bộ nhớ lệch (ví dụ các commit đồng thời về không theo thứ tự)
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class LowStockMonitor {
+
+    public static final String EVENT_SNAPSHOT = "snapshot";
+    public static final String EVENT_LOW = "low-stock";
+    public static final String EVENT_RECOVERED = "recovered";
+
+    private final StockBalanceRepository stockBalanceRepository;
+    private final ReorderThresholdRepository reorderThresholdRepository;
+    private final ProductUnitCache productUnitCache;
+
+    // Gửi SSE trên một luồng riêng để không làm chậm luồng vừa commit
+    private final ExecutorService dispatcher = Executors.newSingleThreadExecutor();
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    // Trạng thái dưới đây được bảo vệ bởi khoá của đối tượng
+    private final Map<BalanceKey, Integer> rowAvailable = new HashMap<>();
+    private final Map<SkuKey, Integer> available = new HashMap<>();
+    private final Map<SkuKey, Integer> thresholds = new HashMap<>();
+    private final Map<SkuKey, Integer> live = new HashMap<>();
+    private boolean loaded;
+
+    @Value("${inventory.low-stock.default-threshold:10}")
+    private int defaultThreshold;
+
+    @Value("${inventory.low-stock.sse-timeout-ms:1800000}")
+    private long sseTimeoutMs;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        try {
+            resync();
+        } catch (Exception e) {
+            log.warn("Low stock monitor warm-up failed, will retry on next resync: {}", e.getMessage());
+        }
+    }
+
+    // Dựng lại toàn bộ từ DB; các SKU đổi trạng thái so với trước được phát sự kiện như bình thường
+    @Scheduled(fixedDelayString = "${inventory.low-stock.resync-ms:600000}",
+            initialDelayString = "${inventory.low-stock.resync-ms:600000}")
+    public void resync() {
+        List<ReorderThreshold> thresholdRows = reorderThresholdRepository.findAll();
+        List<StockBalanceRepository.AvailableView> rows = stockBalanceRepository.findAllAvailableViews();
+
+        List<Transition> transitions = new ArrayList<>();
+        int lowCount;
+        synchronized (this) {
+            thresholds.clear();
+            for (ReorderThreshold t : thresholdRows) {
+                thresholds.put(new SkuKey(t.getProductUnitId(), t.getWarehouseId()), t.getThreshold());
+            }
+            rowAvailable.clear();
+            available.clear();
+            for (StockBalanceRepository.AvailableView v : rows) {
+                int qty = v.getAvailableQuantity() != null ? v.getAvailableQuantity() : 0;
+                rowAvailable.put(new BalanceKey(v.getProductUnitId(), v.getWarehouseId(), v.getStockLocationId()), qty);
+                available.merge(new SkuKey(v.getProductUnitId(), v.getWarehouseId()), qty, Integer::sum);
+            }
+            live.keySet().removeIf(sku -> {
+                if (available.containsKey(sku)) return false;
+                transitions.add(new Transition(EVENT_RECOVERED, sku, 0, thresholdFor(sku)));
+                return true;
+            });
+            for (SkuKey sku : available.keySet()) {
+                evaluate(sku, transitions);
+            }
+            loaded = true;
+            lowCount = live.size();
+        }
+        publish(transitions);
+        log.debug("Low stock monitor resynced: {} balances, {} low SKUs", rows.size(), lowCount);
+    }
+
+    public void onBalanceChanged(StockBalance balance) {
+        onBalancesChanged(List.of(balance));
+    }
+
+    // Gọi sau khi save stock_balance; áp dụng khi transaction commit (rollback thì bỏ qua)
+    public void onBalancesChanged(Collection<StockBalance> balances) {
+        List<BalanceChange> changes = new ArrayList<>(balances.size());
+        for (StockBalance b : balances) {
+            changes.add(new BalanceChange(
+                    new BalanceKey(b.getProductUnitId(), b.getWarehouse().getId(), b.getStockLocation().getId()),
+                    b.getAvailableQuantity() != null ? b.getAvailableQuantity() : 0));
+        }
+        if (changes.isEmpty()) return;
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            apply(changes);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                apply(changes);
+            }
+        });
+    }
+
+    // Ngưỡng thay đổi: cập nhật và đánh giá lại các SKU liên quan sau commit
+    public void onThresholdsChanged(Collection<ReorderThreshold> changed, Collection<ReorderThreshold> removed) {
+        Map<SkuKey, Integer> updates = new HashMap<>();
+        for (ReorderThreshold t : removed) updates.put(new SkuKey(t.getProductUnitId(), t.getWarehouseId()), null);
+        for (ReorderThreshold t : changed) updates.put(new SkuKey(t.getProductUnitId(), t.getWarehouseId()), t.getThreshold());
+        if (updates.isEmpty()) return;
+        Runnable task = () -> applyThresholds(updates);
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            task.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                task.run();
+            }
+        });
+    }
+
+    // Danh sách SKU đang sắp hết (đọc từ bộ nhớ), sắp theo tồn khả dụng tăng dần
+    public List<LowStockAlertDto> getLowStock(Long warehouseId) {
+        List<Transition> items = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<SkuKey, Integer> e : live.entrySet()) {
+                if (warehouseId == null || warehouseId.equals(e.getKey().warehouseId)) {
+                    items.add(new Transition(EVENT_LOW, e.getKey(), e.getValue(), thresholdFor(e.getKey())));
+                }
+            }
+        }
+        items.sort(Comparator.comparingInt((Transition t) -> t.availableQuantity)
+                .thenComparing(t -> t.sku.productUnitId, Comparator.nullsLast(Comparator.naturalOrder())));
+        return toDtos(items);
+    }
+
+    // Đăng ký nhận sự kiện qua SSE: gửi ngay danh sách hiện tại, sau đó chỉ gửi các lần vượt ngưỡng
+    public SseEmitter subscribe(Long warehouseId) {
+        SseEmitter emitter = new SseEmitter(sseTimeoutMs);
+        Subscriber subscriber = new Subscriber(emitter, warehouseId);
+        subscribers.add(subscriber);
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onTimeout(() -> subscribers.remove(subscriber));
+        emitter.onError(e -> subscribers.remove(subscriber));
+
+        dispatcher.execute(() -> send(subscriber, EVENT_SNAPSHOT, getLowStock(warehouseId)));
+        return emitter;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        dispatcher.shutdownNow();
+        for (Subscriber s : subscribers) {
+            s.emitter.complete();
+        }
+        subscribers.clear();
+    }
+
+    private void apply(List<BalanceChange> changes) {
+        List<Transition> transitions = new ArrayList<>();
+        synchronized (this) {
+            if (!loaded) return; // chưa dựng xong, lần resync sẽ đọc trạng thái mới nhất
+            for (BalanceChange c : changes) {
+                Integer old = rowAvailable.put(c.key, c.availableQuantity);
+                int delta = c.availableQuantity - (old != null ? old : 0);
+                SkuKey sku = new SkuKey(c.key.productUnitId, c.key.warehouseId);
+                available.merge(sku, delta, Integer::sum);
+                evaluate(sku, transitions);
+            }
+        }
+        publish(transitions);
+    }
+
+    private void applyThresholds(Map<SkuKey, Integer> updates) {
+        List<Transition> transitions = new ArrayList<>();
+        synchronized (this) {
+            updates.forEach((sku, value) -> {
+                if (value == null) thresholds.remove(sku);
+                else thresholds.put(sku, value);
+            });
+            if (!loaded) return;
+            for (SkuKey sku : available.keySet()) {
+                for (SkuKey changed : updates.keySet()) {
+                    if (Objects.equals(sku.productUnitId, changed.productUnitId)
+                            && (changed.warehouseId == null || changed.warehouseId.equals(sku.warehouseId))) {
+                        evaluate(sku, transitions);
+                        break;
+                    }
+                }
+            }
+        }
+        publish(transitions);
+    }
+
+    // Gọi khi đang giữ khoá; chỉ ghi nhận sự kiện khi trạng thái thấp/không thấp thay đổi
+    private void evaluate(SkuKey sku, List<Transition> transitions) {
+        int qty = available.getOrDefault(sku, 0);
+        int threshold = thresholdFor(sku);
+        boolean isLow = qty <= threshold;
+        boolean wasLow = live.containsKey(sku);
+        if (isLow) {
+            live.put(sku, qty);
+            if (!wasLow) transitions.add(new Transition(EVENT_LOW, sku, qty, threshold));
+        } else if (wasLow) {
+            live.remove(sku);
+            transitions.add(new Transition(EVENT_RECOVERED, sku, qty, threshold));
+        }
+    }
+
+    private int thresholdFor(SkuKey sku) {
+        Integer specific = thresholds.get(sku);
+        if (specific != null) return specific;
+        Integer global = thresholds.get(new SkuKey(sku.productUnitId, null));
+        return global != null ? global : defaultThreshold;
+    }
+
+    private void publish(List<Transition> transitions) {
+        if (transitions.isEmpty()) return;
+        log.info("Low stock transitions: {}", transitions.size());
+        if (subscribers.isEmpty()) return;
+        dispatcher.execute(() -> {
+            Map<String, List<Transition>> byEvent = transitions.stream()
+                    .collect(Collectors.groupingBy(t -> t.event));
+            byEvent.forEach((event, items) -> {
+                List<LowStockAlertDto> dtos = toDtos(items);
+                for (Subscriber s : subscribers) {
+                    List<LowStockAlertDto> visible = s.warehouseId == null ? dtos : dtos.stream()
+                            .filter(d -> s.warehouseId.equals(d.getWarehouseId()))
+                            .collect(Collectors.toList());
+                    if (!visible.isEmpty()) send(s, event, visible);
+                }
+            });
+        });
+    }
+
+    private void send(Subscriber subscriber, String event, List<LowStockAlertDto> data) {
+        try {
+            subscriber.emitter.send(SseEmitter.event().name(event).data(data));
+        } catch (IOException | IllegalStateException e) {
+            // Client đã ngắt kết nối
+            subscribers.remove(subscriber);
+            subscriber.emitter.completeWithError(e);
+        }
+    }
+
+    private List<LowStockAlertDto> toDtos(List<Transition> items) {
+        Map<Long, ProductUnitCache.UnitInfo> units = productUnitCache.getAll(
+                items.stream().map(t -> t.sku.productUnitId).distinct().collect(Collectors.toList()));
+        List<LowStockAlertDto> result = new ArrayList<>(items.size());
+        for (Transition t : items) {
+            ProductUnitCache.UnitInfo unit = units.get(t.sku.productUnitId);
+            result.add(LowStockAlertDto.builder()
+                    .productUnitId(t.sku.productUnitId)
+                    .warehouseId(t.sku.warehouseId)
+                    .productId(unit != null ? unit.productId : null)
+                    .productName(unit != null ? unit.productName : "Unknown Product")
+                    .unitName(unit != null ? unit.unitName : "Unknown Unit")
+                    .availableQuantity((long) t.availableQuantity)
+                    .threshold(t.threshold)
+                    .isLow(EVENT_LOW.equals(t.event))
+                    .build());
+        }
+        return result;
+    }
+
+    private static class SkuKey {
+        private final Long productUnitId;
+        private final Long warehouseId;
+
+        SkuKey(Long productUnitId, Long warehouseId) {
+            this.productUnitId = productUnitId;
+            this.warehouseId = warehouseId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof SkuKey)) return false;
+            SkuKey other = (SkuKey) o;
+            return Objects.equals(productUnitId, other.productUnitId) && Objects.equals(warehouseId, other.warehouseId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(productUnitId, warehouseId);
+        }
+    }
+
+    private static class BalanceKey {
+        private final Long productUnitId;
+        private final Long warehouseId;
+        private final Long stockLocationId;
+
+        BalanceKey(Long productUnitId, Long warehouseId, Long stockLocationId) {
+            this.productUnitId = productUnitId;
+            this.warehouseId = warehouseId;
+            this.stockLocationId = stockLocationId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof BalanceKey)) return false;
+            BalanceKey other = (BalanceKey) o;
+            return Objects.equals(productUnitId, other.productUnitId)
+                    && Objects.equals(warehouseId, other.warehouseId)
+                    && Objects.equals(stockLocationId, other.stockLocationId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(productUnitId, warehouseId, stockLocationId);
+        }
+    }
+
+    private static class BalanceChange {
+        private final BalanceKey key;
+        private final int availableQuantity;
+
+        BalanceChange(BalanceKey key, int availableQuantity) {
+            this.key = key;
+            this.availableQuantity = availableQuantity;
+        }
+    }
+
+    private static class Transition {
+        private final String event;
+        private final SkuKey sku;
+        private final int availableQuantity;
+        private final int threshold;
+
+        Transition(String event, SkuKey sku, int availableQuantity, int threshold) {
+            this.event = event;
+            this.sku = sku;
+            this.availableQuantity = availableQuantity;
+            this.threshold = threshold;
+        }
+    }
+
+    private static class Subscriber {
+        private final SseEmitter emitter;
+        private final Long warehouseId;
+
+        Subscriber(SseEmitter emitter, Long warehouseId) {
+            this.emitter = emitter;
+            this.warehouseId = warehouseId;
+        }
+    }
+}
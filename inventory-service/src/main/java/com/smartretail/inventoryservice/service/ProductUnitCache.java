@@ -0,0 +1,241 @@
+package com.smartretail.inventoryservice.service;
+
+import com.smartretail.inventoryservice.client.ProductServiceClient;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Cache cục bộ productUnitId → (productId, conversionRate, baseUnitId) lấy từ product-service.
+ * - Warm-up toàn bộ khi service khởi động qua /api/products/units/all
+ * - Miss thì nạp cả nhóm đơn vị của các sản phẩm liên quan bằng các lần gọi bulk theo lô
+ * - product-service gọi /api/inventory/cache/product-units/invalidate trên từng instance khi đơn vị thay đổi
+ * - Nạp lại toàn bộ theo chu kỳ (inventory.product-unit-cache.refresh-ms, mặc định 5 phút): instance bỏ lỡ
+ *   thông báo (đang khởi động, lỗi mạng) dùng hệ số quy đổi cũ tối đa một chu kỳ
+ * Khi product-service không gọi được, giá trị cũ được giữ lại thay vì bỏ qua quy đổi.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class ProductUnitCache {
+
+    private static final int BULK_CHUNK_SIZE = 500;
+
+    private final ProductServiceClient productServiceClient;
+
+    private final Map<Long, UnitInfo> units = new ConcurrentHashMap<>();
+    private final Map<Long, Set<Long>> unitIdsByProduct = new ConcurrentHashMap<>();
+    // Sản phẩm đã được báo thay đổi nhưng chưa nạp lại thành công
+    private final Set<Long> staleProducts = ConcurrentHashMap.newKeySet();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        try {
+            refreshAll();
+        } catch (Exception e) {
+            log.warn("Product unit cache warm-up failed, falling back to lazy loading: {}", e.getMessage());
+        }
+    }
+
+    @Scheduled(initialDelayString = "${inventory.product-unit-cache.refresh-ms:300000}",
+               fixedDelayString = "${inventory.product-unit-cache.refresh-ms:300000}")
+    public void periodicRefresh() {
+        try {
+            refreshAll();
+        } catch (Exception e) {
+            log.warn("Periodic product unit cache refresh failed, keeping cached values: {}", e.getMessage());
+        }
+    }
+
+    // Nạp lại toàn bộ từ product-service (ném lỗi nếu không gọi được, cache cũ giữ nguyên)
+    public int refreshAll() {
+        List<ProductServiceClient.ProductUnitResponse> all = productServiceClient.getAllProductUnits();
+        if (all == null) return 0;
+        Map<Long, List<ProductServiceClient.ProductUnitResponse>> byProduct = all.stream()
+                .filter(u -> u.getId() != null && u.getProductId() != null)
+                .collect(Collectors.groupingBy(ProductServiceClient.ProductUnitResponse::getProductId));
+        byProduct.forEach(this::putProductGroup);
+        staleProducts.clear();
+        log.info("Product unit cache loaded: {} units of {} products", all.size(), byProduct.size());
+        return all.size();
+    }
+
+    // Thông tin đơn vị; null nếu chưa từng biết và product-service không gọi được
+    public UnitInfo get(Long productUnitId) {
+        if (productUnitId == null) return null;
+        UnitInfo cached = units.get(productUnitId);
+        if (cached != null && !staleProducts.contains(cached.productId)) {
+            return cached;
+        }
+        try {
+            if (cached != null) {
+                refreshProduct(cached.productId);
+            } else {
+                loadUnits(List.of(productUnitId));
+            }
+        } catch (Exception e) {
+            log.warn("Cannot refresh product unit {} from product-service, using cached value: {}",
+                    productUnitId, e.getMessage());
+        }
+        UnitInfo latest = units.get(productUnitId);
+        return latest != null ? latest : cached;
+    }
+
+    // Lấy nhiều đơn vị, các id chưa có trong cache được nạp bằng các lần gọi bulk theo lô
+    public Map<Long, UnitInfo> getAll(Collection<Long> productUnitIds) {
+        List<Long> missing = new ArrayList<>();
+        for (Long id : productUnitIds) {
+            if (id == null) continue;
+            UnitInfo info = units.get(id);
+            if (info == null || staleProducts.contains(info.productId)) {
+                missing.add(id);
+            }
+        }
+        if (!missing.isEmpty()) {
+            try {
+                loadUnits(missing);
+            } catch (Exception e) {
+                log.warn("Cannot load {} product units from product-service: {}", missing.size(), e.getMessage());
+            }
+        }
+        Map<Long, UnitInfo> result = new LinkedHashMap<>();
+        for (Long id : productUnitIds) {
+            UnitInfo info = id != null ? units.get(id) : null;
+            if (info != null) result.put(id, info);
+        }
+        return result;
+    }
+
+    // Quy đổi số lượng về đơn vị cơ bản; null nếu không biết đơn vị
+    public Integer toBaseQuantity(Long productUnitId, Integer quantity) {
+        if (quantity == null) return 0;
+        UnitInfo info = get(productUnitId);
+        if (info == null) return null;
+        return (int) Math.round(quantity * info.conversionRate);
+    }
+
+    // Được gọi khi product-service báo đơn vị của sản phẩm thay đổi
+    public void invalidateProduct(Long productId) {
+        staleProducts.add(productId);
+        try {
+            refreshProduct(productId);
+        } catch (Exception e) {
+            // Giữ giá trị cũ, lần đọc sau sẽ thử nạp lại
+            log.warn("Deferred product unit refresh for product {}: {}", productId, e.getMessage());
+        }
+    }
+
+    private void loadUnits(List<Long> productUnitIds) {
+        Set<Long> productIds = new HashSet<>();
+        for (List<Long> chunk : chunks(productUnitIds)) {
+            List<ProductServiceClient.ProductUnitResponse> found = productServiceClient.getProductUnitsByIds(chunk);
+            if (found == null) continue;
+            for (ProductServiceClient.ProductUnitResponse u : found) {
+                if (u.getProductId() != null) productIds.add(u.getProductId());
+            }
+        }
+        refreshProducts(new ArrayList<>(productIds));
+    }
+
+    private void refreshProduct(Long productId) {
+        refreshProducts(List.of(productId));
+    }
+
+    // Nạp lại cả nhóm đơn vị (kể cả inactive) của các sản phẩm, mỗi lô BULK_CHUNK_SIZE sản phẩm một lần gọi
+    private void refreshProducts(List<Long> productIds) {
+        for (List<Long> chunk : chunks(productIds)) {
+            List<ProductServiceClient.ProductUnitResponse> list = productServiceClient.getProductUnitsByProductIds(chunk);
+            Map<Long, List<ProductServiceClient.ProductUnitResponse>> byProduct = list == null ? Map.of() : list.stream()
+                    .filter(u -> u.getId() != null && u.getProductId() != null)
+                    .collect(Collectors.groupingBy(ProductServiceClient.ProductUnitResponse::getProductId));
+            for (Long productId : chunk) {
+                putProductGroup(productId, byProduct.getOrDefault(productId, List.of()));
+                staleProducts.remove(productId);
+            }
+        }
+    }
+
+    private void putProductGroup(Long productId, List<ProductServiceClient.ProductUnitResponse> group) {
+        Long baseUnitId = null;
+        for (ProductServiceClient.ProductUnitResponse u : group) {
+            if (Boolean.TRUE.equals(u.getIsDefault()) && !Boolean.FALSE.equals(u.getActive())) {
+                baseUnitId = u.getId();
+                break;
+            }
+        }
+        Set<Long> known = unitIdsByProduct.computeIfAbsent(productId, k -> ConcurrentHashMap.newKeySet());
+        Set<Long> groupIds = new HashSet<>();
+        for (ProductServiceClient.ProductUnitResponse u : group) {
+            if (u.getId() == null) continue;
+            put(toInfo(u, baseUnitId != null ? baseUnitId : u.getId()));
+            groupIds.add(u.getId());
+        }
+        // Các đơn vị đã biết nhưng không còn trong nhóm (bị inactive) vẫn giữ để quy đổi tồn cũ
+        for (Long id : known) {
+            UnitInfo info = units.get(id);
+            if (info != null && !groupIds.contains(id)) {
+                units.put(id, new UnitInfo(info.productUnitId, info.productId, info.unitId,
+                        info.conversionRate, baseUnitId != null ? baseUnitId : info.baseUnitId,
+                        info.isDefault, false, info.productName, info.unitName));
+            }
+        }
+    }
+
+    private void put(UnitInfo info) {
+        units.put(info.productUnitId, info);
+        unitIdsByProduct.computeIfAbsent(info.productId, k -> ConcurrentHashMap.newKeySet()).add(info.productUnitId);
+    }
+
+    private static <T> List<List<T>> chunks(List<T> items) {
+        List<List<T>> result = new ArrayList<>();
+        for (int i = 0; i < items.size(); i += BULK_CHUNK_SIZE) {
+            result.add(items.subList(i, Math.min(i + BULK_CHUNK_SIZE, items.size())));
+        }
+        return result;
+    }
+
+    private static UnitInfo toInfo(ProductServiceClient.ProductUnitResponse u, Long baseUnitId) {
+        double conv = u.getConversionRate() != null ? u.getConversionRate() : 1.0d;
+        return new UnitInfo(u.getId(), u.getProductId(), u.getUnitId(), conv, baseUnitId,
+                Boolean.TRUE.equals(u.getIsDefault()), !Boolean.FALSE.equals(u.getActive()),
+                u.getProductName(), u.getUnitName());
+    }
+
+    public static class UnitInfo {
+        public final Long productUnitId;
+        public final Long productId;
+        public final Long unitId;
+        public final double conversionRate;
+        public final Long baseUnitId;
+        public final boolean isDefault;
+        public final boolean active;
+        public final String productName;
+        public final String unitName;
+
+        public UnitInfo(Long productUnitId, Long productId, Long unitId, double conversionRate, Long baseUnitId,
+                        boolean isDefault, boolean active, String productName, String unitName) {
+            this.productUnitId = productUnitId;
+            this.productId = productId;
+            this.unitId = unitId;
+            this.conversionRate = conversionRate;
+            this.baseUnitId = baseUnitId;
+            this.isDefault = isDefault;
+            this.active = active;
+            this.productName = productName;
+            this.unitName = unitName;
+        }
+    }
+}
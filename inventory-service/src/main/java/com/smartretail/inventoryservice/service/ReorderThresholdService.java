@@ -0,0 +1,70 @@
+package com.smartretail.inventoryservice.service;
+
+import com.smartretail.inventoryservice.dto.ReorderThresholdDto;
+import com.smartretail.inventoryservice.model.ReorderThreshold;
+import com.smartretail.inventoryservice.repository.ReorderThresholdRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+@Service
+@RequiredArgsConstructor
+@Transactional
+@Slf4j
+public class ReorderThresholdService {
+
+    private final ReorderThresholdRepository reorderThresholdRepository;
+    private final LowStockMonitor lowStockMonitor;
+
+    @Transactional(readOnly = true)
+    public List<ReorderThresholdDto> getThresholds(Long productUnitId, Long warehouseId) {
+        List<ReorderThreshold> thresholds;
+        if (productUnitId != null) {
+            thresholds = reorderThresholdRepository.findByProductUnitId(productUnitId);
+        } else if (warehouseId != null) {
+            thresholds = reorderThresholdRepository.findByWarehouseId(warehouseId);
+        } else {
+            thresholds = reorderThresholdRepository.findAll();
+        }
+        return thresholds.stream()
+                .filter(t -> warehouseId == null || warehouseId.equals(t.getWarehouseId()))
+                .map(this::convertToDto)
+                .collect(Collectors.toList());
+    }
+
+    // Tạo hoặc cập nhật ngưỡng theo (productUnitId, warehouseId)
+    public List<ReorderThresholdDto> saveThresholds(List<ReorderThresholdDto> dtos) {
+        List<ReorderThreshold> saved = new ArrayList<>(dtos.size());
+        for (ReorderThresholdDto dto : dtos) {
+            if (dto.getProductUnitId() == null || dto.getThreshold() == null || dto.getThreshold() < 0) {
+                throw new RuntimeException("Each threshold requires productUnitId and a non-negative threshold");
+            }
+            ReorderThreshold threshold = reorderThresholdRepository
+                    .findByProductUnitIdAndWarehouseId(dto.getProductUnitId(), dto.getWarehouseId())
+                    .orElseGet(ReorderThreshold::new);
+            threshold.setProductUnitId(dto.getProductUnitId());
+            threshold.setWarehouseId(dto.getWarehouseId());
+            threshold.setThreshold(dto.getThreshold());
+            saved.add(reorderThresholdRepository.save(threshold));
+        }
+        lowStockMonitor.onThresholdsChanged(saved, List.of());
+        return saved.stream().map(this::convertToDto).collect(Collectors.toList());
+    }
+
+    public void deleteThreshold(Long id) {
+        ReorderThreshold threshold = reorderThresholdRepository.findById(id)
+                .orElseThrow(() -> new RuntimeException("Reorder threshold not found with id: " + id));
+        reorderThresholdRepository.delete(threshold);
+        lowStockMonitor.onThresholdsChanged(List.of(), List.of(threshold));
+    }
+
+    private ReorderThresholdDto convertToDto(ReorderThreshold threshold) {
+        return new ReorderThresholdDto(threshold.getId(), threshold.getProductUnitId(), threshold.getWarehouseId(),
+                threshold.getThreshold(), threshold.getUpdatedAt());
+    }
+}
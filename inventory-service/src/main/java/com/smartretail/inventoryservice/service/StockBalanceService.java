@@ -3,11 +3,10 @@ package com.smartretail.inventoryservice.service;
 import com.smartretail.inventoryservice.dto.StockBalanceDto;
 import com.smartretail.inventoryservice.dto.StockAdjustmentDto;
 import com.smartretail.inventoryservice.model.StockBalance;
+import com.smartretail.inventoryservice.model.StockLedgerEntry;
 import com.smartretail.inventoryservice.model.Warehouse;
 import com.smartretail.inventoryservice.model.StockLocation;
 import com.smartretail.inventoryservice.repository.StockBalanceRepository;
-import com.smartretail.inventoryservice.repository.WarehouseRepository;
-import com.smartretail.inventoryservice.repository.StockLocationRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
@@ -24,8 +23,10 @@ import java.util.stream.Collectors;
 public class StockBalanceService {
 
     private final StockBalanceRepository stockBalanceRepository;
-    private final WarehouseRepository warehouseRepository;
-    private final StockLocationRepository stockLocationRepository;
+    private final WarehouseLocationCache warehouseLocationCache;
+    private final StockLedgerService stockLedgerService;
+    private final LowStockMonitor lowStockMonitor;
+    private final StockEventOutbox stockEventOutbox;
 
     // Lấy tồn kho theo nhiều tiêu chí
     public List<StockBalanceDto> getStockBalance(Long productUnitId, Long warehouseId, Long stockLocationId) {
@@ -97,6 +98,8 @@ public class StockBalanceService {
         StockBalance existingStockBalance = stockBalanceRepository.findById(id)
                 .orElseThrow(() -> new RuntimeException("Stock balance not found with id: " + id));
 
+        int quantityBefore = existingStockBalance.getQuantity();
+
         // Update fields
         existingStockBalance.setQuantity(stockBalanceDto.getQuantity());
         existingStockBalance.setReservedQuantity(stockBalanceDto.getReservedQuantity());
@@ -104,6 +107,10 @@ public class StockBalanceService {
         existingStockBalance.setLastUpdatedAt(LocalDateTime.now());
 
         StockBalance updatedStockBalance = stockBalanceRepository.save(existingStockBalance);
+        stockLedgerService.record(updatedStockBalance, updatedStockBalance.getQuantity() - quantityBefore,
+                StockLedgerEntry.MovementType.MANUAL, null);
+        lowStockMonitor.onBalanceChanged(updatedStockBalance);
+        stockEventOutbox.append(updatedStockBalance);
         return convertToDto(updatedStockBalance);
     }
 
@@ -112,10 +119,8 @@ public class StockBalanceService {
         log.info("Adjusting stock balance: {}", adjustmentDto);
 
         // Get warehouse and stock location entities
-        Warehouse warehouse = warehouseRepository.findById(adjustmentDto.getWarehouseId())
-                .orElseThrow(() -> new RuntimeException("Warehouse not found with id: " + adjustmentDto.getWarehouseId()));
-        StockLocation stockLocation = stockLocationRepository.findById(adjustmentDto.getStockLocationId())
-                .orElseThrow(() -> new RuntimeException("Stock location not found with id: " + adjustmentDto.getStockLocationId()));
+        Warehouse warehouse = warehouseLocationCache.warehouseRef(adjustmentDto.getWarehouseId());
+        StockLocation stockLocation = warehouseLocationCache.locationRef(adjustmentDto.getStockLocationId());
 
         // Find existing stock balance
         Optional<StockBalance> existingStockBalance = stockBalanceRepository
@@ -145,6 +150,10 @@ public class StockBalanceService {
 
         stockBalance.setLastUpdatedAt(LocalDateTime.now());
         StockBalance savedStockBalance = stockBalanceRepository.save(stockBalance);
+        stockLedgerService.record(savedStockBalance, adjustmentDto.getNewQuantity() - adjustmentDto.getOldQuantity(),
+                StockLedgerEntry.MovementType.ADJUST, adjustmentDto.getReferenceNumber());
+        lowStockMonitor.onBalanceChanged(savedStockBalance);
+        stockEventOutbox.append(savedStockBalance);
 
         return convertToDto(savedStockBalance);
     }
@@ -153,8 +162,8 @@ public class StockBalanceService {
     public StockBalanceDto reserveStock(Long productUnitId, Long stockLocationId, Long warehouseId, Integer quantity) {
         StockBalance stockBalance = stockBalanceRepository
                 .findByProductUnitIdAndStockLocationAndWarehouse(productUnitId,
-                        stockLocationRepository.findById(stockLocationId).orElseThrow(() -> new RuntimeException("Stock location not found")),
-                        warehouseRepository.findById(warehouseId).orElseThrow(() -> new RuntimeException("Warehouse not found")))
+                        warehouseLocationCache.locationRef(stockLocationId),
+                        warehouseLocationCache.warehouseRef(warehouseId))
                 .orElseThrow(() -> new RuntimeException("Stock balance not found"));
 
         if (stockBalance.getAvailableQuantity() < quantity) {
@@ -163,9 +172,12 @@ public class StockBalanceService {
         }
 
         stockBalance.setReservedQuantity(stockBalance.getReservedQuantity() + quantity);
+        stockBalance.setAvailableQuantity(stockBalance.getQuantity() - stockBalance.getReservedQuantity());
         stockBalance.setLastUpdatedAt(LocalDateTime.now());
 
         StockBalance savedStockBalance = stockBalanceRepository.save(stockBalance);
+        lowStockMonitor.onBalanceChanged(savedStockBalance);
+        stockEventOutbox.append(savedStockBalance);
         return convertToDto(savedStockBalance);
     }
 
@@ -173,8 +185,8 @@ public class StockBalanceService {
     public StockBalanceDto releaseReservedStock(Long productUnitId, Long stockLocationId, Long warehouseId, Integer quantity) {
         StockBalance stockBalance = stockBalanceRepository
                 .findByProductUnitIdAndStockLocationAndWarehouse(productUnitId,
-                        stockLocationRepository.findById(stockLocationId).orElseThrow(() -> new RuntimeException("Stock location not found")),
-                        warehouseRepository.findById(warehouseId).orElseThrow(() -> new RuntimeException("Warehouse not found")))
+                        warehouseLocationCache.locationRef(stockLocationId),
+                        warehouseLocationCache.warehouseRef(warehouseId))
                 .orElseThrow(() -> new RuntimeException("Stock balance not found"));
 
         if (stockBalance.getReservedQuantity() < quantity) {
@@ -183,9 +195,12 @@ public class StockBalanceService {
         }
 
         stockBalance.setReservedQuantity(stockBalance.getReservedQuantity() - quantity);
+        stockBalance.setAvailableQuantity(stockBalance.getQuantity() - stockBalance.getReservedQuantity());
         stockBalance.setLastUpdatedAt(LocalDateTime.now());
 
         StockBalance savedStockBalance = stockBalanceRepository.save(stockBalance);
+        lowStockMonitor.onBalanceChanged(savedStockBalance);
+        stockEventOutbox.append(savedStockBalance);
         return convertToDto(savedStockBalance);
     }
 
@@ -201,10 +216,8 @@ public class StockBalanceService {
 
     // Lấy số lượng hiện tại theo bộ 3: productUnitId + stockLocationId + warehouseId
     public int getCurrentQuantity(Long productUnitId, Long stockLocationId, Long warehouseId) {
-        Warehouse warehouse = warehouseRepository.findById(warehouseId)
-                .orElseThrow(() -> new RuntimeException("Warehouse not found with id: " + warehouseId));
-        StockLocation stockLocation = stockLocationRepository.findById(stockLocationId)
-                .orElseThrow(() -> new RuntimeException("Stock location not found with id: " + stockLocationId));
+        Warehouse warehouse = warehouseLocationCache.warehouseRef(warehouseId);
+        StockLocation stockLocation = warehouseLocationCache.locationRef(stockLocationId);
 
         return stockBalanceRepository
                 .findByProductUnitIdAndStockLocationAndWarehouse(productUnitId, stockLocation, warehouse)
@@ -225,15 +238,9 @@ public class StockBalanceService {
         dto.setLastUpdatedAt(stockBalance.getLastUpdatedAt());
         dto.setCreatedAt(stockBalance.getCreatedAt());
 
-        // Enrich names
-        Warehouse wh = stockBalance.getWarehouse();
-        if (wh != null) {
-            dto.setWarehouseName(wh.getName());
-        }
-        StockLocation sl = stockBalance.getStockLocation();
-        if (sl != null) {
-            dto.setStockLocationName(sl.getName());
-        }
+        // Tên kho/vị trí lấy từ cache, không khởi tạo proxy lazy
+        dto.setWarehouseName(warehouseLocationCache.warehouseName(dto.getWarehouseId()));
+        dto.setStockLocationName(warehouseLocationCache.locationName(dto.getStockLocationId()));
         return dto;
     }
 }
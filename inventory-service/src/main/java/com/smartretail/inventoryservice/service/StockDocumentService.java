@@ -14,6 +14,7 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -271,42 +272,32 @@ public class StockDocumentService {
                     e.printStackTrace();
                     throw e;
                 }
-            } else if (doc.getType() == StockDocument.DocumentType.OUTBOUND) {
-                // Consume reserved stock cho OUTBOUND documents
-                try {
-                    log.info("Processing OUTBOUND document line: ProductUnitId={}, Quantity={}",
-                            line.getProductUnitId(), line.getQuantity());
-
-                    log.info("ReservedLotInfo for line {}: {}", line.getId(), line.getReservedLotInfo());
+            }
+        }
 
-                    if (line.getReservedLotInfo() == null || line.getReservedLotInfo().trim().isEmpty()) {
-                        throw new RuntimeException("ReservedLotInfo is null or empty for line " + line.getId() +
-                                ". This means stock was not properly reserved when adding lines to document.");
-                    }
+        // Consume reserved stock cho OUTBOUND documents: gom tất cả dòng, xử lý một lần cho cả phiếu
+        if (doc.getType() == StockDocument.DocumentType.OUTBOUND && !lines.isEmpty()) {
+            List<StockReservationService.LineReservation> lineReservations = new ArrayList<>();
+            for (StockDocumentLine line : lines) {
+                log.info("ReservedLotInfo for line {}: {}", line.getId(), line.getReservedLotInfo());
 
-                    List<StockReservationService.LotReservation> lotReservations =
-                            objectMapper.readValue(line.getReservedLotInfo(),
-                                    objectMapper.getTypeFactory().constructCollectionType(List.class, StockReservationService.LotReservation.class));
+                if (line.getReservedLotInfo() == null || line.getReservedLotInfo().trim().isEmpty()) {
+                    throw new RuntimeException("ReservedLotInfo is null or empty for line " + line.getId() +
+                            ". This means stock was not properly reserved when adding lines to document.");
+                }
 
-                    log.info("Found {} lot reservations for product {}",
-                            lotReservations.size(), line.getProductUnitId());
+                lineReservations.add(new StockReservationService.LineReservation(
+                        line.getProductUnitId(), line.getQuantity(), readLotReservations(line)));
+            }
 
-                    stockReservationService.consumeReservedStock(
-                            line.getProductUnitId(),
-                            doc.getWarehouseId(),
-                            doc.getStockLocationId(),
-                            line.getQuantity(),
-                            lotReservations);
-
-                    log.info("Successfully consumed {} units for product {}",
-                            line.getQuantity(), line.getProductUnitId());
-                } catch (JsonProcessingException e) {
-                    log.error("Failed to deserialize reservation info for line {}: {}", line.getId(), e.getMessage());
-                    throw new RuntimeException("Failed to deserialize reservation info for line " + line.getId(), e);
-                } catch (Exception e) {
-                    log.error("Failed to consume reserved stock for line {}: {}", line.getId(), e.getMessage());
-                    throw e;
-                }
+            try {
+                StockReservationService.ConsumeResult result = stockReservationService.consumeReservedStockForDocument(
+                        doc.getWarehouseId(), doc.getStockLocationId(), lineReservations);
+                log.info("Successfully consumed {} units for {} lines of document {}",
+                        result.getTotalConsumed(), lines.size(), id);
+            } catch (Exception e) {
+                log.error("Failed to consume reserved stock for document {}: {}", id, e.getMessage());
+                throw e;
             }
         }
 
@@ -360,26 +351,19 @@ public class StockDocumentService {
             throw new RuntimeException("Only DRAFT document can be cancelled");
         }
 
-        // Release reservations cho OUTBOUND documents
+        // Release reservations cho OUTBOUND documents (một lần cho cả phiếu)
         if (doc.getType() == StockDocument.DocumentType.OUTBOUND) {
-            for (StockDocumentLine line : doc.getLines()) {
+            List<StockReservationService.LineReservation> lineReservations = new ArrayList<>();
+            for (StockDocumentLine line : stockDocumentLineRepository.findByDocument_Id(id)) {
                 if (line.getReservedLotInfo() != null) {
-                    try {
-                        List<StockReservationService.LotReservation> lotReservations =
-                                objectMapper.readValue(line.getReservedLotInfo(),
-                                        objectMapper.getTypeFactory().constructCollectionType(List.class, StockReservationService.LotReservation.class));
-
-                        stockReservationService.releaseReservation(
-                                line.getProductUnitId(),
-                                doc.getWarehouseId(),
-                                doc.getStockLocationId(),
-                                line.getQuantity(),
-                                lotReservations);
-                    } catch (JsonProcessingException e) {
-                        throw new RuntimeException("Failed to deserialize reservation info for line " + line.getId(), e);
-                    }
+                    lineReservations.add(new StockReservationService.LineReservation(
+                            line.getProductUnitId(), line.getQuantity(), readLotReservations(line)));
                 }
             }
+            if (!lineReservations.isEmpty()) {
+                stockReservationService.releaseReservationsForDocument(
+                        doc.getWarehouseId(), doc.getStockLocationId(), lineReservations);
+            }
         }
 
         doc.setStatus(StockDocument.DocumentStatus.CANCELLED);
@@ -409,6 +393,16 @@ public class StockDocumentService {
         return toDto(doc);
     }
 
+    private List<StockReservationService.LotReservation> readLotReservations(StockDocumentLine line) {
+        try {
+            return objectMapper.readValue(line.getReservedLotInfo(),
+                    objectMapper.getTypeFactory().constructCollectionType(List.class, StockReservationService.LotReservation.class));
+        } catch (JsonProcessingException e) {
+            log.error("Failed to deserialize reservation info for line {}: {}", line.getId(), e.getMessage());
+            throw new RuntimeException("Failed to deserialize reservation info for line " + line.getId(), e);
+        }
+    }
+
     private StockDocumentDto toDto(StockDocument doc) {
         StockDocumentDto dto = new StockDocumentDto();
         dto.id = doc.getId();
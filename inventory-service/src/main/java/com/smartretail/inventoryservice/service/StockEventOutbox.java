@@ -0,0 +1,299 @@
+package com.smartretail.inventoryservice.service;
+
+import com.smartretail.inventoryservice.dto.StockChangeBatchDto;
+import com.smartretail.inventoryservice.dto.StockChangeEventDto;
+import com.smartretail.inventoryservice.model.StockBalance;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Luồng sự kiện thay đổi tồn kho cho các service khác tự dựng projection thay vì kéo toàn bộ /stock.
+ * - Mọi đường ghi stock_balance gọi append trong cùng transaction (ghi outbox bằng JDBC batch)
+ * - Sau commit (và định kỳ, để nhận cả sự kiện của instance khác) gán seq rồi đánh thức long-poll/SSE
+ * - Luồng dispatcher chỉ gán seq và đánh dấu subscriber cần gửi; việc đọc và gửi chạy trên nhóm luồng senders,
+ *   mỗi subscriber tối đa một lượt gửi cùng lúc, nên client chậm không làm trễ việc gán seq
+ * - Consumer đọc tiếp từ offset đã xử lý; SSE gửi seq làm id nên trình duyệt tự nối lại qua Last-Event-ID
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class StockEventOutbox {
+
+    public static final String EVENT_STOCK_CHANGE = "stock-change";
+    public static final String EVENT_RESET = "reset";
+    public static final int MAX_READ_SIZE = 1000;
+
+    private static final int APPEND_BATCH_SIZE = 500;
+    private static final int SENDER_THREADS = 4;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final StockEventSequencer stockEventSequencer;
+
+    // Gán seq tuần tự trên một luồng riêng; gửi SSE và trả long-poll trên senders
+    private final ExecutorService dispatcher = Executors.newSingleThreadExecutor();
+    private final ExecutorService senders = Executors.newFixedThreadPool(SENDER_THREADS);
+    private final AtomicBoolean sequencingQueued = new AtomicBoolean();
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final List<Waiter> waiters = new CopyOnWriteArrayList<>();
+    // seq lớn nhất đã biết, chỉ ghi trên luồng dispatcher
+    private volatile long head;
+
+    @Value("${inventory.events.sse-timeout-ms:1800000}")
+    private long sseTimeoutMs;
+
+    @Value("${inventory.events.retention-days:7}")
+    private int retentionDays;
+
+    public void append(StockBalance balance) {
+        appendAll(List.of(balance));
+    }
+
+    // Ghi trạng thái sau thay đổi của các dòng stock_balance (gọi sau khi đã set giá trị mới)
+    public void appendAll(Collection<StockBalance> balances) {
+        if (balances.isEmpty()) return;
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        jdbcTemplate.batchUpdate(
+                "INSERT INTO stock_change_event (product_unit_id, warehouse_id, stock_location_id, " +
+                        "quantity, available_quantity, reserved_quantity, created_at) VALUES (?, ?, ?, ?, ?, ?, ?)",
+                new ArrayList<>(balances), APPEND_BATCH_SIZE, (ps, b) -> {
+                    ps.setLong(1, b.getProductUnitId());
+                    ps.setLong(2, b.getWarehouse().getId());
+                    ps.setLong(3, b.getStockLocation().getId());
+                    ps.setInt(4, valueOf(b.getQuantity()));
+                    ps.setInt(5, valueOf(b.getAvailableQuantity()));
+                    ps.setInt(6, valueOf(b.getReservedQuantity()));
+                    ps.setTimestamp(7, now);
+                });
+        sequenceAfterCommit();
+    }
+
+    // Long-poll: trả ngay nếu đã có sự kiện sau offset, nếu không thì chờ tối đa waitMs
+    public DeferredResult<StockChangeBatchDto> poll(long offset, int limit, long waitMs) {
+        int size = Math.max(1, Math.min(limit, MAX_READ_SIZE));
+        StockChangeBatchDto empty = StockChangeBatchDto.builder()
+                .events(List.of()).nextOffset(offset).reset(false).build();
+        DeferredResult<StockChangeBatchDto> result = new DeferredResult<>(waitMs > 0 ? waitMs : null, () -> empty);
+
+        StockChangeBatchDto batch = stockEventSequencer.read(offset, size);
+        if (!batch.getEvents().isEmpty() || waitMs <= 0) {
+            result.setResult(batch);
+            return result;
+        }
+        Waiter waiter = new Waiter(offset, size, result);
+        waiters.add(waiter);
+        result.onCompletion(() -> waiters.remove(waiter));
+        // Sự kiện có thể vừa được gán seq giữa lần đọc ở trên và lúc đăng ký
+        if (head > offset) {
+            senders.execute(this::wakeWaiters);
+        }
+        return result;
+    }
+
+    // SSE từ offset (hoặc Last-Event-ID): gửi phần còn thiếu rồi tiếp tục đẩy sự kiện mới
+    public SseEmitter subscribe(long offset) {
+        SseEmitter emitter = new SseEmitter(sseTimeoutMs);
+        Subscriber subscriber = new Subscriber(emitter, offset);
+        subscribers.add(subscriber);
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onTimeout(() -> subscribers.remove(subscriber));
+        emitter.onError(e -> subscribers.remove(subscriber));
+
+        schedule(subscriber);
+        return emitter;
+    }
+
+    public long head() {
+        return stockEventSequencer.head();
+    }
+
+    // Dự phòng khi không có commit nào ở instance này (sự kiện do instance khác ghi) hoặc lần gán trước lỗi
+    @Scheduled(fixedDelayString = "${inventory.events.sequence-ms:1000}")
+    public void scheduledSequence() {
+        requestSequencing();
+    }
+
+    @Scheduled(cron = "${inventory.events.purge-cron:0 30 1 * * *}")
+    public void purge() {
+        LocalDateTime before = LocalDateTime.now().minusDays(retentionDays);
+        int total = 0;
+        try {
+            int deleted;
+            do {
+                deleted = stockEventSequencer.purgeBatch(before);
+                total += deleted;
+            } while (deleted == StockEventSequencer.PURGE_BATCH_SIZE);
+        } catch (Exception e) {
+            log.error("Stock event purge failed: {}", e.getMessage());
+        }
+        if (total > 0) {
+            log.info("Purged {} stock change events older than {}", total, before);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        dispatcher.shutdownNow();
+        senders.shutdownNow();
+        for (Subscriber s : subscribers) {
+            s.emitter.complete();
+        }
+        subscribers.clear();
+        waiters.clear();
+    }
+
+    private void sequenceAfterCommit() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            requestSequencing();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                requestSequencing();
+            }
+        });
+    }
+
+    // Nhiều commit liên tiếp chỉ xếp một lần chạy vào hàng đợi
+    private void requestSequencing() {
+        if (sequencingQueued.compareAndSet(false, true)) {
+            try {
+                dispatcher.execute(this::sequenceAndDispatch);
+            } catch (Exception e) {
+                sequencingQueued.set(false);
+            }
+        }
+    }
+
+    private void sequenceAndDispatch() {
+        sequencingQueued.set(false);
+        try {
+            int assigned;
+            do {
+                assigned = stockEventSequencer.assignNextBatch();
+            } while (assigned == StockEventSequencer.SEQUENCE_BATCH_SIZE);
+            long latest = stockEventSequencer.head();
+            if (latest <= head) return;
+            head = latest;
+        } catch (Exception e) {
+            log.warn("Stock event sequencing failed, will retry: {}", e.getMessage());
+            return;
+        }
+        if (!waiters.isEmpty()) {
+            senders.execute(this::wakeWaiters);
+        }
+        for (Subscriber s : subscribers) {
+            schedule(s);
+        }
+    }
+
+    // Có thể chạy song song trên nhiều luồng senders: waiter nào gỡ được khỏi danh sách thì luồng đó trả kết quả
+    private void wakeWaiters() {
+        for (Waiter w : waiters) {
+            if (w.offset >= head || !waiters.remove(w)) continue;
+            try {
+                w.result.setResult(stockEventSequencer.read(w.offset, w.limit));
+            } catch (Exception e) {
+                w.result.setErrorResult(e);
+            }
+        }
+    }
+
+    // Đánh dấu subscriber cần gửi; nếu chưa có lượt gửi nào đang chạy thì xếp một lượt vào senders
+    private void schedule(Subscriber subscriber) {
+        subscriber.pending.set(true);
+        if (subscriber.sending.compareAndSet(false, true)) {
+            try {
+                senders.execute(() -> drain(subscriber));
+            } catch (Exception e) {
+                subscriber.sending.set(false);
+            }
+        }
+    }
+
+    // Gửi lại nếu có seq mới trong lúc đang gửi; sending bảo đảm không có hai luồng cùng ghi một emitter
+    private void drain(Subscriber subscriber) {
+        do {
+            subscriber.pending.set(false);
+            deliver(subscriber);
+            subscriber.sending.set(false);
+        } while (subscriber.pending.get() && subscribers.contains(subscriber)
+                && subscriber.sending.compareAndSet(false, true));
+    }
+
+    // Chạy trên luồng senders (một lượt mỗi subscriber); gửi đến khi đuổi kịp head
+    private void deliver(Subscriber subscriber) {
+        try {
+            while (true) {
+                StockChangeBatchDto batch = stockEventSequencer.read(subscriber.offset, MAX_READ_SIZE);
+                if (Boolean.TRUE.equals(batch.getReset())) {
+                    subscriber.emitter.send(SseEmitter.event().name(EVENT_RESET)
+                            .data(Map.of("offset", subscriber.offset)));
+                }
+                for (StockChangeEventDto event : batch.getEvents()) {
+                    subscriber.emitter.send(SseEmitter.event()
+                            .id(String.valueOf(event.getVersion()))
+                            .name(EVENT_STOCK_CHANGE)
+                            .data(event));
+                    subscriber.offset = event.getVersion();
+                }
+                if (batch.getEvents().size() < MAX_READ_SIZE) break;
+            }
+        } catch (IOException | IllegalStateException e) {
+            // Client đã ngắt kết nối
+            subscribers.remove(subscriber);
+            subscriber.emitter.completeWithError(e);
+        } catch (Exception e) {
+            log.warn("Failed to deliver stock events to a subscriber: {}", e.getMessage());
+        }
+    }
+
+    private static int valueOf(Integer value) {
+        return value != null ? value : 0;
+    }
+
+    private static class Subscriber {
+        private final SseEmitter emitter;
+        private final AtomicBoolean pending = new AtomicBoolean();
+        private final AtomicBoolean sending = new AtomicBoolean();
+        private long offset;
+
+        Subscriber(SseEmitter emitter, long offset) {
+            this.emitter = emitter;
+            this.offset = offset;
+        }
+    }
+
+    private static class Waiter {
+        private final long offset;
+        private final int limit;
+        private final DeferredResult<StockChangeBatchDto> result;
+
+        Waiter(long offset, int limit, DeferredResult<StockChangeBatchDto> result) {
+            this.offset = offset;
+            this.limit = limit;
+            this.result = result;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.smartretail.inventoryservice.service;
+
+import com.smartretail.inventoryservice.dto.StockChangeBatchDto;
+import com.smartretail.inventoryservice.dto.StockChangeEventDto;
+import com.smartretail.inventoryservice.model.StockChangeEvent;
+import com.smartretail.inventoryservice.model.StockEventSequence;
+import com.smartretail.inventoryservice.repository.StockChangeEventRepository;
+import com.smartretail.inventoryservice.repository.StockEventSequenceRepository;
+import lombok.RequiredArgsConstructor;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Gán thứ tự (seq) cho sự kiện trong outbox và đọc theo offset.
+ * id tự tăng không dùng làm offset được: transaction lấy id nhỏ có thể commit sau transaction lấy id lớn,
+ * consumer đã đọc qua id lớn sẽ bỏ sót. seq chỉ được gán cho dòng đã commit, tuần tự dưới khoá dòng
+ * stock_event_sequence, nên đọc "seq > offset" không bao giờ bỏ sót kể cả khi chạy nhiều instance.
+ */
+@Service
+@RequiredArgsConstructor
+@Transactional
+public class StockEventSequencer {
+
+    static final int SEQUENCE_BATCH_SIZE = 1000;
+    static final int PURGE_BATCH_SIZE = 5000;
+
+    private final StockChangeEventRepository stockChangeEventRepository;
+    private final StockEventSequenceRepository stockEventSequenceRepository;
+    private final JdbcTemplate jdbcTemplate;
+
+    // Gán seq cho tối đa SEQUENCE_BATCH_SIZE sự kiện chưa có thứ tự; trả về số sự kiện đã gán
+    public int assignNextBatch() {
+        StockEventSequence sequence = stockEventSequenceRepository.findForUpdate(StockEventSequence.SINGLETON_ID)
+                .orElseGet(() -> stockEventSequenceRepository.save(
+                        new StockEventSequence(StockEventSequence.SINGLETON_ID, 0L)));
+        List<Long> ids = stockChangeEventRepository.findUnsequencedIds(SEQUENCE_BATCH_SIZE);
+        if (ids.isEmpty()) return 0;
+
+        long seq = sequence.getLastSeq();
+        List<Object[]> args = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            args.add(new Object[]{++seq, id});
+        }
+        jdbcTemplate.batchUpdate("UPDATE stock_change_event SET seq = ? WHERE id = ?", args);
+        sequence.setLastSeq(seq);
+        stockEventSequenceRepository.save(sequence);
+        return ids.size();
+    }
+
+    // seq lớn nhất đã cấp (0 nếu chưa có sự kiện)
+    @Transactional(readOnly = true)
+    public long head() {
+        Long last = stockChangeEventRepository.findLastSeq();
+        return last != null ? last : 0L;
+    }
+
+    @Transactional(readOnly = true)
+    public StockChangeBatchDto read(long offset, int limit) {
+        List<StockChangeEvent> rows = stockChangeEventRepository.findBySeqGreaterThanOrderBySeqAsc(
+                offset, PageRequest.of(0, limit));
+        List<StockChangeEventDto> events = new ArrayList<>(rows.size());
+        for (StockChangeEvent e : rows) {
+            events.add(StockChangeEventDto.builder()
+                    .version(e.getSeq())
+                    .productUnitId(e.getProductUnitId())
+                    .warehouseId(e.getWarehouseId())
+                    .stockLocationId(e.getStockLocationId())
+                    .quantity(e.getQuantity())
+                    .availableQuantity(e.getAvailableQuantity())
+                    .reservedQuantity(e.getReservedQuantity())
+                    .changedAt(e.getCreatedAt())
+                    .build());
+        }
+        // seq liên tục nên khoảng trống ngay sau offset nghĩa là đã bị xoá theo thời hạn lưu
+        boolean reset = !rows.isEmpty() && rows.get(0).getSeq() > offset + 1;
+        return StockChangeBatchDto.builder()
+                .events(events)
+                .nextOffset(rows.isEmpty() ? offset : rows.get(rows.size() - 1).getSeq())
+                .reset(reset)
+                .build();
+    }
+
+    // Xoá một lô sự kiện đã có thứ tự và cũ hơn before; trả về số dòng đã xoá
+    public int purgeBatch(LocalDateTime before) {
+        return stockChangeEventRepository.purgeBefore(before, PURGE_BATCH_SIZE);
+    }
+}
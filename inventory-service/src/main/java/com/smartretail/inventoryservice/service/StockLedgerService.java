@@ -0,0 +1,213 @@
+package com.smartretail.inventoryservice.service;
+
+import com.smartretail.inventoryservice.dto.StockAsOfDto;
+import com.smartretail.inventoryservice.model.StockBalance;
+import com.smartretail.inventoryservice.model.StockLedgerEntry;
+import com.smartretail.inventoryservice.model.StockSnapshotRun;
+import com.smartretail.inventoryservice.repository.StockBalanceSnapshotRepository;
+import com.smartretail.inventoryservice.repository.StockLedgerRepository;
+import com.smartretail.inventoryservice.repository.StockSnapshotRunRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sổ cái tồn kho và tra cứu tồn tại một ngày bất kỳ.
+ * - Mỗi thay đổi quantity của stock_balance ghi một dòng stock_ledger trong cùng transaction (JDBC batch)
+ * - Job cuối ngày chụp stock_balance_snapshot cho các sản phẩm có phát sinh trong ngày
+ * - Tồn tại ngày D = snapshot gần nhất + tổng sổ cái sau ngày đã chụp cuối cùng, không quét toàn bộ lịch sử
+ */
+@Service
+@RequiredArgsConstructor
+@Transactional
+@Slf4j
+public class StockLedgerService {
+
+    private static final int LEDGER_BATCH_SIZE = 500;
+    // Số tháng phân vùng tạo sẵn phía trước (chỉ khi bảng đã được phân vùng)
+    private static final int PARTITION_MONTHS_AHEAD = 3;
+
+    private final StockLedgerRepository stockLedgerRepository;
+    private final StockBalanceSnapshotRepository stockBalanceSnapshotRepository;
+    private final StockSnapshotRunRepository stockSnapshotRunRepository;
+    private final JdbcTemplate jdbcTemplate;
+
+    // Ghi một thay đổi sau khi stock_balance đã được cập nhật; thay đổi 0 thì bỏ qua
+    public void record(StockBalance balance, int quantityChange, StockLedgerEntry.MovementType type, String referenceNumber) {
+        recordAll(List.of(new Movement(balance, quantityChange, type, referenceNumber)));
+    }
+
+    public void recordAll(Collection<Movement> movements) {
+        List<Movement> changes = new ArrayList<>(movements.size());
+        for (Movement m : movements) {
+            if (m.quantityChange != 0) changes.add(m);
+        }
+        if (changes.isEmpty()) return;
+
+        LocalDateTime now = LocalDateTime.now();
+        Timestamp occurredAt = Timestamp.valueOf(now);
+        int periodMonth = periodOf(now.toLocalDate());
+        jdbcTemplate.batchUpdate(
+                "INSERT INTO stock_ledger (product_unit_id, warehouse_id, stock_location_id, movement_type, " +
+                        "quantity_change, balance_after, reference_number, occurred_at, period_month) " +
+                        "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                changes, LEDGER_BATCH_SIZE, (ps, m) -> {
+                    ps.setLong(1, m.productUnitId);
+                    ps.setLong(2, m.warehouseId);
+                    ps.setLong(3, m.stockLocationId);
+                    ps.setString(4, m.type.name());
+                    ps.setInt(5, m.quantityChange);
+                    ps.setInt(6, m.balanceAfter);
+                    ps.setString(7, m.referenceNumber);
+                    ps.setTimestamp(8, occurredAt);
+                    ps.setInt(9, periodMonth);
+                });
+    }
+
+    // Tồn kho có từ trước khi có sổ cái được ghi thành dòng OPENING một lần; sổ cái đã có dữ liệu
+    // (đã seed hoặc đã ghi phát sinh) thì bỏ qua để không quét stock_balance mỗi lần khởi động
+    @EventListener(ApplicationReadyEvent.class)
+    public void seedOpeningBalances() {
+        if (stockLedgerRepository.hasEntries()) return;
+        LocalDateTime now = LocalDateTime.now();
+        int seeded = stockLedgerRepository.seedOpeningBalances(now, periodOf(now.toLocalDate()));
+        if (seeded > 0) {
+            log.info("Stock ledger seeded with {} opening balances", seeded);
+        }
+    }
+
+    // Chụp tồn cuối ngày cho các sản phẩm có phát sinh và đánh dấu ngày đã chụp
+    public int snapshotDay(LocalDate day) {
+        int rows = stockBalanceSnapshotRepository.snapshotDay(day, periodOf(day),
+                day.atStartOfDay(), day.plusDays(1).atStartOfDay());
+        stockSnapshotRunRepository.save(new StockSnapshotRun(day, rows, LocalDateTime.now()));
+        log.info("Stock balance snapshot for {}: {} rows", day, rows);
+        return rows;
+    }
+
+    // Ngày tiếp theo cần chụp; null nếu sổ cái chưa có dữ liệu
+    @Transactional(readOnly = true)
+    public LocalDate nextSnapshotDay() {
+        LocalDate last = stockSnapshotRunRepository.findLastSnapshotDate();
+        if (last != null) return last.plusDays(1);
+        LocalDateTime first = stockLedgerRepository.findFirstOccurredAt();
+        return first != null ? first.toLocalDate() : null;
+    }
+
+    /**
+     * Tồn cuối ngày date của kho (lọc thêm vị trí/sản phẩm nếu có).
+     * Ngày đã chụp: đọc snapshot gần nhất. Ngày chưa chụp (thường là hôm nay):
+     * snapshot của ngày chụp cuối cùng + sổ cái từ sau ngày đó đến hết ngày date.
+     */
+    @Transactional(readOnly = true)
+    public List<StockAsOfDto> getStockAsOf(Long warehouseId, Long stockLocationId, Long productUnitId, LocalDate date) {
+        if (warehouseId == null || date == null) {
+            throw new RuntimeException("warehouseId and date are required");
+        }
+        LocalDate lastSnapshot = stockSnapshotRunRepository.findLastSnapshotDate();
+        LocalDate base = lastSnapshot == null ? null : (date.isBefore(lastSnapshot) ? date : lastSnapshot);
+
+        Map<String, StockAsOfDto> result = new LinkedHashMap<>();
+        if (base != null) {
+            for (StockLedgerRepository.QuantityView v : stockBalanceSnapshotRepository
+                    .findLatestOnOrBefore(warehouseId, stockLocationId, productUnitId, base)) {
+                merge(result, v, date);
+            }
+        }
+
+        if (base == null || base.isBefore(date)) {
+            LocalDateTime from = base != null ? base.plusDays(1).atStartOfDay() : stockLedgerRepository.findFirstOccurredAt();
+            if (from != null) {
+                LocalDateTime to = date.plusDays(1).atStartOfDay();
+                for (StockLedgerRepository.QuantityView v : stockLedgerRepository.sumChanges(
+                        warehouseId, stockLocationId, productUnitId,
+                        periodOf(from.toLocalDate()), periodOf(date), from, to)) {
+                    merge(result, v, date);
+                }
+            }
+        }
+        return new ArrayList<>(result.values());
+    }
+
+    /**
+     * Tạo sẵn phân vùng cho các tháng tới bằng cách tách phân vùng pmax.
+     * Bảng chưa được phân vùng (chưa chạy db/stock_ledger_partitioning.sql) thì bỏ qua.
+     */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void ensureLedgerPartitions() {
+        Set<String> partitions = new HashSet<>(jdbcTemplate.queryForList(
+                "SELECT PARTITION_NAME FROM information_schema.PARTITIONS " +
+                        "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'stock_ledger' AND PARTITION_NAME IS NOT NULL",
+                String.class));
+        if (partitions.isEmpty() || !partitions.contains("pmax")) return;
+
+        YearMonth month = YearMonth.now();
+        for (int i = 0; i <= PARTITION_MONTHS_AHEAD; i++, month = month.plusMonths(1)) {
+            String name = "p" + periodOf(month.atDay(1));
+            if (partitions.contains(name)) continue;
+            jdbcTemplate.execute("ALTER TABLE stock_ledger REORGANIZE PARTITION pmax INTO (" +
+                    "PARTITION " + name + " VALUES LESS THAN (" + periodOf(month.plusMonths(1).atDay(1)) + "), " +
+                    "PARTITION pmax VALUES LESS THAN MAXVALUE)");
+            log.info("Added stock_ledger partition {}", name);
+        }
+    }
+
+    private static void merge(Map<String, StockAsOfDto> result, StockLedgerRepository.QuantityView v, LocalDate date) {
+        String key = v.getProductUnitId() + ":" + v.getWarehouseId() + ":" + v.getStockLocationId();
+        int quantity = v.getQuantity() != null ? v.getQuantity() : 0;
+        StockAsOfDto existing = result.get(key);
+        if (existing != null) {
+            existing.setQuantity(existing.getQuantity() + quantity);
+        } else {
+            result.put(key, StockAsOfDto.builder()
+                    .productUnitId(v.getProductUnitId())
+                    .warehouseId(v.getWarehouseId())
+                    .stockLocationId(v.getStockLocationId())
+                    .asOfDate(date)
+                    .quantity(quantity)
+                    .build());
+        }
+    }
+
+    private static int periodOf(LocalDate date) {
+        return date.getYear() * 100 + date.getMonthValue();
+    }
+
+    // Một thay đổi tồn kho; id kho/vị trí lấy từ proxy nên không nạp entity
+    public static class Movement {
+        private final Long productUnitId;
+        private final Long warehouseId;
+        private final Long stockLocationId;
+        private final int quantityChange;
+        private final int balanceAfter;
+        private final StockLedgerEntry.MovementType type;
+        private final String referenceNumber;
+
+        public Movement(StockBalance balance, int quantityChange, StockLedgerEntry.MovementType type, String referenceNumber) {
+            this.productUnitId = balance.getProductUnitId();
+            this.warehouseId = balance.getWarehouse().getId();
+            this.stockLocationId = balance.getStockLocation().getId();
+            this.quantityChange = quantityChange;
+            this.balanceAfter = balance.getQuantity();
+            this.type = type;
+            this.referenceNumber = referenceNumber;
+        }
+    }
+}
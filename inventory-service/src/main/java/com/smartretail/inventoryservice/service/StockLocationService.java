@@ -4,7 +4,6 @@ import com.smartretail.inventoryservice.dto.StockLocationDto;
 import com.smartretail.inventoryservice.model.StockLocation;
 import com.smartretail.inventoryservice.model.Warehouse;
 import com.smartretail.inventoryservice.repository.StockLocationRepository;
-import com.smartretail.inventoryservice.repository.WarehouseRepository;
 import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -18,11 +17,10 @@ import java.util.stream.Collectors;
 public class StockLocationService {
 
     private final StockLocationRepository stockLocationRepository;
-    private final WarehouseRepository warehouseRepository;
+    private final WarehouseLocationCache warehouseLocationCache;
 
     public StockLocationDto createStockLocation(StockLocationDto stockLocationDto) {
-        Warehouse warehouse = warehouseRepository.findById(stockLocationDto.getWarehouseId())
-                .orElseThrow(() -> new RuntimeException("Warehouse not found with id: " + stockLocationDto.getWarehouseId()));
+        Warehouse warehouse = warehouseLocationCache.warehouseRef(stockLocationDto.getWarehouseId());
 
         if (stockLocationRepository.existsByNameAndWarehouseIdAndIdNot(
                 stockLocationDto.getName(), stockLocationDto.getWarehouseId(), 0L)) {
@@ -77,8 +75,7 @@ public class StockLocationService {
         StockLocation stockLocation = stockLocationRepository.findById(id)
                 .orElseThrow(() -> new RuntimeException("Stock location not found with id: " + id));
 
-        Warehouse warehouse = warehouseRepository.findById(stockLocationDto.getWarehouseId())
-                .orElseThrow(() -> new RuntimeException("Warehouse not found with id: " + stockLocationDto.getWarehouseId()));
+        Warehouse warehouse = warehouseLocationCache.warehouseRef(stockLocationDto.getWarehouseId());
 
         if (!stockLocation.getName().equals(stockLocationDto.getName()) &&
             stockLocationRepository.existsByNameAndWarehouseIdAndIdNot(
@@ -97,6 +94,7 @@ public class StockLocationService {
         stockLocation.setActive(stockLocationDto.getActive());
 
         StockLocation updatedLocation = stockLocationRepository.save(stockLocation);
+        warehouseLocationCache.invalidateLocation(id);
         return convertToDto(updatedLocation);
     }
 
@@ -109,6 +107,7 @@ public class StockLocationService {
 
         stockLocation.setActive(false);
         stockLocationRepository.save(stockLocation);
+        warehouseLocationCache.invalidateLocation(id);
     }
 
     public StockLocationDto activateStockLocation(Long id) {
@@ -117,6 +116,7 @@ public class StockLocationService {
 
         stockLocation.setActive(true);
         StockLocation updatedLocation = stockLocationRepository.save(stockLocation);
+        warehouseLocationCache.invalidateLocation(id);
         return convertToDto(updatedLocation);
     }
 
@@ -126,6 +126,7 @@ public class StockLocationService {
 
         stockLocation.setActive(false);
         StockLocation updatedLocation = stockLocationRepository.save(stockLocation);
+        warehouseLocationCache.invalidateLocation(id);
         return convertToDto(updatedLocation);
     }
 
@@ -149,7 +150,8 @@ public class StockLocationService {
         dto.setActive(stockLocation.getActive());
         dto.setCreatedAt(stockLocation.getCreatedAt());
         dto.setUpdatedAt(stockLocation.getUpdatedAt());
-        dto.setWarehouseName(stockLocation.getWarehouse().getName());
+        // Tên kho lấy từ cache, danh sách vị trí không nạp từng Warehouse
+        dto.setWarehouseName(warehouseLocationCache.warehouseName(dto.getWarehouseId()));
         return dto;
     }
 }
@@ -1,6 +1,7 @@
 package com.smartretail.inventoryservice.service;
 
 import com.smartretail.inventoryservice.model.StockBalance;
+import com.smartretail.inventoryservice.model.StockLedgerEntry;
 import com.smartretail.inventoryservice.model.StockLot;
 import com.smartretail.inventoryservice.repository.StockBalanceRepository;
 import com.smartretail.inventoryservice.repository.StockLotRepository;
@@ -10,7 +11,11 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 @Service
 @RequiredArgsConstructor
@@ -19,6 +24,11 @@ public class StockReservationService {
 
     private final StockBalanceRepository stockBalanceRepository;
     private final StockLotRepository stockLotRepository;
+    private final LotManagementService lotManagementService;
+    private final FefoLotIndex fefoLotIndex;
+    private final StockLedgerService stockLedgerService;
+    private final LowStockMonitor lowStockMonitor;
+    private final StockEventOutbox stockEventOutbox;
 
     /**
      * Reserve stock khi tạo phiếu xuất (chưa duyệt)
@@ -48,13 +58,8 @@ public class StockReservationService {
                     " (ProductUnitId: " + productUnitId + ")");
         }
 
-        // 2. Reserve trong stock_lots theo FEFO
-        List<StockLot> availableLots = stockLotRepository.findAvailableLotsForFEFO(
-                productUnitId, warehouseId, stockLocationId);
-
-        int totalAvailableFromLots = availableLots.stream()
-                .mapToInt(StockLot::getAvailableQuantity)
-                .sum();
+        // 2. Kiểm tra tổng khả dụng của các lô từ chỉ mục FEFO (thiếu thì xác nhận lại với DB)
+        int totalAvailableFromLots = fefoLotIndex.availableAtLeast(productUnitId, warehouseId, stockLocationId, requiredQuantity);
 
         if (totalAvailableFromLots < requiredQuantity) {
             throw new RuntimeException("Số sản phẩm yêu cầu vượt quá số lượng trong kho. " +
@@ -63,33 +68,20 @@ public class StockReservationService {
                     " (ProductUnitId: " + productUnitId + ")");
         }
 
-        // 3. Reserve từng lô theo FEFO
+        // 3. Reserve từng lô theo FEFO (kế hoạch trong bộ nhớ, UPDATE có điều kiện trên từng lô)
         List<LotReservation> lotReservations = new ArrayList<>();
-        int remainingQuantity = requiredQuantity;
-
-        for (StockLot lot : availableLots) {
-            if (remainingQuantity <= 0) break;
-
-            int availableInLot = lot.getAvailableQuantity();
-            int toReserve = Math.min(remainingQuantity, availableInLot);
-
-            if (toReserve > 0) {
-                // Reserve trong lot
-                lot.setReservedQuantity(lot.getReservedQuantity() + toReserve);
-                lot.setAvailableQuantity(lot.getCurrentQuantity() - lot.getReservedQuantity());
-                stockLotRepository.save(lot);
-
-                lotReservations.add(new LotReservation(lot.getId(), lot.getLotNumber(), toReserve));
-                remainingQuantity -= toReserve;
-
-                log.info("Reserved {} units from lot {} (ID: {})", toReserve, lot.getLotNumber(), lot.getId());
-            }
+        for (FefoLotIndex.Allocation allocation : lotManagementService.reserveLotsFEFO(
+                productUnitId, warehouseId, stockLocationId, requiredQuantity)) {
+            lotReservations.add(new LotReservation(allocation.lotId, allocation.lotNumber, allocation.quantity));
+            log.info("Reserved {} units from lot {} (ID: {})", allocation.quantity, allocation.lotNumber, allocation.lotId);
         }
 
         // 4. Reserve trong stock_balance
         stockBalance.setReservedQuantity(stockBalance.getReservedQuantity() + requiredQuantity);
         stockBalance.setAvailableQuantity(stockBalance.getQuantity() - stockBalance.getReservedQuantity());
-        stockBalanceRepository.save(stockBalance);
+        stockBalance = stockBalanceRepository.save(stockBalance);
+        lowStockMonitor.onBalanceChanged(stockBalance);
+        stockEventOutbox.append(stockBalance);
 
         log.info("Reserved {} units in stock balance for product {} at location {}",
                 requiredQuantity, productUnitId, stockLocationId);
@@ -134,6 +126,7 @@ public class StockReservationService {
             }
 
             stockLotRepository.save(lot);
+            fefoLotIndex.update(lot);
             totalConsumedFromLots += reservation.getReservedQuantity();
 
             log.info("Consumed {} units from lot {} (ID: {})", reservation.getReservedQuantity(),
@@ -163,6 +156,9 @@ public class StockReservationService {
                 stockBalance.getQuantity(), stockBalance.getReservedQuantity(), stockBalance.getAvailableQuantity());
 
         StockBalance savedBalance = stockBalanceRepository.save(stockBalance);
+        stockLedgerService.record(savedBalance, -quantityToConsume, StockLedgerEntry.MovementType.CONSUME, null);
+        lowStockMonitor.onBalanceChanged(savedBalance);
+        stockEventOutbox.append(savedBalance);
 
         // Log sau khi save
         log.info("After save - StockBalance: quantity={}, reserved={}, available={}",
@@ -191,6 +187,7 @@ public class StockReservationService {
             lot.setReservedQuantity(lot.getReservedQuantity() - reservation.getReservedQuantity());
             lot.setAvailableQuantity(lot.getCurrentQuantity() - lot.getReservedQuantity());
             stockLotRepository.save(lot);
+            fefoLotIndex.update(lot);
 
             log.info("Released {} units from lot {} (ID: {})", reservation.getReservedQuantity(),
                     lot.getLotNumber(), lot.getId());
@@ -205,11 +202,173 @@ public class StockReservationService {
         stockBalance.setReservedQuantity(stockBalance.getReservedQuantity() - quantityToRelease);
         stockBalance.setAvailableQuantity(stockBalance.getQuantity() - stockBalance.getReservedQuantity());
         stockBalanceRepository.save(stockBalance);
+        lowStockMonitor.onBalanceChanged(stockBalance);
+        stockEventOutbox.append(stockBalance);
 
         log.info("Released {} units in stock balance for product {} at location {}",
                 quantityToRelease, productUnitId, stockLocationId);
     }
 
+    /**
+     * Consume toàn bộ phiếu xuất khi duyệt (thay cho gọi consumeReservedStock từng dòng)
+     * - Nạp tất cả lô của phiếu bằng một truy vấn IN (findAllById)
+     * - Nạp tất cả stock_balance của phiếu bằng một truy vấn IN theo productUnitId
+     * - Cộng dồn theo lô/sản phẩm trong bộ nhớ rồi saveAll (Hibernate gom UPDATE theo batch)
+     */
+    @Transactional
+    public ConsumeResult consumeReservedStockForDocument(Long warehouseId, Long stockLocationId,
+                                                         List<LineReservation> lines) {
+        log.info("Consuming reserved stock for {} document lines at warehouse {} location {}",
+                lines.size(), warehouseId, stockLocationId);
+
+        for (LineReservation line : lines) {
+            if (line.getQuantity() == null || line.getQuantity() <= 0) {
+                throw new RuntimeException("Quantity to consume must be greater than 0");
+            }
+        }
+
+        // 1. Consume trong stock_lots
+        Map<Long, Integer> perLot = sumByLot(lines);
+        Map<Long, StockLot> lotsById = loadLots(perLot.keySet());
+        int totalConsumedFromLots = 0;
+
+        for (Map.Entry<Long, Integer> entry : perLot.entrySet()) {
+            StockLot lot = lotsById.get(entry.getKey());
+            int quantity = entry.getValue();
+
+            if (lot.getReservedQuantity() < quantity) {
+                throw new RuntimeException("Lot " + lot.getLotNumber() + " has insufficient reserved quantity");
+            }
+
+            lot.setReservedQuantity(lot.getReservedQuantity() - quantity);
+            lot.setCurrentQuantity(lot.getCurrentQuantity() - quantity);
+            lot.setAvailableQuantity(lot.getCurrentQuantity() - lot.getReservedQuantity());
+            if (lot.getCurrentQuantity() <= 0) {
+                lot.setStatus(StockLot.LotStatus.DEPLETED);
+            }
+            totalConsumedFromLots += quantity;
+        }
+        stockLotRepository.saveAll(lotsById.values());
+        lotsById.values().forEach(fefoLotIndex::update);
+
+        // 2. Consume trong stock_balance
+        Map<Long, Integer> perProduct = sumByProduct(lines);
+        Map<Long, StockBalance> balances = loadBalances(warehouseId, stockLocationId, perProduct.keySet());
+        List<StockLedgerService.Movement> movements = new ArrayList<>(perProduct.size());
+        int totalConsumed = 0;
+
+        for (Map.Entry<Long, Integer> entry : perProduct.entrySet()) {
+            StockBalance stockBalance = balances.get(entry.getKey());
+            int quantity = entry.getValue();
+
+            if (stockBalance.getReservedQuantity() < quantity) {
+                throw new RuntimeException("Insufficient reserved quantity in stock balance");
+            }
+
+            stockBalance.setQuantity(stockBalance.getQuantity() - quantity);
+            stockBalance.setReservedQuantity(stockBalance.getReservedQuantity() - quantity);
+            stockBalance.setAvailableQuantity(stockBalance.getQuantity() - stockBalance.getReservedQuantity());
+            movements.add(new StockLedgerService.Movement(stockBalance, -quantity,
+                    StockLedgerEntry.MovementType.CONSUME, null));
+            totalConsumed += quantity;
+        }
+        stockBalanceRepository.saveAll(balances.values());
+        stockLedgerService.recordAll(movements);
+        lowStockMonitor.onBalancesChanged(balances.values());
+        stockEventOutbox.appendAll(balances.values());
+
+        log.info("Consumed {} units ({} lots, {} balances) for document lines",
+                totalConsumed, lotsById.size(), balances.size());
+
+        return new ConsumeResult(totalConsumed, totalConsumedFromLots);
+    }
+
+    /**
+     * Release toàn bộ reservation của phiếu xuất khi hủy (thay cho gọi releaseReservation từng dòng)
+     */
+    @Transactional
+    public void releaseReservationsForDocument(Long warehouseId, Long stockLocationId, List<LineReservation> lines) {
+        log.info("Releasing reservations for {} document lines at warehouse {} location {}",
+                lines.size(), warehouseId, stockLocationId);
+
+        // 1. Release trong stock_lots
+        Map<Long, Integer> perLot = sumByLot(lines);
+        Map<Long, StockLot> lotsById = loadLots(perLot.keySet());
+
+        for (Map.Entry<Long, Integer> entry : perLot.entrySet()) {
+            StockLot lot = lotsById.get(entry.getKey());
+            lot.setReservedQuantity(lot.getReservedQuantity() - entry.getValue());
+            lot.setAvailableQuantity(lot.getCurrentQuantity() - lot.getReservedQuantity());
+        }
+        stockLotRepository.saveAll(lotsById.values());
+        lotsById.values().forEach(fefoLotIndex::update);
+
+        // 2. Release trong stock_balance
+        Map<Long, Integer> perProduct = sumByProduct(lines);
+        Map<Long, StockBalance> balances = loadBalances(warehouseId, stockLocationId, perProduct.keySet());
+
+        for (Map.Entry<Long, Integer> entry : perProduct.entrySet()) {
+            StockBalance stockBalance = balances.get(entry.getKey());
+            stockBalance.setReservedQuantity(stockBalance.getReservedQuantity() - entry.getValue());
+            stockBalance.setAvailableQuantity(stockBalance.getQuantity() - stockBalance.getReservedQuantity());
+        }
+        stockBalanceRepository.saveAll(balances.values());
+        lowStockMonitor.onBalancesChanged(balances.values());
+        stockEventOutbox.appendAll(balances.values());
+
+        log.info("Released reservations on {} lots and {} balances", lotsById.size(), balances.size());
+    }
+
+    // Cộng dồn số lượng đã reserve theo lô (một lô có thể xuất hiện ở nhiều dòng)
+    private Map<Long, Integer> sumByLot(List<LineReservation> lines) {
+        Map<Long, Integer> perLot = new LinkedHashMap<>();
+        for (LineReservation line : lines) {
+            for (LotReservation reservation : line.getLotReservations()) {
+                perLot.merge(reservation.getLotId(), reservation.getReservedQuantity(), Integer::sum);
+            }
+        }
+        return perLot;
+    }
+
+    // Cộng dồn số lượng theo sản phẩm
+    private Map<Long, Integer> sumByProduct(List<LineReservation> lines) {
+        Map<Long, Integer> perProduct = new LinkedHashMap<>();
+        for (LineReservation line : lines) {
+            perProduct.merge(line.getProductUnitId(), line.getQuantity(), Integer::sum);
+        }
+        return perProduct;
+    }
+
+    private Map<Long, StockLot> loadLots(Collection<Long> lotIds) {
+        Map<Long, StockLot> lotsById = new HashMap<>();
+        if (lotIds.isEmpty()) return lotsById;
+        for (StockLot lot : stockLotRepository.findAllById(lotIds)) {
+            lotsById.put(lot.getId(), lot);
+        }
+        for (Long lotId : lotIds) {
+            if (!lotsById.containsKey(lotId)) {
+                throw new RuntimeException("Lot not found: " + lotId);
+            }
+        }
+        return lotsById;
+    }
+
+    private Map<Long, StockBalance> loadBalances(Long warehouseId, Long stockLocationId, Collection<Long> productUnitIds) {
+        Map<Long, StockBalance> balances = new HashMap<>();
+        if (productUnitIds.isEmpty()) return balances;
+        for (StockBalance balance : stockBalanceRepository
+                .findByWarehouse_IdAndStockLocation_IdAndProductUnitIdIn(warehouseId, stockLocationId, productUnitIds)) {
+            balances.put(balance.getProductUnitId(), balance);
+        }
+        for (Long productUnitId : productUnitIds) {
+            if (!balances.containsKey(productUnitId)) {
+                throw new RuntimeException("Stock balance not found for product " + productUnitId +
+                        " at warehouse " + warehouseId + " location " + stockLocationId);
+            }
+        }
+        return balances;
+    }
+
     /**
      * Kiểm tra available_quantity trước khi reserve
      */
@@ -223,15 +382,8 @@ public class StockReservationService {
             return false;
         }
 
-        // Kiểm tra từ stock_lots
-        List<StockLot> availableLots = stockLotRepository.findAvailableLotsForFEFO(
-                productUnitId, warehouseId, stockLocationId);
-
-        int totalAvailableFromLots = availableLots.stream()
-                .mapToInt(StockLot::getAvailableQuantity)
-                .sum();
-
-        return totalAvailableFromLots >= requiredQuantity;
+        // Kiểm tra từ stock_lots (qua chỉ mục FEFO)
+        return fefoLotIndex.availableAtLeast(productUnitId, warehouseId, stockLocationId, requiredQuantity) >= requiredQuantity;
     }
 
     /**
@@ -245,12 +397,11 @@ public class StockReservationService {
 
         int availableFromBalance = stockBalance != null ? stockBalance.getAvailableQuantity() : 0;
 
-        // Từ stock_lots
-        List<StockLot> availableLots = stockLotRepository.findAvailableLotsForFEFO(
-                productUnitId, warehouseId, stockLocationId);
+        // Từ stock_lots (qua chỉ mục FEFO)
+        List<FefoLotIndex.LotEntry> availableLots = fefoLotIndex.availableLots(productUnitId, warehouseId, stockLocationId);
 
         int availableFromLots = availableLots.stream()
-                .mapToInt(StockLot::getAvailableQuantity)
+                .mapToInt(e -> e.availableQuantity)
                 .sum();
 
         return new AvailableQuantityInfo(availableFromBalance, availableFromLots, availableLots.size());
@@ -299,6 +450,22 @@ public class StockReservationService {
         public Integer getReservedQuantity() { return reservedQuantity; }
     }
 
+    public static class LineReservation {
+        private final Long productUnitId;
+        private final Integer quantity;
+        private final List<LotReservation> lotReservations;
+
+        public LineReservation(Long productUnitId, Integer quantity, List<LotReservation> lotReservations) {
+            this.productUnitId = productUnitId;
+            this.quantity = quantity;
+            this.lotReservations = lotReservations;
+        }
+
+        public Long getProductUnitId() { return productUnitId; }
+        public Integer getQuantity() { return quantity; }
+        public List<LotReservation> getLotReservations() { return lotReservations; }
+    }
+
     public static class AvailableQuantityInfo {
         private final Integer availableFromBalance;
         private final Integer availableFromLots;
@@ -0,0 +1,52 @@
+package com.smartretail.inventoryservice.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+
+/**
+ * Job cuối ngày: chụp snapshot tồn cho các ngày chưa chụp (mỗi ngày một transaction, bù các ngày bị lỡ
+ * khi service không chạy).
+ * Bảo trì phân vùng sổ cái chạy riêng lúc khởi động và đầu mỗi tháng: tạo sẵn phân vùng cho tháng hiện tại
+ * và các tháng tới để dữ liệu mới không dồn vào pmax.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class StockSnapshotJob {
+
+    // Giới hạn số ngày bù trong một lần chạy để job không chạy quá lâu
+    private static final int MAX_CATCH_UP_DAYS = 62;
+
+    private final StockLedgerService stockLedgerService;
+
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(cron = "${inventory.ledger.partition-cron:0 5 0 1 * *}")
+    public void maintainPartitions() {
+        try {
+            stockLedgerService.ensureLedgerPartitions();
+        } catch (Exception e) {
+            log.warn("Cannot maintain stock_ledger partitions: {}", e.getMessage());
+        }
+    }
+
+    @Scheduled(cron = "${inventory.ledger.snapshot-cron:0 15 0 * * *}")
+    public void run() {
+        LocalDate day = stockLedgerService.nextSnapshotDay();
+        LocalDate yesterday = LocalDate.now().minusDays(1);
+        for (int i = 0; day != null && !day.isAfter(yesterday) && i < MAX_CATCH_UP_DAYS; i++, day = day.plusDays(1)) {
+            try {
+                stockLedgerService.snapshotDay(day);
+            } catch (Exception e) {
+                // Dừng để các ngày sau không được đánh dấu khi còn ngày trước chưa chụp
+                log.error("Stock balance snapshot for {} failed: {}", day, e.getMessage());
+                return;
+            }
+        }
+    }
+}
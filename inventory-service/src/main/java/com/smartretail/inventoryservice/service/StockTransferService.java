@@ -0,0 +1,434 @@
+package com.smartretail.inventoryservice.service;
+
+import com.smartretail.inventoryservice.dto.BatchTransferRequestDto;
+import com.smartretail.inventoryservice.dto.StockTransferDto;
+import com.smartretail.inventoryservice.model.Inventory;
+import com.smartretail.inventoryservice.model.StockBalance;
+import com.smartretail.inventoryservice.model.StockLedgerEntry;
+import com.smartretail.inventoryservice.model.StockLocation;
+import com.smartretail.inventoryservice.model.StockLot;
+import com.smartretail.inventoryservice.model.StockTransfer;
+import com.smartretail.inventoryservice.model.StockTransferDetail;
+import com.smartretail.inventoryservice.model.StockTransferDetailLot;
+import com.smartretail.inventoryservice.model.Warehouse;
+import com.smartretail.inventoryservice.repository.InventoryRepository;
+import com.smartretail.inventoryservice.repository.StockBalanceRepository;
+import com.smartretail.inventoryservice.repository.StockLotRepository;
+import com.smartretail.inventoryservice.repository.StockTransferDetailLotRepository;
+import com.smartretail.inventoryservice.repository.StockTransferDetailRepository;
+import com.smartretail.inventoryservice.repository.StockTransferRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Chuyển kho nhiều dòng trong một transaction.
+ * - Khoá stock_balance và stock_lots của cả phiếu bằng một truy vấn mỗi phía (không truy vấn theo từng dòng)
+ * - Lô được chuyển theo FEFO, lô đích giữ số lô gốc và hạn dùng: "<số lô gốc>@<kho>-<vị trí>"
+ * - Phần tồn không gắn lô (nhập thẳng vào stock_balance) được chuyển theo số lượng
+ * - Thiếu hàng ở bất kỳ dòng nào thì cả phiếu bị huỷ
+ */
+@Service
+@RequiredArgsConstructor
+@Transactional
+@Slf4j
+public class StockTransferService {
+
+    private static final int MAX_LINES = 5000;
+    private static final String LOT_LOCATION_SEPARATOR = "@";
+
+    // Cùng thứ tự với FefoLotIndex: hết hạn sớm trước, lô không có hạn dùng sau cùng
+    private static final Comparator<StockLot> FEFO_ORDER = Comparator
+            .comparing(StockLot::getExpiryDate, Comparator.nullsLast(Comparator.naturalOrder()))
+            .thenComparing(StockLot::getCreatedAt, Comparator.nullsLast(Comparator.naturalOrder()))
+            .thenComparing(StockLot::getId);
+
+    private final StockTransferRepository stockTransferRepository;
+    private final StockTransferDetailRepository stockTransferDetailRepository;
+    private final StockTransferDetailLotRepository stockTransferDetailLotRepository;
+    private final StockBalanceRepository stockBalanceRepository;
+    private final StockLotRepository stockLotRepository;
+    private final InventoryRepository inventoryRepository;
+    private final WarehouseLocationCache warehouseLocationCache;
+    private final FefoLotIndex fefoLotIndex;
+    private final StockLedgerService stockLedgerService;
+    private final LowStockMonitor lowStockMonitor;
+    private final StockEventOutbox stockEventOutbox;
+
+    public StockTransferDto transfer(BatchTransferRequestDto request) {
+        long started = System.nanoTime();
+        if (request.getLines() == null || request.getLines().isEmpty()) {
+            throw new RuntimeException("Transfer must have at least one line");
+        }
+        if (request.getLines().size() > MAX_LINES) {
+            throw new RuntimeException("Transfer cannot exceed " + MAX_LINES + " lines");
+        }
+        if (request.getSourceStockLocationId().equals(request.getDestinationStockLocationId())
+                && request.getSourceWarehouseId().equals(request.getDestinationWarehouseId())) {
+            throw new RuntimeException("Source and destination location must be different");
+        }
+
+        Warehouse fromWarehouse = findWarehouse(request.getSourceWarehouseId());
+        StockLocation fromLocation = findLocation(request.getSourceStockLocationId(), fromWarehouse.getId());
+        Warehouse toWarehouse = findWarehouse(request.getDestinationWarehouseId());
+        StockLocation toLocation = findLocation(request.getDestinationStockLocationId(), toWarehouse.getId());
+
+        // Gộp các dòng cùng sản phẩm
+        Map<Long, Integer> quantityByUnit = new LinkedHashMap<>();
+        Map<Long, String> noteByUnit = new HashMap<>();
+        for (BatchTransferRequestDto.Line line : request.getLines()) {
+            if (line.getProductUnitId() == null || line.getQuantity() == null || line.getQuantity() <= 0) {
+                throw new RuntimeException("Each line requires productUnitId and quantity greater than 0");
+            }
+            quantityByUnit.merge(line.getProductUnitId(), line.getQuantity(), Integer::sum);
+            if (line.getNote() != null) noteByUnit.putIfAbsent(line.getProductUnitId(), line.getNote());
+        }
+
+        String transferNumber = request.getTransferNumber() != null && !request.getTransferNumber().isBlank()
+                ? request.getTransferNumber() : "TRF-" + System.currentTimeMillis();
+        if (stockTransferRepository.existsByTransferNumber(transferNumber)) {
+            throw new RuntimeException("Transfer number already exists: " + transferNumber);
+        }
+        LocalDateTime now = LocalDateTime.now();
+
+        // 1. Khoá và kiểm tra tồn khả dụng ở nguồn cho toàn bộ phiếu
+        Map<Long, StockBalance> sourceBalances = byProduct(stockBalanceRepository.findForUpdate(
+                fromWarehouse.getId(), fromLocation.getId(), quantityByUnit.keySet()));
+        List<String> shortages = new ArrayList<>();
+        quantityByUnit.forEach((productUnitId, quantity) -> {
+            StockBalance balance = sourceBalances.get(productUnitId);
+            int available = balance != null && balance.getAvailableQuantity() != null ? balance.getAvailableQuantity() : 0;
+            if (available < quantity) {
+                shortages.add("ProductUnitId " + productUnitId + ": yêu cầu " + quantity + ", còn " + available);
+            }
+        });
+        if (!shortages.isEmpty()) {
+            throw new RuntimeException("Không đủ tồn kho để chuyển (" + shortages.size() + " dòng): " +
+                    String.join("; ", shortages.subList(0, Math.min(shortages.size(), 20))));
+        }
+
+        // 2. Phân bổ lô nguồn theo FEFO
+        Map<Long, List<StockLot>> sourceLots = new HashMap<>();
+        for (StockLot lot : stockLotRepository.findAvailableForUpdate(
+                fromWarehouse.getId(), fromLocation.getId(), quantityByUnit.keySet())) {
+            sourceLots.computeIfAbsent(lot.getProductUnitId(), k -> new ArrayList<>()).add(lot);
+        }
+        Map<Long, List<LotMove>> movesByUnit = new HashMap<>();
+        Set<String> destinationNumbers = new HashSet<>();
+        quantityByUnit.forEach((productUnitId, quantity) -> {
+            List<StockLot> lots = sourceLots.getOrDefault(productUnitId, new ArrayList<>());
+            lots.sort(FEFO_ORDER);
+            int remaining = quantity;
+            List<LotMove> moves = new ArrayList<>();
+            for (StockLot lot : lots) {
+                if (remaining <= 0) break;
+                int take = Math.min(remaining, lot.getCurrentQuantity() - lot.getReservedQuantity());
+                if (take <= 0) continue;
+                String base = baseLotNumber(lot.getLotNumber());
+                moves.add(new LotMove(lot, take, base));
+                destinationNumbers.add(base);
+                destinationNumbers.add(destinationLotNumber(base, toWarehouse.getId(), toLocation.getId()));
+                remaining -= take;
+            }
+            movesByUnit.put(productUnitId, moves);
+        });
+
+        // 3. Trừ lô nguồn, cộng vào lô đích cùng số lô gốc (tra toàn bộ số lô đích trong một truy vấn)
+        Map<String, StockLot> destinationLots = new HashMap<>();
+        if (!destinationNumbers.isEmpty()) {
+            for (StockLot lot : stockLotRepository.findByLotNumberInForUpdate(destinationNumbers)) {
+                destinationLots.put(lot.getLotNumber(), lot);
+            }
+        }
+        Map<Long, StockLot> changedLots = new LinkedHashMap<>();
+        List<StockLot> createdLots = new ArrayList<>();
+        for (Map.Entry<Long, List<LotMove>> entry : movesByUnit.entrySet()) {
+            for (LotMove move : entry.getValue()) {
+                StockLot source = move.sourceLot;
+                source.consumeQuantity(move.quantity);
+                source.setUpdatedAt(now);
+                changedLots.put(source.getId(), source);
+
+                StockLot target = resolveDestinationLot(destinationLots, move, toWarehouse.getId(), toLocation.getId());
+                if (target == null) {
+                    target = StockLot.builder()
+                            .lotNumber(destinationLotNumber(move.baseLotNumber, toWarehouse.getId(), toLocation.getId()))
+                            .productUnitId(source.getProductUnitId())
+                            .warehouseId(toWarehouse.getId())
+                            .stockLocationId(toLocation.getId())
+                            .expiryDate(source.getExpiryDate())
+                            .manufacturingDate(source.getManufacturingDate())
+                            .supplierName(source.getSupplierName())
+                            .supplierBatchNumber(source.getSupplierBatchNumber())
+                            .initialQuantity(move.quantity)
+                            .currentQuantity(move.quantity)
+                            .reservedQuantity(0)
+                            .availableQuantity(move.quantity)
+                            .status(StockLot.LotStatus.ACTIVE)
+                            .note("Chuyển từ lô " + source.getLotNumber() + " (" + transferNumber + ")")
+                            .build();
+                    destinationLots.put(target.getLotNumber(), target);
+                    createdLots.add(target);
+                } else {
+                    target.setCurrentQuantity(target.getCurrentQuantity() + move.quantity);
+                    target.setInitialQuantity(target.getInitialQuantity() + move.quantity);
+                    target.setAvailableQuantity(target.getCurrentQuantity() - target.getReservedQuantity());
+                    if (target.getStatus() == StockLot.LotStatus.DEPLETED) {
+                        target.setStatus(StockLot.LotStatus.ACTIVE);
+                    }
+                    target.setUpdatedAt(now);
+                    if (target.getId() != null) changedLots.put(target.getId(), target);
+                }
+                move.destinationLot = target;
+            }
+        }
+        stockLotRepository.saveAll(changedLots.values());
+        stockLotRepository.saveAll(createdLots);
+        changedLots.values().forEach(fefoLotIndex::update);
+        createdLots.forEach(fefoLotIndex::update);
+
+        // 4. Cập nhật stock_balance hai phía (khoá phía đích, tạo dòng còn thiếu)
+        Map<Long, StockBalance> destinationBalances = byProduct(stockBalanceRepository.findForUpdate(
+                toWarehouse.getId(), toLocation.getId(), quantityByUnit.keySet()));
+        List<StockBalance> changedBalances = new ArrayList<>(quantityByUnit.size() * 2);
+        List<StockLedgerService.Movement> movements = new ArrayList<>(quantityByUnit.size() * 2);
+        for (Map.Entry<Long, Integer> entry : quantityByUnit.entrySet()) {
+            Long productUnitId = entry.getKey();
+            int quantity = entry.getValue();
+
+            StockBalance source = sourceBalances.get(productUnitId);
+            source.setQuantity(source.getQuantity() - quantity);
+            source.setAvailableQuantity(source.getQuantity() - source.getReservedQuantity());
+            source.setLastUpdatedAt(now);
+
+            StockBalance target = destinationBalances.get(productUnitId);
+            if (target == null) {
+                target = new StockBalance();
+                target.setProductUnitId(productUnitId);
+                target.setWarehouse(toWarehouse);
+                target.setStockLocation(toLocation);
+                target.setQuantity(0);
+                target.setReservedQuantity(0);
+            }
+            target.setQuantity(target.getQuantity() + quantity);
+            target.setAvailableQuantity(target.getQuantity() - target.getReservedQuantity());
+            target.setLastUpdatedAt(now);
+
+            changedBalances.add(source);
+            changedBalances.add(target);
+            movements.add(new StockLedgerService.Movement(source, -quantity,
+                    StockLedgerEntry.MovementType.TRANSFER, transferNumber));
+            movements.add(new StockLedgerService.Movement(target, quantity,
+                    StockLedgerEntry.MovementType.TRANSFER, transferNumber));
+        }
+        stockBalanceRepository.saveAll(changedBalances);
+        stockLedgerService.recordAll(movements);
+        lowStockMonitor.onBalancesChanged(changedBalances);
+        stockEventOutbox.appendAll(changedBalances);
+
+        // 5. Giao dịch kho: EXPORT ở nguồn, IMPORT ở đích cho từng sản phẩm
+        LocalDateTime transactionDate = request.getTransactionDate() != null ? request.getTransactionDate() : now;
+        String note = request.getNote() != null ? request.getNote() : "";
+        List<Inventory> inventories = new ArrayList<>(quantityByUnit.size() * 2);
+        quantityByUnit.forEach((productUnitId, quantity) -> {
+            inventories.add(inventory(Inventory.TransactionType.EXPORT, productUnitId, quantity, transactionDate,
+                    "Xuất chuyển kho: " + note, transferNumber, fromWarehouse, fromLocation));
+            inventories.add(inventory(Inventory.TransactionType.IMPORT, productUnitId, quantity, transactionDate,
+                    "Nhập chuyển kho: " + note, transferNumber, toWarehouse, toLocation));
+        });
+        inventoryRepository.saveAll(inventories);
+
+        // 6. Phiếu chuyển kho, chi tiết và lô đã chuyển
+        StockTransfer transfer = new StockTransfer();
+        transfer.setTransferNumber(transferNumber);
+        transfer.setFromWarehouse(fromWarehouse);
+        transfer.setFromStockLocation(fromLocation);
+        transfer.setToWarehouse(toWarehouse);
+        transfer.setToStockLocation(toLocation);
+        transfer.setStatus(StockTransfer.TransferStatus.COMPLETED);
+        transfer.setNote(request.getNote());
+        transfer.setTransferDate(transactionDate);
+        transfer.setCompletedDate(now);
+        stockTransferRepository.save(transfer);
+
+        List<StockTransferDetail> details = new ArrayList<>(quantityByUnit.size());
+        quantityByUnit.forEach((productUnitId, quantity) -> {
+            StockTransferDetail detail = new StockTransferDetail();
+            detail.setStockTransfer(transfer);
+            detail.setProductUnitId(productUnitId);
+            detail.setQuantity(quantity);
+            detail.setTransferredQuantity(quantity);
+            detail.setNote(noteByUnit.get(productUnitId));
+            details.add(detail);
+        });
+        stockTransferDetailRepository.saveAll(details);
+
+        List<StockTransferDetailLot> lotRows = new ArrayList<>();
+        for (StockTransferDetail detail : details) {
+            for (LotMove move : movesByUnit.get(detail.getProductUnitId())) {
+                lotRows.add(StockTransferDetailLot.builder()
+                        .transferDetailId(detail.getId())
+                        .sourceLotId(move.sourceLot.getId())
+                        .destinationLotId(move.destinationLot.getId())
+                        .lotNumber(move.baseLotNumber)
+                        .expiryDate(move.sourceLot.getExpiryDate())
+                        .quantity(move.quantity)
+                        .build());
+            }
+        }
+        stockTransferDetailLotRepository.saveAll(lotRows);
+
+        long elapsedMs = (System.nanoTime() - started) / 1_000_000;
+        log.info("Transfer {} completed: {} lines, {} lot moves, {} ms ({} lines/s)",
+                transferNumber, details.size(), lotRows.size(), elapsedMs,
+                elapsedMs > 0 ? details.size() * 1000L / elapsedMs : details.size());
+
+        return toDto(transfer, details, lotRows);
+    }
+
+    @Transactional(readOnly = true)
+    public StockTransferDto getTransfer(Long id) {
+        StockTransfer transfer = stockTransferRepository.findById(id)
+                .orElseThrow(() -> new RuntimeException("Stock transfer not found with id: " + id));
+        List<StockTransferDetail> details = stockTransferDetailRepository.findByStockTransfer_Id(id);
+        List<Long> detailIds = details.stream().map(StockTransferDetail::getId).toList();
+        List<StockTransferDetailLot> lotRows = detailIds.isEmpty()
+                ? List.of() : stockTransferDetailLotRepository.findByTransferDetailIdIn(detailIds);
+        return toDto(transfer, details, lotRows);
+    }
+
+    // Lô đích: ưu tiên lô gốc nếu đang nằm ở vị trí đích (hàng quay về), sau đó là lô đã chuyển tới trước đây
+    private StockLot resolveDestinationLot(Map<String, StockLot> destinationLots, LotMove move,
+                                           Long warehouseId, Long stockLocationId) {
+        Long productUnitId = move.sourceLot.getProductUnitId();
+        StockLot original = destinationLots.get(move.baseLotNumber);
+        if (original != null && isAt(original, productUnitId, warehouseId, stockLocationId)) {
+            return original;
+        }
+        String number = destinationLotNumber(move.baseLotNumber, warehouseId, stockLocationId);
+        StockLot previous = destinationLots.get(number);
+        if (previous != null && !isAt(previous, productUnitId, warehouseId, stockLocationId)) {
+            throw new RuntimeException("Số lô '" + number + "' đã được sử dụng cho sản phẩm khác (ProductUnitId: "
+                    + previous.getProductUnitId() + ")");
+        }
+        return previous;
+    }
+
+    private static boolean isAt(StockLot lot, Long productUnitId, Long warehouseId, Long stockLocationId) {
+        return lot.getProductUnitId().equals(productUnitId)
+                && lot.getWarehouseId().equals(warehouseId)
+                && lot.getStockLocationId().equals(stockLocationId);
+    }
+
+    private static String baseLotNumber(String lotNumber) {
+        int separator = lotNumber.indexOf(LOT_LOCATION_SEPARATOR);
+        return separator > 0 ? lotNumber.substring(0, separator) : lotNumber;
+    }
+
+    private static String destinationLotNumber(String baseLotNumber, Long warehouseId, Long stockLocationId) {
+        return baseLotNumber + LOT_LOCATION_SEPARATOR + warehouseId + "-" + stockLocationId;
+    }
+
+    private static Map<Long, StockBalance> byProduct(List<StockBalance> balances) {
+        Map<Long, StockBalance> result = new HashMap<>(balances.size() * 2);
+        for (StockBalance balance : balances) {
+            result.put(balance.getProductUnitId(), balance);
+        }
+        return result;
+    }
+
+    private static Inventory inventory(Inventory.TransactionType type, Long productUnitId, int quantity,
+                                       LocalDateTime transactionDate, String note, String referenceNumber,
+                                       Warehouse warehouse, StockLocation stockLocation) {
+        Inventory inventory = new Inventory();
+        inventory.setTransactionType(type);
+        inventory.setQuantity(quantity);
+        inventory.setTransactionDate(transactionDate);
+        inventory.setNote(note);
+        inventory.setReferenceNumber(referenceNumber);
+        inventory.setProductUnitId(productUnitId);
+        inventory.setWarehouse(warehouse);
+        inventory.setStockLocation(stockLocation);
+        return inventory;
+    }
+
+    private Warehouse findWarehouse(Long id) {
+        return warehouseLocationCache.warehouseRef(id);
+    }
+
+    private StockLocation findLocation(Long id, Long warehouseId) {
+        WarehouseLocationCache.LocationInfo location = warehouseLocationCache.getLocation(id);
+        if (location != null && location.warehouseId != null && !location.warehouseId.equals(warehouseId)) {
+            throw new RuntimeException("Stock location " + id + " does not belong to warehouse " + warehouseId);
+        }
+        return warehouseLocationCache.locationRef(id);
+    }
+
+    private static StockTransferDto toDto(StockTransfer transfer, List<StockTransferDetail> details,
+                                          List<StockTransferDetailLot> lotRows) {
+        Map<Long, List<StockTransferDto.LotMove>> lotsByDetail = new HashMap<>();
+        for (StockTransferDetailLot row : lotRows) {
+            lotsByDetail.computeIfAbsent(row.getTransferDetailId(), k -> new ArrayList<>())
+                    .add(StockTransferDto.LotMove.builder()
+                            .sourceLotId(row.getSourceLotId())
+                            .destinationLotId(row.getDestinationLotId())
+                            .lotNumber(row.getLotNumber())
+                            .expiryDate(row.getExpiryDate())
+                            .quantity(row.getQuantity())
+                            .build());
+        }
+        int total = 0;
+        List<StockTransferDto.Line> lines = new ArrayList<>(details.size());
+        for (StockTransferDetail detail : details) {
+            List<StockTransferDto.LotMove> lots = lotsByDetail.getOrDefault(detail.getId(), List.of());
+            int fromLots = lots.stream().mapToInt(StockTransferDto.LotMove::getQuantity).sum();
+            lines.add(StockTransferDto.Line.builder()
+                    .productUnitId(detail.getProductUnitId())
+                    .quantity(detail.getQuantity())
+                    .transferredQuantity(detail.getTransferredQuantity())
+                    .untrackedQuantity(detail.getQuantity() - fromLots)
+                    .note(detail.getNote())
+                    .lots(lots)
+                    .build());
+            total += detail.getQuantity();
+        }
+        return StockTransferDto.builder()
+                .id(transfer.getId())
+                .transferNumber(transfer.getTransferNumber())
+                .status(transfer.getStatus())
+                .fromWarehouseId(transfer.getFromWarehouse().getId())
+                .fromStockLocationId(transfer.getFromStockLocation().getId())
+                .toWarehouseId(transfer.getToWarehouse().getId())
+                .toStockLocationId(transfer.getToStockLocation().getId())
+                .transferDate(transfer.getTransferDate())
+                .completedDate(transfer.getCompletedDate())
+                .note(transfer.getNote())
+                .totalQuantity(total)
+                .lines(lines)
+                .build();
+    }
+
+    private static class LotMove {
+        private final StockLot sourceLot;
+        private final int quantity;
+        private final String baseLotNumber;
+        private StockLot destinationLot;
+
+        private LotMove(StockLot sourceLot, int quantity, String baseLotNumber) {
+            this.sourceLot = sourceLot;
+            this.quantity = quantity;
+            this.baseLotNumber = baseLotNumber;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.smartretail.inventoryservice.service;
+
+import com.smartretail.inventoryservice.dto.StocktakingDetailDto;
+import com.smartretail.inventoryservice.dto.StocktakingDto;
+import com.smartretail.inventoryservice.model.StocktakingDetail;
+import com.smartretail.inventoryservice.repository.StocktakingDetailRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Xuất phiếu kiểm kê ra Excel theo kiểu streaming (SXSSF):
+ * chỉ giữ ROW_WINDOW dòng trong bộ nhớ, chi tiết đọc theo lô CHUNK_SIZE dòng,
+ * tên sản phẩm/đơn vị của mỗi lô lấy một lần qua ProductUnitCache.
+ * Độ rộng cột cố định thay cho autoSizeColumn (vốn phải đo mọi ô).
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class StocktakingExportService {
+
+    private static final int ROW_WINDOW = 200;
+    private static final int CHUNK_SIZE = 500;
+    // Độ rộng cột tính theo số ký tự (POI nhận đơn vị 1/256 ký tự nên nhân 256 khi đặt)
+    private static final int[] COLUMN_WIDTHS = {8, 45, 15, 15, 15, 15, 40};
+
+    private final StocktakingService stocktakingService;
+    private final StocktakingDetailRepository stocktakingDetailRepository;
+
+    public void writeExcel(StocktakingDto st, OutputStream out) throws IOException {
+        SXSSFWorkbook workbook = new SXSSFWorkbook(ROW_WINDOW);
+        workbook.setCompressTempFiles(true);
+        try {
+            Sheet sheet = workbook.createSheet("Stocktaking");
+            for (int c = 0; c < COLUMN_WIDTHS.length; c++) {
+                sheet.setColumnWidth(c, COLUMN_WIDTHS[c] * 256);
+            }
+
+            int r = writeHeader(sheet, st);
+            int idx = 1;
+            long afterId = 0L;
+            while (true) {
+                List<StocktakingDetail> page = stocktakingDetailRepository.findByStocktaking_IdAndIdGreaterThanOrderByIdAsc(
+                        st.getId(), afterId, PageRequest.of(0, CHUNK_SIZE));
+                if (page.isEmpty()) break;
+
+                for (StocktakingDetailDto d : stocktakingService.toDetailDtoList(page)) {
+                    Row row = sheet.createRow(r++);
+                    row.createCell(0).setCellValue(idx++);
+                    row.createCell(1).setCellValue(d.getProductName() != null ? d.getProductName() : "");
+                    row.createCell(2).setCellValue(d.getUnitName() != null ? d.getUnitName() : "");
+                    row.createCell(3).setCellValue(d.getSystemQuantity() != null ? d.getSystemQuantity() : 0);
+                    row.createCell(4).setCellValue(d.getActualQuantity() != null ? d.getActualQuantity() : 0);
+                    row.createCell(5).setCellValue(d.getDifferenceQuantity() != null ? d.getDifferenceQuantity() : 0);
+                    row.createCell(6).setCellValue(d.getNote() != null ? d.getNote() : "");
+                }
+                afterId = page.get(page.size() - 1).getId();
+                if (page.size() < CHUNK_SIZE) break;
+            }
+
+            workbook.write(out);
+            out.flush();
+            log.debug("Exported stocktaking {} with {} lines", st.getId(), idx - 1);
+        } finally {
+            // Xoá các file tạm mà SXSSF dùng để đẩy dòng ra đĩa
+            workbook.dispose();
+            workbook.close();
+        }
+    }
+
+    private int writeHeader(Sheet sheet, StocktakingDto st) {
+        int r = 0;
+        Row title = sheet.createRow(r++);
+        title.createCell(0).setCellValue("Phiếu kiểm kê");
+
+        Row meta1 = sheet.createRow(r++);
+        meta1.createCell(0).setCellValue("Số phiếu");
+        meta1.createCell(1).setCellValue(st.getStocktakingNumber());
+        meta1.createCell(3).setCellValue("Trạng thái");
+        meta1.createCell(4).setCellValue(st.getStatus());
+
+        Row meta2 = sheet.createRow(r++);
+        meta2.createCell(0).setCellValue("Kho");
+        meta2.createCell(1).setCellValue(st.getWarehouseId() != null ? st.getWarehouseId() : 0);
+        meta2.createCell(3).setCellValue("Vị trí");
+        meta2.createCell(4).setCellValue(st.getStockLocationId() != null ? st.getStockLocationId() : 0);
+
+        Row meta3 = sheet.createRow(r++);
+        meta3.createCell(0).setCellValue("Ngày kiểm kê");
+        meta3.createCell(1).setCellValue(st.getStocktakingDate() != null ? st.getStocktakingDate().toString() : "");
+        meta3.createCell(3).setCellValue("Ngày hoàn tất");
+        meta3.createCell(4).setCellValue(st.getCompletedDate() != null ? st.getCompletedDate().toString() : "");
+
+        Row meta4 = sheet.createRow(r++);
+        meta4.createCell(0).setCellValue("Người tạo");
+        meta4.createCell(1).setCellValue(st.getCreatedBy() != null ? st.getCreatedBy().toString() : (st.getCreatedByUsername() != null ? st.getCreatedByUsername() : ""));
+
+        Row meta5 = sheet.createRow(r++);
+        meta5.createCell(0).setCellValue("Ghi chú");
+        meta5.createCell(1).setCellValue(st.getNote() != null ? st.getNote() : "");
+
+        r++;
+        Row header = sheet.createRow(r++);
+        header.createCell(0).setCellValue("#");
+        header.createCell(1).setCellValue("Sản phẩm");
+        header.createCell(2).setCellValue("Đơn vị");
+        header.createCell(3).setCellValue("Tồn hệ thống");
+        header.createCell(4).setCellValue("Thực tế");
+        header.createCell(5).setCellValue("Chênh lệch");
+        header.createCell(6).setCellValue("Ghi chú");
+        return r;
+    }
+}
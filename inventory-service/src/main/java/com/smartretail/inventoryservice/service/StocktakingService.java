@@ -1,20 +1,35 @@
 package com.smartretail.inventoryservice.service;
 
+import com.smartretail.inventoryservice.model.StockBalance;
+import com.smartretail.inventoryservice.model.StockDocument;
+import com.smartretail.inventoryservice.model.StockLedgerEntry;
 import com.smartretail.inventoryservice.model.StockLocation;
+import com.smartretail.inventoryservice.model.StockLot;
 import com.smartretail.inventoryservice.model.Stocktaking;
 import com.smartretail.inventoryservice.model.StocktakingDetail;
 import com.smartretail.inventoryservice.model.Warehouse;
-import com.smartretail.inventoryservice.repository.StockLocationRepository;
+import com.smartretail.inventoryservice.repository.StockBalanceRepository;
+import com.smartretail.inventoryservice.repository.StockDocumentRepository;
+import com.smartretail.inventoryservice.repository.StockLotRepository;
 import com.smartretail.inventoryservice.repository.StocktakingDetailRepository;
 import com.smartretail.inventoryservice.repository.StocktakingRepository;
-import com.smartretail.inventoryservice.repository.WarehouseRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
 
 @Service
@@ -25,20 +40,36 @@ public class StocktakingService {
 
     private final StocktakingRepository stocktakingRepository;
     private final StocktakingDetailRepository stocktakingDetailRepository;
-    private final WarehouseRepository warehouseRepository;
-    private final StockLocationRepository stockLocationRepository;
-    private final StockDocumentService stockDocumentService;
-    private final com.smartretail.inventoryservice.client.ProductServiceClient productServiceClient;
+    private final WarehouseLocationCache warehouseLocationCache;
+    private final StockDocumentRepository stockDocumentRepository;
+    private final ProductUnitCache productUnitCache;
+    private final JdbcTemplate jdbcTemplate;
+    private final StockBalanceRepository stockBalanceRepository;
+    private final StockLotRepository stockLotRepository;
+    private final FefoLotIndex fefoLotIndex;
+    private final StockLedgerService stockLedgerService;
+    private final LowStockMonitor lowStockMonitor;
+    private final StockEventOutbox stockEventOutbox;
+
+    private static final int COUNT_BATCH_SIZE = 1000;
+    private static final String ADJUSTMENT_SUPPLIER = "Stocktaking Adjustment";
+    // Cùng thứ tự với FefoLotIndex: hết hạn sớm trước, lô không có hạn dùng sau cùng
+    private static final Comparator<StockLot> FEFO_ORDER = Comparator
+            .comparing(StockLot::getExpiryDate, Comparator.nullsLast(Comparator.naturalOrder()))
+            .thenComparing(StockLot::getCreatedAt, Comparator.nullsLast(Comparator.naturalOrder()))
+            .thenComparing(StockLot::getId);
+    // Trang mới nhất trước, id để thứ tự ổn định khi trùng ngày
+    private static final org.springframework.data.domain.Sort LIST_SORT = org.springframework.data.domain.Sort.by(
+            org.springframework.data.domain.Sort.Order.desc("stocktakingDate"),
+            org.springframework.data.domain.Sort.Order.desc("id"));
 
     // Tạo phiếu kiểm kê
     public Stocktaking createStocktaking(LocalDateTime stocktakingDate, Long warehouseId, Long stockLocationId, String note, Long createdBy, String createdByUsername) {
-        Warehouse warehouse = warehouseRepository.findById(warehouseId)
-                .orElseThrow(() -> new RuntimeException("Warehouse not found with id: " + warehouseId));
+        Warehouse warehouse = warehouseLocationCache.warehouseRef(warehouseId);
         if (stockLocationId == null) {
             throw new RuntimeException("Stock location is required for stocktaking");
         }
-        StockLocation stockLocation = stockLocationRepository.findById(stockLocationId)
-                .orElseThrow(() -> new RuntimeException("Stock location not found with id: " + stockLocationId));
+        StockLocation stockLocation = warehouseLocationCache.locationRef(stockLocationId);
 
         Stocktaking st = new Stocktaking();
         st.setWarehouse(warehouse);
@@ -52,6 +83,87 @@ public class StocktakingService {
         return stocktakingRepository.save(st);
     }
 
+    /**
+     * Chụp tồn hệ thống của cả kho/vị trí tại thời điểm đóng băng bằng một câu INSERT ... SELECT
+     * từ stock_balance, thay cho việc client gửi systemQuantity từng sản phẩm. Trả về số dòng đã tạo.
+     */
+    public int snapshot(Long stocktakingId) {
+        Stocktaking st = stocktakingRepository.findById(stocktakingId)
+                .orElseThrow(() -> new RuntimeException("Stocktaking not found with id: " + stocktakingId));
+        if (st.getStatus() != Stocktaking.StocktakingStatus.IN_PROGRESS && st.getStatus() != Stocktaking.StocktakingStatus.PENDING) {
+            throw new RuntimeException("Only PENDING or IN_PROGRESS stocktaking can be snapshotted");
+        }
+        if (st.getStockLocation() == null) {
+            throw new RuntimeException("Stock location is required for stocktaking");
+        }
+        if (stocktakingDetailRepository.countByStocktaking_Id(stocktakingId) > 0) {
+            throw new RuntimeException("Stocktaking already has details");
+        }
+
+        int lines = stocktakingDetailRepository.snapshotFromStockBalance(
+                st.getId(), st.getWarehouse().getId(), st.getStockLocation().getId());
+        st.setSnapshotAt(LocalDateTime.now());
+        stocktakingRepository.save(st);
+        log.info("Stocktaking {} snapshot captured {} lines", st.getStocktakingNumber(), lines);
+        return lines;
+    }
+
+    /**
+     * Ghi số lượng đếm thực tế hàng loạt cho phiếu đã snapshot (JDBC batch, COUNT_BATCH_SIZE dòng mỗi lần).
+     * Sản phẩm đếm được nhưng không có trong snapshot được thêm mới với tồn hệ thống = 0.
+     */
+    public CountResult applyCounts(Long stocktakingId, List<com.smartretail.inventoryservice.dto.StocktakingDetailDto> counts) {
+        Stocktaking st = stocktakingRepository.findById(stocktakingId)
+                .orElseThrow(() -> new RuntimeException("Stocktaking not found with id: " + stocktakingId));
+        if (st.getSnapshotAt() == null) {
+            throw new RuntimeException("Stocktaking has no snapshot. Create a snapshot before entering counts.");
+        }
+        if (st.getStatus() != Stocktaking.StocktakingStatus.IN_PROGRESS && st.getStatus() != Stocktaking.StocktakingStatus.PENDING) {
+            throw new RuntimeException("Counts can only be entered for PENDING or IN_PROGRESS stocktaking");
+        }
+
+        // Gộp theo productUnitId (dòng sau ghi đè dòng trước)
+        java.util.Map<Long, com.smartretail.inventoryservice.dto.StocktakingDetailDto> byUnit = new java.util.LinkedHashMap<>();
+        for (com.smartretail.inventoryservice.dto.StocktakingDetailDto c : counts) {
+            if (c.getProductUnitId() == null || c.getActualQuantity() == null || c.getActualQuantity() < 0) {
+                throw new RuntimeException("Each count requires productUnitId and a non-negative actualQuantity");
+            }
+            byUnit.put(c.getProductUnitId(), c);
+        }
+
+        java.util.Set<Long> existing = new java.util.HashSet<>(stocktakingDetailRepository.findProductUnitIds(stocktakingId));
+        List<com.smartretail.inventoryservice.dto.StocktakingDetailDto> updates = new java.util.ArrayList<>();
+        List<com.smartretail.inventoryservice.dto.StocktakingDetailDto> inserts = new java.util.ArrayList<>();
+        for (com.smartretail.inventoryservice.dto.StocktakingDetailDto c : byUnit.values()) {
+            (existing.contains(c.getProductUnitId()) ? updates : inserts).add(c);
+        }
+
+        jdbcTemplate.batchUpdate(
+                "UPDATE stocktaking_details SET actual_quantity = ?, note = COALESCE(?, note) " +
+                        "WHERE stocktaking_id = ? AND product_unit_id = ?",
+                updates, COUNT_BATCH_SIZE, (ps, c) -> {
+                    ps.setInt(1, c.getActualQuantity());
+                    ps.setString(2, c.getNote());
+                    ps.setLong(3, stocktakingId);
+                    ps.setLong(4, c.getProductUnitId());
+                });
+        jdbcTemplate.batchUpdate(
+                "INSERT INTO stocktaking_details (stocktaking_id, product_unit_id, system_quantity, actual_quantity, note) " +
+                        "VALUES (?, ?, 0, ?, ?)",
+                inserts, COUNT_BATCH_SIZE, (ps, c) -> {
+                    ps.setLong(1, stocktakingId);
+                    ps.setLong(2, c.getProductUnitId());
+                    ps.setInt(3, c.getActualQuantity());
+                    ps.setString(4, c.getNote());
+                });
+
+        if (st.getStatus() == Stocktaking.StocktakingStatus.PENDING) {
+            st.setStatus(Stocktaking.StocktakingStatus.IN_PROGRESS);
+            stocktakingRepository.save(st);
+        }
+        return new CountResult(updates.size(), inserts.size());
+    }
+
     // Thêm/ghi chi tiết kiểm kê (một dòng sản phẩm) - lưu ngay vào DB
     public StocktakingDetail upsertDetail(Long stocktakingId, Long productUnitId, Integer systemQty, Integer actualQty, String note) {
         Stocktaking st = stocktakingRepository.findById(stocktakingId)
@@ -95,6 +207,12 @@ public class StocktakingService {
         Stocktaking st = stocktakingRepository.findById(stocktakingId)
                 .orElseThrow(() -> new RuntimeException("Stocktaking not found with id: " + stocktakingId));
 
+        // Phiếu đã snapshot: tính chênh lệch bằng SQL thay vì nạp từng chi tiết
+        if (st.getSnapshotAt() != null) {
+            confirmSnapshot(st);
+            return;
+        }
+
         List<StocktakingDetail> details = stocktakingDetailRepository.findByStocktaking(st);
         if (details.isEmpty()) {
             throw new RuntimeException("No stocktaking details to confirm. Send details in payload or add details first.");
@@ -120,162 +238,260 @@ public class StocktakingService {
         stocktakingRepository.save(st);
     }
 
-    // Tạo phiếu nhập/xuất cho các sản phẩm có chênh lệch trong kiểm kê
-    private void createStockDocumentsForAdjustments(Stocktaking st, List<com.smartretail.inventoryservice.dto.StocktakingDetailDto> detailsPayload) {
-        try {
-            log.info("Creating stock documents for stocktaking adjustments: {}", st.getStocktakingNumber());
-
-            // Phân loại sản phẩm theo chênh lệch
-            List<com.smartretail.inventoryservice.dto.StocktakingDetailDto> importItems = new java.util.ArrayList<>();
-            List<com.smartretail.inventoryservice.dto.StocktakingDetailDto> exportItems = new java.util.ArrayList<>();
-
-            for (com.smartretail.inventoryservice.dto.StocktakingDetailDto p : detailsPayload) {
-                int systemQty = p.getSystemQuantity() != null ? p.getSystemQuantity() : 0;
-                int actualQty = p.getActualQuantity() != null ? p.getActualQuantity() : 0;
-                int diff = actualQty - systemQty;
-
-                if (diff > 0) {
-                    // Thừa hàng -> Tạo phiếu NHẬP
-                    importItems.add(p);
-                } else if (diff < 0) {
-                    // Thiếu hàng -> Tạo phiếu XUẤT
-                    exportItems.add(p);
-                }
-                // diff == 0: Không có chênh lệch, bỏ qua
-            }
+    private void confirmSnapshot(Stocktaking st) {
+        if (st.getStatus() == Stocktaking.StocktakingStatus.CONFIRMED || st.getStatus() == Stocktaking.StocktakingStatus.COMPLETED
+                || st.getStatus() == Stocktaking.StocktakingStatus.CANCELLED) {
+            throw new RuntimeException("Stocktaking is already " + st.getStatus());
+        }
+        stocktakingDetailRepository.computeVariances(st.getId());
+        long uncounted = stocktakingDetailRepository.countByStocktaking_IdAndActualQuantityIsNull(st.getId());
+        if (uncounted > 0) {
+            // Dòng chưa đếm không được coi là 0 để tránh xuất hết tồn do quên nhập
+            log.info("Stocktaking {}: {} lines were not counted and are left unchanged", st.getStocktakingNumber(), uncounted);
+        }
 
-            // Tạo phiếu NHẬP nếu có sản phẩm thừa
-            if (!importItems.isEmpty()) {
-                createInboundDocumentForAdjustments(st, importItems);
-            }
+        List<com.smartretail.inventoryservice.dto.StocktakingDetailDto> variances = stocktakingDetailRepository
+                .findVariances(st.getId())
+                .stream()
+                .map(v -> {
+                    com.smartretail.inventoryservice.dto.StocktakingDetailDto dto = new com.smartretail.inventoryservice.dto.StocktakingDetailDto();
+                    dto.setProductUnitId(v.getProductUnitId());
+                    dto.setSystemQuantity(v.getSystemQuantity());
+                    dto.setActualQuantity(v.getActualQuantity());
+                    return dto;
+                })
+                .collect(Collectors.toList());
 
-            // Tạo phiếu XUẤT nếu có sản phẩm thiếu
-            if (!exportItems.isEmpty()) {
-                createOutboundDocumentForAdjustments(st, exportItems);
-            }
+        createStockDocumentsForAdjustments(st, variances);
 
-            log.info("Successfully created stock documents for stocktaking: {}", st.getStocktakingNumber());
-        } catch (Exception e) {
-            log.error("Failed to create stock documents for stocktaking {}: {}", st.getStocktakingNumber(), e.getMessage());
-            throw new RuntimeException("Failed to create stock documents for stocktaking adjustments: " + e.getMessage(), e);
-        }
+        st.setStatus(Stocktaking.StocktakingStatus.CONFIRMED);
+        st.setCompletedDate(LocalDateTime.now());
+        stocktakingRepository.save(st);
     }
 
-    // Tạo phiếu NHẬP cho các sản phẩm thừa
-    private void createInboundDocumentForAdjustments(Stocktaking st, List<com.smartretail.inventoryservice.dto.StocktakingDetailDto> importItems) {
-        try {
-            log.info("Creating inbound document for {} import items", importItems.size());
-
-            // Tạo phiếu nhập
-            com.smartretail.inventoryservice.dto.StockDocumentDto inboundDoc = new com.smartretail.inventoryservice.dto.StockDocumentDto();
-            inboundDoc.type = "INBOUND";
-            inboundDoc.warehouseId = st.getWarehouse().getId();
-            inboundDoc.stockLocationId = st.getStockLocation().getId();
-            inboundDoc.referenceNumber = st.getStocktakingNumber() + "-IN";
-            inboundDoc.note = "Phiếu nhập điều chỉnh từ kiểm kê: " + st.getStocktakingNumber();
-
-            com.smartretail.inventoryservice.dto.StockDocumentDto createdDoc = stockDocumentService.create(inboundDoc);
-            log.info("Created inbound document ID: {}", createdDoc.id);
-
-            // Thêm sản phẩm vào phiếu nhập
-            List<com.smartretail.inventoryservice.dto.StockDocumentDto.Line> lines = new java.util.ArrayList<>();
-            for (com.smartretail.inventoryservice.dto.StocktakingDetailDto item : importItems) {
-                int systemQty = item.getSystemQuantity() != null ? item.getSystemQuantity() : 0;
-                int actualQty = item.getActualQuantity() != null ? item.getActualQuantity() : 0;
-                int diff = actualQty - systemQty;
-
-                com.smartretail.inventoryservice.dto.StockDocumentDto.Line line = new com.smartretail.inventoryservice.dto.StockDocumentDto.Line();
-                line.productUnitId = item.getProductUnitId();
-                line.quantity = diff;
-                lines.add(line);
+    /**
+     * Điều chỉnh tồn theo chênh lệch kiểm kê cho cả phiếu trong một lượt (thay cho phiếu nhập/xuất duyệt từng dòng).
+     * - Khoá stock_balance và lô còn hàng theo nhóm COUNT_BATCH_SIZE sản phẩm; thiếu hàng ở bất kỳ dòng nào thì huỷ cả phiếu
+     * - Thừa: mỗi sản phẩm một lô điều chỉnh mới; thiếu: trừ lô theo FEFO, không đụng phần đã giữ chỗ
+     * - Lô, stock_balance, sổ cái (ADJUST), giao dịch kho và dòng phiếu nhập/xuất đã duyệt được ghi theo batch
+     */
+    private void createStockDocumentsForAdjustments(Stocktaking st, List<com.smartretail.inventoryservice.dto.StocktakingDetailDto> detailsPayload) {
+        Long warehouseId = st.getWarehouse().getId();
+        Long stockLocationId = st.getStockLocation().getId();
+
+        // Chênh lệch theo sản phẩm, sắp theo productUnitId để các giao dịch khoá cùng thứ tự
+        Map<Long, Integer> diffByUnit = new TreeMap<>();
+        for (com.smartretail.inventoryservice.dto.StocktakingDetailDto p : detailsPayload) {
+            int systemQty = p.getSystemQuantity() != null ? p.getSystemQuantity() : 0;
+            int actualQty = p.getActualQuantity() != null ? p.getActualQuantity() : 0;
+            diffByUnit.merge(p.getProductUnitId(), actualQty - systemQty, Integer::sum);
+        }
+        diffByUnit.values().removeIf(diff -> diff == 0);
+        if (diffByUnit.isEmpty()) return;
+        log.info("Applying {} stocktaking adjustments for {}", diffByUnit.size(), st.getStocktakingNumber());
+
+        LocalDateTime now = LocalDateTime.now();
+        List<Long> productUnitIds = new ArrayList<>(diffByUnit.keySet());
+        List<StockBalance> changedBalances = new ArrayList<>(productUnitIds.size());
+        List<StockLot> changedLots = new ArrayList<>();
+        List<StockLedgerService.Movement> movements = new ArrayList<>(productUnitIds.size());
+        List<String> shortages = new ArrayList<>();
+
+        for (int from = 0; from < productUnitIds.size(); from += COUNT_BATCH_SIZE) {
+            List<Long> chunk = productUnitIds.subList(from, Math.min(from + COUNT_BATCH_SIZE, productUnitIds.size()));
+            Map<Long, StockBalance> balances = new HashMap<>();
+            for (StockBalance balance : stockBalanceRepository.findForUpdate(warehouseId, stockLocationId, chunk)) {
+                balances.put(balance.getProductUnitId(), balance);
+            }
+            List<Long> shortIds = chunk.stream().filter(id -> diffByUnit.get(id) < 0).collect(Collectors.toList());
+            Map<Long, List<StockLot>> lotsByUnit = new HashMap<>();
+            if (!shortIds.isEmpty()) {
+                for (StockLot lot : stockLotRepository.findAvailableForUpdate(warehouseId, stockLocationId, shortIds)) {
+                    lotsByUnit.computeIfAbsent(lot.getProductUnitId(), k -> new ArrayList<>()).add(lot);
+                }
             }
 
-            // Thêm tất cả sản phẩm vào phiếu nhập
-            stockDocumentService.addLinesBulk(createdDoc.id, lines);
-
-            // Duyệt phiếu nhập để tạo inventory transactions
-            try {
-                log.info("Attempting to approve inbound document ID: {}", createdDoc.id);
-                stockDocumentService.approve(createdDoc.id);
-                log.info("Successfully approved inbound document ID: {}", createdDoc.id);
-            } catch (Exception e) {
-                log.error("Failed to approve inbound document ID {}: {}", createdDoc.id, e.getMessage());
-                e.printStackTrace();
-                throw new RuntimeException("Failed to approve inbound document: " + e.getMessage(), e);
+            for (Long productUnitId : chunk) {
+                int diff = diffByUnit.get(productUnitId);
+                StockBalance balance = balances.get(productUnitId);
+                if (diff < 0) {
+                    List<StockLot> lots = lotsByUnit.getOrDefault(productUnitId, new ArrayList<>());
+                    int fromLots = lots.stream().mapToInt(l -> l.getCurrentQuantity() - l.getReservedQuantity()).sum();
+                    int fromBalance = balance != null ? balance.getQuantity() - balance.getReservedQuantity() : 0;
+                    int available = Math.min(fromLots, fromBalance);
+                    if (available < -diff) {
+                        shortages.add("ProductUnitId " + productUnitId + ": cần xuất " + (-diff) + ", còn " + available);
+                        continue;
+                    }
+                    lots.sort(FEFO_ORDER);
+                    int remaining = -diff;
+                    for (StockLot lot : lots) {
+                        if (remaining <= 0) break;
+                        int take = Math.min(remaining, lot.getCurrentQuantity() - lot.getReservedQuantity());
+                        if (take <= 0) continue;
+                        lot.consumeQuantity(take);
+                        lot.setUpdatedAt(now);
+                        changedLots.add(lot);
+                        remaining -= take;
+                    }
+                } else if (balance == null) {
+                    // Sản phẩm đếm được nhưng chưa có tồn tại vị trí này
+                    balance = new StockBalance();
+                    balance.setProductUnitId(productUnitId);
+                    balance.setWarehouse(warehouseLocationCache.warehouseRef(warehouseId));
+                    balance.setStockLocation(warehouseLocationCache.locationRef(stockLocationId));
+                    balance.setQuantity(0);
+                    balance.setReservedQuantity(0);
+                }
+                balance.setQuantity(balance.getQuantity() + diff);
+                balance.setAvailableQuantity(balance.getQuantity() - balance.getReservedQuantity());
+                balance.setLastUpdatedAt(now);
+                changedBalances.add(balance);
+                movements.add(new StockLedgerService.Movement(balance, diff,
+                        StockLedgerEntry.MovementType.ADJUST, st.getStocktakingNumber()));
             }
+        }
+        if (!shortages.isEmpty()) {
+            throw new RuntimeException("Số sản phẩm yêu cầu vượt quá số lượng trong kho (" + shortages.size() + " dòng): " +
+                    String.join("; ", shortages.subList(0, Math.min(shortages.size(), 20))));
+        }
 
-            log.info("Successfully created and approved inbound document ID: {}", createdDoc.id);
-        } catch (Exception e) {
-            log.error("Failed to create inbound document for stocktaking: {}", e.getMessage());
-            throw e;
+        Map<Long, Integer> surplus = new LinkedHashMap<>();
+        Map<Long, Integer> shortage = new LinkedHashMap<>();
+        diffByUnit.forEach((productUnitId, diff) -> {
+            if (diff > 0) surplus.put(productUnitId, diff);
+            else shortage.put(productUnitId, -diff);
+        });
+
+        stockLotRepository.saveAll(changedLots);
+        changedLots.forEach(fefoLotIndex::update);
+        String inboundReference = st.getStocktakingNumber() + "-IN";
+        insertAdjustmentLots(st, inboundReference, surplus, now);
+        surplus.keySet().forEach(id -> fefoLotIndex.evictChanged(id, warehouseId, stockLocationId));
+
+        stockBalanceRepository.saveAll(changedBalances);
+        stockLedgerService.recordAll(movements);
+        lowStockMonitor.onBalancesChanged(changedBalances);
+        stockEventOutbox.appendAll(changedBalances);
+
+        if (!surplus.isEmpty()) {
+            StockDocument inbound = saveApprovedDocument(st, StockDocument.DocumentType.INBOUND, inboundReference,
+                    "Phiếu nhập điều chỉnh từ kiểm kê: " + st.getStocktakingNumber(), now);
+            insertDocumentLines(inbound.getId(), surplus, inboundReference, now.toLocalDate());
+            insertInboundTransactions(st, inbound, surplus, now);
+        }
+        if (!shortage.isEmpty()) {
+            StockDocument outbound = saveApprovedDocument(st, StockDocument.DocumentType.OUTBOUND,
+                    st.getStocktakingNumber() + "-OUT", "Phiếu xuất điều chỉnh từ kiểm kê: " + st.getStocktakingNumber(), now);
+            insertDocumentLines(outbound.getId(), shortage, null, null);
         }
+        log.info("Stocktaking {} adjusted {} products ({} surplus, {} shortage, {} lots consumed)",
+                st.getStocktakingNumber(), diffByUnit.size(), surplus.size(), shortage.size(), changedLots.size());
     }
 
-    // Tạo phiếu XUẤT cho các sản phẩm thiếu
-    private void createOutboundDocumentForAdjustments(Stocktaking st, List<com.smartretail.inventoryservice.dto.StocktakingDetailDto> exportItems) {
-        try {
-            log.info("Creating outbound document for {} export items", exportItems.size());
-
-            // Tạo phiếu xuất
-            com.smartretail.inventoryservice.dto.StockDocumentDto outboundDoc = new com.smartretail.inventoryservice.dto.StockDocumentDto();
-            outboundDoc.type = "OUTBOUND";
-            outboundDoc.warehouseId = st.getWarehouse().getId();
-            outboundDoc.stockLocationId = st.getStockLocation().getId();
-            outboundDoc.referenceNumber = st.getStocktakingNumber() + "-OUT";
-            outboundDoc.note = "Phiếu xuất điều chỉnh từ kiểm kê: " + st.getStocktakingNumber();
-
-            com.smartretail.inventoryservice.dto.StockDocumentDto createdDoc = stockDocumentService.create(outboundDoc);
-            log.info("Created outbound document ID: {}", createdDoc.id);
-
-            // Thêm sản phẩm vào phiếu xuất
-            List<com.smartretail.inventoryservice.dto.StockDocumentDto.Line> lines = new java.util.ArrayList<>();
-            for (com.smartretail.inventoryservice.dto.StocktakingDetailDto item : exportItems) {
-                int systemQty = item.getSystemQuantity() != null ? item.getSystemQuantity() : 0;
-                int actualQty = item.getActualQuantity() != null ? item.getActualQuantity() : 0;
-                int diff = Math.abs(actualQty - systemQty);
-
-                com.smartretail.inventoryservice.dto.StockDocumentDto.Line line = new com.smartretail.inventoryservice.dto.StockDocumentDto.Line();
-                line.productUnitId = item.getProductUnitId();
-                line.quantity = diff;
-                lines.add(line);
-            }
+    // Mỗi sản phẩm thừa một lô mới (số lô, hạn dùng mặc định như khi duyệt phiếu nhập điều chỉnh)
+    private void insertAdjustmentLots(Stocktaking st, String reference, Map<Long, Integer> surplus, LocalDateTime now) {
+        if (surplus.isEmpty()) return;
+        Long warehouseId = st.getWarehouse().getId();
+        Long stockLocationId = st.getStockLocation().getId();
+        Timestamp createdAt = Timestamp.valueOf(now);
+        Date manufacturingDate = Date.valueOf(now.toLocalDate());
+        Date expiryDate = Date.valueOf(now.toLocalDate().plusYears(1));
+        jdbcTemplate.batchUpdate(
+                "INSERT INTO stock_lots (lot_number, product_unit_id, warehouse_id, stock_location_id, expiry_date, " +
+                        "manufacturing_date, supplier_name, initial_quantity, current_quantity, reserved_quantity, " +
+                        "available_quantity, status, created_at, note) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, 0, ?, 'ACTIVE', ?, ?)",
+                new ArrayList<>(surplus.entrySet()), COUNT_BATCH_SIZE, (ps, e) -> {
+                    ps.setString(1, adjustmentLotNumber(reference, e.getKey()));
+                    ps.setLong(2, e.getKey());
+                    ps.setLong(3, warehouseId);
+                    ps.setLong(4, stockLocationId);
+                    ps.setDate(5, expiryDate);
+                    ps.setDate(6, manufacturingDate);
+                    ps.setString(7, ADJUSTMENT_SUPPLIER);
+                    ps.setInt(8, e.getValue());
+                    ps.setInt(9, e.getValue());
+                    ps.setInt(10, e.getValue());
+                    ps.setTimestamp(11, createdAt);
+                    ps.setString(12, "Điều chỉnh từ kiểm kê: " + st.getStocktakingNumber());
+                });
+    }
 
-            // Thêm tất cả sản phẩm vào phiếu xuất
-            stockDocumentService.addLinesBulk(createdDoc.id, lines);
-
-            // Duyệt phiếu xuất để tạo inventory transactions
-            try {
-                log.info("Attempting to approve outbound document ID: {}", createdDoc.id);
-                stockDocumentService.approve(createdDoc.id);
-                log.info("Successfully approved outbound document ID: {}", createdDoc.id);
-            } catch (Exception e) {
-                log.error("Failed to approve outbound document ID {}: {}", createdDoc.id, e.getMessage());
-                e.printStackTrace();
-                throw new RuntimeException("Failed to approve outbound document: " + e.getMessage(), e);
-            }
+    private StockDocument saveApprovedDocument(Stocktaking st, StockDocument.DocumentType type, String reference,
+                                               String note, LocalDateTime now) {
+        StockDocument doc = new StockDocument();
+        doc.setType(type);
+        doc.setStatus(StockDocument.DocumentStatus.APPROVED);
+        doc.setWarehouseId(st.getWarehouse().getId());
+        doc.setStockLocationId(st.getStockLocation().getId());
+        doc.setReferenceNumber(reference);
+        doc.setNote(note);
+        doc.setApprovedAt(now);
+        return stockDocumentRepository.save(doc);
+    }
 
-            log.info("Successfully created and approved outbound document ID: {}", createdDoc.id);
-        } catch (Exception e) {
-            log.error("Failed to create outbound document for stocktaking: {}", e.getMessage());
-            throw e;
-        }
+    // Dòng phiếu để giữ lịch sử; phiếu nhập kèm số lô điều chỉnh đã tạo (reference null với phiếu xuất)
+    private void insertDocumentLines(Long documentId, Map<Long, Integer> quantities, String reference, LocalDate day) {
+        jdbcTemplate.batchUpdate(
+                "INSERT INTO stock_document_lines (document_id, product_unit_id, quantity, lot_number, expiry_date, " +
+                        "manufacturing_date, supplier_name) VALUES (?, ?, ?, ?, ?, ?, ?)",
+                new ArrayList<>(quantities.entrySet()), COUNT_BATCH_SIZE, (ps, e) -> {
+                    ps.setLong(1, documentId);
+                    ps.setLong(2, e.getKey());
+                    ps.setInt(3, e.getValue());
+                    ps.setString(4, reference != null ? adjustmentLotNumber(reference, e.getKey()) : null);
+                    ps.setDate(5, day != null ? Date.valueOf(day.plusYears(1)) : null);
+                    ps.setDate(6, day != null ? Date.valueOf(day) : null);
+                    ps.setString(7, reference != null ? ADJUSTMENT_SUPPLIER : null);
+                });
+    }
+
+    // Giao dịch nhập kho cho phần thừa (như khi duyệt phiếu nhập điều chỉnh)
+    private void insertInboundTransactions(Stocktaking st, StockDocument inbound, Map<Long, Integer> surplus, LocalDateTime now) {
+        Timestamp at = Timestamp.valueOf(now);
+        jdbcTemplate.batchUpdate(
+                "INSERT INTO inventory (transaction_type, quantity, transaction_date, note, reference_number, " +
+                        "product_unit_id, stock_location_id, warehouse_id, created_at) VALUES ('IMPORT', ?, ?, ?, ?, ?, ?, ?, ?)",
+                new ArrayList<>(surplus.entrySet()), COUNT_BATCH_SIZE, (ps, e) -> {
+                    ps.setInt(1, e.getValue());
+                    ps.setTimestamp(2, at);
+                    ps.setString(3, "From document " + inbound.getId());
+                    ps.setString(4, inbound.getReferenceNumber());
+                    ps.setLong(5, e.getKey());
+                    ps.setLong(6, st.getStockLocation().getId());
+                    ps.setLong(7, st.getWarehouse().getId());
+                    ps.setTimestamp(8, at);
+                });
+    }
+
+    private static String adjustmentLotNumber(String reference, Long productUnitId) {
+        return "STOCKTAKING-" + reference + "-" + productUnitId;
     }
 
     // Danh sách phiếu kiểm kê (lọc tùy chọn)
     public List<Stocktaking> listStocktakings(Long warehouseId, Long stockLocationId, String status) {
-        List<Stocktaking> all = stocktakingRepository.findAll();
-        return all.stream()
-                .filter(st -> warehouseId == null || (st.getWarehouse() != null && st.getWarehouse().getId().equals(warehouseId)))
-                .filter(st -> stockLocationId == null || (st.getStockLocation() != null && st.getStockLocation().getId().equals(stockLocationId)))
-                .filter(st -> {
-                    if (status == null) return true;
-                    try {
-                        return st.getStatus() == Stocktaking.StocktakingStatus.valueOf(status.toUpperCase());
-                    } catch (IllegalArgumentException ex) {
-                        return true;
-                    }
-                })
-                .collect(Collectors.toList());
+        // Giữ thứ tự cũ (theo id) cho danh sách không phân trang
+        return stocktakingRepository.findAll(
+                StocktakingRepository.filter(warehouseId, stockLocationId, parseStatus(status)),
+                org.springframework.data.domain.Sort.by("id"));
+    }
+
+    // Danh sách phiếu kiểm kê có phân trang, lọc ở DB
+    public org.springframework.data.domain.Page<Stocktaking> listStocktakings(Long warehouseId, Long stockLocationId, String status,
+                                                                              int page, int size) {
+        return stocktakingRepository.findAll(
+                StocktakingRepository.filter(warehouseId, stockLocationId, parseStatus(status)),
+                org.springframework.data.domain.PageRequest.of(page, size, LIST_SORT));
+    }
+
+    // Trạng thái không hợp lệ thì bỏ qua bộ lọc (giữ hành vi cũ)
+    private Stocktaking.StocktakingStatus parseStatus(String status) {
+        if (status == null) return null;
+        try {
+            return Stocktaking.StocktakingStatus.valueOf(status.toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
     }
 
     // Lấy phiếu kiểm kê theo ID
@@ -290,8 +506,28 @@ public class StocktakingService {
         return stocktakingDetailRepository.findByStocktaking(st);
     }
 
+    // Lấy chi tiết của phiếu theo trang (sắp theo id)
+    public org.springframework.data.domain.Page<StocktakingDetail> getDetailsByStocktakingId(Long id, int page, int size) {
+        getStocktakingById(id);
+        return stocktakingDetailRepository.findByStocktaking_Id(id,
+                org.springframework.data.domain.PageRequest.of(page, size, org.springframework.data.domain.Sort.by("id")));
+    }
+
     // Map Detail Entity -> DTO
     public com.smartretail.inventoryservice.dto.StocktakingDetailDto toDetailDto(StocktakingDetail d) {
+        return toDetailDto(d, productUnitCache.get(d.getProductUnitId()));
+    }
+
+    // Tên sản phẩm/đơn vị của cả danh sách lấy từ cache, các đơn vị chưa có được nạp bằng gọi bulk
+    public java.util.List<com.smartretail.inventoryservice.dto.StocktakingDetailDto> toDetailDtoList(java.util.List<StocktakingDetail> items) {
+        java.util.Map<Long, ProductUnitCache.UnitInfo> units = productUnitCache.getAll(
+                items.stream().map(StocktakingDetail::getProductUnitId).distinct().collect(Collectors.toList()));
+        return items.stream()
+                .map(d -> toDetailDto(d, units.get(d.getProductUnitId())))
+                .collect(Collectors.toList());
+    }
+
+    private com.smartretail.inventoryservice.dto.StocktakingDetailDto toDetailDto(StocktakingDetail d, ProductUnitCache.UnitInfo unit) {
         com.smartretail.inventoryservice.dto.StocktakingDetailDto dto = new com.smartretail.inventoryservice.dto.StocktakingDetailDto();
         dto.setId(d.getId());
         dto.setProductUnitId(d.getProductUnitId());
@@ -299,36 +535,13 @@ public class StocktakingService {
         dto.setActualQuantity(d.getActualQuantity());
         dto.setDifferenceQuantity(d.getDifferenceQuantity());
         dto.setNote(d.getNote());
-        try {
-            var pu = productServiceClient.getProductUnitById(d.getProductUnitId());
-            if (pu != null) {
-                // Ưu tiên lấy trực tiếp nếu response có sẵn tên
-                if (pu.getUnitName() != null) {
-                    dto.setUnitName(pu.getUnitName());
-                } else if (pu.getUnitId() != null) {
-                    var unit = productServiceClient.getUnitById(pu.getUnitId());
-                    if (unit != null) {
-                        dto.setUnitName(unit.getName());
-                    }
-                }
-
-                if (pu.getProductName() != null) {
-                    dto.setProductName(pu.getProductName());
-                } else if (pu.getProductId() != null) {
-                    var product = productServiceClient.getProductById(pu.getProductId());
-                    if (product != null) {
-                        dto.setProductName(product.getName());
-                    }
-                }
-            }
-        } catch (Exception ignore) { }
+        if (unit != null) {
+            dto.setUnitName(unit.unitName);
+            dto.setProductName(unit.productName);
+        }
         return dto;
     }
 
-    public java.util.List<com.smartretail.inventoryservice.dto.StocktakingDetailDto> toDetailDtoList(java.util.List<StocktakingDetail> items) {
-        return items.stream().map(this::toDetailDto).collect(java.util.stream.Collectors.toList());
-    }
-
     // Xóa phiếu kiểm kê (chỉ cho phép khi chưa CONFIRMED)
     public void deleteStocktaking(Long id) {
         Stocktaking st = getStocktakingById(id);
@@ -353,6 +566,7 @@ public class StocktakingService {
         dto.setStatus(st.getStatus() != null ? st.getStatus().name() : null);
         dto.setStocktakingDate(st.getStocktakingDate());
         dto.setCompletedDate(st.getCompletedDate());
+        dto.setSnapshotAt(st.getSnapshotAt());
         dto.setNote(st.getNote());
         dto.setCreatedBy(st.getCreatedBy());
         dto.setCreatedByUsername(st.getCreatedByUsername());
@@ -410,6 +624,12 @@ public class StocktakingService {
 
         return toDto(saved);
     }
-}
-
 
+    // Kết quả ghi số lượng đếm hàng loạt
+    @lombok.Data
+    @lombok.AllArgsConstructor
+    public static class CountResult {
+        private int updated;
+        private int inserted;
+    }
+}
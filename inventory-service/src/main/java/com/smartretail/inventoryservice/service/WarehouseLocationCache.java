@@ -0,0 +1,185 @@
+package com.smartretail.inventoryservice.service;
+
+import com.smartretail.inventoryservice.model.StockLocation;
+import com.smartretail.inventoryservice.model.Warehouse;
+import com.smartretail.inventoryservice.repository.StockLocationRepository;
+import com.smartretail.inventoryservice.repository.WarehouseRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache đọc xuyên (read-through) cho kho và vị trí kho, dữ liệu tham chiếu ít thay đổi.
+ * - Ghi nghiệp vụ lấy tham chiếu (getReferenceById) sau khi kiểm tra tồn tại qua cache, không SELECT lại entity
+ * - Map DTO đọc tên từ cache thay vì chạm vào proxy lazy của StockBalance/Inventory
+ * - WarehouseService/StockLocationService gọi invalidate khi tạo/sửa/xoá (bỏ kho thì bỏ luôn các vị trí của kho);
+ *   bỏ lần nữa sau khi transaction kết thúc
+ *   để không giữ giá trị cũ bị nạp lại trong lúc transaction chưa commit
+ * - Thay đổi ở instance khác: nạp lại toàn bộ theo chu kỳ (inventory.warehouse-cache.refresh-ms, mặc định 5 phút)
+ *   hoặc gọi /api/inventory/cache/warehouses/invalidate trên từng instance
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class WarehouseLocationCache {
+
+    private final WarehouseRepository warehouseRepository;
+    private final StockLocationRepository stockLocationRepository;
+
+    private final Map<Long, WarehouseInfo> warehouses = new ConcurrentHashMap<>();
+    private final Map<Long, LocationInfo> locations = new ConcurrentHashMap<>();
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        try {
+            refreshAll();
+        } catch (Exception e) {
+            log.warn("Warehouse cache warm-up failed, falling back to lazy loading: {}", e.getMessage());
+        }
+    }
+
+    @Scheduled(initialDelayString = "${inventory.warehouse-cache.refresh-ms:300000}",
+               fixedDelayString = "${inventory.warehouse-cache.refresh-ms:300000}")
+    public void periodicRefresh() {
+        try {
+            refreshAll();
+        } catch (Exception e) {
+            log.warn("Periodic warehouse cache refresh failed, keeping cached values: {}", e.getMessage());
+        }
+    }
+
+    // Nạp lại toàn bộ kho và vị trí; bản ghi đã bị xoá khỏi DB thì bỏ khỏi cache. Trả về số kho + vị trí đã nạp
+    public int refreshAll() {
+        Set<Long> warehouseIds = new HashSet<>();
+        for (Warehouse w : warehouseRepository.findAll()) {
+            warehouses.put(w.getId(), new WarehouseInfo(w));
+            warehouseIds.add(w.getId());
+        }
+        Set<Long> locationIds = new HashSet<>();
+        for (StockLocation l : stockLocationRepository.findAll()) {
+            locations.put(l.getId(), new LocationInfo(l));
+            locationIds.add(l.getId());
+        }
+        warehouses.keySet().retainAll(warehouseIds);
+        locations.keySet().retainAll(locationIds);
+        log.info("Warehouse cache loaded: {} warehouses, {} locations", warehouseIds.size(), locationIds.size());
+        return warehouseIds.size() + locationIds.size();
+    }
+
+    // null nếu không tồn tại (không cache kết quả không tìm thấy)
+    public WarehouseInfo getWarehouse(Long id) {
+        if (id == null) return null;
+        WarehouseInfo cached = warehouses.get(id);
+        if (cached != null) return cached;
+        return warehouseRepository.findById(id)
+                .map(w -> {
+                    WarehouseInfo info = new WarehouseInfo(w);
+                    warehouses.put(id, info);
+                    return info;
+                })
+                .orElse(null);
+    }
+
+    public LocationInfo getLocation(Long id) {
+        if (id == null) return null;
+        LocationInfo cached = locations.get(id);
+        if (cached != null) return cached;
+        return stockLocationRepository.findById(id)
+                .map(l -> {
+                    LocationInfo info = new LocationInfo(l);
+                    locations.put(id, info);
+                    return info;
+                })
+                .orElse(null);
+    }
+
+    // Tham chiếu để gán vào quan hệ @ManyToOne, ném lỗi như findById(...).orElseThrow trước đây
+    public Warehouse warehouseRef(Long id) {
+        if (getWarehouse(id) == null) {
+            throw new RuntimeException("Warehouse not found with id: " + id);
+        }
+        return warehouseRepository.getReferenceById(id);
+    }
+
+    public StockLocation locationRef(Long id) {
+        if (getLocation(id) == null) {
+            throw new RuntimeException("Stock location not found with id: " + id);
+        }
+        return stockLocationRepository.getReferenceById(id);
+    }
+
+    public String warehouseName(Long id) {
+        WarehouseInfo info = getWarehouse(id);
+        return info != null ? info.name : null;
+    }
+
+    public String locationName(Long id) {
+        LocationInfo info = getLocation(id);
+        return info != null ? info.name : null;
+    }
+
+    // Bỏ cả các vị trí thuộc kho để tham chiếu vị trí không còn dựa trên trạng thái kho cũ (ví dụ kho đã xoá)
+    public void invalidateWarehouse(Long id) {
+        if (id == null) return;
+        evictWarehouse(id);
+        afterCompletion(() -> evictWarehouse(id));
+    }
+
+    private void evictWarehouse(Long id) {
+        warehouses.remove(id);
+        locations.values().removeIf(l -> id.equals(l.warehouseId));
+    }
+
+    public void invalidateLocation(Long id) {
+        if (id == null) return;
+        locations.remove(id);
+        afterCompletion(() -> locations.remove(id));
+    }
+
+    private static void afterCompletion(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) return;
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                action.run();
+            }
+        });
+    }
+
+    public static class WarehouseInfo {
+        public final Long id;
+        public final String name;
+        public final boolean active;
+
+        private WarehouseInfo(Warehouse warehouse) {
+            this.id = warehouse.getId();
+            this.name = warehouse.getName();
+            this.active = Boolean.TRUE.equals(warehouse.getActive());
+        }
+    }
+
+    public static class LocationInfo {
+        public final Long id;
+        public final String name;
+        // Lấy id từ proxy, không nạp Warehouse
+        public final Long warehouseId;
+        public final boolean active;
+
+        private LocationInfo(StockLocation location) {
+            this.id = location.getId();
+            this.name = location.getName();
+            this.warehouseId = location.getWarehouse() != null ? location.getWarehouse().getId() : null;
+            this.active = Boolean.TRUE.equals(location.getActive());
+        }
+    }
+}
@@ -16,6 +16,7 @@ import java.util.stream.Collectors;
 public class WarehouseService {
 
     private final WarehouseRepository warehouseRepository;
+    private final WarehouseLocationCache warehouseLocationCache;
 
     public WarehouseDto createWarehouse(WarehouseDto warehouseDto) {
         if (warehouseRepository.existsByName(warehouseDto.getName())) {
@@ -68,6 +69,7 @@ public class WarehouseService {
         warehouse.setActive(warehouseDto.getActive());
 
         Warehouse updatedWarehouse = warehouseRepository.save(warehouse);
+        warehouseLocationCache.invalidateWarehouse(id);
         return convertToDto(updatedWarehouse);
     }
 
@@ -80,6 +82,7 @@ public class WarehouseService {
 
         warehouse.setActive(false);
         warehouseRepository.save(warehouse);
+        warehouseLocationCache.invalidateWarehouse(id);
     }
 
     public List<WarehouseDto> searchWarehouses(String keyword) {
@@ -0,0 +1,16 @@
+-- Phân vùng stock_ledger theo tháng (period_month = yyyyMM). Chạy một lần sau khi Hibernate đã tạo bảng.
+-- MySQL yêu cầu khoá phân vùng nằm trong mọi khoá duy nhất nên khoá chính đổi thành (id, period_month).
+-- Ranh giới lấy theo tháng hiện tại lúc chạy script: dữ liệu cũ vào p_history, còn lại vào pmax.
+-- Bước bảo trì phân vùng (StockSnapshotJob.maintainPartitions, lúc khởi động và đầu mỗi tháng) tách pmax
+-- thành phân vùng cho tháng hiện tại và các tháng tới.
+
+ALTER TABLE stock_ledger DROP PRIMARY KEY, ADD PRIMARY KEY (id, period_month);
+
+SET @current_period = CAST(DATE_FORMAT(CURDATE(), '%Y%m') AS UNSIGNED);
+SET @partition_sql = CONCAT(
+    'ALTER TABLE stock_ledger PARTITION BY RANGE (period_month) (',
+    'PARTITION p_history VALUES LESS THAN (', @current_period, '), ',
+    'PARTITION pmax VALUES LESS THAN MAXVALUE)');
+PREPARE partition_stmt FROM @partition_sql;
+EXECUTE partition_stmt;
+DEALLOCATE PREPARE partition_stmt;
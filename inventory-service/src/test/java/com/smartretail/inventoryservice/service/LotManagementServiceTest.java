@@ -0,0 +1,209 @@
+package com.smartretail.inventoryservice.service;
+
+import com.smartretail.inventoryservice.model.StockBalance;
+import com.smartretail.inventoryservice.model.StockLocation;
+import com.smartretail.inventoryservice.model.StockLot;
+import com.smartretail.inventoryservice.model.Warehouse;
+import com.smartretail.inventoryservice.repository.StockBalanceRepository;
+import com.smartretail.inventoryservice.repository.StockLotRepository;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+
+import java.lang.reflect.Proxy;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Hai lượt hết hạn lô chạy cùng lúc (job định kỳ và API, hoặc hai instance) trên cùng các lô.
+ * Khoá dòng của DB được giả lập bằng một khoá giữ từ findActiveByIdInForUpdate đến khi lượt đó "commit".
+ */
+class LotManagementServiceTest {
+
+    private static final LocalDate TODAY = LocalDate.of(2026, 10, 19);
+    private static final long WAREHOUSE_ID = 1L;
+    private static final long LOCATION_ID = 2L;
+
+    private final Map<Long, StockLot> lots = new ConcurrentHashMap<>();
+    private final Map<Long, StockBalance> balances = new ConcurrentHashMap<>();
+    private final ReentrantLock rowLocks = new ReentrantLock();
+    private final AtomicInteger ledgerRows = new AtomicInteger();
+    private final AtomicInteger markedExpired = new AtomicInteger();
+
+    @Test
+    void concurrentExpiryPassesDeductStockOnce() throws Exception {
+        lot(11L, 100L, 30);
+        lot(12L, 100L, 20);
+        lot(13L, 200L, 15);
+        balance(100L, 80, 10);
+        balance(200L, 15, 0);
+
+        // Cả hai lượt đọc danh sách id (không khoá) trước khi lượt nào khoá lô
+        CountDownLatch bothListed = new CountDownLatch(2);
+        LotManagementService service = service(bothListed);
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<?>> passes = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                passes.add(pool.submit(() -> {
+                    try {
+                        service.expireLotsChunk(TODAY, 100);
+                    } finally {
+                        commit();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> pass : passes) {
+                pass.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        // 50 khả dụng hết hạn nhưng chỉ 70 chưa giữ chỗ: trừ 50 một lần
+        assertEquals(30, balances.get(100L).getQuantity());
+        assertEquals(20, balances.get(100L).getAvailableQuantity());
+        assertEquals(0, balances.get(200L).getQuantity());
+        assertEquals(2, ledgerRows.get());
+        assertEquals(3, markedExpired.get());
+        assertTrue(lots.values().stream().allMatch(l -> l.getStatus() == StockLot.LotStatus.EXPIRED));
+    }
+
+    @Test
+    void reservedStockIsNotWrittenOff() {
+        lot(21L, 300L, 40);
+        balance(300L, 50, 30);
+
+        service(new CountDownLatch(0)).expireLotsChunk(TODAY, 100);
+        commit();
+
+        assertEquals(30, balances.get(300L).getQuantity());
+        assertEquals(0, balances.get(300L).getAvailableQuantity());
+        assertEquals(30, balances.get(300L).getReservedQuantity());
+    }
+
+    private void commit() {
+        while (rowLocks.isHeldByCurrentThread()) {
+            rowLocks.unlock();
+        }
+    }
+
+    private void lot(Long id, Long productUnitId, int available) {
+        StockLot lot = new StockLot();
+        lot.setId(id);
+        lot.setProductUnitId(productUnitId);
+        lot.setWarehouseId(WAREHOUSE_ID);
+        lot.setStockLocationId(LOCATION_ID);
+        lot.setExpiryDate(TODAY.minusDays(1));
+        lot.setCurrentQuantity(available);
+        lot.setAvailableQuantity(available);
+        lot.setReservedQuantity(0);
+        lot.setStatus(StockLot.LotStatus.ACTIVE);
+        lots.put(id, lot);
+    }
+
+    private void balance(Long productUnitId, int quantity, int reserved) {
+        Warehouse warehouse = new Warehouse();
+        warehouse.setId(WAREHOUSE_ID);
+        StockLocation location = new StockLocation();
+        location.setId(LOCATION_ID);
+        StockBalance balance = new StockBalance();
+        balance.setProductUnitId(productUnitId);
+        balance.setWarehouse(warehouse);
+        balance.setStockLocation(location);
+        balance.setQuantity(quantity);
+        balance.setReservedQuantity(reserved);
+        balance.setAvailableQuantity(quantity - reserved);
+        balances.put(productUnitId, balance);
+    }
+
+    private LotManagementService service(CountDownLatch bothListed) {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate() {
+            @Override
+            public <T> int[][] batchUpdate(String sql, Collection<T> batchArgs, int batchSize,
+                                           ParameterizedPreparedStatementSetter<T> pss) {
+                if (sql.contains("stock_ledger")) ledgerRows.addAndGet(batchArgs.size());
+                return new int[][]{new int[batchArgs.size()]};
+            }
+        };
+        StockLedgerService ledger = new StockLedgerService(null, null, null, jdbcTemplate);
+        StockEventOutbox outbox = new StockEventOutbox(jdbcTemplate, null) {
+            @Override
+            public void appendAll(Collection<StockBalance> changed) {
+            }
+        };
+        EntityManager entityManager = (EntityManager) Proxy.newProxyInstance(EntityManager.class.getClassLoader(),
+                new Class<?>[]{EntityManager.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("detach")) return null;
+                    throw new UnsupportedOperationException(method.getName());
+                });
+        return new LotManagementService(lotRepository(bothListed), null, outbox, balanceRepository(), ledger,
+                entityManager);
+    }
+
+    private StockLotRepository lotRepository(CountDownLatch bothListed) {
+        return (StockLotRepository) Proxy.newProxyInstance(StockLotRepository.class.getClassLoader(),
+                new Class<?>[]{StockLotRepository.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "findExpiredActiveLotIds": {
+                            List<Long> ids = lots.values().stream()
+                                    .filter(l -> l.getStatus() == StockLot.LotStatus.ACTIVE)
+                                    .map(StockLot::getId).sorted().collect(Collectors.toList());
+                            bothListed.countDown();
+                            bothListed.await(5, TimeUnit.SECONDS);
+                            return ids;
+                        }
+                        case "findActiveByIdInForUpdate": {
+                            rowLocks.lock();
+                            Collection<?> ids = (Collection<?>) args[0];
+                            return lots.values().stream()
+                                    .filter(l -> ids.contains(l.getId()) && l.getStatus() == StockLot.LotStatus.ACTIVE)
+                                    .map(l -> StockLot.builder().id(l.getId()).productUnitId(l.getProductUnitId())
+                                            .warehouseId(l.getWarehouseId()).stockLocationId(l.getStockLocationId())
+                                            .availableQuantity(l.getAvailableQuantity()).status(l.getStatus()).build())
+                                    .collect(Collectors.toList());
+                        }
+                        case "findLotKeys":
+                            return List.of();
+                        case "markExpired": {
+                            int count = 0;
+                            for (Object id : (Collection<?>) args[0]) {
+                                StockLot lot = lots.get((Long) id);
+                                if (lot != null && lot.getStatus() == StockLot.LotStatus.ACTIVE) {
+                                    lot.setStatus(StockLot.LotStatus.EXPIRED);
+                                    count++;
+                                }
+                            }
+                            markedExpired.addAndGet(count);
+                            return count;
+                        }
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private StockBalanceRepository balanceRepository() {
+        return (StockBalanceRepository) Proxy.newProxyInstance(StockBalanceRepository.class.getClassLoader(),
+                new Class<?>[]{StockBalanceRepository.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "findForUpdate":
+                            return ((Collection<?>) args[2]).stream()
+                                    .map(balances::get).filter(Objects::nonNull).collect(Collectors.toList());
+                        case "saveAll":
+                            return new ArrayList<>((Collection<?>) args[0]);
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
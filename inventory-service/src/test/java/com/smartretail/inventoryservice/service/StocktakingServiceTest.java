@@ -0,0 +1,258 @@
+package com.smartretail.inventoryservice.service;
+
+import com.smartretail.inventoryservice.model.StockBalance;
+import com.smartretail.inventoryservice.model.StockDocument;
+import com.smartretail.inventoryservice.model.StockLocation;
+import com.smartretail.inventoryservice.model.StockLot;
+import com.smartretail.inventoryservice.model.Stocktaking;
+import com.smartretail.inventoryservice.model.Warehouse;
+import com.smartretail.inventoryservice.repository.StockBalanceRepository;
+import com.smartretail.inventoryservice.repository.StockDocumentRepository;
+import com.smartretail.inventoryservice.repository.StockLotRepository;
+import com.smartretail.inventoryservice.repository.StocktakingDetailRepository;
+import com.smartretail.inventoryservice.repository.StocktakingRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+
+import java.lang.reflect.Proxy;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Xác nhận phiếu kiểm kê đã snapshot trên repository giả lập trong bộ nhớ: 50.000 SKU chênh lệch
+ * phải được áp dụng bằng vài truy vấn theo nhóm và một lượt ghi batch, không theo từng dòng.
+ */
+class StocktakingServiceTest {
+
+    private static final long STOCKTAKING_ID = 9L;
+    private static final long WAREHOUSE_ID = 1L;
+    private static final long LOCATION_ID = 2L;
+    private static final int SKUS = 50_000;
+
+    private final Map<Long, StockBalance> balances = new HashMap<>();
+    private final Map<Long, List<StockLot>> lotsByUnit = new HashMap<>();
+    private final List<StocktakingDetailRepository.VarianceView> variances = new ArrayList<>();
+    private final Map<String, Integer> insertedRows = new HashMap<>();
+    private final Map<String, Integer> calls = new HashMap<>();
+    private final List<StockDocument> documents = new ArrayList<>();
+    private final Stocktaking stocktaking = stocktaking();
+
+    @Test
+    void confirmAppliesFiftyThousandAdjustmentsInBatches() {
+        for (long id = 1; id <= SKUS; id++) {
+            balance(id, 10, 0);
+            if (id % 2 == 1) {
+                variance(id, 10, 13);
+            } else {
+                // Lô hết hạn sớm hơn phải bị trừ trước
+                lot(id * 10, id, LocalDate.of(2027, 6, 1), 7, 0);
+                lot(id * 10 + 1, id, LocalDate.of(2027, 1, 1), 3, 0);
+                variance(id, 10, 6);
+            }
+        }
+
+        service().confirm(STOCKTAKING_ID);
+
+        assertEquals(Stocktaking.StocktakingStatus.CONFIRMED, stocktaking.getStatus());
+        for (long id = 1; id <= SKUS; id++) {
+            StockBalance balance = balances.get(id);
+            assertEquals(id % 2 == 1 ? 13 : 6, balance.getQuantity());
+            assertEquals(balance.getQuantity(), balance.getAvailableQuantity());
+        }
+        StockLot early = lotsByUnit.get(2L).get(1);
+        StockLot late = lotsByUnit.get(2L).get(0);
+        assertEquals(0, early.getCurrentQuantity());
+        assertEquals(StockLot.LotStatus.DEPLETED, early.getStatus());
+        assertEquals(6, late.getCurrentQuantity());
+
+        // Một truy vấn khoá mỗi nhóm 1000 sản phẩm, một saveAll cho cả phiếu
+        assertEquals(SKUS / 1000, calls.get("findForUpdate"));
+        assertEquals(SKUS / 1000, calls.get("findAvailableForUpdate"));
+        assertEquals(1, calls.get("balance.saveAll"));
+        assertEquals(1, calls.get("lot.saveAll"));
+
+        assertEquals(SKUS / 2, insertedRows.get("stock_lots"));
+        assertEquals(SKUS, insertedRows.get("stock_ledger"));
+        assertEquals(SKUS, insertedRows.get("stock_document_lines"));
+        assertEquals(SKUS / 2, insertedRows.get("inventory"));
+        assertEquals(1, calls.get("batch:stock_lots"));
+        assertEquals(1, calls.get("batch:stock_ledger"));
+        assertEquals(2, calls.get("batch:stock_document_lines"));
+
+        assertEquals(List.of(StockDocument.DocumentType.INBOUND, StockDocument.DocumentType.OUTBOUND),
+                documents.stream().map(StockDocument::getType).collect(Collectors.toList()));
+        assertTrue(documents.stream().allMatch(d -> d.getStatus() == StockDocument.DocumentStatus.APPROVED));
+    }
+
+    @Test
+    void shortageRejectsWholeStocktakingWithoutWrites() {
+        balance(1L, 10, 0);
+        variance(1L, 10, 12);
+        // 10 trong kho nhưng 8 đã giữ chỗ cho đơn: không được xuất 5
+        balance(2L, 10, 8);
+        lot(20L, 2L, LocalDate.of(2027, 1, 1), 10, 8);
+        variance(2L, 10, 5);
+
+        RuntimeException error = assertThrows(RuntimeException.class, () -> service().confirm(STOCKTAKING_ID));
+
+        assertTrue(error.getMessage().contains("ProductUnitId 2"), error.getMessage());
+        assertNull(calls.get("balance.saveAll"));
+        assertTrue(insertedRows.isEmpty());
+        assertNotEquals(Stocktaking.StocktakingStatus.CONFIRMED, stocktaking.getStatus());
+    }
+
+    private StocktakingService service() {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate() {
+            @Override
+            public <T> int[][] batchUpdate(String sql, Collection<T> batchArgs, int batchSize,
+                                           ParameterizedPreparedStatementSetter<T> pss) {
+                String table = sql.substring("INSERT INTO ".length(), sql.indexOf(' ', "INSERT INTO ".length()));
+                insertedRows.merge(table, batchArgs.size(), Integer::sum);
+                calls.merge("batch:" + table, 1, Integer::sum);
+                return new int[][]{new int[batchArgs.size()]};
+            }
+        };
+        StockLedgerService ledger = new StockLedgerService(null, null, null, jdbcTemplate);
+        LowStockMonitor lowStockMonitor = new LowStockMonitor(null, null, null) {
+            @Override
+            public void onBalancesChanged(Collection<StockBalance> changed) {
+            }
+        };
+        StockEventOutbox outbox = new StockEventOutbox(jdbcTemplate, null) {
+            @Override
+            public void appendAll(Collection<StockBalance> changed) {
+            }
+        };
+        return new StocktakingService(stocktakingRepository(), detailRepository(), null, documentRepository(), null,
+                jdbcTemplate, balanceRepository(), lotRepository(), new FefoLotIndex(null), ledger, lowStockMonitor, outbox);
+    }
+
+    private Stocktaking stocktaking() {
+        Warehouse warehouse = new Warehouse();
+        warehouse.setId(WAREHOUSE_ID);
+        StockLocation location = new StockLocation();
+        location.setId(LOCATION_ID);
+        Stocktaking st = new Stocktaking();
+        st.setId(STOCKTAKING_ID);
+        st.setStocktakingNumber("ST-1");
+        st.setWarehouse(warehouse);
+        st.setStockLocation(location);
+        st.setStatus(Stocktaking.StocktakingStatus.IN_PROGRESS);
+        st.setSnapshotAt(LocalDateTime.of(2026, 10, 19, 8, 0));
+        return st;
+    }
+
+    private void balance(Long productUnitId, int quantity, int reserved) {
+        StockBalance balance = new StockBalance();
+        balance.setProductUnitId(productUnitId);
+        balance.setWarehouse(stocktaking.getWarehouse());
+        balance.setStockLocation(stocktaking.getStockLocation());
+        balance.setQuantity(quantity);
+        balance.setReservedQuantity(reserved);
+        balance.setAvailableQuantity(quantity - reserved);
+        balances.put(productUnitId, balance);
+    }
+
+    private void lot(Long id, Long productUnitId, LocalDate expiry, int quantity, int reserved) {
+        StockLot lot = StockLot.builder().id(id).lotNumber("L-" + id).productUnitId(productUnitId)
+                .warehouseId(WAREHOUSE_ID).stockLocationId(LOCATION_ID).expiryDate(expiry)
+                .createdAt(LocalDateTime.of(2026, 1, 1, 0, 0))
+                .initialQuantity(quantity).currentQuantity(quantity).reservedQuantity(reserved)
+                .availableQuantity(quantity - reserved).status(StockLot.LotStatus.ACTIVE).build();
+        lotsByUnit.computeIfAbsent(productUnitId, k -> new ArrayList<>()).add(lot);
+    }
+
+    private void variance(Long productUnitId, int system, int actual) {
+        variances.add(new StocktakingDetailRepository.VarianceView() {
+            public Long getProductUnitId() { return productUnitId; }
+            public Integer getSystemQuantity() { return system; }
+            public Integer getActualQuantity() { return actual; }
+        });
+    }
+
+    private StocktakingRepository stocktakingRepository() {
+        return proxy(StocktakingRepository.class, (name, args) -> {
+            switch (name) {
+                case "findById": return Optional.of(stocktaking);
+                case "save": return args[0];
+                default: throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    private StocktakingDetailRepository detailRepository() {
+        return proxy(StocktakingDetailRepository.class, (name, args) -> {
+            switch (name) {
+                case "computeVariances": return variances.size();
+                case "countByStocktaking_IdAndActualQuantityIsNull": return 0L;
+                case "findVariances": return variances;
+                default: throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    private StockDocumentRepository documentRepository() {
+        return proxy(StockDocumentRepository.class, (name, args) -> {
+            if (!name.equals("save")) throw new UnsupportedOperationException(name);
+            StockDocument doc = (StockDocument) args[0];
+            doc.setId((long) documents.size() + 1);
+            documents.add(doc);
+            return doc;
+        });
+    }
+
+    private StockBalanceRepository balanceRepository() {
+        return proxy(StockBalanceRepository.class, (name, args) -> {
+            switch (name) {
+                case "findForUpdate": {
+                    calls.merge(name, 1, Integer::sum);
+                    Collection<?> ids = (Collection<?>) args[2];
+                    assertTrue(ids.size() <= 1000);
+                    return ids.stream().map(balances::get).filter(Objects::nonNull).collect(Collectors.toList());
+                }
+                case "saveAll":
+                    calls.merge("balance.saveAll", 1, Integer::sum);
+                    return new ArrayList<>((Collection<?>) args[0]);
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    private StockLotRepository lotRepository() {
+        return proxy(StockLotRepository.class, (name, args) -> {
+            switch (name) {
+                case "findAvailableForUpdate": {
+                    calls.merge(name, 1, Integer::sum);
+                    List<StockLot> found = new ArrayList<>();
+                    for (Object id : (Collection<?>) args[2]) {
+                        for (StockLot lot : lotsByUnit.getOrDefault((Long) id, List.of())) {
+                            if (lot.getAvailableQuantity() > 0) found.add(lot);
+                        }
+                    }
+                    return found;
+                }
+                case "saveAll":
+                    calls.merge("lot.saveAll", 1, Integer::sum);
+                    return new ArrayList<>((Collection<?>) args[0]);
+                default:
+                    throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                (p, method, args) -> handler.handle(method.getName(), args));
+    }
+
+    private interface Handler {
+        Object handle(String name, Object[] args);
+    }
+}
@@ -0,0 +1,46 @@
+package com.smartretail.orderservice.controller;
+
+import com.smartretail.orderservice.service.OrderExportService;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.WebAsyncTask;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+@RestController
+@RequestMapping("/api/orders/export")
+@CrossOrigin(origins = "*")
+public class OrderExportController {
+
+    @Autowired
+    private OrderExportService orderExportService;
+
+    // Timeout riêng cho request xuất; các API async khác giữ timeout mặc định
+    @Value("${app.order.export.request-timeout-ms:600000}")
+    private long exportRequestTimeoutMs;
+
+    // GET /api/orders/export/lines - Dòng đơn hàng (trừ đơn đã hủy) trong khoảng ngày, dạng CSV stream
+    @GetMapping(value = "/lines", produces = "text/csv")
+    public WebAsyncTask<Void> exportOrderLines(
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate startDate,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate endDate,
+            HttpServletResponse response) {
+        if (endDate.isBefore(startDate)) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return null;
+        }
+        response.setContentType("text/csv");
+        return new WebAsyncTask<>(exportRequestTimeoutMs, () -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8), 64 * 1024);
+            orderExportService.writeOrderLines(startDate, endDate, writer);
+            return null;
+        });
+    }
+}
@@ -0,0 +1,67 @@
+package com.smartretail.orderservice.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+
+/**
+ * Xuất dòng đơn hàng lịch sử theo lô lớn (mô phỏng khuyến mãi ở promotion-service).
+ * Đọc bằng JDBC streaming (MySQL trả từng dòng thay vì nạp cả kết quả) và ghi thẳng ra CSV,
+ * nên bộ nhớ không phụ thuộc số đơn trong khoảng ngày.
+ */
+@Service
+public class OrderExportService {
+
+    public static final String LINE_HEADER = "orderId,customerId,orderDate,productUnitId,quantity,unitPrice";
+
+    // Các dòng của cùng đơn đi liền nhau (sắp theo order id) để bên đọc gom đơn khi đang đọc
+    private static final String ORDER_LINES_SQL =
+            "SELECT o.id, o.customer_id, o.created_at, d.product_unit_id, d.quantity, d.unit_price " +
+            "FROM orders o JOIN order_details d ON d.order_id = o.id " +
+            "WHERE o.created_at >= ? AND o.created_at < ? AND o.status <> 'CANCELLED' " +
+            "ORDER BY o.id, d.id";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    public void writeOrderLines(LocalDate fromDate, LocalDate toDate, Writer writer) {
+        if (fromDate == null || toDate == null || toDate.isBefore(fromDate)) {
+            throw new RuntimeException("Invalid date range");
+        }
+        // Integer.MIN_VALUE: MySQL Connector/J stream kết quả từng dòng
+        JdbcTemplate streaming = new JdbcTemplate(jdbcTemplate.getDataSource());
+        streaming.setFetchSize(Integer.MIN_VALUE);
+        try {
+            writer.write(LINE_HEADER);
+            writer.write('\n');
+            StringBuilder line = new StringBuilder(64);
+            streaming.query(ORDER_LINES_SQL, rs -> {
+                line.setLength(0);
+                line.append(rs.getLong(1)).append(',');
+                long customerId = rs.getLong(2);
+                if (!rs.wasNull()) line.append(customerId);
+                Timestamp createdAt = rs.getTimestamp(3);
+                line.append(',').append(createdAt.toLocalDateTime().toLocalDate())
+                        .append(',').append(rs.getLong(4))
+                        .append(',').append(rs.getInt(5));
+                BigDecimal unitPrice = rs.getBigDecimal(6);
+                line.append(',').append(unitPrice.toPlainString()).append('\n');
+                try {
+                    writer.append(line);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, Timestamp.valueOf(fromDate.atStartOfDay()), Timestamp.valueOf(toDate.plusDays(1).atStartOfDay()));
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
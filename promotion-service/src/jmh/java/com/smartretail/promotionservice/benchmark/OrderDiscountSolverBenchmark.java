@@ -0,0 +1,78 @@
+package com.smartretail.promotionservice.benchmark;
+
+import com.smartretail.promotionservice.model.PromotionHeader;
+import com.smartretail.promotionservice.service.OrderDiscountSolver;
+import com.smartretail.promotionservice.service.PromotionCalculationService;
+import com.smartretail.promotionservice.service.PromotionRuleIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Độ trễ chọn tổ hợp giảm giá cấp đơn hàng (OrderDiscountSolver), mục tiêu dưới 1 ms mỗi giỏ.
+ * - stackablePercent: tỉ lệ chương trình cộng dồn; 0 là chỉ chọn một rule độc quyền như trước,
+ *   100 là trường hợp xấu nhất cho tìm kiếm (mọi rule cấp hóa đơn đều được cộng dồn)
+ * - solve: riêng bộ giải trên rule cấp đơn hàng; calculateBill: qua engine như API /bill
+ * Setup in số rule được chọn và việc tìm kiếm có chạm ngân sách nút hay không để đọc kèm kết quả.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class OrderDiscountSolverBenchmark {
+
+    private static final long SEED = 42L;
+
+    @State(Scope.Benchmark)
+    public static class Rules {
+        @Param({"100", "1000", "5000"})
+        public int promotionCount;
+
+        @Param({"0", "30", "100"})
+        public int stackablePercent;
+
+        @Param({"1", "20", "200"})
+        public int basketLines;
+
+        public PromotionRuleIndex.RuleSet ruleSet;
+        public PromotionCalculationService engine;
+        public BigDecimal total;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            LocalDate today = LocalDate.now();
+            PromotionDataGenerator data = PromotionDataGenerator.promotions(promotionCount, SEED, today);
+            Random random = new Random(SEED + stackablePercent);
+            for (PromotionHeader header : data.getHeaders()) {
+                header.setStackable(random.nextInt(100) < stackablePercent);
+            }
+            ruleSet = PromotionRuleIndex.compileForDay(data.getHeaders(), data.getLines(), data.getDetails(), today);
+            engine = new PromotionCalculationService();
+            total = PromotionDataGenerator.Basket.random(basketLines, SEED + basketLines).getTotal();
+
+            OrderDiscountSolver.Solution solution = OrderDiscountSolver.solve(ruleSet.orderRules(), total, rule -> true);
+            System.out.printf("%n%d order rules, total %s: %d applied, discount %s, exhaustive %s%n",
+                    ruleSet.orderRules().size(), total, solution.getRules().size(),
+                    solution.getTotalDiscount(), solution.isExhaustive());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            engine.shutdown();
+        }
+    }
+
+    @Benchmark
+    public OrderDiscountSolver.Solution solve(Rules rules) {
+        return OrderDiscountSolver.solve(rules.ruleSet.orderRules(), rules.total, rule -> true);
+    }
+
+    @Benchmark
+    public PromotionCalculationService.BillDiscountResult calculateBill(Rules rules) {
+        return rules.engine.calculateBillDiscount(rules.total, rules.ruleSet);
+    }
+}
@@ -0,0 +1,187 @@
+package com.smartretail.promotionservice.benchmark;
+
+import com.smartretail.promotionservice.model.PromotionDetail;
+import com.smartretail.promotionservice.model.PromotionHeader;
+import com.smartretail.promotionservice.model.PromotionLine;
+import com.smartretail.promotionservice.service.PromotionCalculationService;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Sinh bộ khuyến mãi và giỏ hàng giả lập có tính lặp lại (seed cố định) cho benchmark.
+ * Tỉ lệ loại line gần với dữ liệu thật: đa số theo sản phẩm/danh mục, một phần mua X tặng Y,
+ * theo khách hàng, áp toàn bộ sản phẩm và cấp hóa đơn; khoảng 10% chương trình đã hết hạn hoặc chưa bắt đầu.
+ */
+public final class PromotionDataGenerator {
+
+    public static final int PRODUCT_COUNT = 2_000;
+    public static final int CATEGORY_COUNT = 50;
+    public static final int CUSTOMER_COUNT = 500;
+
+    private static final PromotionHeader.PromotionType[] PRICE_TYPES = {
+            PromotionHeader.PromotionType.DISCOUNT_PERCENT, PromotionHeader.PromotionType.DISCOUNT_AMOUNT
+    };
+
+    private final List<PromotionHeader> headers = new ArrayList<>();
+    private final List<PromotionLine> lines = new ArrayList<>();
+    private final List<PromotionDetail> details = new ArrayList<>();
+
+    private PromotionDataGenerator() {
+    }
+
+    public List<PromotionHeader> getHeaders() { return headers; }
+    public List<PromotionLine> getLines() { return lines; }
+    public List<PromotionDetail> getDetails() { return details; }
+
+    public static PromotionDataGenerator promotions(int promotionCount, long seed, LocalDate today) {
+        PromotionDataGenerator data = new PromotionDataGenerator();
+        Random random = new Random(seed);
+        long lineId = 0;
+        long detailId = 0;
+        for (long headerId = 1; headerId <= promotionCount; headerId++) {
+            PromotionHeader header = new PromotionHeader();
+            header.setId(headerId);
+            header.setName("KM " + headerId);
+            header.setActive(true);
+            int window = random.nextInt(10);
+            if (window == 0) {
+                header.setStartDate(today.minusDays(30));
+                header.setEndDate(today.minusDays(1));
+            } else {
+                header.setStartDate(today.minusDays(1 + random.nextInt(10)));
+                header.setEndDate(today.plusDays(1 + random.nextInt(30)));
+            }
+            data.headers.add(header);
+
+            int lineCount = 1 + random.nextInt(3);
+            for (int l = 0; l < lineCount; l++) {
+                PromotionLine line = new PromotionLine();
+                line.setId(++lineId);
+                line.setPromotionHeader(header);
+                line.setActive(true);
+                data.lines.add(line);
+
+                double kind = random.nextDouble();
+                int detailCount = 1 + random.nextInt(2);
+                for (int d = 0; d < detailCount; d++) {
+                    PromotionDetail detail = new PromotionDetail();
+                    detail.setId(++detailId);
+                    detail.setPromotionLine(line);
+                    detail.setActive(true);
+                    configure(random, kind, line, detail);
+                    data.details.add(detail);
+                }
+            }
+        }
+        return data;
+    }
+
+    private static void configure(Random random, double kind, PromotionLine line, PromotionDetail detail) {
+        if (kind < 0.35) {
+            line.setTargetType(PromotionLine.TargetType.PRODUCT);
+            line.setTargetId(productId(random));
+            line.setType(PRICE_TYPES[random.nextInt(PRICE_TYPES.length)]);
+            priceDiscount(random, detail);
+        } else if (kind < 0.55) {
+            line.setTargetType(PromotionLine.TargetType.CATEGORY);
+            line.setTargetId(1L + random.nextInt(CATEGORY_COUNT));
+            line.setType(PRICE_TYPES[random.nextInt(PRICE_TYPES.length)]);
+            priceDiscount(random, detail);
+        } else if (kind < 0.75) {
+            // Mua X (đơn vị cụ thể) tặng Y hoặc giảm theo số lượng
+            long productId = productId(random);
+            detail.setConditionProductUnitId(productUnitId(productId));
+            detail.setConditionQuantity(1 + random.nextInt(3));
+            if (random.nextBoolean()) {
+                line.setType(PromotionHeader.PromotionType.BUY_X_GET_Y);
+                detail.setFreeQuantity(1);
+                detail.setGiftProductUnitId(productUnitId(productId(random)));
+            } else {
+                line.setType(PromotionHeader.PromotionType.DISCOUNT_PERCENT);
+                detail.setDiscountPercent(5f + random.nextInt(26));
+            }
+        } else if (kind < 0.85) {
+            line.setTargetType(PromotionLine.TargetType.CUSTOMER);
+            line.setTargetId(1L + random.nextInt(CUSTOMER_COUNT));
+            line.setType(PRICE_TYPES[random.nextInt(PRICE_TYPES.length)]);
+            priceDiscount(random, detail);
+        } else if (kind < 0.92) {
+            // Áp cho mọi sản phẩm
+            line.setType(PromotionHeader.PromotionType.DISCOUNT_PERCENT);
+            detail.setDiscountPercent(1f + random.nextInt(5));
+        } else {
+            // Cấp hóa đơn: không target, có minAmount
+            line.setType(PRICE_TYPES[random.nextInt(PRICE_TYPES.length)]);
+            priceDiscount(random, detail);
+            detail.setMinAmount(BigDecimal.valueOf(100_000L * (1 + random.nextInt(20))));
+        }
+    }
+
+    private static void priceDiscount(Random random, PromotionDetail detail) {
+        detail.setDiscountPercent(5f + random.nextInt(26) + (random.nextBoolean() ? 0.5f : 0f));
+        detail.setDiscountAmount(BigDecimal.valueOf(1_000L * (1 + random.nextInt(50))));
+        if (random.nextInt(3) == 0) {
+            detail.setMaxDiscount(BigDecimal.valueOf(10_000L * (1 + random.nextInt(20))));
+        }
+        if (random.nextInt(4) == 0) {
+            detail.setConditionQuantity(1 + random.nextInt(3));
+        }
+    }
+
+    private static long productId(Random random) {
+        return 1L + random.nextInt(PRODUCT_COUNT);
+    }
+
+    // ProductUnit cơ bản của sản phẩm, cùng quy ước với giỏ hàng sinh ra
+    private static long productUnitId(long productId) {
+        return productId * 10 + 1;
+    }
+
+    /**
+     * Giỏ hàng dạng mảng để mỗi lần đo tạo ProductPromotionInfo mới (engine ghi vào chúng)
+     */
+    public static final class Basket {
+        private final long[] productIds;
+        private final int[] quantities;
+        private final BigDecimal[] unitPrices;
+        private final long customerId;
+        private final BigDecimal total;
+
+        private Basket(int lineCount, Random random) {
+            productIds = new long[lineCount];
+            quantities = new int[lineCount];
+            unitPrices = new BigDecimal[lineCount];
+            BigDecimal sum = BigDecimal.ZERO;
+            for (int i = 0; i < lineCount; i++) {
+                productIds[i] = productId(random);
+                quantities[i] = 1 + random.nextInt(5);
+                unitPrices[i] = BigDecimal.valueOf(100L * (50 + random.nextInt(5_000)));
+                sum = sum.add(unitPrices[i].multiply(BigDecimal.valueOf(quantities[i])));
+            }
+            customerId = 1L + random.nextInt(CUSTOMER_COUNT);
+            total = sum;
+        }
+
+        public static Basket random(int lineCount, long seed) {
+            return new Basket(lineCount, new Random(seed));
+        }
+
+        public List<PromotionCalculationService.ProductPromotionInfo> toProducts() {
+            List<PromotionCalculationService.ProductPromotionInfo> products = new ArrayList<>(productIds.length);
+            for (int i = 0; i < productIds.length; i++) {
+                long productId = productIds[i];
+                products.add(new PromotionCalculationService.ProductPromotionInfo(
+                        productId, productUnitId(productId), productId % CATEGORY_COUNT + 1,
+                        quantities[i], unitPrices[i]));
+            }
+            return products;
+        }
+
+        public long getCustomerId() { return customerId; }
+        public BigDecimal getTotal() { return total; }
+    }
+}
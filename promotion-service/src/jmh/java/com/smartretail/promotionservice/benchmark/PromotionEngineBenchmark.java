@@ -0,0 +1,79 @@
+package com.smartretail.promotionservice.benchmark;
+
+import com.smartretail.promotionservice.service.PromotionCalculationService;
+import com.smartretail.promotionservice.service.PromotionRuleIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark engine tính khuyến mãi trên bộ luật trong bộ nhớ (không DB, không Spring).
+ * - calculateOrder: khuyến mãi sản phẩm (percent/amount/mua X tặng Y) + cấp đơn hàng cho một giỏ
+ * - calculateBill: chỉ giảm giá cấp hóa đơn theo tổng tiền
+ * - compileRules: dựng lại bộ luật, chi phí mỗi lần sửa khuyến mãi
+ * Chạy với -prof gc (cấu hình sẵn trong profile benchmark) để có tốc độ cấp phát theo từng kịch bản.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class PromotionEngineBenchmark {
+
+    private static final long SEED = 42L;
+
+    @State(Scope.Benchmark)
+    public static class Rules {
+        @Param({"10", "100", "1000", "5000"})
+        public int promotionCount;
+
+        public PromotionDataGenerator data;
+        public PromotionRuleIndex.RuleSet ruleSet;
+        public PromotionCalculationService engine;
+        public LocalDate today;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            today = LocalDate.now();
+            data = PromotionDataGenerator.promotions(promotionCount, SEED, today);
+            ruleSet = PromotionRuleIndex.compileForDay(data.getHeaders(), data.getLines(), data.getDetails(), today);
+            // evaluateOrder/calculateBillDiscount(total, rules) không dùng bean được inject
+            engine = new PromotionCalculationService();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            engine.shutdown();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Cart {
+        @Param({"1", "20", "200"})
+        public int basketLines;
+
+        public PromotionDataGenerator.Basket basket;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            basket = PromotionDataGenerator.Basket.random(basketLines, SEED + basketLines);
+        }
+    }
+
+    @Benchmark
+    public PromotionCalculationService.OrderPromotionResult calculateOrder(Rules rules, Cart cart) {
+        return rules.engine.evaluateOrder(cart.basket.toProducts(), cart.basket.getCustomerId(), rules.ruleSet);
+    }
+
+    @Benchmark
+    public PromotionCalculationService.BillDiscountResult calculateBill(Rules rules, Cart cart) {
+        return rules.engine.calculateBillDiscount(cart.basket.getTotal(), rules.ruleSet);
+    }
+
+    @Benchmark
+    public PromotionRuleIndex.RuleSet compileRules(Rules rules) {
+        return PromotionRuleIndex.compileForDay(
+                rules.data.getHeaders(), rules.data.getLines(), rules.data.getDetails(), rules.today);
+    }
+}
@@ -0,0 +1,78 @@
+package com.smartretail.promotionservice.benchmark;
+
+import com.smartretail.promotionservice.service.RedemptionQuota;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Kiểm tra tải RedemptionQuota như một đợt flash sale: nhiều luồng cùng giành một lượng lượt cố định,
+ * một phần lượt được trả lại (đơn huỷ).
+ * - Mỗi iteration nạp lại quota; TearDown báo lỗi nếu số lượt cấp ra (trừ lượt trả lại) vượt quá số đã nạp
+ *   hoặc nếu tổng lượt đã cấp và lượt còn lại lệch với số đã nạp (mất lượt)
+ * - Đo throughput tryAcquire khi còn lượt và khi đã cạn
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1)
+@Threads(16)
+public class RedemptionQuotaStress {
+
+    @State(Scope.Benchmark)
+    public static class Quota {
+        @Param({"1000", "100000"})
+        public long permits;
+
+        @Param({"1", "32"})
+        public int stripes;
+
+        public RedemptionQuota quota;
+        public final LongAdder granted = new LongAdder();
+        public final LongAdder released = new LongAdder();
+        public final LongAdder rejected = new LongAdder();
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            quota = new RedemptionQuota(permits, stripes);
+            granted.reset();
+            released.reset();
+            rejected.reset();
+        }
+
+        @TearDown(Level.Iteration)
+        public void verify() {
+            long outstanding = granted.sum() - released.sum();
+            if (outstanding > permits) {
+                throw new IllegalStateException("Oversold: " + outstanding + " permits granted of " + permits);
+            }
+            if (outstanding + quota.available() != permits) {
+                throw new IllegalStateException("Permits lost: granted " + outstanding
+                        + ", available " + quota.available() + ", loaded " + permits);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Caller {
+        public long attempts;
+    }
+
+    @Benchmark
+    public boolean acquire(Quota state, Caller caller) {
+        boolean acquired = state.quota.tryAcquire();
+        if (acquired) {
+            state.granted.increment();
+            // Khoảng 1/8 lượt bị huỷ và trả lại
+            if ((++caller.attempts & 7) == 0) {
+                state.quota.release();
+                state.released.increment();
+            }
+        } else {
+            state.rejected.increment();
+        }
+        return acquired;
+    }
+}
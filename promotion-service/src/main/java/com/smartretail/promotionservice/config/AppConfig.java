@@ -1,14 +1,46 @@
 package com.smartretail.promotionservice.config;
 
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.cloud.client.loadbalancer.LoadBalanced;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 import org.springframework.web.client.RestTemplate;
 
+import java.time.Duration;
+
 @Configuration
 public class AppConfig {
 
     @Bean
+    @Primary
     public RestTemplate restTemplate() {
         return new RestTemplate();
     }
+
+    // Gọi service khác theo tên đăng ký trên Eureka (http://service-product/...), đồng bộ trong lúc tính khuyến mãi:
+    // timeout ngắn để service chậm/treo không giữ luồng thanh toán
+    @Bean
+    @LoadBalanced
+    public RestTemplate loadBalancedRestTemplate(RestTemplateBuilder builder,
+                                                 @Value("${promotion.http.connect-timeout-ms:500}") long connectTimeoutMs,
+                                                 @Value("${promotion.http.read-timeout-ms:2000}") long readTimeoutMs) {
+        return builder
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .readTimeout(Duration.ofMillis(readTimeoutMs))
+                .build();
+    }
+
+    // Tải dữ liệu lớn chạy nền (mô phỏng đọc toàn bộ đơn hàng/đơn vị sản phẩm): timeout đọc dài
+    @Bean
+    @LoadBalanced
+    public RestTemplate bulkLoadBalancedRestTemplate(RestTemplateBuilder builder,
+                                                     @Value("${promotion.http.connect-timeout-ms:500}") long connectTimeoutMs,
+                                                     @Value("${promotion.http.bulk-read-timeout-ms:600000}") long readTimeoutMs) {
+        return builder
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .readTimeout(Duration.ofMillis(readTimeoutMs))
+                .build();
+    }
 }
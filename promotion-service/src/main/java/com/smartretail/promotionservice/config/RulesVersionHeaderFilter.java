@@ -0,0 +1,40 @@
+package com.smartretail.promotionservice.config;
+
+import com.smartretail.promotionservice.service.PromotionVersionService;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+
+/**
+ * Gắn version dữ liệu khuyến mãi mà instance đang dùng vào mọi response của /api/promotions,
+ * để bên gọi (order-service, POS) biết kết quả đã cache của mình còn đúng hay không
+ */
+@Component
+public class RulesVersionHeaderFilter extends OncePerRequestFilter {
+
+    public static final String HEADER = "X-Promotion-Rules-Version";
+
+    @Autowired
+    private PromotionVersionService promotionVersionService;
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !request.getRequestURI().startsWith("/api/promotions");
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        // Chưa đồng bộ được với DB: không gắn header để bên gọi không cache theo version sai
+        if (promotionVersionService.isSynced()) {
+            response.setHeader(HEADER, Long.toString(promotionVersionService.getCurrentVersion()));
+        }
+        chain.doFilter(request, response);
+    }
+}
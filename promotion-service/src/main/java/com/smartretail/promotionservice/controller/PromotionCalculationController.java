@@ -6,6 +6,7 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.List;
 
 @RestController
@@ -56,10 +57,14 @@ public class PromotionCalculationController {
      * DTO để nhận yêu cầu tính toán khuyến mãi cho đơn hàng
      */
     public static class OrderCalculationRequest {
+        private String cartId;  // chỉ dùng khi tính theo lô, để đối chiếu kết quả
         private List<ProductCalculationRequest> products;
         private Long customerId;
 
         // Getters and Setters
+        public String getCartId() { return cartId; }
+        public void setCartId(String cartId) { this.cartId = cartId; }
+
         public List<ProductCalculationRequest> getProducts() { return products; }
         public void setProducts(List<ProductCalculationRequest> products) { this.products = products; }
 
@@ -67,6 +72,15 @@ public class PromotionCalculationController {
         public void setCustomerId(Long customerId) { this.customerId = customerId; }
     }
 
+    /**
+     * DTO nhận nhiều giỏ hàng để tính khuyến mãi theo lô
+     */
+    public static class BatchOrderCalculationRequest {
+        private List<OrderCalculationRequest> carts;
+        public List<OrderCalculationRequest> getCarts() { return carts; }
+        public void setCarts(List<OrderCalculationRequest> carts) { this.carts = carts; }
+    }
+
     /**
      * Tính giảm giá theo bill (chỉ cần tổng tiền)
      */
@@ -103,6 +117,42 @@ public class PromotionCalculationController {
         }
     }
 
+    /**
+     * Tính toán khuyến mãi cho nhiều giỏ hàng cùng lúc, kết quả theo đúng thứ tự giỏ gửi lên
+     */
+    @PostMapping("/order/batch")
+    public ResponseEntity<PromotionCalculationService.BatchOrderPromotionResult> calculateOrderPromotionsBatch(
+            @RequestBody BatchOrderCalculationRequest request) {
+        try {
+            List<OrderCalculationRequest> carts = request.getCarts() != null ? request.getCarts() : List.of();
+            List<PromotionCalculationService.CartRequest> cartRequests = new ArrayList<>(carts.size());
+            for (OrderCalculationRequest cart : carts) {
+                cartRequests.add(toCartRequest(cart));
+            }
+            return ResponseEntity.ok(calculationService.calculateOrderPromotionsBatch(cartRequests));
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    // Giỏ không chuyển đổi được chỉ bị đánh dấu lỗi, không làm hỏng cả lô
+    private PromotionCalculationService.CartRequest toCartRequest(OrderCalculationRequest cart) {
+        if (cart == null) {
+            return PromotionCalculationService.CartRequest.invalid(null, "Cart is empty");
+        }
+        try {
+            List<PromotionCalculationService.ProductPromotionInfo> products = cart.getProducts() == null ? null
+                    : cart.getProducts().stream()
+                    .map(p -> new PromotionCalculationService.ProductPromotionInfo(
+                            p.getProductId(), p.getProductUnitId(), p.getCategoryId(), p.getQuantity(), p.getUnitPrice()))
+                    .toList();
+            return new PromotionCalculationService.CartRequest(cart.getCartId(), cart.getCustomerId(), products);
+        } catch (Exception e) {
+            return PromotionCalculationService.CartRequest.invalid(cart.getCartId(),
+                    "Invalid product line: quantity and unitPrice are required");
+        }
+    }
+
     /**
      * Tính toán khuyến mãi cho một sản phẩm đơn lẻ
      */
@@ -3,13 +3,22 @@ package com.smartretail.promotionservice.controller;
 import com.smartretail.promotionservice.dto.PromotionHeaderDto;
 import com.smartretail.promotionservice.dto.PromotionLineDto;
 import com.smartretail.promotionservice.dto.PromotionDetailDto;
+import com.smartretail.promotionservice.model.PromotionLine;
 import com.smartretail.promotionservice.service.PromotionService;
+import com.smartretail.promotionservice.service.PromotionVersionService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.time.LocalDate;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import org.springframework.http.HttpStatus;
 
@@ -18,9 +27,14 @@ import org.springframework.http.HttpStatus;
 @CrossOrigin(origins = "*")
 public class PromotionController {
 
+    private static final int MAX_TREE_PAGE_SIZE = 100;
+
     @Autowired
     private PromotionService promotionService;
 
+    @Autowired
+    private PromotionVersionService promotionVersionService;
+
     // ==================== PROMOTION HEADER ====================
 
     /**
@@ -152,6 +166,60 @@ public class PromotionController {
         return ResponseEntity.ok(headers);
     }
 
+    /**
+     * Version dữ liệu khuyến mãi mà instance này đang dùng (không truy vấn DB), bên gọi so sánh để làm mới cache
+     */
+    @GetMapping("/rules/version")
+    public ResponseEntity<Map<String, Object>> getRulesVersion() {
+        Map<String, Object> response = new HashMap<>();
+        if (!promotionVersionService.isSynced()) {
+            response.put("success", false);
+            response.put("message", "Chưa đồng bộ được dữ liệu khuyến mãi");
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(response);
+        }
+        response.put("success", true);
+        response.put("version", promotionVersionService.getCurrentVersion());
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * Cây khuyến mãi (header → lines → details) có phân trang và lọc tùy chọn:
+     * active, khoảng ngày giao với thời gian chương trình, target của line (targetType, targetId)
+     */
+    @GetMapping("/tree")
+    public ResponseEntity<?> getPromotionTree(
+            @RequestParam(defaultValue = "0") int page,
+            @RequestParam(defaultValue = "20") int size,
+            @RequestParam(required = false) Boolean active,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate fromDate,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate toDate,
+            @RequestParam(required = false) PromotionLine.TargetType targetType,
+            @RequestParam(required = false) Long targetId) {
+        Map<String, Object> response = new HashMap<>();
+        if (page < 0 || size < 1 || size > MAX_TREE_PAGE_SIZE) {
+            response.put("success", false);
+            response.put("message", "page phải >= 0 và size trong khoảng 1.." + MAX_TREE_PAGE_SIZE);
+            return ResponseEntity.badRequest().body(response);
+        }
+        try {
+            Pageable pageable = PageRequest.of(page, size,
+                    Sort.by(Sort.Order.desc("startDate"), Sort.Order.desc("id")));
+            Page<PromotionHeaderDto> tree = promotionService.getPromotionTree(
+                    active, fromDate, toDate, targetType, targetId, pageable);
+            response.put("success", true);
+            response.put("data", tree.getContent());
+            response.put("totalElements", tree.getTotalElements());
+            response.put("totalPages", tree.getTotalPages());
+            response.put("currentPage", tree.getNumber());
+            response.put("size", tree.getSize());
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            response.put("success", false);
+            response.put("message", "Lỗi khi lấy cây khuyến mãi: " + e.getMessage());
+            return ResponseEntity.badRequest().body(response);
+        }
+    }
+
     // ==================== PROMOTION LINE ====================
 
     /**
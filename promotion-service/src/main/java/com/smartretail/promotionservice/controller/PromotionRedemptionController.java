@@ -0,0 +1,107 @@
+package com.smartretail.promotionservice.controller;
+
+import com.smartretail.promotionservice.service.PromotionRedemptionService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Giữ/xác nhận/huỷ lượt dùng khuyến mãi có giới hạn (order-service gọi khi đặt đơn)
+ */
+@RestController
+@RequestMapping("/api/promotions/redemptions")
+@CrossOrigin(origins = "*")
+public class PromotionRedemptionController {
+
+    @Autowired
+    private PromotionRedemptionService promotionRedemptionService;
+
+    /**
+     * Giữ một lượt dùng; token có hạn, hết hạn sẽ tự trả lượt
+     */
+    @PostMapping("/reserve")
+    public ResponseEntity<Map<String, Object>> reserve(@RequestBody ReserveRequest request) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            String token = promotionRedemptionService.reserve(request.getPromotionHeaderId(), request.getCustomerId());
+            response.put("success", true);
+            response.put("token", token);
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            response.put("success", false);
+            response.put("message", e.getMessage());
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(response);
+        }
+    }
+
+    /**
+     * Xác nhận lượt đã giữ cho đơn hàng
+     */
+    @PostMapping("/{token}/confirm")
+    public ResponseEntity<Map<String, Object>> confirm(@PathVariable String token, @RequestBody ConfirmRequest request) {
+        Map<String, Object> response = new HashMap<>();
+        try {
+            boolean confirmed = promotionRedemptionService.confirm(token, request.getOrderReference());
+            if (!confirmed) {
+                response.put("success", false);
+                response.put("message", "Token không tồn tại hoặc đã hết hạn");
+                return ResponseEntity.status(HttpStatus.NOT_FOUND).body(response);
+            }
+            response.put("success", true);
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            response.put("success", false);
+            response.put("message", e.getMessage());
+            return ResponseEntity.badRequest().body(response);
+        }
+    }
+
+    /**
+     * Huỷ lượt đã giữ (đơn bị huỷ trước khi xác nhận)
+     */
+    @PostMapping("/{token}/release")
+    public ResponseEntity<Map<String, Object>> release(@PathVariable String token) {
+        Map<String, Object> response = new HashMap<>();
+        boolean released = promotionRedemptionService.release(token);
+        response.put("success", released);
+        if (!released) {
+            response.put("message", "Token không tồn tại hoặc đã hết hạn");
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(response);
+        }
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * Tình trạng lượt dùng của một chương trình
+     */
+    @GetMapping("/usage/{promotionHeaderId}")
+    public ResponseEntity<Map<String, Object>> usage(@PathVariable Long promotionHeaderId) {
+        try {
+            return ResponseEntity.ok(promotionRedemptionService.getUsage(promotionHeaderId));
+        } catch (Exception e) {
+            return ResponseEntity.notFound().build();
+        }
+    }
+
+    // Request DTOs
+    public static class ReserveRequest {
+        private Long promotionHeaderId;
+        private Long customerId;
+
+        public Long getPromotionHeaderId() { return promotionHeaderId; }
+        public void setPromotionHeaderId(Long promotionHeaderId) { this.promotionHeaderId = promotionHeaderId; }
+        public Long getCustomerId() { return customerId; }
+        public void setCustomerId(Long customerId) { this.customerId = customerId; }
+    }
+
+    public static class ConfirmRequest {
+        private String orderReference;
+
+        public String getOrderReference() { return orderReference; }
+        public void setOrderReference(String orderReference) { this.orderReference = orderReference; }
+    }
+}
@@ -0,0 +1,53 @@
+package com.smartretail.promotionservice.controller;
+
+import com.smartretail.promotionservice.service.PromotionSimulationService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.time.LocalDate;
+import java.util.List;
+
+@RestController
+@RequestMapping("/api/promotions/simulation")
+@CrossOrigin(origins = "*")
+public class PromotionSimulationController {
+
+    @Autowired
+    private PromotionSimulationService simulationService;
+
+    // Request DTO
+    public static class SimulationRequest {
+        @DateTimeFormat(iso = DateTimeFormat.ISO.DATE)
+        private LocalDate startDate;
+        @DateTimeFormat(iso = DateTimeFormat.ISO.DATE)
+        private LocalDate endDate;
+        // Rỗng: mô phỏng các chương trình đang active
+        private List<Long> promotionHeaderIds;
+
+        public LocalDate getStartDate() { return startDate; }
+        public void setStartDate(LocalDate startDate) { this.startDate = startDate; }
+        public LocalDate getEndDate() { return endDate; }
+        public void setEndDate(LocalDate endDate) { this.endDate = endDate; }
+        public List<Long> getPromotionHeaderIds() { return promotionHeaderIds; }
+        public void setPromotionHeaderIds(List<Long> promotionHeaderIds) { this.promotionHeaderIds = promotionHeaderIds; }
+    }
+
+    /**
+     * Chi phí khuyến mãi nếu áp cho đơn hàng trong khoảng ngày (tổng giảm, số đơn bị ảnh hưởng, theo từng chương trình).
+     * Token của người gọi được chuyển tiếp khi đọc đơn hàng từ order-service.
+     */
+    @PostMapping
+    public ResponseEntity<PromotionSimulationService.SimulationResult> simulate(
+            @RequestBody SimulationRequest request,
+            @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorization) {
+        try {
+            return ResponseEntity.ok(simulationService.simulate(request.getStartDate(), request.getEndDate(),
+                    request.getPromotionHeaderIds(), authorization));
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+}
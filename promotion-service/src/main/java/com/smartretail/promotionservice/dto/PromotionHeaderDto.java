@@ -17,5 +17,8 @@ public class PromotionHeaderDto {
     private LocalDate endDate;
     private LocalDateTime createdAt;
     private Boolean active;
+    private Integer maxRedemptions;
+    private Integer maxRedemptionsPerCustomer;
+    private Boolean stackable;
     private List<PromotionLineDto> promotionLines;
 }
@@ -35,6 +35,15 @@ public class PromotionHeader {
     @Column(nullable = false)
     private Boolean active = true;
 
+    @Column(name = "max_redemptions")
+    private Integer maxRedemptions;  // Tổng số lần được dùng (ví dụ 1.000 đơn đầu tiên), null = không giới hạn
+
+    @Column(name = "max_redemptions_per_customer")
+    private Integer maxRedemptionsPerCustomer;  // Số lần mỗi khách được dùng (ví dụ 1 lần), null = không giới hạn
+
+    @Column(name = "stackable")
+    private Boolean stackable = false;  // Giảm giá cấp đơn được cộng dồn với chương trình cộng dồn khác; false = độc quyền
+
     public enum PromotionType {
         DISCOUNT_PERCENT, DISCOUNT_AMOUNT, BUY_X_GET_Y
     }
@@ -0,0 +1,40 @@
+package com.smartretail.promotionservice.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Một lần sử dụng khuyến mãi đã xác nhận (đơn hàng đã đặt). Được ghi theo lô từ bộ đếm trong bộ nhớ.
+ */
+@Entity
+@Table(name = "promotion_redemption",
+        uniqueConstraints = @UniqueConstraint(name = "uk_promotion_redemption_order",
+                columnNames = {"promotion_header_id", "order_reference"}),
+        indexes = @Index(name = "idx_promotion_redemption_customer",
+                columnList = "promotion_header_id, customer_id"))
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PromotionRedemption {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "promotion_header_id", nullable = false)
+    private Long promotionHeaderId;
+
+    @Column(name = "customer_id")
+    private Long customerId;  // null nếu khách vãng lai
+
+    // Mã đơn hàng; trùng (header, order) thì bỏ qua để xác nhận lại không bị đếm hai lần
+    @Column(name = "order_reference", nullable = false, length = 100)
+    private String orderReference;
+
+    @Column(name = "redeemed_at", nullable = false)
+    private LocalDateTime redeemedAt;
+}
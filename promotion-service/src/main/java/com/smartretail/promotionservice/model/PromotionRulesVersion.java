@@ -0,0 +1,31 @@
+package com.smartretail.promotionservice.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Phiên bản dữ liệu khuyến mãi (một dòng duy nhất), tăng trong cùng transaction với mọi thay đổi
+ * header/line/detail để các instance biết khi nào phải nạp lại bộ luật.
+ */
+@Entity
+@Table(name = "promotion_rules_version")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PromotionRulesVersion {
+
+    public static final Long SINGLETON_ID = 1L;
+
+    @Id
+    private Long id;
+
+    @Column(nullable = false)
+    private Long version;
+
+    @Column(name = "updated_at", nullable = false)
+    private LocalDateTime updatedAt;
+}
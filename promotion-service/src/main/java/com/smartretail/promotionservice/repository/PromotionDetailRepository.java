@@ -2,8 +2,12 @@ package com.smartretail.promotionservice.repository;
 
 import com.smartretail.promotionservice.model.PromotionDetail;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.math.BigDecimal;
+import java.util.Collection;
 import java.util.List;
 
 @Repository
@@ -17,4 +21,26 @@ public interface PromotionDetailRepository extends JpaRepository<PromotionDetail
 
     // Tìm promotion details theo promotion line ids
     List<PromotionDetail> findByPromotionLineIdInAndActiveTrue(List<Long> promotionLineIds);
+
+    // Mọi detail (cả inactive) của nhiều line, một truy vấn, không tải entity
+    @Query("SELECT pd.id AS id, pd.promotionLine.id AS promotionLineId, pd.discountPercent AS discountPercent, " +
+           "pd.discountAmount AS discountAmount, pd.conditionQuantity AS conditionQuantity, " +
+           "pd.freeQuantity AS freeQuantity, pd.conditionProductUnitId AS conditionProductUnitId, " +
+           "pd.giftProductUnitId AS giftProductUnitId, pd.minAmount AS minAmount, pd.maxDiscount AS maxDiscount, " +
+           "pd.active AS active FROM PromotionDetail pd WHERE pd.promotionLine.id IN :lineIds ORDER BY pd.id")
+    List<DetailView> findViewsByLineIds(@Param("lineIds") Collection<Long> lineIds);
+
+    interface DetailView {
+        Long getId();
+        Long getPromotionLineId();
+        Float getDiscountPercent();
+        BigDecimal getDiscountAmount();
+        Integer getConditionQuantity();
+        Integer getFreeQuantity();
+        Long getConditionProductUnitId();
+        Long getGiftProductUnitId();
+        BigDecimal getMinAmount();
+        BigDecimal getMaxDiscount();
+        Boolean getActive();
+    }
 }
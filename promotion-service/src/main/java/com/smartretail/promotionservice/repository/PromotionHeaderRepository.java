@@ -1,12 +1,16 @@
 package com.smartretail.promotionservice.repository;
 
 import com.smartretail.promotionservice.model.PromotionHeader;
+import com.smartretail.promotionservice.model.PromotionLine;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.util.List;
 
 @Repository
@@ -29,4 +33,38 @@ public interface PromotionHeaderRepository extends JpaRepository<PromotionHeader
 
     // Kiểm tra xem có chương trình khuyến mãi nào trùng tên không
     boolean existsByNameAndActiveTrue(String name);
+
+    // Điều kiện lọc của cây khuyến mãi; tham số null nghĩa là không lọc
+    String TREE_FILTER = "WHERE (:active IS NULL OR ph.active = :active) " +
+           "AND (:fromDate IS NULL OR ph.endDate >= :fromDate) " +
+           "AND (:toDate IS NULL OR ph.startDate <= :toDate) " +
+           "AND (:targetType IS NULL OR EXISTS (SELECT pl.id FROM PromotionLine pl " +
+           "WHERE pl.promotionHeader.id = ph.id AND pl.targetType = :targetType " +
+           "AND (:targetId IS NULL OR pl.targetId = :targetId)))";
+
+    // Trang header cho cây khuyến mãi (projection chỉ đọc), lọc tùy chọn theo trạng thái,
+    // khoảng ngày giao nhau và target của line
+    @Query(value = "SELECT ph.id AS id, ph.name AS name, ph.startDate AS startDate, ph.endDate AS endDate, " +
+           "ph.createdAt AS createdAt, ph.active AS active, ph.maxRedemptions AS maxRedemptions, " +
+           "ph.maxRedemptionsPerCustomer AS maxRedemptionsPerCustomer, ph.stackable AS stackable " +
+           "FROM PromotionHeader ph " + TREE_FILTER,
+           countQuery = "SELECT COUNT(ph) FROM PromotionHeader ph " + TREE_FILTER)
+    Page<HeaderView> findTreeHeaders(@Param("active") Boolean active,
+                                     @Param("fromDate") LocalDate fromDate,
+                                     @Param("toDate") LocalDate toDate,
+                                     @Param("targetType") PromotionLine.TargetType targetType,
+                                     @Param("targetId") Long targetId,
+                                     Pageable pageable);
+
+    interface HeaderView {
+        Long getId();
+        String getName();
+        LocalDate getStartDate();
+        LocalDate getEndDate();
+        LocalDateTime getCreatedAt();
+        Boolean getActive();
+        Integer getMaxRedemptions();
+        Integer getMaxRedemptionsPerCustomer();
+        Boolean getStackable();
+    }
 }
@@ -1,11 +1,14 @@
 package com.smartretail.promotionservice.repository;
 
+import com.smartretail.promotionservice.model.PromotionHeader;
 import com.smartretail.promotionservice.model.PromotionLine;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDate;
+import java.util.Collection;
 import java.util.List;
 
 @Repository
@@ -17,6 +20,9 @@ public interface PromotionLineRepository extends JpaRepository<PromotionLine, Lo
     // Tìm tất cả promotion lines của một promotion header (cả active và inactive)
     List<PromotionLine> findByPromotionHeaderId(Long promotionHeaderId);
 
+    // Tìm promotion lines đang active theo danh sách header ids
+    List<PromotionLine> findByPromotionHeaderIdInAndActiveTrue(List<Long> promotionHeaderIds);
+
     // Tìm promotion lines theo target type và target id
     @Query("SELECT pl FROM PromotionLine pl WHERE pl.active = true " +
            "AND pl.targetType = :targetType AND pl.targetId = :targetId")
@@ -26,6 +32,23 @@ public interface PromotionLineRepository extends JpaRepository<PromotionLine, Lo
     // Tìm promotion lines theo target type
     List<PromotionLine> findByTargetTypeAndActiveTrue(PromotionLine.TargetType targetType);
 
+    // Mọi line (cả inactive) của nhiều header, một truy vấn, không tải entity
+    @Query("SELECT pl.id AS id, pl.promotionHeader.id AS promotionHeaderId, pl.targetType AS targetType, " +
+           "pl.targetId AS targetId, pl.type AS type, pl.startDate AS startDate, pl.endDate AS endDate, " +
+           "pl.active AS active FROM PromotionLine pl WHERE pl.promotionHeader.id IN :headerIds ORDER BY pl.id")
+    List<LineView> findViewsByHeaderIds(@Param("headerIds") Collection<Long> headerIds);
+
+    interface LineView {
+        Long getId();
+        Long getPromotionHeaderId();
+        PromotionLine.TargetType getTargetType();
+        Long getTargetId();
+        PromotionHeader.PromotionType getType();
+        LocalDate getStartDate();
+        LocalDate getEndDate();
+        Boolean getActive();
+    }
+
     // Tìm promotion lines cho một sản phẩm cụ thể (đơn giản hóa)
     @Query("SELECT pl FROM PromotionLine pl WHERE pl.active = true " +
            "AND (pl.targetType = 'PRODUCT' AND pl.targetId = :productId) " +
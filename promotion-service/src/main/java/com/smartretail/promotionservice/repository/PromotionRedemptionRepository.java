@@ -0,0 +1,30 @@
+package com.smartretail.promotionservice.repository;
+
+import com.smartretail.promotionservice.model.PromotionRedemption;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface PromotionRedemptionRepository extends JpaRepository<PromotionRedemption, Long> {
+
+    long countByPromotionHeaderId(Long promotionHeaderId);
+
+    long countByPromotionHeaderIdAndCustomerId(Long promotionHeaderId, Long customerId);
+
+    boolean existsByPromotionHeaderIdAndOrderReference(Long promotionHeaderId, String orderReference);
+
+    // Số lần đã dùng (mọi instance) của nhiều chương trình, dùng khi đối soát bộ đếm
+    @Query("SELECT r.promotionHeaderId AS promotionHeaderId, COUNT(r) AS redeemed " +
+           "FROM PromotionRedemption r WHERE r.promotionHeaderId IN :headerIds GROUP BY r.promotionHeaderId")
+    List<RedemptionCountView> countByPromotionHeaderIds(@Param("headerIds") Collection<Long> headerIds);
+
+    interface RedemptionCountView {
+        Long getPromotionHeaderId();
+        Long getRedeemed();
+    }
+}
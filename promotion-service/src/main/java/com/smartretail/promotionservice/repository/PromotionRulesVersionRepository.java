@@ -0,0 +1,23 @@
+package com.smartretail.promotionservice.repository;
+
+import com.smartretail.promotionservice.model.PromotionRulesVersion;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+
+@Repository
+public interface PromotionRulesVersionRepository extends JpaRepository<PromotionRulesVersion, Long> {
+
+    // Tăng tại chỗ: khóa dòng đến khi commit nên các lần sửa đồng thời nhận version liên tiếp
+    @Modifying
+    @Query("UPDATE PromotionRulesVersion v SET v.version = v.version + 1, v.updatedAt = :now WHERE v.id = :id")
+    int increment(@Param("id") Long id, @Param("now") LocalDateTime now);
+
+    // Đọc thẳng từ DB (không qua entity đã nạp trong persistence context)
+    @Query("SELECT v.version FROM PromotionRulesVersion v WHERE v.id = :id")
+    Long findVersion(@Param("id") Long id);
+}
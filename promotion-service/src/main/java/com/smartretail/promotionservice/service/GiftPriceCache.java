@@ -0,0 +1,135 @@
+package com.smartretail.promotionservice.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Giá hiện tại của sản phẩm quà tặng (mua X tặng Y), dùng để hiển thị giá trị quà.
+ * - Mỗi lần tính chỉ gọi service-product một lần cho mọi ProductUnit còn thiếu (POST /prices/current/bulk),
+ *   gọi thẳng qua service discovery thay vì đi vòng qua API Gateway
+ * - Giữ giá trong thời gian ngắn (TTL), kể cả kết quả "không có giá", để giỏ hàng liên tiếp không gọi lại
+ * - service-product lỗi thì dùng giá cũ nếu còn, không thì bỏ qua giá trị quà; không làm hỏng việc tính khuyến mãi
+ * - Sau một lần gọi lỗi (kể cả timeout) thì không gọi lại trong failure-backoff-ms, để service-product treo
+ *   không bắt mọi giỏ hàng chờ hết timeout
+ */
+@Component
+@Slf4j
+public class GiftPriceCache {
+
+    private static final int MAX_ENTRIES = 10_000;
+
+    @Autowired
+    @Qualifier("loadBalancedRestTemplate")
+    private RestTemplate loadBalancedRestTemplate;
+
+    @Value("${product.service.name:service-product}")
+    private String productServiceName;
+
+    @Value("${promotion.gift-price.ttl-ms:60000}")
+    private long ttlMs;
+
+    @Value("${promotion.gift-price.failure-backoff-ms:5000}")
+    private long failureBackoffMs;
+
+    private volatile long retryAt;
+
+    private final Map<Long, CachedPrice> prices = new ConcurrentHashMap<>();
+
+    /**
+     * Giá hiện tại theo productUnitId; đơn vị không có giá (hoặc chưa lấy được) không có trong kết quả
+     */
+    public Map<Long, BigDecimal> getPrices(Collection<Long> productUnitIds) {
+        Map<Long, BigDecimal> result = new HashMap<>();
+        if (productUnitIds == null || productUnitIds.isEmpty()) return result;
+
+        long now = System.currentTimeMillis();
+        Set<Long> missing = new HashSet<>();
+        for (Long id : productUnitIds) {
+            if (id == null) continue;
+            CachedPrice cached = prices.get(id);
+            if (cached == null || cached.expiresAt < now) {
+                missing.add(id);
+            } else if (cached.price != null) {
+                result.put(id, cached.price);
+            }
+        }
+        if (missing.isEmpty()) return result;
+
+        Map<Long, BigDecimal> fetched = now < retryAt ? null : fetchCurrentPrices(missing);
+        if (fetched == null) {
+            // Không gọi được service-product: dùng giá đã hết hạn nếu có
+            for (Long id : missing) {
+                CachedPrice stale = prices.get(id);
+                if (stale != null && stale.price != null) result.put(id, stale.price);
+            }
+            return result;
+        }
+
+        if (prices.size() + missing.size() > MAX_ENTRIES) {
+            evictExpired(now);
+        }
+        long expiresAt = now + ttlMs;
+        for (Long id : missing) {
+            BigDecimal price = fetched.get(id);
+            prices.put(id, new CachedPrice(price, expiresAt));
+            if (price != null) result.put(id, price);
+        }
+        return result;
+    }
+
+    public void invalidateAll() {
+        prices.clear();
+    }
+
+    // null nếu lỗi kết nối/phản hồi không hợp lệ
+    private Map<Long, BigDecimal> fetchCurrentPrices(Set<Long> productUnitIds) {
+        try {
+            String url = "http://" + productServiceName + "/api/products/prices/current/bulk";
+            Map<?, ?> response = loadBalancedRestTemplate.postForObject(url, new ArrayList<>(productUnitIds), Map.class);
+            if (response == null || !Boolean.TRUE.equals(response.get("success"))) {
+                return null;
+            }
+            Map<Long, BigDecimal> fetched = new HashMap<>();
+            Object data = response.get("data");
+            if (data instanceof Map<?, ?> map) {
+                // Key JSON là chuỗi
+                map.forEach((k, v) -> {
+                    if (k != null && v != null) {
+                        fetched.put(Long.valueOf(k.toString()), new BigDecimal(v.toString()));
+                    }
+                });
+            }
+            return fetched;
+        } catch (Exception e) {
+            retryAt = System.currentTimeMillis() + failureBackoffMs;
+            log.warn("Could not fetch gift prices for {} product units, skipping for {} ms: {}",
+                    productUnitIds.size(), failureBackoffMs, e.getMessage());
+            return null;
+        }
+    }
+
+    private void evictExpired(long now) {
+        prices.values().removeIf(p -> p.expiresAt < now);
+        if (prices.size() > MAX_ENTRIES) {
+            prices.clear();
+        }
+    }
+
+    private static class CachedPrice {
+        private final BigDecimal price;
+        private final long expiresAt;
+
+        CachedPrice(BigDecimal price, long expiresAt) {
+            this.price = price;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.smartretail.promotionservice.service;
+
+import com.smartretail.promotionservice.model.PromotionHeader;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Chọn tổ hợp khuyến mãi cấp đơn hàng cho tổng giảm lớn nhất.
+ * - Chương trình độc quyền (stackable = false) chỉ áp một mình; chương trình cộng dồn áp cùng nhau,
+ *   mỗi chương trình (header) tối đa một rule
+ * - Cộng dồn áp tuần tự trên số tiền còn lại: % tính trên phần còn lại, minAmount so với phần còn lại,
+ *   mọi mức giảm bị chặn bởi phần còn lại nên tổng giảm không vượt quá tổng tiền
+ * - Thứ tự áp cố định (APPLY_ORDER): giảm theo % trước, giảm số tiền sau, rồi theo ordinal; % tính trên
+ *   số tiền lớn hơn nên không kém thứ tự ngược lại. Vì vậy chỉ cần tìm tập con, không cần duyệt hoán vị
+ * - Tìm kiếm nhánh cận trên tập con: chỉ thêm ứng viên đứng sau ứng viên chọn cuối cùng nên mỗi tập con
+ *   được duyệt một lần (tối đa 2^MAX_STACK_CANDIDATES nút). Cận trên = đã giảm + mức giảm tối đa của từng
+ *   chương trình còn chọn được tại số tiền hiện tại (số tiền chỉ giảm dần nên mức giảm không tăng)
+ * - Giới hạn số nút duyệt thay cho đồng hồ để kết quả không phụ thuộc tải máy; hết ngân sách thì trả
+ *   phương án tốt nhất đã tìm thấy (khởi tạo bằng phương án tham lam)
+ * - Bằng nhau thì ưu tiên ít chương trình hơn, rồi dãy ordinal nhỏ hơn (chương trình tạo trước);
+ *   khi mọi chương trình đều độc quyền kết quả trùng với cách chọn một rule giảm nhiều nhất trước đây
+ * - Không phụ thuộc Spring để benchmark riêng (xem OrderDiscountSolverBenchmark)
+ */
+public final class OrderDiscountSolver {
+
+    // Số rule cộng dồn tối đa đưa vào tìm kiếm (giữ các rule giảm nhiều nhất tại tổng tiền)
+    static final int MAX_STACK_CANDIDATES = 12;
+    // Ngân sách nút duyệt khi mọi rule đều cộng dồn; đo độ trễ bằng OrderDiscountSolverBenchmark
+    static final int MAX_SEARCH_NODES = 1_000;
+
+    // Thứ tự áp các rule cộng dồn trong một phương án
+    static final Comparator<PromotionRuleIndex.Rule> APPLY_ORDER = Comparator
+            .comparing((PromotionRuleIndex.Rule r) -> r.type != PromotionHeader.PromotionType.DISCOUNT_PERCENT)
+            .thenComparingInt(r -> r.ordinal);
+
+    private static final BigDecimal ONE_HUNDRED = new BigDecimal(100);
+
+    private static final Solution EMPTY = new Solution(Collections.emptyList(), Collections.emptyList(),
+            BigDecimal.ZERO, true);
+
+    private OrderDiscountSolver() {
+    }
+
+    /**
+     * @param orderRules rule cấp đơn hàng theo thứ tự ordinal
+     * @param redeemable điều kiện còn lượt dùng (chỉ gọi cho rule đạt minAmount)
+     */
+    public static Solution solve(List<PromotionRuleIndex.Rule> orderRules, BigDecimal totalAmount,
+                                 Predicate<PromotionRuleIndex.Rule> redeemable) {
+        if (totalAmount == null || totalAmount.signum() <= 0 || orderRules.isEmpty()) {
+            return EMPTY;
+        }
+
+        PromotionRuleIndex.Rule bestExclusive = null;
+        BigDecimal bestExclusiveDiscount = BigDecimal.ZERO;
+        List<PromotionRuleIndex.Rule> stackable = new ArrayList<>();
+        List<BigDecimal> stackableDiscounts = new ArrayList<>();
+        for (PromotionRuleIndex.Rule rule : orderRules) {
+            if (rule.minAmount != null && totalAmount.compareTo(rule.minAmount) < 0) {
+                continue;
+            }
+            if (!redeemable.test(rule)) {
+                continue;
+            }
+            BigDecimal discount = discountAt(rule, totalAmount);
+            if (discount.signum() <= 0) {
+                continue;
+            }
+            if (rule.stackable) {
+                stackable.add(rule);
+                stackableDiscounts.add(discount);
+            } else if (discount.compareTo(bestExclusiveDiscount) > 0) {
+                bestExclusiveDiscount = discount;
+                bestExclusive = rule;
+            }
+        }
+        if (stackable.isEmpty()) {
+            return bestExclusive == null ? EMPTY
+                    : new Solution(List.of(bestExclusive), List.of(bestExclusiveDiscount), bestExclusiveDiscount, true);
+        }
+
+        Search search = new Search(stackable, stackableDiscounts, totalAmount);
+        if (bestExclusive != null) {
+            search.offer(new PromotionRuleIndex.Rule[]{bestExclusive}, new BigDecimal[]{bestExclusiveDiscount},
+                    1, bestExclusiveDiscount);
+        }
+        search.greedy();
+        search.run();
+        return search.solution();
+    }
+
+    // Mức giảm của một rule khi áp trên amount; không vượt quá maxDiscount và amount
+    static BigDecimal discountAt(PromotionRuleIndex.Rule rule, BigDecimal amount) {
+        BigDecimal discount = BigDecimal.ZERO;
+        if (rule.type == PromotionHeader.PromotionType.DISCOUNT_AMOUNT) {
+            discount = rule.discountAmount != null ? rule.discountAmount : BigDecimal.ZERO;
+        } else if (rule.type == PromotionHeader.PromotionType.DISCOUNT_PERCENT && rule.percent != null) {
+            discount = amount
+                    .multiply(rule.percent)
+                    .divide(ONE_HUNDRED, 2, RoundingMode.HALF_UP);
+        }
+
+        if (rule.maxDiscount != null && discount.compareTo(rule.maxDiscount) > 0) {
+            discount = rule.maxDiscount;
+        }
+        if (discount.compareTo(amount) > 0) {
+            discount = amount;
+        }
+        return discount;
+    }
+
+    /**
+     * Trạng thái tìm kiếm trên các rule cộng dồn: giữ MAX_STACK_CANDIDATES ứng viên giảm nhiều nhất tại tổng tiền,
+     * xếp theo APPLY_ORDER để đường đi luôn là một tập con đã theo thứ tự áp
+     */
+    private static final class Search {
+        private final PromotionRuleIndex.Rule[] candidates;
+        // Chỉ số header (0..headerCount-1) của từng ứng viên
+        private final int[] headerOf;
+        private final boolean[] headerUsed;
+        private final BigDecimal totalAmount;
+
+        // Đường đi hiện tại
+        private final PromotionRuleIndex.Rule[] path;
+        private final BigDecimal[] pathDiscounts;
+        // Mức giảm của từng ứng viên tại số tiền còn lại, theo độ sâu (null = không áp được)
+        private final BigDecimal[][] discountsAtDepth;
+        private final BigDecimal[] headerBest;
+
+        private PromotionRuleIndex.Rule[] bestRules = new PromotionRuleIndex.Rule[0];
+        private BigDecimal[] bestDiscounts = new BigDecimal[0];
+        private BigDecimal bestTotal = BigDecimal.ZERO;
+        private int nodes;
+        private boolean exhaustive = true;
+
+        Search(List<PromotionRuleIndex.Rule> rules, List<BigDecimal> discounts, BigDecimal totalAmount) {
+            List<Integer> order = new ArrayList<>(rules.size());
+            for (int i = 0; i < rules.size(); i++) order.add(i);
+            order.sort(Comparator.<Integer, BigDecimal>comparing(discounts::get).reversed()
+                    .thenComparingInt(i -> rules.get(i).ordinal));
+            int count = Math.min(order.size(), MAX_STACK_CANDIDATES);
+            List<Integer> kept = new ArrayList<>(order.subList(0, count));
+            kept.sort(Comparator.comparing(rules::get, APPLY_ORDER));
+
+            this.candidates = new PromotionRuleIndex.Rule[count];
+            this.headerOf = new int[count];
+            Map<Long, Integer> headerIndex = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                PromotionRuleIndex.Rule rule = rules.get(kept.get(i));
+                candidates[i] = rule;
+                Integer index = headerIndex.get(rule.headerId);
+                if (index == null) {
+                    index = headerIndex.size();
+                    headerIndex.put(rule.headerId, index);
+                }
+                headerOf[i] = index;
+            }
+            this.headerUsed = new boolean[headerIndex.size()];
+            this.headerBest = new BigDecimal[headerIndex.size()];
+            this.totalAmount = totalAmount;
+            // Mỗi header tối đa một rule nên đường đi không dài hơn số header
+            this.path = new PromotionRuleIndex.Rule[headerIndex.size()];
+            this.pathDiscounts = new BigDecimal[headerIndex.size()];
+            this.discountsAtDepth = new BigDecimal[headerIndex.size() + 1][count];
+        }
+
+        // Phương án tham lam: áp mọi ứng viên còn áp được theo thứ tự áp, mỗi header một rule
+        void greedy() {
+            BigDecimal remaining = totalAmount;
+            BigDecimal discount = BigDecimal.ZERO;
+            int depth = 0;
+            for (int i = 0; i < candidates.length; i++) {
+                if (headerUsed[headerOf[i]]) continue;
+                BigDecimal d = applicableDiscount(candidates[i], remaining);
+                if (d == null) continue;
+                headerUsed[headerOf[i]] = true;
+                path[depth] = candidates[i];
+                pathDiscounts[depth] = d;
+                depth++;
+                remaining = remaining.subtract(d);
+                discount = discount.add(d);
+            }
+            offer(path, pathDiscounts, depth, discount);
+            Arrays.fill(headerUsed, false);
+        }
+
+        void run() {
+            search(0, totalAmount, BigDecimal.ZERO, 0);
+        }
+
+        // Chỉ xét ứng viên từ start trở đi: mỗi tập con xuất hiện đúng một lần, theo thứ tự áp
+        private void search(int start, BigDecimal remaining, BigDecimal discount, int depth) {
+            if (++nodes > MAX_SEARCH_NODES) {
+                exhaustive = false;
+                return;
+            }
+            if (depth > 0) {
+                offer(path, pathDiscounts, depth, discount);
+            }
+            if (remaining.signum() <= 0) return;
+
+            // Tính mức giảm của các ứng viên còn chọn được tại số tiền còn lại một lần, dùng cho cả cận và rẽ nhánh
+            BigDecimal[] discounts = discountsAtDepth[depth];
+            Arrays.fill(headerBest, null);
+            for (int i = start; i < candidates.length; i++) {
+                int header = headerOf[i];
+                BigDecimal d = headerUsed[header] ? null : applicableDiscount(candidates[i], remaining);
+                discounts[i] = d;
+                if (d != null && (headerBest[header] == null || d.compareTo(headerBest[header]) > 0)) {
+                    headerBest[header] = d;
+                }
+            }
+            BigDecimal bound = discount;
+            for (BigDecimal d : headerBest) {
+                if (d != null) bound = bound.add(d);
+            }
+            if (bound.compareTo(totalAmount) > 0) bound = totalAmount;
+            int cmp = bound.compareTo(bestTotal);
+            // Nhánh con có ít nhất depth + 1 rule, chỉ thắng khi giảm nhiều hơn hoặc bằng mà ít rule hơn
+            if (cmp < 0 || (cmp == 0 && depth + 1 >= bestRules.length)) return;
+
+            for (int i = start; i < candidates.length; i++) {
+                BigDecimal d = discounts[i];
+                if (d == null) continue;
+                int header = headerOf[i];
+                headerUsed[header] = true;
+                path[depth] = candidates[i];
+                pathDiscounts[depth] = d;
+                search(i + 1, remaining.subtract(d), discount.add(d), depth + 1);
+                headerUsed[header] = false;
+                if (!exhaustive) return;
+            }
+        }
+
+        // Mức giảm nếu rule còn áp được tại số tiền còn lại, ngược lại null
+        private BigDecimal applicableDiscount(PromotionRuleIndex.Rule rule, BigDecimal remaining) {
+            if (rule.minAmount != null && remaining.compareTo(rule.minAmount) < 0) return null;
+            BigDecimal d = discountAt(rule, remaining);
+            return d.signum() > 0 ? d : null;
+        }
+
+        void offer(PromotionRuleIndex.Rule[] rules, BigDecimal[] discounts, int length, BigDecimal total) {
+            if (!isBetter(rules, length, total)) return;
+            bestRules = Arrays.copyOf(rules, length);
+            bestDiscounts = Arrays.copyOf(discounts, length);
+            bestTotal = total;
+        }
+
+        private boolean isBetter(PromotionRuleIndex.Rule[] rules, int length, BigDecimal total) {
+            int cmp = total.compareTo(bestTotal);
+            if (cmp != 0) return cmp > 0;
+            if (bestRules.length == 0) return false;
+            if (length != bestRules.length) return length < bestRules.length;
+            for (int i = 0; i < length; i++) {
+                if (rules[i].ordinal != bestRules[i].ordinal) return rules[i].ordinal < bestRules[i].ordinal;
+            }
+            return false;
+        }
+
+        Solution solution() {
+            if (bestRules.length == 0) return EMPTY;
+            return new Solution(List.of(bestRules), List.of(bestDiscounts), bestTotal, exhaustive);
+        }
+    }
+
+    /**
+     * Các rule được chọn theo thứ tự áp và mức giảm tương ứng.
+     * exhaustive = false khi tìm kiếm dừng vì hết ngân sách (kết quả là tốt nhất đã tìm thấy)
+     */
+    public static final class Solution {
+        private final List<PromotionRuleIndex.Rule> rules;
+        private final List<BigDecimal> discounts;
+        private final BigDecimal totalDiscount;
+        private final boolean exhaustive;
+
+        private Solution(List<PromotionRuleIndex.Rule> rules, List<BigDecimal> discounts,
+                         BigDecimal totalDiscount, boolean exhaustive) {
+            this.rules = rules;
+            this.discounts = discounts;
+            this.totalDiscount = totalDiscount;
+            this.exhaustive = exhaustive;
+        }
+
+        public List<PromotionRuleIndex.Rule> getRules() { return rules; }
+        public List<BigDecimal> getDiscounts() { return discounts; }
+        public BigDecimal getTotalDiscount() { return totalDiscount; }
+        public boolean isExhaustive() { return exhaustive; }
+        public boolean isEmpty() { return rules.isEmpty(); }
+    }
+}
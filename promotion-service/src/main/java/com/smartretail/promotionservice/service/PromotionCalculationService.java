@@ -1,14 +1,8 @@
 package com.smartretail.promotionservice.service;
 
-import com.smartretail.promotionservice.dto.PromotionHeaderDto;
-import com.smartretail.promotionservice.dto.PromotionLineDto;
-import com.smartretail.promotionservice.dto.PromotionDetailDto;
 import com.smartretail.promotionservice.model.PromotionHeader;
-import com.smartretail.promotionservice.model.PromotionLine;
-import com.smartretail.promotionservice.model.PromotionDetail;
-import com.smartretail.promotionservice.repository.PromotionHeaderRepository;
-import com.smartretail.promotionservice.repository.PromotionLineRepository;
-import com.smartretail.promotionservice.repository.PromotionDetailRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
@@ -16,20 +10,26 @@ import org.springframework.web.client.RestTemplate;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
-import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 @Service
+@Slf4j
 public class PromotionCalculationService {
 
+    private static final int MAX_BATCH_CARTS = 20_000;
+
+    // Tính toán chỉ đọc bộ luật đã biên dịch, không truy vấn DB
     @Autowired
-    private PromotionHeaderRepository promotionHeaderRepository;
+    private PromotionRuleIndex promotionRuleIndex;
 
     @Autowired
-    private PromotionLineRepository promotionLineRepository;
+    private GiftPriceCache giftPriceCache;
 
     @Autowired
-    private PromotionDetailRepository promotionDetailRepository;
+    private PromotionRedemptionService promotionRedemptionService;
 
     @Autowired
     private RestTemplate restTemplate;
@@ -47,6 +47,16 @@ public class PromotionCalculationService {
     @Value("${app.inventory-service.path}")
     private String inventoryServicePath;
 
+    private static final BigDecimal ONE_HUNDRED = new BigDecimal(100);
+
+    // Pool riêng cho tính theo lô, không chiếm common pool của JVM
+    private final ForkJoinPool batchPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    @PreDestroy
+    public void shutdown() {
+        batchPool.shutdownNow();
+    }
+
     /**
      * DTO để tính toán khuyến mãi cho một sản phẩm
      */
@@ -146,6 +156,9 @@ public class PromotionCalculationService {
         private Long productUnitId;
         private Integer quantity;
         private String promotionName;
+        // Giá hiện tại của quà (chỉ để hiển thị, không trừ vào tiền phải trả); null nếu không lấy được giá
+        private BigDecimal listPrice;
+        private BigDecimal giftValue;
 
         public GiftItem(Long productUnitId, Integer quantity, String promotionName) {
             this.productUnitId = productUnitId;
@@ -156,6 +169,13 @@ public class PromotionCalculationService {
         public Long getProductUnitId() { return productUnitId; }
         public Integer getQuantity() { return quantity; }
         public String getPromotionName() { return promotionName; }
+        public BigDecimal getListPrice() { return listPrice; }
+        public BigDecimal getGiftValue() { return giftValue; }
+
+        public void setListPrice(BigDecimal listPrice) {
+            this.listPrice = listPrice;
+            this.giftValue = listPrice != null ? listPrice.multiply(new BigDecimal(quantity)) : null;
+        }
     }
 
     /**
@@ -184,145 +204,279 @@ public class PromotionCalculationService {
         public void setAppliedPromotions(List<String> appliedPromotions) { this.appliedPromotions = appliedPromotions; }
     }
 
+    /**
+     * Một giỏ hàng trong yêu cầu tính theo lô; products null nghĩa là giỏ không hợp lệ (invalidReason)
+     */
+    public static class CartRequest {
+        private final String cartId;
+        private final Long customerId;
+        private final List<ProductPromotionInfo> products;
+        private final String invalidReason;
+
+        public CartRequest(String cartId, Long customerId, List<ProductPromotionInfo> products) {
+            this(cartId, customerId, products, null);
+        }
+
+        private CartRequest(String cartId, Long customerId, List<ProductPromotionInfo> products, String invalidReason) {
+            this.cartId = cartId;
+            this.customerId = customerId;
+            this.products = products;
+            this.invalidReason = invalidReason;
+        }
+
+        public static CartRequest invalid(String cartId, String reason) {
+            return new CartRequest(cartId, null, null, reason);
+        }
+
+        public String getCartId() { return cartId; }
+        public Long getCustomerId() { return customerId; }
+        public List<ProductPromotionInfo> getProducts() { return products; }
+    }
+
+    /**
+     * Kết quả của một giỏ trong lô, cùng vị trí với giỏ ở yêu cầu
+     */
+    public static class CartResult {
+        private final int index;
+        private final String cartId;
+        private final boolean success;
+        private final String message;
+        private final OrderPromotionResult result;
+
+        CartResult(int index, String cartId, boolean success, String message, OrderPromotionResult result) {
+            this.index = index;
+            this.cartId = cartId;
+            this.success = success;
+            this.message = message;
+            this.result = result;
+        }
+
+        public int getIndex() { return index; }
+        public String getCartId() { return cartId; }
+        public boolean isSuccess() { return success; }
+        public String getMessage() { return message; }
+        public OrderPromotionResult getResult() { return result; }
+    }
+
+    public static class BatchOrderPromotionResult {
+        private int cartCount;
+        private int successCount;
+        private int failedCount;
+        private long elapsedMs;
+        private double cartsPerSecond;
+        private List<CartResult> results;
+
+        public int getCartCount() { return cartCount; }
+        public int getSuccessCount() { return successCount; }
+        public int getFailedCount() { return failedCount; }
+        public long getElapsedMs() { return elapsedMs; }
+        public double getCartsPerSecond() { return cartsPerSecond; }
+        public List<CartResult> getResults() { return results; }
+    }
+
+    /**
+     * Nhận từng rule đã áp trong lúc tính (gift khác null nếu rule thêm quà)
+     */
+    public interface AppliedRuleListener {
+        void applied(PromotionRuleIndex.Rule rule, BigDecimal discount, GiftItem gift);
+    }
+
     /**
      * Tính toán khuyến mãi cho một đơn hàng
      */
     public OrderPromotionResult calculateOrderPromotions(List<ProductPromotionInfo> products, Long customerId) {
+        // Lấy bộ luật của hôm nay một lần cho cả đơn hàng
+        OrderPromotionResult result = evaluateOrder(products, customerId, promotionRuleIndex.current());
+        priceGiftItems(List.of(result));
+        return result;
+    }
+
+    /**
+     * Tính khuyến mãi cho nhiều giỏ hàng (chốt giá cuối ngày ở POS, xem trước ở order-service).
+     * - Mọi giỏ dùng chung một bộ luật lấy lúc bắt đầu, kể cả khi có chỉnh sửa trong lúc chạy
+     * - Chạy song song trên ForkJoinPool riêng; giỏ lỗi chỉ làm hỏng kết quả của chính nó
+     * - Kết quả theo đúng thứ tự đầu vào; giá quà của cả lô được tra một lần
+     */
+    public BatchOrderPromotionResult calculateOrderPromotionsBatch(List<CartRequest> carts) {
+        if (carts == null || carts.isEmpty()) {
+            throw new RuntimeException("At least one cart is required");
+        }
+        if (carts.size() > MAX_BATCH_CARTS) {
+            throw new RuntimeException("Batch cannot exceed " + MAX_BATCH_CARTS + " carts");
+        }
+
+        long started = System.nanoTime();
+        PromotionRuleIndex.RuleSet rules = promotionRuleIndex.current();
+        List<CartResult> results = batchPool.submit(() -> IntStream.range(0, carts.size())
+                .parallel()
+                .mapToObj(i -> evaluateCart(i, carts.get(i), rules))
+                .collect(Collectors.toList()))
+                .join();
+
+        List<OrderPromotionResult> priced = new ArrayList<>(results.size());
+        int failed = 0;
+        for (CartResult r : results) {
+            if (r.isSuccess()) {
+                priced.add(r.getResult());
+            } else {
+                failed++;
+            }
+        }
+        priceGiftItems(priced);
+
+        long elapsedNanos = Math.max(1L, System.nanoTime() - started);
+        BatchOrderPromotionResult batch = new BatchOrderPromotionResult();
+        batch.cartCount = carts.size();
+        batch.successCount = carts.size() - failed;
+        batch.failedCount = failed;
+        batch.elapsedMs = elapsedNanos / 1_000_000;
+        batch.cartsPerSecond = carts.size() * 1_000_000_000.0 / elapsedNanos;
+        batch.results = results;
+        log.info("Batch promotion calculation: {} carts ({} failed) in {} ms, {} carts/s",
+                carts.size(), failed, batch.elapsedMs, Math.round(batch.cartsPerSecond));
+        return batch;
+    }
+
+    private CartResult evaluateCart(int index, CartRequest cart, PromotionRuleIndex.RuleSet rules) {
+        if (cart == null) {
+            return new CartResult(index, null, false, "Cart is empty", null);
+        }
+        if (cart.invalidReason != null) {
+            return new CartResult(index, cart.getCartId(), false, cart.invalidReason, null);
+        }
+        if (cart.getProducts() == null || cart.getProducts().isEmpty()) {
+            return new CartResult(index, cart.getCartId(), false, "Cart has no products", null);
+        }
+        try {
+            OrderPromotionResult result = evaluateOrder(cart.getProducts(), cart.getCustomerId(), rules);
+            return new CartResult(index, cart.getCartId(), true, null, result);
+        } catch (Exception e) {
+            return new CartResult(index, cart.getCartId(), false, e.getMessage(), null);
+        }
+    }
+
+    /**
+     * Tính khuyến mãi của một đơn trên bộ luật cho trước, không định giá quà.
+     * Không đụng DB hay dịch vụ ngoài nên an toàn khi chạy song song và dùng được ngoài Spring (benchmark).
+     */
+    public OrderPromotionResult evaluateOrder(List<ProductPromotionInfo> products, Long customerId,
+                                               PromotionRuleIndex.RuleSet rules) {
+        return evaluate(products, customerId, rules, true, null);
+    }
+
+    /**
+     * Như evaluateOrder nhưng cho đơn hàng cũ (mô phỏng): bỏ qua giới hạn lượt dùng
+     * và báo từng rule được áp cho listener để cộng chi phí theo chương trình.
+     */
+    public OrderPromotionResult simulateOrder(List<ProductPromotionInfo> products, Long customerId,
+                                               PromotionRuleIndex.RuleSet rules, AppliedRuleListener listener) {
+        return evaluate(products, customerId, rules, false, listener);
+    }
+
+    private OrderPromotionResult evaluate(List<ProductPromotionInfo> products, Long customerId,
+                                          PromotionRuleIndex.RuleSet rules, boolean enforceLimits,
+                                          AppliedRuleListener listener) {
         OrderPromotionResult result = new OrderPromotionResult();
         result.setProductPromotions(products);
 
-        // Lấy tất cả khuyến mãi đang hiệu lực
-        List<PromotionHeader> activePromotions = promotionHeaderRepository.findActivePromotionsByDate(LocalDate.now());
-
         // Tính toán khuyến mãi cho từng sản phẩm
         for (ProductPromotionInfo product : products) {
-            calculateProductPromotions(result, product, activePromotions, customerId);
+            calculateProductPromotions(result, product, rules, customerId, enforceLimits, listener);
             result.setTotalOriginalAmount(result.getTotalOriginalAmount().add(product.getSubtotal()));
             result.setTotalDiscountAmount(result.getTotalDiscountAmount().add(product.getDiscountAmount()));
             result.setTotalFinalAmount(result.getTotalFinalAmount().add(product.getFinalPrice()));
         }
 
         // Tính toán khuyến mãi cho toàn bộ đơn hàng
-        calculateOrderLevelPromotions(result, activePromotions, customerId);
+        calculateOrderLevelPromotions(result, rules, customerId, enforceLimits, listener);
 
         return result;
     }
 
     /**
-     * Tính toán khuyến mãi cho một sản phẩm
+     * Tính toán khuyến mãi cho một sản phẩm.
+     * Chỉ mục đã chọn sẵn các rule khớp theo ProductUnit điều kiện, product, category, customer
+     * hoặc áp cho mọi sản phẩm, và chỉ gồm rule đang hiệu lực; ở đây chỉ còn kiểm tra customer.
      */
-    private void calculateProductPromotions(OrderPromotionResult result, ProductPromotionInfo product, List<PromotionHeader> activePromotions, Long customerId) {
-        // Duyệt tất cả promotion headers đang active, sau đó duyệt lines của từng header
-        for (PromotionHeader promotion : activePromotions) {
-            List<PromotionLine> lines = promotionLineRepository.findByPromotionHeaderIdAndActiveTrue(promotion.getId());
-
-            for (PromotionLine line : lines) {
-                // Kiểm tra line có hiệu lực theo ngày
-                if (!line.isActiveOnDate(LocalDate.now())) {
-                    continue;
-                }
-
-                // Nếu line target theo customer thì kiểm tra customerId
-                if (line.getTargetType() == PromotionLine.TargetType.CUSTOMER &&
-                        (customerId == null || !line.getTargetId().equals(customerId))) {
-                    continue;
-                }
-
-                // Lấy promotion details của line
-                List<PromotionDetail> details = promotionDetailRepository.findByPromotionLineIdAndActiveTrue(line.getId());
-
-                for (PromotionDetail detail : details) {
-                    // Ưu tiên khớp theo ProductUnit điều kiện nếu có cấu hình trong detail
-                    if (detail.getConditionProductUnitId() != null) {
-                        if (product.getProductUnitId() == null ||
-                                !detail.getConditionProductUnitId().equals(product.getProductUnitId())) {
-                            continue; // không khớp đơn vị mua X
-                        }
-                    } else {
-                        // Không có điều kiện ở detail → có thể là giảm giá theo product/category.
-                        // Có thể giữ logic cũ theo targetType của line nếu cần (optional).
-                        if (line.getTargetType() == PromotionLine.TargetType.PRODUCT && line.getTargetId() != null) {
-                            if (!line.getTargetId().equals(product.getProductId())) {
-                                continue;
-                            }
-                        }
-                        if (line.getTargetType() == PromotionLine.TargetType.CATEGORY && line.getTargetId() != null) {
-                            if (product.getCategoryId() == null || !line.getTargetId().equals(product.getCategoryId())) {
-                                continue;
-                            }
-                        }
-
-                        // Nếu line không có target (áp dụng toàn bộ) và detail có minAmount,
-                        // coi đây là khuyến mãi cấp hóa đơn (bill-level) → không áp ở cấp sản phẩm
-                        // để tránh việc khi xóa target_id/target_type (để null) thì bị cộng dồn sai.
-                        if (line.getTargetType() == null && detail.getMinAmount() != null) {
-                            continue;
-                        }
-                    }
-
-                    applyPromotionToProduct(result, product, line, detail);
-                }
+    private void calculateProductPromotions(OrderPromotionResult result, ProductPromotionInfo product,
+                                            PromotionRuleIndex.RuleSet rules, Long customerId,
+                                            boolean enforceLimits, AppliedRuleListener listener) {
+        List<PromotionRuleIndex.Rule> candidates = rules.candidatesFor(
+                product.getProductUnitId(), product.getProductId(), product.getCategoryId(), customerId);
+        for (PromotionRuleIndex.Rule rule : candidates) {
+            if (!rule.matchesCustomer(customerId) || (enforceLimits && !isRedeemable(rule, customerId))) {
+                continue;
             }
+            applyPromotionToProduct(result, product, rule, listener);
         }
     }
 
     /**
      * Áp dụng khuyến mãi cho sản phẩm
      */
-    private void applyPromotionToProduct(OrderPromotionResult result, ProductPromotionInfo product, PromotionLine line, PromotionDetail detail) {
-        PromotionHeader header = line.getPromotionHeader();
+    private void applyPromotionToProduct(OrderPromotionResult result, ProductPromotionInfo product,
+                                         PromotionRuleIndex.Rule rule, AppliedRuleListener listener) {
         BigDecimal discount = BigDecimal.ZERO;
+        int giftCount = result.getGiftItems().size();
 
         // Ưu tiên type ở line; header không còn type => nếu line null thì bỏ qua
-        PromotionHeader.PromotionType effectiveType = line.getType();
+        PromotionHeader.PromotionType effectiveType = rule.type;
         if (effectiveType == null) {
             return; // không áp dụng nếu line không chỉ định loại
         }
 
         switch (effectiveType) {
             case DISCOUNT_PERCENT:
-                discount = calculatePercentageDiscount(product, detail);
+                discount = calculatePercentageDiscount(product, rule);
                 break;
             case DISCOUNT_AMOUNT:
-                discount = calculateFixedAmountDiscount(product, detail);
+                discount = calculateFixedAmountDiscount(product, rule);
                 break;
             case BUY_X_GET_Y:
-                discount = calculateBuyXGetYDiscount(result, product, header.getName(), detail);
+                discount = calculateBuyXGetYDiscount(result, product, rule.promotionName, rule);
                 break;
         }
 
         if (discount.compareTo(BigDecimal.ZERO) > 0) {
             product.setDiscountAmount(product.getDiscountAmount().add(discount));
             product.setFinalPrice(product.getSubtotal().subtract(product.getDiscountAmount()));
-            product.getAppliedPromotions().add(header.getName());
+            product.getAppliedPromotions().add(rule.promotionName);
+        }
+        if (listener != null) {
+            GiftItem gift = result.getGiftItems().size() > giftCount
+                    ? result.getGiftItems().get(result.getGiftItems().size() - 1)
+                    : null;
+            if (gift != null || discount.compareTo(BigDecimal.ZERO) > 0) {
+                listener.applied(rule, discount, gift);
+            }
         }
     }
 
     /**
      * Tính giảm giá theo phần trăm
      */
-    private BigDecimal calculatePercentageDiscount(ProductPromotionInfo product, PromotionDetail detail) {
-        if (detail.getDiscountPercent() == null || detail.getDiscountPercent() <= 0) {
+    private BigDecimal calculatePercentageDiscount(ProductPromotionInfo product, PromotionRuleIndex.Rule rule) {
+        if (rule.percent == null) {
             return BigDecimal.ZERO;
         }
 
         // Kiểm tra điều kiện số lượng
-        if (detail.getConditionQuantity() != null && product.getQuantity() < detail.getConditionQuantity()) {
+        if (rule.conditionQuantity != null && product.getQuantity() < rule.conditionQuantity) {
             return BigDecimal.ZERO;
         }
 
         // Kiểm tra điều kiện tổng tiền
-        if (detail.getMinAmount() != null && product.getSubtotal().compareTo(detail.getMinAmount()) < 0) {
+        if (rule.minAmount != null && product.getSubtotal().compareTo(rule.minAmount) < 0) {
             return BigDecimal.ZERO;
         }
 
         BigDecimal discount = product.getSubtotal()
-            .multiply(new BigDecimal(detail.getDiscountPercent()))
-            .divide(new BigDecimal(100), 2, RoundingMode.HALF_UP);
+            .multiply(rule.percent)
+            .divide(ONE_HUNDRED, 2, RoundingMode.HALF_UP);
 
         // Áp dụng giới hạn tối đa
-        if (detail.getMaxDiscount() != null && discount.compareTo(detail.getMaxDiscount()) > 0) {
-            discount = detail.getMaxDiscount();
+        if (rule.maxDiscount != null && discount.compareTo(rule.maxDiscount) > 0) {
+            discount = rule.maxDiscount;
         }
 
         return discount;
@@ -331,22 +485,22 @@ public class PromotionCalculationService {
     /**
      * Tính giảm giá theo số tiền cố định
      */
-    private BigDecimal calculateFixedAmountDiscount(ProductPromotionInfo product, PromotionDetail detail) {
-        if (detail.getDiscountAmount() == null || detail.getDiscountAmount().compareTo(BigDecimal.ZERO) <= 0) {
+    private BigDecimal calculateFixedAmountDiscount(ProductPromotionInfo product, PromotionRuleIndex.Rule rule) {
+        if (rule.discountAmount == null || rule.discountAmount.compareTo(BigDecimal.ZERO) <= 0) {
             return BigDecimal.ZERO;
         }
 
         // Kiểm tra điều kiện số lượng
-        if (detail.getConditionQuantity() != null && product.getQuantity() < detail.getConditionQuantity()) {
+        if (rule.conditionQuantity != null && product.getQuantity() < rule.conditionQuantity) {
             return BigDecimal.ZERO;
         }
 
         // Kiểm tra điều kiện tổng tiền
-        if (detail.getMinAmount() != null && product.getSubtotal().compareTo(detail.getMinAmount()) < 0) {
+        if (rule.minAmount != null && product.getSubtotal().compareTo(rule.minAmount) < 0) {
             return BigDecimal.ZERO;
         }
 
-        return detail.getDiscountAmount();
+        return rule.discountAmount;
     }
 
     /**
@@ -357,20 +511,20 @@ public class PromotionCalculationService {
      * - Khuyến mãi này chỉ thêm quà vào danh sách giftItems, khách vẫn trả đủ tiền cho
      *   phần hàng mua (X). Giá trị quà chỉ hiển thị ở UI, không trừ vào tiền phải trả.
      */
-    private BigDecimal calculateBuyXGetYDiscount(OrderPromotionResult result, ProductPromotionInfo product, String promotionName, PromotionDetail detail) {
-        if (detail.getConditionQuantity() == null || detail.getConditionQuantity() <= 0) {
+    private BigDecimal calculateBuyXGetYDiscount(OrderPromotionResult result, ProductPromotionInfo product, String promotionName, PromotionRuleIndex.Rule rule) {
+        if (rule.conditionQuantity == null || rule.conditionQuantity <= 0) {
             return BigDecimal.ZERO;
         }
 
         // Nếu mua đủ điều kiện X thì tặng Y (chỉ 1 lần) nhưng KHÔNG trừ tiền quà vào discount.
-        if (product.getQuantity() >= detail.getConditionQuantity()) {
-            int free = (detail.getFreeQuantity() != null && detail.getFreeQuantity() > 0)
-                    ? detail.getFreeQuantity()
+        if (product.getQuantity() >= rule.conditionQuantity) {
+            int free = (rule.freeQuantity != null && rule.freeQuantity > 0)
+                    ? rule.freeQuantity
                     : 1;
 
             // Nếu cấu hình có sản phẩm quà tặng (ProductUnit khác), ghi nhận vào giftItems
-            if (detail.getGiftProductUnitId() != null) {
-                result.getGiftItems().add(new GiftItem(detail.getGiftProductUnitId(), free, promotionName));
+            if (rule.giftProductUnitId != null) {
+                result.getGiftItems().add(new GiftItem(rule.giftProductUnitId, free, promotionName));
             } else {
                 // Trường hợp tặng thêm chính sản phẩm đang mua (mua 2 tặng 1 cùng mã),
                 // vẫn chỉ thêm quà logic ở UI, không trừ tiền.
@@ -384,81 +538,39 @@ public class PromotionCalculationService {
         return BigDecimal.ZERO;
     }
 
-    // Gọi product-service qua API Gateway để lấy giá hiện tại theo productUnitId
-    private BigDecimal fetchCurrentUnitPrice(Long productUnitId) {
-        try {
-            String url = apiGatewayUrl + productServicePath + "/0/prices/current?productUnitId=" + productUnitId;
-            Map response = restTemplate.getForObject(url, Map.class);
-            if (response != null && Boolean.TRUE.equals(response.get("success"))) {
-                Object data = response.get("data");
-                if (data != null) {
-                    return new BigDecimal(data.toString());
-                }
+    // Định giá mọi quà của các đơn hàng bằng một lần tra giá (cache hoặc một lời gọi bulk)
+    private void priceGiftItems(List<OrderPromotionResult> results) {
+        Set<Long> productUnitIds = new HashSet<>();
+        for (OrderPromotionResult result : results) {
+            for (GiftItem gift : result.getGiftItems()) {
+                productUnitIds.add(gift.getProductUnitId());
+            }
+        }
+        if (productUnitIds.isEmpty()) return;
+        Map<Long, BigDecimal> prices = giftPriceCache.getPrices(productUnitIds);
+        for (OrderPromotionResult result : results) {
+            for (GiftItem gift : result.getGiftItems()) {
+                gift.setListPrice(prices.get(gift.getProductUnitId()));
             }
-        } catch (Exception e) {
-            // ignore pricing fetch errors; fallback to using unit price of A
         }
-        return null;
     }
 
     /**
      * Tính toán khuyến mãi cấp đơn hàng (bill). Không xét target, chỉ cần header/line/detail hợp lệ.
-     * Hỗ trợ DISCOUNT_AMOUNT và DISCOUNT_PERCENT.
+     * Hỗ trợ DISCOUNT_AMOUNT và DISCOUNT_PERCENT; chương trình cộng dồn có thể áp cùng nhau (OrderDiscountSolver).
      */
-    private void calculateOrderLevelPromotions(OrderPromotionResult result, List<PromotionHeader> activePromotions, Long customerId) {
-        BigDecimal bestDiscount = BigDecimal.ZERO;
-        String bestPromotionName = null;
-
-        for (PromotionHeader promotion : activePromotions) {
-            // Duyệt các lines của header và dùng type ở line
-            List<PromotionLine> lines = promotionLineRepository
-                    .findByPromotionHeaderIdAndActiveTrue(promotion.getId());
-
-            for (PromotionLine line : lines) {
-                if (!line.isActiveOnDate(LocalDate.now())) {
-                    continue;
-                }
-
-                List<PromotionDetail> details = promotionDetailRepository
-                        .findByPromotionLineIdAndActiveTrue(line.getId());
-
-                for (PromotionDetail detail : details) {
-                    if (detail.getMinAmount() != null &&
-                            result.getTotalOriginalAmount().compareTo(detail.getMinAmount()) < 0) {
-                        continue;
-                    }
-
-                    // Chỉ áp dụng cho line-type percent/amount ở bill-level
-                    if (line.getType() == null) continue;
-
-                    BigDecimal orderDiscount = BigDecimal.ZERO;
-                    if (line.getType() == PromotionHeader.PromotionType.DISCOUNT_AMOUNT) {
-                        orderDiscount = detail.getDiscountAmount() != null ? detail.getDiscountAmount() : BigDecimal.ZERO;
-                    } else if (line.getType() == PromotionHeader.PromotionType.DISCOUNT_PERCENT
-                            && detail.getDiscountPercent() != null && detail.getDiscountPercent() > 0) {
-                        orderDiscount = result.getTotalOriginalAmount()
-                                .multiply(new BigDecimal(detail.getDiscountPercent()))
-                                .divide(new BigDecimal(100), 2, RoundingMode.HALF_UP);
-                    }
-
-                    if (detail.getMaxDiscount() != null &&
-                            orderDiscount.compareTo(detail.getMaxDiscount()) > 0) {
-                        orderDiscount = detail.getMaxDiscount();
-                    }
-
-                    if (orderDiscount.compareTo(bestDiscount) > 0) {
-                        bestDiscount = orderDiscount;
-                        bestPromotionName = promotion.getName();
-                    }
-                }
-            }
-        }
-
-        if (bestDiscount.compareTo(BigDecimal.ZERO) > 0) {
-            result.setTotalDiscountAmount(result.getTotalDiscountAmount().add(bestDiscount));
-            result.setTotalFinalAmount(result.getTotalFinalAmount().subtract(bestDiscount));
-            if (bestPromotionName != null) {
-                result.getAppliedPromotions().add(bestPromotionName);
+    private void calculateOrderLevelPromotions(OrderPromotionResult result, PromotionRuleIndex.RuleSet rules,
+                                               Long customerId, boolean enforceLimits, AppliedRuleListener listener) {
+        OrderDiscountSolver.Solution solution = solveOrderDiscount(rules, result.getTotalOriginalAmount(),
+                enforceLimits, customerId);
+        for (int i = 0; i < solution.getRules().size(); i++) {
+            PromotionRuleIndex.Rule rule = solution.getRules().get(i);
+            BigDecimal discount = solution.getDiscounts().get(i);
+            result.setTotalDiscountAmount(result.getTotalDiscountAmount().add(discount));
+            result.setTotalFinalAmount(result.getTotalFinalAmount().subtract(discount));
+            result.getAppliedPromotions().add(rule.promotionName);
+            if (listener != null) {
+                listener.applied(rule, discount, null);
             }
         }
     }
@@ -467,61 +579,41 @@ public class PromotionCalculationService {
      * Tính giảm giá theo bill (không cần liệt kê sản phẩm). Chỉ cần tổng tiền.
      */
     public BillDiscountResult calculateBillDiscount(BigDecimal totalAmount) {
+        return calculateBillDiscount(totalAmount, promotionRuleIndex.current());
+    }
+
+    public BillDiscountResult calculateBillDiscount(BigDecimal totalAmount, PromotionRuleIndex.RuleSet rules) {
         BillDiscountResult result = new BillDiscountResult();
         result.setTotalAmount(totalAmount);
         result.setFinalAmount(totalAmount);
 
-        BigDecimal bestDiscount = BigDecimal.ZERO;
-        String bestPromotionName = null;
-
-        List<PromotionHeader> activePromotions = promotionHeaderRepository.findActivePromotionsByDate(LocalDate.now());
-
-        for (PromotionHeader promotion : activePromotions) {
-            List<PromotionLine> lines = promotionLineRepository.findByPromotionHeaderIdAndActiveTrue(promotion.getId());
-            for (PromotionLine line : lines) {
-                if (!line.isActiveOnDate(LocalDate.now())) {
-                    continue;
-                }
-
-                List<PromotionDetail> details = promotionDetailRepository.findByPromotionLineIdAndActiveTrue(line.getId());
-                for (PromotionDetail detail : details) {
-                    if (detail.getMinAmount() != null && totalAmount.compareTo(detail.getMinAmount()) < 0) {
-                        continue;
-                    }
-
-                    if (line.getType() == null) continue;
-
-                    BigDecimal discount = BigDecimal.ZERO;
-                    if (line.getType() == PromotionHeader.PromotionType.DISCOUNT_AMOUNT) {
-                        discount = detail.getDiscountAmount() != null ? detail.getDiscountAmount() : BigDecimal.ZERO;
-                    } else if (line.getType() == PromotionHeader.PromotionType.DISCOUNT_PERCENT
-                            && detail.getDiscountPercent() != null && detail.getDiscountPercent() > 0) {
-                        discount = totalAmount
-                                .multiply(new BigDecimal(detail.getDiscountPercent()))
-                                .divide(new BigDecimal(100), 2, RoundingMode.HALF_UP);
-                    }
-
-                    if (detail.getMaxDiscount() != null && discount.compareTo(detail.getMaxDiscount()) > 0) {
-                        discount = detail.getMaxDiscount();
-                    }
-
-                    if (discount.compareTo(bestDiscount) > 0) {
-                        bestDiscount = discount;
-                        bestPromotionName = promotion.getName();
-                    }
-                }
+        OrderDiscountSolver.Solution solution = solveOrderDiscount(rules, totalAmount, true, null);
+        if (!solution.isEmpty()) {
+            result.setDiscountAmount(solution.getTotalDiscount());
+            result.setFinalAmount(totalAmount.subtract(solution.getTotalDiscount()));
+            for (PromotionRuleIndex.Rule rule : solution.getRules()) {
+                result.getAppliedPromotions().add(rule.promotionName);
             }
         }
 
-        if (bestDiscount.compareTo(BigDecimal.ZERO) > 0) {
-            result.setDiscountAmount(bestDiscount);
-            result.setFinalAmount(totalAmount.subtract(bestDiscount));
-            if (bestPromotionName != null) {
-                result.getAppliedPromotions().add(bestPromotionName);
-            }
+        return result;
+    }
+
+    // Tổ hợp rule cấp đơn hàng cho tổng giảm lớn nhất (một rule độc quyền hoặc nhiều rule cộng dồn)
+    private OrderDiscountSolver.Solution solveOrderDiscount(PromotionRuleIndex.RuleSet rules, BigDecimal totalAmount,
+                                                            boolean enforceLimits, Long customerId) {
+        OrderDiscountSolver.Solution solution = OrderDiscountSolver.solve(rules.orderRules(), totalAmount,
+                rule -> !enforceLimits || isRedeemable(rule, customerId));
+        if (!solution.isExhaustive()) {
+            log.debug("Order discount search stopped at node budget for total {}, using best found", totalAmount);
         }
+        return solution;
+    }
 
-        return result;
+    // Chương trình đã hết lượt (tổng hoặc của khách) thì không áp nữa; engine tạo ngoài Spring (benchmark) không kiểm tra
+    private boolean isRedeemable(PromotionRuleIndex.Rule rule, Long customerId) {
+        return !rule.usageLimited || promotionRedemptionService == null
+                || promotionRedemptionService.canRedeem(rule.headerId, customerId);
     }
 
     /**
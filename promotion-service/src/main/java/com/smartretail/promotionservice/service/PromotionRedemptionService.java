@@ -0,0 +1,441 @@
+package com.smartretail.promotionservice.service;
+
+import com.smartretail.promotionservice.model.PromotionHeader;
+import com.smartretail.promotionservice.model.PromotionRedemption;
+import com.smartretail.promotionservice.repository.PromotionHeaderRepository;
+import com.smartretail.promotionservice.repository.PromotionRedemptionRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Giới hạn lượt dùng khuyến mãi (tổng và theo khách) với bộ đếm trong bộ nhớ.
+ * - reserve giữ một lượt và trả token; order-service confirm khi đặt đơn, release khi huỷ; token quá hạn tự trả lượt
+ * - Lượt tổng đếm trên RedemptionQuota (nhiều ngăn CAS), lượt theo khách đếm bằng CAS trên bộ đếm của khách
+ * - Lượt đã xác nhận được ghi theo lô vào promotion_redemption; cùng lúc đối soát với DB: lượt do instance khác
+ *   ghi được thu hồi khỏi bộ đếm (chỉ giảm, không bao giờ cấp thêm). Nhiều instance có thể vượt tổng tối đa
+ *   bằng số lượt instance khác dùng trong một chu kỳ đối soát
+ * - Chương trình giới hạn theo khách: confirm ghi ngay bằng INSERT có điều kiện đếm lượt của khách trong DB,
+ *   nên giới hạn theo khách đúng trên mọi instance; bộ đếm khách trong bộ nhớ chỉ để chặn sớm khi reserve
+ * - Xác nhận trùng (cùng chương trình, cùng đơn) không được ghi nên lượt đã giữ được trả lại
+ */
+@Service
+@Slf4j
+public class PromotionRedemptionService {
+
+    private static final int FLUSH_BATCH_SIZE = 500;
+    private static final int QUOTA_STRIPES = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+
+    private static final String INSERT_REDEMPTION =
+            "INSERT IGNORE INTO promotion_redemption (promotion_header_id, customer_id, order_reference, redeemed_at) " +
+                    "VALUES (?, ?, ?, ?)";
+    // INSERT ... SELECT khoá đọc dải (header, customer) trên idx_promotion_redemption_customer nên hai instance
+    // ghi cùng khách được xếp hàng (một bên có thể nhận deadlock và phải gọi lại confirm)
+    private static final String INSERT_REDEMPTION_WITHIN_CUSTOMER_LIMIT =
+            "INSERT IGNORE INTO promotion_redemption (promotion_header_id, customer_id, order_reference, redeemed_at) " +
+                    "SELECT ?, ?, ?, ? FROM DUAL WHERE (SELECT COUNT(*) FROM promotion_redemption " +
+                    "WHERE promotion_header_id = ? AND customer_id = ?) < ?";
+
+    @Autowired
+    private PromotionHeaderRepository promotionHeaderRepository;
+
+    @Autowired
+    private PromotionRedemptionRepository promotionRedemptionRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Value("${promotion.redemption.reservation-ttl-ms:900000}")
+    private long reservationTtlMs;
+
+    private final Map<Long, Usage> usages = new ConcurrentHashMap<>();
+    private final Map<String, Reservation> reservations = new ConcurrentHashMap<>();
+    // Lượt đã xác nhận, chờ ghi DB
+    private final Queue<PromotionRedemption> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Kiểm tra nhanh khi tính khuyến mãi, không giữ lượt
+     */
+    public boolean canRedeem(Long headerId, Long customerId) {
+        Usage usage = usage(headerId);
+        if (usage == null) return true;
+        if (usage.quota != null && usage.quota.available() <= 0) return false;
+        if (usage.maxPerCustomer != null && customerId != null) {
+            AtomicInteger used = usage.customers.get(customerId);
+            return used == null || used.get() < usage.maxPerCustomer;
+        }
+        return true;
+    }
+
+    /**
+     * Giữ một lượt dùng; trả token để xác nhận hoặc huỷ
+     */
+    public String reserve(Long headerId, Long customerId) {
+        if (headerId == null) {
+            throw new RuntimeException("promotionHeaderId is required");
+        }
+        Usage usage = usage(headerId);
+        if (usage == null) {
+            throw new RuntimeException("Promotion header không tồn tại: " + headerId);
+        }
+
+        AtomicInteger customerUsed = null;
+        if (usage.maxPerCustomer != null) {
+            if (customerId == null) {
+                throw new RuntimeException("customerId is required for promotions limited per customer");
+            }
+            customerUsed = customerCounter(usage, headerId, customerId);
+            if (!tryIncrement(customerUsed, usage.maxPerCustomer)) {
+                throw new RuntimeException("Khách hàng đã dùng hết lượt của khuyến mãi này");
+            }
+        }
+        if (usage.quota != null && !usage.quota.tryAcquire()) {
+            if (customerUsed != null) customerUsed.decrementAndGet();
+            throw new RuntimeException("Khuyến mãi đã hết lượt sử dụng");
+        }
+
+        String token = UUID.randomUUID().toString();
+        reservations.put(token, new Reservation(headerId, customerId, System.currentTimeMillis() + reservationTtlMs));
+        return token;
+    }
+
+    /**
+     * Xác nhận lượt đã giữ cho một đơn hàng; false nếu token không tồn tại hoặc đã hết hạn.
+     * Khách đã đạt giới hạn trong DB (dùng ở instance khác) thì lượt giữ được trả lại và báo lỗi
+     */
+    public boolean confirm(String token, String orderReference) {
+        if (orderReference == null || orderReference.isBlank()) {
+            throw new RuntimeException("orderReference is required");
+        }
+        Reservation reservation = reservations.get(token);
+        if (reservation == null) return false;
+        Usage usage = usage(reservation.headerId);
+        if (usage != null && usage.maxPerCustomer != null && reservation.customerId != null) {
+            return confirmWithinCustomerLimit(token, reservation, usage, orderReference);
+        }
+        PromotionRedemption redemption = new PromotionRedemption(null, reservation.headerId,
+                reservation.customerId, orderReference, LocalDateTime.now());
+        // Thêm vào hàng chờ trước khi bỏ reservation để lượt luôn được đếm ở ít nhất một nơi
+        pending.add(redemption);
+        if (!reservations.remove(token, reservation)) {
+            // Vừa bị huỷ/hết hạn ở luồng khác
+            pending.remove(redemption);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean confirmWithinCustomerLimit(String token, Reservation reservation, Usage usage, String orderReference) {
+        if (!reservations.remove(token, reservation)) return false;
+        // Tính trước khi ghi để đối soát chạy song song không coi dòng này là của instance khác
+        usage.accountedRecords.incrementAndGet();
+        int inserted;
+        try {
+            inserted = jdbcTemplate.update(INSERT_REDEMPTION_WITHIN_CUSTOMER_LIMIT,
+                    reservation.headerId, reservation.customerId, orderReference, Timestamp.valueOf(LocalDateTime.now()),
+                    reservation.headerId, reservation.customerId, usage.maxPerCustomer);
+        } catch (RuntimeException e) {
+            usage.accountedRecords.decrementAndGet();
+            // Giữ lại lượt để order-service gọi confirm lại với cùng token
+            reservations.put(token, reservation);
+            throw e;
+        }
+        if (inserted > 0) return true;
+        usage.accountedRecords.decrementAndGet();
+        if (promotionRedemptionRepository.existsByPromotionHeaderIdAndOrderReference(reservation.headerId, orderReference)) {
+            // Đơn đã được xác nhận trước đó: lượt giữ lần này là thừa
+            returnPermit(reservation.headerId, reservation.customerId);
+            return true;
+        }
+        // Khách đã đủ lượt trong DB: trả lượt tổng, bộ đếm khách giữ ở mức tối đa để reserve sau bị chặn sớm
+        if (usage.quota != null) usage.quota.release();
+        AtomicInteger used = usage.customers.get(reservation.customerId);
+        if (used != null) used.accumulateAndGet(usage.maxPerCustomer, Math::max);
+        throw new RuntimeException("Khách hàng đã dùng hết lượt của khuyến mãi này");
+    }
+
+    public boolean release(String token) {
+        Reservation reservation = reservations.remove(token);
+        if (reservation == null) return false;
+        returnPermit(reservation.headerId, reservation.customerId);
+        return true;
+    }
+
+    /**
+     * Giới hạn của chương trình đổi: dựng lại bộ đếm sau khi commit
+     */
+    public void invalidateAfterCommit(Long headerId) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            reinitialize(headerId);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                try {
+                    reinitialize(headerId);
+                } catch (Exception e) {
+                    usages.remove(headerId);
+                    log.warn("Could not refresh usage limits of promotion {}: {}", headerId, e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Dữ liệu khuyến mãi đổi ở instance khác: dựng lại giới hạn của mọi chương trình đang theo dõi
+     */
+    public void invalidateAll() {
+        for (Long headerId : new ArrayList<>(usages.keySet())) {
+            reinitialize(headerId);
+        }
+    }
+
+    public Map<String, Object> getUsage(Long headerId) {
+        Usage usage = usage(headerId);
+        if (usage == null) {
+            throw new RuntimeException("Promotion header không tồn tại: " + headerId);
+        }
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("promotionHeaderId", headerId);
+        data.put("maxRedemptions", usage.maxRedemptions);
+        data.put("maxRedemptionsPerCustomer", usage.maxPerCustomer);
+        data.put("available", usage.quota != null ? usage.quota.available() : null);
+        data.put("reserved", countReserved(headerId));
+        data.put("pending", countPending(headerId));
+        data.put("recorded", promotionRedemptionRepository.countByPromotionHeaderId(headerId));
+        return data;
+    }
+
+    @Scheduled(fixedDelayString = "${promotion.redemption.flush-ms:1000}")
+    public void flushAndReconcile() {
+        try {
+            expireReservations();
+            flush();
+            reconcile();
+        } catch (Exception e) {
+            log.warn("Promotion redemption flush failed, will retry: {}", e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.error("Could not flush {} pending promotion redemptions on shutdown: {}", pending.size(), e.getMessage());
+        }
+    }
+
+    private Usage usage(Long headerId) {
+        if (headerId == null) return null;
+        Usage usage = usages.get(headerId);
+        return usage != null ? usage : initialize(headerId);
+    }
+
+    // Đồng bộ với flush để lượt đang được ghi không bị bỏ sót khi đếm
+    private synchronized Usage initialize(Long headerId) {
+        Usage usage = usages.get(headerId);
+        if (usage != null) return usage;
+        PromotionHeader header = promotionHeaderRepository.findById(headerId).orElse(null);
+        if (header == null) return null;
+        long recorded = promotionRedemptionRepository.countByPromotionHeaderId(headerId);
+        usage = new Usage(header, new AtomicLong(recorded), recorded + countPending(headerId) + countReserved(headerId),
+                new ConcurrentHashMap<>());
+        usages.put(headerId, usage);
+        return usage;
+    }
+
+    private synchronized void reinitialize(Long headerId) {
+        Usage previous = usages.get(headerId);
+        if (previous == null) return;
+        PromotionHeader header = promotionHeaderRepository.findById(headerId).orElse(null);
+        if (header == null) {
+            usages.remove(headerId);
+            return;
+        }
+        long used;
+        if (previous.quota != null) {
+            // Lượt đã cấp theo bộ đếm cũ (gồm cả lượt instance khác đã được thu hồi)
+            used = previous.maxRedemptions - previous.quota.available();
+        } else {
+            used = promotionRedemptionRepository.countByPromotionHeaderId(headerId)
+                    + countPending(headerId) + countReserved(headerId);
+        }
+        // Bộ đếm theo khách không phụ thuộc giới hạn nên giữ nguyên
+        Usage usage = new Usage(header, previous.accountedRecords, used, previous.customers);
+        usages.put(headerId, usage);
+        // Lượt cấp trên bộ đếm cũ trong lúc đổi
+        if (previous.quota != null && usage.quota != null) {
+            long late = previous.maxRedemptions - previous.quota.available() - used;
+            if (late > 0) usage.quota.revoke(late);
+        }
+    }
+
+    private AtomicInteger customerCounter(Usage usage, Long headerId, Long customerId) {
+        AtomicInteger counter = usage.customers.get(customerId);
+        if (counter != null) return counter;
+        int recorded = (int) promotionRedemptionRepository.countByPromotionHeaderIdAndCustomerId(headerId, customerId);
+        AtomicInteger loaded = new AtomicInteger(recorded);
+        counter = usage.customers.putIfAbsent(customerId, loaded);
+        return counter != null ? counter : loaded;
+    }
+
+    private static boolean tryIncrement(AtomicInteger counter, int limit) {
+        int current;
+        while ((current = counter.get()) < limit) {
+            if (counter.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void returnPermit(Long headerId, Long customerId) {
+        Usage usage = usages.get(headerId);
+        if (usage == null) return;
+        if (usage.quota != null) {
+            usage.quota.release();
+        }
+        if (usage.maxPerCustomer != null && customerId != null) {
+            AtomicInteger used = usage.customers.get(customerId);
+            if (used != null) used.decrementAndGet();
+        }
+    }
+
+    private void expireReservations() {
+        long now = System.currentTimeMillis();
+        int expired = 0;
+        for (Map.Entry<String, Reservation> entry : reservations.entrySet()) {
+            Reservation reservation = entry.getValue();
+            if (reservation.expiresAt < now && reservations.remove(entry.getKey(), reservation)) {
+                returnPermit(reservation.headerId, reservation.customerId);
+                expired++;
+            }
+        }
+        if (expired > 0) {
+            log.info("Released {} expired promotion reservations", expired);
+        }
+    }
+
+    // INSERT IGNORE: xác nhận trùng (cùng chương trình, cùng đơn) hoặc ghi lại sau lỗi không bị đếm hai lần;
+    // dòng bị bỏ qua không chiếm lượt nên trả lại lượt đã giữ (dòng thật sự đã ghi ở lần trước được đối soát thu hồi)
+    private synchronized void flush() {
+        while (!pending.isEmpty()) {
+            List<PromotionRedemption> batch = new ArrayList<>(FLUSH_BATCH_SIZE);
+            PromotionRedemption next;
+            while (batch.size() < FLUSH_BATCH_SIZE && (next = pending.poll()) != null) {
+                batch.add(next);
+            }
+            if (batch.isEmpty()) return;
+            int[][] results;
+            try {
+                results = jdbcTemplate.batchUpdate(INSERT_REDEMPTION, batch, batch.size(), (ps, r) -> {
+                            ps.setLong(1, r.getPromotionHeaderId());
+                            ps.setObject(2, r.getCustomerId());
+                            ps.setString(3, r.getOrderReference());
+                            ps.setTimestamp(4, Timestamp.valueOf(r.getRedeemedAt()));
+                        });
+            } catch (RuntimeException e) {
+                pending.addAll(batch);
+                throw e;
+            }
+            int i = 0;
+            for (int[] counts : results) {
+                for (int count : counts) {
+                    PromotionRedemption r = batch.get(i++);
+                    if (count > 0 || count == Statement.SUCCESS_NO_INFO) {
+                        Usage usage = usages.get(r.getPromotionHeaderId());
+                        if (usage != null) usage.accountedRecords.incrementAndGet();
+                    } else if (count == 0) {
+                        returnPermit(r.getPromotionHeaderId(), r.getCustomerId());
+                    }
+                }
+            }
+        }
+    }
+
+    // Lượt trong DB nhiều hơn số đã biết là do instance khác ghi: thu hồi khỏi bộ đếm
+    private synchronized void reconcile() {
+        List<Long> limited = new ArrayList<>();
+        for (Map.Entry<Long, Usage> entry : usages.entrySet()) {
+            if (entry.getValue().quota != null) limited.add(entry.getKey());
+        }
+        if (limited.isEmpty()) return;
+        for (PromotionRedemptionRepository.RedemptionCountView v :
+                promotionRedemptionRepository.countByPromotionHeaderIds(limited)) {
+            Usage usage = usages.get(v.getPromotionHeaderId());
+            if (usage == null || usage.quota == null) continue;
+            long foreign = v.getRedeemed() - usage.accountedRecords.get();
+            if (foreign > 0) {
+                usage.accountedRecords.addAndGet(foreign);
+                long revoked = usage.quota.revoke(foreign);
+                log.info("Promotion {}: {} redemptions from other instances, revoked {} local permits",
+                        v.getPromotionHeaderId(), foreign, revoked);
+            }
+        }
+    }
+
+    private long countReserved(Long headerId) {
+        long count = 0;
+        for (Reservation r : reservations.values()) {
+            if (r.headerId.equals(headerId)) count++;
+        }
+        return count;
+    }
+
+    private long countPending(Long headerId) {
+        long count = 0;
+        for (PromotionRedemption r : pending) {
+            if (r.getPromotionHeaderId().equals(headerId)) count++;
+        }
+        return count;
+    }
+
+    private static class Usage {
+        private final Integer maxRedemptions;
+        private final Integer maxPerCustomer;
+        // null nếu không giới hạn tổng
+        private final RedemptionQuota quota;
+        private final Map<Long, AtomicInteger> customers;
+        // Số dòng promotion_redemption đã được tính vào bộ đếm; dùng chung giữa các lần dựng lại Usage
+        private final AtomicLong accountedRecords;
+
+        Usage(PromotionHeader header, AtomicLong accountedRecords, long used, Map<Long, AtomicInteger> customers) {
+            this.maxRedemptions = header.getMaxRedemptions();
+            this.maxPerCustomer = header.getMaxRedemptionsPerCustomer();
+            this.quota = maxRedemptions != null
+                    ? new RedemptionQuota(Math.max(0, maxRedemptions - used), QUOTA_STRIPES)
+                    : null;
+            this.customers = customers;
+            this.accountedRecords = accountedRecords;
+        }
+    }
+
+    private static class Reservation {
+        private final Long headerId;
+        private final Long customerId;
+        private final long expiresAt;
+
+        Reservation(Long headerId, Long customerId, long expiresAt) {
+            this.headerId = headerId;
+            this.customerId = customerId;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,427 @@
+package com.smartretail.promotionservice.service;
+
+import com.smartretail.promotionservice.model.PromotionDetail;
+import com.smartretail.promotionservice.model.PromotionHeader;
+import com.smartretail.promotionservice.model.PromotionLine;
+import com.smartretail.promotionservice.repository.PromotionDetailRepository;
+import com.smartretail.promotionservice.repository.PromotionHeaderRepository;
+import com.smartretail.promotionservice.repository.PromotionLineRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.*;
+
+/**
+ * Bộ luật khuyến mãi đã biên dịch sẵn trong bộ nhớ, để tính khuyến mãi không phải truy vấn DB.
+ * - Nạp toàn bộ header/line/detail đang active bằng 3 truy vấn, mỗi detail thành một Rule bất biến
+ * - Đánh chỉ mục theo conditionProductUnitId, productId, categoryId, customerId và nhóm cấp đơn hàng
+ * - PromotionService gọi reloadAfterCommit khi tạo/sửa/bật/tắt; bộ luật mới được thay nguyên khối
+ * - Lịch theo ngày: các mốc bắt đầu/kết thúc của header và line chia thời gian thành các khoảng mà trong đó
+ *   tập rule hiệu lực không đổi; bộ luật đang dùng chỉ chứa rule của khoảng hiện tại, nên lúc tính
+ *   không còn phải so ngày. Qua mốc (nửa đêm hoặc lần đọc đầu tiên sau mốc) thì cắt lại từ lịch đã nạp
+ */
+@Component
+@Slf4j
+public class PromotionRuleIndex {
+
+    @Autowired
+    private PromotionHeaderRepository promotionHeaderRepository;
+
+    @Autowired
+    private PromotionLineRepository promotionLineRepository;
+
+    @Autowired
+    private PromotionDetailRepository promotionDetailRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private volatile Schedule schedule = Schedule.EMPTY;
+    // Lát cắt của schedule cho ngày hiện tại
+    private volatile RuleSet current = RuleSet.EMPTY;
+    // Lần nạp trước lỗi: lần đọc kế tiếp thử nạp lại
+    private volatile boolean stale = true;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        try {
+            reload();
+        } catch (Exception e) {
+            log.warn("Promotion rule index warm-up failed, will retry on first use: {}", e.getMessage());
+        }
+    }
+
+    public RuleSet current() {
+        if (stale) {
+            reloadQuietly();
+        }
+        RuleSet rules = current;
+        LocalDate today = LocalDate.now();
+        return rules.covers(today) ? rules : rollover(today);
+    }
+
+    // Cắt sẵn bộ luật của ngày mới ngay sau nửa đêm, request đầu tiên trong ngày không phải chờ
+    @Scheduled(cron = "${promotion.rules.rollover-cron:0 0 0 * * *}")
+    public void scheduledRollover() {
+        rollover(LocalDate.now());
+    }
+
+    private synchronized RuleSet rollover(LocalDate day) {
+        RuleSet rules = current;
+        if (rules.covers(day)) return rules;
+        rules = schedule.sliceFor(day);
+        current = rules;
+        log.info("Promotion rules for {}: {} active rules, valid until {}", day, rules.ruleCount,
+                rules.activeUntil != null ? rules.activeUntil : "no further change");
+        return rules;
+    }
+
+    /**
+     * Dựng lại sau khi transaction ghi commit (đọc được dữ liệu vừa ghi);
+     * không có transaction thì dựng lại ngay
+     */
+    public void reloadAfterCommit() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            reloadQuietly();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                reloadQuietly();
+            }
+        });
+    }
+
+    private void reloadQuietly() {
+        try {
+            reload();
+        } catch (Exception e) {
+            log.warn("Promotion rule reload failed, using previous rules: {}", e.getMessage());
+        }
+    }
+
+    // Tuần tự để bộ luật nạp sau luôn là bộ luật mới nhất
+    public synchronized void reload() {
+        long started = System.currentTimeMillis();
+        stale = false;
+        try {
+            // Transaction riêng: khi gọi từ afterCommit, transaction cũ vẫn còn gắn với luồng
+            TransactionTemplate template = new TransactionTemplate(transactionManager);
+            template.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+            template.setReadOnly(true);
+            Schedule compiled = template.execute(status -> compile());
+            LocalDate today = LocalDate.now();
+            RuleSet rules = compiled.sliceFor(today);
+            schedule = compiled;
+            current = rules;
+            log.info("Promotion rules compiled: {} rules, {} active on {}, in {} ms", compiled.rules.size(),
+                    rules.ruleCount, today, System.currentTimeMillis() - started);
+        } catch (RuntimeException e) {
+            stale = true;
+            throw e;
+        }
+    }
+
+    private Schedule compile() {
+        List<PromotionHeader> headers = promotionHeaderRepository.findByActiveTrue();
+        if (headers.isEmpty()) return Schedule.EMPTY;
+
+        List<Long> headerIds = new ArrayList<>(headers.size());
+        for (PromotionHeader h : headers) {
+            headerIds.add(h.getId());
+        }
+        List<PromotionLine> lines = promotionLineRepository.findByPromotionHeaderIdInAndActiveTrue(headerIds);
+        if (lines.isEmpty()) return Schedule.EMPTY;
+
+        List<Long> lineIds = new ArrayList<>(lines.size());
+        for (PromotionLine l : lines) {
+            lineIds.add(l.getId());
+        }
+        return compile(headers, lines, promotionDetailRepository.findByPromotionLineIdInAndActiveTrue(lineIds));
+    }
+
+    /**
+     * Bộ luật của một ngày dựng từ dữ liệu trong bộ nhớ, không qua DB (benchmark, mô phỏng).
+     * Header/line/detail không active bị bỏ qua như khi nạp từ DB.
+     */
+    public static RuleSet compileForDay(Collection<PromotionHeader> headers, Collection<PromotionLine> lines,
+                                        Collection<PromotionDetail> details, LocalDate day) {
+        return compile(headers, lines, details).sliceFor(day);
+    }
+
+    // Lịch đầy đủ để cắt bộ luật cho nhiều ngày (mô phỏng trên đơn hàng cũ)
+    public static Schedule compileSchedule(Collection<PromotionHeader> headers, Collection<PromotionLine> lines,
+                                           Collection<PromotionDetail> details) {
+        return compile(headers, lines, details);
+    }
+
+    private static Schedule compile(Collection<PromotionHeader> headers, Collection<PromotionLine> lines,
+                                    Collection<PromotionDetail> details) {
+        Map<Long, PromotionHeader> headerById = new HashMap<>();
+        for (PromotionHeader h : headers) {
+            if (Boolean.TRUE.equals(h.getActive())) headerById.put(h.getId(), h);
+        }
+        List<PromotionLine> activeLines = new ArrayList<>(lines.size());
+        for (PromotionLine l : lines) {
+            if (Boolean.TRUE.equals(l.getActive()) && headerById.containsKey(l.getPromotionHeader().getId())) {
+                activeLines.add(l);
+            }
+        }
+        // Giữ thứ tự duyệt cũ: theo header, rồi line, rồi detail
+        activeLines.sort(Comparator.comparing((PromotionLine l) -> l.getPromotionHeader().getId())
+                .thenComparing(PromotionLine::getId));
+
+        Map<Long, List<PromotionDetail>> detailsByLine = new HashMap<>();
+        for (PromotionDetail d : details) {
+            if (Boolean.TRUE.equals(d.getActive())) {
+                detailsByLine.computeIfAbsent(d.getPromotionLine().getId(), k -> new ArrayList<>()).add(d);
+            }
+        }
+
+        List<Rule> rules = new ArrayList<>();
+        int ordinal = 0;
+        for (PromotionLine line : activeLines) {
+            PromotionHeader header = headerById.get(line.getPromotionHeader().getId());
+            List<PromotionDetail> lineDetails = detailsByLine.getOrDefault(line.getId(), new ArrayList<>());
+            lineDetails.sort(Comparator.comparing(PromotionDetail::getId));
+            for (PromotionDetail detail : lineDetails) {
+                Rule rule = new Rule(header, line, detail, ordinal++);
+                if (rule.validFrom.isAfter(rule.validTo)) continue;
+                rules.add(rule);
+            }
+        }
+        return new Schedule(rules);
+    }
+
+    /**
+     * Toàn bộ rule đã biên dịch (mọi khoảng ngày) và các mốc ngày mà tập rule hiệu lực thay đổi
+     */
+    public static class Schedule {
+        static final Schedule EMPTY = new Schedule(List.of());
+
+        private final List<Rule> rules;
+        // Ngày bắt đầu hiệu lực và ngày ngay sau ngày kết thúc của từng rule
+        private final NavigableSet<LocalDate> boundaries = new TreeSet<>();
+
+        private Schedule(List<Rule> rules) {
+            this.rules = List.copyOf(rules);
+            for (Rule rule : rules) {
+                boundaries.add(rule.validFrom);
+                boundaries.add(rule.validTo.plusDays(1));
+            }
+        }
+
+        public int ruleCount() {
+            return rules.size();
+        }
+
+        // Bộ luật dùng được cho mọi ngày trong [mốc gần nhất <= day, mốc kế tiếp > day)
+        public RuleSet sliceFor(LocalDate day) {
+            RuleSet.Builder builder = new RuleSet.Builder();
+            for (Rule rule : rules) {
+                if (rule.isActiveOn(day)) builder.add(rule);
+            }
+            return builder.build(boundaries.floor(day), boundaries.higher(day));
+        }
+    }
+
+    /**
+     * Một detail đã gộp sẵn thông tin của line và header
+     */
+    public static class Rule {
+        public final int ordinal;
+        public final Long headerId;
+        public final String promotionName;
+        public final Long lineId;
+        public final Long detailId;
+        public final PromotionLine.TargetType targetType;
+        public final Long targetId;
+        public final PromotionHeader.PromotionType type;
+        // Giao của khoảng ngày header và line
+        public final LocalDate validFrom;
+        public final LocalDate validTo;
+        public final Float discountPercent;
+        // discountPercent dạng BigDecimal tính sẵn (null nếu không > 0)
+        public final BigDecimal percent;
+        public final BigDecimal discountAmount;
+        public final Integer conditionQuantity;
+        public final Integer freeQuantity;
+        public final Long conditionProductUnitId;
+        public final Long giftProductUnitId;
+        public final BigDecimal minAmount;
+        public final BigDecimal maxDiscount;
+        // Header có giới hạn lượt dùng (tổng hoặc theo khách)
+        public final boolean usageLimited;
+        // Giảm giá cấp đơn được cộng dồn (xem OrderDiscountSolver)
+        public final boolean stackable;
+
+        private Rule(PromotionHeader header, PromotionLine line, PromotionDetail detail, int ordinal) {
+            this.ordinal = ordinal;
+            this.headerId = header.getId();
+            this.promotionName = header.getName();
+            this.lineId = line.getId();
+            this.detailId = detail.getId();
+            this.targetType = line.getTargetType();
+            this.targetId = line.getTargetId();
+            this.type = line.getType();
+            // Giống PromotionLine.isActiveOnDate: line không có ngày thì dùng ngày của header
+            LocalDate from = header.getStartDate();
+            LocalDate to = header.getEndDate();
+            if (line.getStartDate() != null && line.getStartDate().isAfter(from)) from = line.getStartDate();
+            if (line.getEndDate() != null && line.getEndDate().isBefore(to)) to = line.getEndDate();
+            this.validFrom = from;
+            this.validTo = to;
+            this.discountPercent = detail.getDiscountPercent();
+            this.percent = detail.getDiscountPercent() != null && detail.getDiscountPercent() > 0
+                    ? new BigDecimal(detail.getDiscountPercent())
+                    : null;
+            this.discountAmount = detail.getDiscountAmount();
+            this.conditionQuantity = detail.getConditionQuantity();
+            this.freeQuantity = detail.getFreeQuantity();
+            this.conditionProductUnitId = detail.getConditionProductUnitId();
+            this.giftProductUnitId = detail.getGiftProductUnitId();
+            this.minAmount = detail.getMinAmount();
+            this.maxDiscount = detail.getMaxDiscount();
+            this.usageLimited = header.getMaxRedemptions() != null || header.getMaxRedemptionsPerCustomer() != null;
+            this.stackable = Boolean.TRUE.equals(header.getStackable());
+        }
+
+        public boolean isActiveOn(LocalDate date) {
+            return !date.isBefore(validFrom) && !date.isAfter(validTo);
+        }
+
+        // Line target theo customer chỉ áp cho đúng khách đó
+        public boolean matchesCustomer(Long customerId) {
+            if (targetType != PromotionLine.TargetType.CUSTOMER) return true;
+            return customerId != null && customerId.equals(targetId);
+        }
+    }
+
+    /**
+     * Bộ luật bất biến của một khoảng ngày, an toàn khi nhiều request đọc cùng lúc
+     */
+    public static class RuleSet {
+        // Khoảng rỗng: luôn bị cắt lại ở lần đọc đầu tiên
+        static final RuleSet EMPTY = new Builder().build(LocalDate.MAX, LocalDate.MAX);
+
+        public final int ruleCount;
+        public final LocalDateTime builtAt;
+        // Khoảng ngày bộ luật còn đúng: [activeFrom, activeUntil), null là không giới hạn
+        public final LocalDate activeFrom;
+        public final LocalDate activeUntil;
+        private final Map<Long, List<Rule>> byConditionProductUnit;
+        private final Map<Long, List<Rule>> byProduct;
+        private final Map<Long, List<Rule>> byCategory;
+        private final Map<Long, List<Rule>> byCustomer;
+        // Rule cấp sản phẩm áp cho mọi sản phẩm (line không có target)
+        private final List<Rule> productWide;
+        // Rule DISCOUNT_AMOUNT/DISCOUNT_PERCENT xét ở cấp đơn hàng
+        private final List<Rule> orderRules;
+
+        private RuleSet(Builder b, LocalDate activeFrom, LocalDate activeUntil) {
+            this.ruleCount = b.ruleCount;
+            this.builtAt = LocalDateTime.now();
+            this.activeFrom = activeFrom;
+            this.activeUntil = activeUntil;
+            this.byConditionProductUnit = freeze(b.byConditionProductUnit);
+            this.byProduct = freeze(b.byProduct);
+            this.byCategory = freeze(b.byCategory);
+            this.byCustomer = freeze(b.byCustomer);
+            this.productWide = List.copyOf(b.productWide);
+            this.orderRules = List.copyOf(b.orderRules);
+        }
+
+        /**
+         * Các rule có thể áp cho một sản phẩm, theo thứ tự duyệt header → line → detail.
+         * Đều đang hiệu lực; chỉ còn phải kiểm tra customer của rule điều kiện ProductUnit.
+         */
+        public List<Rule> candidatesFor(Long productUnitId, Long productId, Long categoryId, Long customerId) {
+            List<Rule> merged = new ArrayList<>();
+            addAll(merged, byConditionProductUnit, productUnitId);
+            addAll(merged, byProduct, productId);
+            addAll(merged, byCategory, categoryId);
+            addAll(merged, byCustomer, customerId);
+            merged.addAll(productWide);
+            if (merged.size() > 1) {
+                merged.sort(Comparator.comparingInt(r -> r.ordinal));
+            }
+            return merged;
+        }
+
+        public List<Rule> orderRules() {
+            return orderRules;
+        }
+
+        public boolean covers(LocalDate day) {
+            return (activeFrom == null || !day.isBefore(activeFrom))
+                    && (activeUntil == null || day.isBefore(activeUntil));
+        }
+
+        private static void addAll(List<Rule> target, Map<Long, List<Rule>> index, Long key) {
+            if (key == null) return;
+            List<Rule> rules = index.get(key);
+            if (rules != null) target.addAll(rules);
+        }
+
+        private static Map<Long, List<Rule>> freeze(Map<Long, List<Rule>> source) {
+            Map<Long, List<Rule>> copy = new HashMap<>(source.size() * 2);
+            source.forEach((k, v) -> copy.put(k, List.copyOf(v)));
+            return Collections.unmodifiableMap(copy);
+        }
+
+        private static class Builder {
+            private int ruleCount;
+            private final Map<Long, List<Rule>> byConditionProductUnit = new HashMap<>();
+            private final Map<Long, List<Rule>> byProduct = new HashMap<>();
+            private final Map<Long, List<Rule>> byCategory = new HashMap<>();
+            private final Map<Long, List<Rule>> byCustomer = new HashMap<>();
+            private final List<Rule> productWide = new ArrayList<>();
+            private final List<Rule> orderRules = new ArrayList<>();
+
+            // Phân loại đúng như điều kiện khớp trong calculateProductPromotions trước đây
+            void add(Rule rule) {
+                ruleCount++;
+                if (rule.type == PromotionHeader.PromotionType.DISCOUNT_AMOUNT
+                        || rule.type == PromotionHeader.PromotionType.DISCOUNT_PERCENT) {
+                    orderRules.add(rule);
+                }
+                // Line không chỉ định loại thì không áp ở cấp sản phẩm
+                if (rule.type == null) return;
+
+                if (rule.conditionProductUnitId != null) {
+                    index(byConditionProductUnit, rule.conditionProductUnitId, rule);
+                } else if (rule.targetType == PromotionLine.TargetType.PRODUCT && rule.targetId != null) {
+                    index(byProduct, rule.targetId, rule);
+                } else if (rule.targetType == PromotionLine.TargetType.CATEGORY && rule.targetId != null) {
+                    index(byCategory, rule.targetId, rule);
+                } else if (rule.targetType == PromotionLine.TargetType.CUSTOMER) {
+                    if (rule.targetId != null) index(byCustomer, rule.targetId, rule);
+                } else if (rule.targetType != null || rule.minAmount == null) {
+                    // Line không target và có minAmount là khuyến mãi cấp hóa đơn, không áp ở cấp sản phẩm
+                    productWide.add(rule);
+                }
+            }
+
+            private static void index(Map<Long, List<Rule>> index, Long key, Rule rule) {
+                index.computeIfAbsent(key, k -> new ArrayList<>()).add(rule);
+            }
+
+            RuleSet build(LocalDate activeFrom, LocalDate activeUntil) {
+                return new RuleSet(this, activeFrom, activeUntil);
+            }
+        }
+    }
+}
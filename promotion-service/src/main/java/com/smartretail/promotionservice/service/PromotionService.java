@@ -10,11 +10,16 @@ import com.smartretail.promotionservice.repository.PromotionHeaderRepository;
 import com.smartretail.promotionservice.repository.PromotionLineRepository;
 import com.smartretail.promotionservice.repository.PromotionDetailRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.stream.Collectors;
 
@@ -31,6 +36,21 @@ public class PromotionService {
     @Autowired
     private PromotionDetailRepository promotionDetailRepository;
 
+    @Autowired
+    private PromotionRuleIndex promotionRuleIndex;
+
+    @Autowired
+    private PromotionRedemptionService promotionRedemptionService;
+
+    @Autowired
+    private PromotionVersionService promotionVersionService;
+
+    // Sau mọi thay đổi: tăng version dữ liệu (cùng transaction) và nạp lại bộ luật sau commit
+    private void rulesChanged() {
+        promotionRuleIndex.reloadAfterCommit();
+        promotionVersionService.bumpVersion();
+    }
+
     // ==================== PROMOTION HEADER ====================
 
     /**
@@ -52,8 +72,12 @@ public class PromotionService {
         header.setStartDate(dto.getStartDate());
         header.setEndDate(dto.getEndDate());
         header.setActive(dto.getActive() != null ? dto.getActive() : false); // Mặc định là false
+        header.setMaxRedemptions(positiveOrNull(dto.getMaxRedemptions()));
+        header.setMaxRedemptionsPerCustomer(positiveOrNull(dto.getMaxRedemptionsPerCustomer()));
+        header.setStackable(Boolean.TRUE.equals(dto.getStackable())); // Mặc định là độc quyền
 
         PromotionHeader savedHeader = promotionHeaderRepository.save(header);
+        rulesChanged();
         return convertToHeaderDto(savedHeader);
     }
 
@@ -82,8 +106,20 @@ public class PromotionService {
             if (dto.getActive() != null) {
                 header.setActive(dto.getActive());
             }
+            // Giới hạn: null giữ nguyên, <= 0 là bỏ giới hạn
+            if (dto.getMaxRedemptions() != null) {
+                header.setMaxRedemptions(positiveOrNull(dto.getMaxRedemptions()));
+            }
+            if (dto.getMaxRedemptionsPerCustomer() != null) {
+                header.setMaxRedemptionsPerCustomer(positiveOrNull(dto.getMaxRedemptionsPerCustomer()));
+            }
+            if (dto.getStackable() != null) {
+                header.setStackable(dto.getStackable());
+            }
 
             PromotionHeader updatedHeader = promotionHeaderRepository.save(header);
+            rulesChanged();
+            promotionRedemptionService.invalidateAfterCommit(id);
             return Optional.of(convertToHeaderDto(updatedHeader));
         }
         return Optional.empty();
@@ -98,6 +134,7 @@ public class PromotionService {
             PromotionHeader h = header.get();
             h.setActive(true);
             promotionHeaderRepository.save(h);
+            rulesChanged();
             return true;
         }
         return false;
@@ -112,6 +149,7 @@ public class PromotionService {
             PromotionHeader h = header.get();
             h.setActive(false);
             promotionHeaderRepository.save(h);
+            rulesChanged();
             return true;
         }
         return false;
@@ -126,6 +164,7 @@ public class PromotionService {
             PromotionHeader h = header.get();
             h.setActive(false);
             promotionHeaderRepository.save(h);
+            rulesChanged();
             return true;
         }
         return false;
@@ -144,9 +183,7 @@ public class PromotionService {
      */
     public List<PromotionHeaderDto> getAllActivePromotionHeaders() {
         List<PromotionHeader> headers = promotionHeaderRepository.findByActiveTrue();
-        return headers.stream()
-                .map(this::convertToHeaderDto)
-                .collect(Collectors.toList());
+        return convertToHeaderDtos(headers);
     }
 
     /**
@@ -154,9 +191,7 @@ public class PromotionService {
      */
     public List<PromotionHeaderDto> getAllPromotionHeaders() {
         List<PromotionHeader> headers = promotionHeaderRepository.findAll();
-        return headers.stream()
-                .map(this::convertToHeaderDto)
-                .collect(Collectors.toList());
+        return convertToHeaderDtos(headers);
     }
 
     /**
@@ -164,9 +199,7 @@ public class PromotionService {
      */
     public List<PromotionHeaderDto> getActivePromotionsByDate(LocalDate date) {
         List<PromotionHeader> headers = promotionHeaderRepository.findActivePromotionsByDate(date);
-        return headers.stream()
-                .map(this::convertToHeaderDto)
-                .collect(Collectors.toList());
+        return convertToHeaderDtos(headers);
     }
 
     /**
@@ -174,9 +207,23 @@ public class PromotionService {
      */
     public List<PromotionHeaderDto> searchPromotionHeadersByName(String name) {
         List<PromotionHeader> headers = promotionHeaderRepository.findByNameContainingIgnoreCase(name);
-        return headers.stream()
-                .map(this::convertToHeaderDto)
-                .collect(Collectors.toList());
+        return convertToHeaderDtos(headers);
+    }
+
+    /**
+     * Cây khuyến mãi (header → lines → details) cho màn hình quản trị, thay cho việc gọi lần lượt
+     * headers, lines của từng header rồi details của từng line.
+     * Một trang header + một truy vấn lines + một truy vấn details, tất cả là projection chỉ đọc.
+     */
+    @Transactional(readOnly = true)
+    public Page<PromotionHeaderDto> getPromotionTree(Boolean active, LocalDate fromDate, LocalDate toDate,
+                                                     PromotionLine.TargetType targetType, Long targetId,
+                                                     Pageable pageable) {
+        Page<PromotionHeaderDto> page = promotionHeaderRepository
+                .findTreeHeaders(active, fromDate, toDate, targetType, targetId, pageable)
+                .map(this::convertViewToHeaderDto);
+        attachLines(page.getContent());
+        return page;
     }
 
     // ==================== PROMOTION LINE ====================
@@ -217,6 +264,7 @@ public class PromotionService {
         line.setActive(dto.getActive() != null ? dto.getActive() : true); // Mặc định là true
 
         PromotionLine savedLine = promotionLineRepository.save(line);
+        rulesChanged();
         return PromotionLineDto.fromEntity(savedLine);
     }
 
@@ -233,6 +281,7 @@ public class PromotionService {
             }
             l.setActive(true);
             promotionLineRepository.save(l);
+            rulesChanged();
             return true;
         }
         return false;
@@ -247,6 +296,7 @@ public class PromotionService {
             PromotionLine l = line.get();
             l.setActive(false);
             promotionLineRepository.save(l);
+            rulesChanged();
             return true;
         }
         return false;
@@ -257,9 +307,7 @@ public class PromotionService {
      */
     public List<PromotionLineDto> getPromotionLinesByHeaderId(Long headerId) {
         List<PromotionLine> lines = promotionLineRepository.findByPromotionHeaderIdAndActiveTrue(headerId);
-        return lines.stream()
-                .map(this::convertToLineDto)
-                .collect(Collectors.toList());
+        return convertToLineDtos(lines);
     }
 
     /**
@@ -267,9 +315,7 @@ public class PromotionService {
      */
     public List<PromotionLineDto> getAllPromotionLinesByHeaderId(Long headerId) {
         List<PromotionLine> lines = promotionLineRepository.findByPromotionHeaderId(headerId);
-        return lines.stream()
-                .map(this::convertToLineDto)
-                .collect(Collectors.toList());
+        return convertToLineDtos(lines);
     }
 
     /**
@@ -303,6 +349,7 @@ public class PromotionService {
         if (dto.getActive() != null) line.setActive(dto.getActive());
 
         PromotionLine saved = promotionLineRepository.save(line);
+        rulesChanged();
         return Optional.of(convertToLineDto(saved));
     }
 
@@ -339,6 +386,7 @@ public class PromotionService {
         detail.setActive(dto.getActive() != null ? dto.getActive() : true); // Mặc định là true
 
         PromotionDetail savedDetail = promotionDetailRepository.save(detail);
+        rulesChanged();
         return convertToDetailDto(savedDetail);
     }
 
@@ -358,6 +406,7 @@ public class PromotionService {
             }
             d.setActive(true);
             promotionDetailRepository.save(d);
+            rulesChanged();
             return true;
         }
         return false;
@@ -372,6 +421,7 @@ public class PromotionService {
             PromotionDetail d = detail.get();
             d.setActive(false);
             promotionDetailRepository.save(d);
+            rulesChanged();
             return true;
         }
         return false;
@@ -433,31 +483,57 @@ public class PromotionService {
         if (dto.getActive() != null) d.setActive(dto.getActive());
 
         PromotionDetail saved = promotionDetailRepository.save(d);
+        rulesChanged();
         return Optional.of(convertToDetailDto(saved));
     }
 
     // ==================== UTILITY METHODS ====================
 
+    private static Integer positiveOrNull(Integer value) {
+        return value != null && value > 0 ? value : null;
+    }
+
     /**
      * Chuyển đổi PromotionHeader thành DTO
      */
     private PromotionHeaderDto convertToHeaderDto(PromotionHeader header) {
+        return convertToHeaderDtos(List.of(header)).get(0);
+    }
+
+    /**
+     * Chuyển đổi nhiều PromotionHeader thành DTO kèm lines/details (cả active và inactive)
+     */
+    private List<PromotionHeaderDto> convertToHeaderDtos(List<PromotionHeader> headers) {
+        List<PromotionHeaderDto> dtos = new ArrayList<>(headers.size());
+        for (PromotionHeader header : headers) {
+            PromotionHeaderDto dto = new PromotionHeaderDto();
+            dto.setId(header.getId());
+            dto.setName(header.getName());
+            // type đã chuyển xuống line, header không còn type
+            dto.setStartDate(header.getStartDate());
+            dto.setEndDate(header.getEndDate());
+            dto.setCreatedAt(header.getCreatedAt());
+            dto.setActive(header.getActive());
+            dto.setMaxRedemptions(header.getMaxRedemptions());
+            dto.setMaxRedemptionsPerCustomer(header.getMaxRedemptionsPerCustomer());
+            dto.setStackable(Boolean.TRUE.equals(header.getStackable()));
+            dtos.add(dto);
+        }
+        attachLines(dtos);
+        return dtos;
+    }
+
+    private PromotionHeaderDto convertViewToHeaderDto(PromotionHeaderRepository.HeaderView header) {
         PromotionHeaderDto dto = new PromotionHeaderDto();
         dto.setId(header.getId());
         dto.setName(header.getName());
-        // type đã chuyển xuống line, header không còn type
         dto.setStartDate(header.getStartDate());
         dto.setEndDate(header.getEndDate());
         dto.setCreatedAt(header.getCreatedAt());
         dto.setActive(header.getActive());
-
-        // Lấy promotion lines (cả active và inactive)
-        List<PromotionLine> lines = promotionLineRepository.findByPromotionHeaderId(header.getId());
-        List<PromotionLineDto> lineDtos = lines.stream()
-                .map(this::convertToLineDto)
-                .collect(Collectors.toList());
-        dto.setPromotionLines(lineDtos);
-
+        dto.setMaxRedemptions(header.getMaxRedemptions());
+        dto.setMaxRedemptionsPerCustomer(header.getMaxRedemptionsPerCustomer());
+        dto.setStackable(Boolean.TRUE.equals(header.getStackable()));
         return dto;
     }
 
@@ -465,24 +541,72 @@ public class PromotionService {
      * Chuyển đổi PromotionLine thành DTO
      */
     private PromotionLineDto convertToLineDto(PromotionLine line) {
-        PromotionLineDto dto = new PromotionLineDto();
-        dto.setId(line.getId());
-        dto.setPromotionHeaderId(line.getPromotionHeader().getId());
-        dto.setTargetType(line.getTargetType());
-        dto.setTargetId(line.getTargetId());
-        dto.setType(line.getType());
-        dto.setStartDate(line.getStartDate());
-        dto.setEndDate(line.getEndDate());
-        dto.setActive(line.getActive());
-
-        // Lấy promotion details (cả active và inactive)
-        List<PromotionDetail> details = promotionDetailRepository.findByPromotionLineId(line.getId());
-        List<PromotionDetailDto> detailDtos = details.stream()
-                .map(this::convertToDetailDto)
-                .collect(Collectors.toList());
-        dto.setPromotionDetails(detailDtos);
+        return convertToLineDtos(List.of(line)).get(0);
+    }
 
-        return dto;
+    private List<PromotionLineDto> convertToLineDtos(List<PromotionLine> lines) {
+        List<PromotionLineDto> dtos = new ArrayList<>(lines.size());
+        for (PromotionLine line : lines) {
+            dtos.add(PromotionLineDto.fromEntity(line));
+        }
+        attachDetails(dtos);
+        return dtos;
+    }
+
+    /**
+     * Gắn lines của nhiều header bằng một truy vấn projection (thay cho một truy vấn mỗi header)
+     */
+    private void attachLines(List<PromotionHeaderDto> headers) {
+        Map<Long, PromotionHeaderDto> headerById = new HashMap<>();
+        for (PromotionHeaderDto header : headers) {
+            header.setPromotionLines(new ArrayList<>());
+            headerById.put(header.getId(), header);
+        }
+        if (headerById.isEmpty()) return;
+
+        List<PromotionLineDto> lines = new ArrayList<>();
+        for (PromotionLineRepository.LineView view : promotionLineRepository.findViewsByHeaderIds(headerById.keySet())) {
+            PromotionLineDto dto = new PromotionLineDto();
+            dto.setId(view.getId());
+            dto.setPromotionHeaderId(view.getPromotionHeaderId());
+            dto.setTargetType(view.getTargetType());
+            dto.setTargetId(view.getTargetId());
+            dto.setType(view.getType());
+            dto.setStartDate(view.getStartDate());
+            dto.setEndDate(view.getEndDate());
+            dto.setActive(view.getActive());
+            headerById.get(view.getPromotionHeaderId()).getPromotionLines().add(dto);
+            lines.add(dto);
+        }
+        attachDetails(lines);
+    }
+
+    /**
+     * Gắn details của nhiều line bằng một truy vấn projection (thay cho một truy vấn mỗi line)
+     */
+    private void attachDetails(List<PromotionLineDto> lines) {
+        Map<Long, PromotionLineDto> lineById = new HashMap<>();
+        for (PromotionLineDto line : lines) {
+            line.setPromotionDetails(new ArrayList<>());
+            lineById.put(line.getId(), line);
+        }
+        if (lineById.isEmpty()) return;
+
+        for (PromotionDetailRepository.DetailView view : promotionDetailRepository.findViewsByLineIds(lineById.keySet())) {
+            PromotionDetailDto dto = new PromotionDetailDto();
+            dto.setId(view.getId());
+            dto.setPromotionLineId(view.getPromotionLineId());
+            dto.setDiscountPercent(view.getDiscountPercent());
+            dto.setDiscountAmount(view.getDiscountAmount());
+            dto.setConditionQuantity(view.getConditionQuantity());
+            dto.setFreeQuantity(view.getFreeQuantity());
+            dto.setConditionProductUnitId(view.getConditionProductUnitId());
+            dto.setGiftProductUnitId(view.getGiftProductUnitId());
+            dto.setMinAmount(view.getMinAmount());
+            dto.setMaxDiscount(view.getMaxDiscount());
+            dto.setActive(view.getActive());
+            lineById.get(view.getPromotionLineId()).getPromotionDetails().add(dto);
+        }
     }
 
     /**
@@ -0,0 +1,503 @@
+package com.smartretail.promotionservice.service;
+
+import com.smartretail.promotionservice.model.PromotionDetail;
+import com.smartretail.promotionservice.model.PromotionHeader;
+import com.smartretail.promotionservice.model.PromotionLine;
+import com.smartretail.promotionservice.repository.PromotionDetailRepository;
+import com.smartretail.promotionservice.repository.PromotionHeaderRepository;
+import com.smartretail.promotionservice.repository.PromotionLineRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Mô phỏng chi phí khuyến mãi trên đơn hàng cũ (what-if trước khi chạy chiến dịch).
+ * - Dòng đơn hàng được stream từ order-service (/api/orders/export/lines, CSV sắp theo đơn), đọc đến đâu
+ *   gom thành đơn đến đó; mỗi 2000 đơn là một task trên ForkJoinPool riêng, số task đang chạy có giới hạn
+ *   nên bộ nhớ không phụ thuộc số đơn
+ * - Có danh sách chương trình: chỉ tính các chương trình đó, coi như chạy suốt khoảng ngày (kể cả chưa bật);
+ *   không có: dùng các chương trình đang active với ngày hiệu lực thật
+ * - Không xét giới hạn lượt dùng; quà được định giá theo giá hiện tại
+ */
+@Service
+@Slf4j
+public class PromotionSimulationService {
+
+    private static final int ORDERS_PER_TASK = 2_000;
+    private static final int MAX_DAYS = 366;
+
+    @Autowired
+    private PromotionHeaderRepository promotionHeaderRepository;
+
+    @Autowired
+    private PromotionLineRepository promotionLineRepository;
+
+    @Autowired
+    private PromotionDetailRepository promotionDetailRepository;
+
+    @Autowired
+    private PromotionCalculationService promotionCalculationService;
+
+    @Autowired
+    private GiftPriceCache giftPriceCache;
+
+    @Autowired
+    @Qualifier("bulkLoadBalancedRestTemplate")
+    private RestTemplate bulkLoadBalancedRestTemplate;
+
+    @Value("${order.service.name:order-service}")
+    private String orderServiceName;
+
+    @Value("${product.service.name:service-product}")
+    private String productServiceName;
+
+    // Pool riêng: một lần mô phỏng chạy vài phút, không được chiếm pool tính theo lô của POS
+    private final ForkJoinPool simulationPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    // Mỗi lần chỉ một mô phỏng (đã dùng hết CPU của pool)
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    @PreDestroy
+    public void shutdown() {
+        simulationPool.shutdownNow();
+    }
+
+    /**
+     * Một chương trình trong kết quả mô phỏng
+     */
+    public static class PromotionImpact {
+        private final Long promotionHeaderId;
+        private final String promotionName;
+        private long affectedOrders;
+        private BigDecimal discountAmount = BigDecimal.ZERO;
+        private long giftQuantity;
+        private BigDecimal giftValue = BigDecimal.ZERO;
+        private final Map<Long, Long> giftQuantityByUnit = new HashMap<>();
+        // Thứ tự đơn gần nhất đã đếm, để mỗi đơn chỉ tính một lần dù áp nhiều dòng
+        private long lastOrder = -1;
+
+        PromotionImpact(Long promotionHeaderId, String promotionName) {
+            this.promotionHeaderId = promotionHeaderId;
+            this.promotionName = promotionName;
+        }
+
+        public Long getPromotionHeaderId() { return promotionHeaderId; }
+        public String getPromotionName() { return promotionName; }
+        public long getAffectedOrders() { return affectedOrders; }
+        public BigDecimal getDiscountAmount() { return discountAmount; }
+        public long getGiftQuantity() { return giftQuantity; }
+        public BigDecimal getGiftValue() { return giftValue; }
+
+        void merge(PromotionImpact other) {
+            affectedOrders += other.affectedOrders;
+            discountAmount = discountAmount.add(other.discountAmount);
+            giftQuantity += other.giftQuantity;
+            other.giftQuantityByUnit.forEach((unit, qty) -> giftQuantityByUnit.merge(unit, qty, Long::sum));
+        }
+    }
+
+    public static class SimulationResult {
+        private LocalDate startDate;
+        private LocalDate endDate;
+        private List<Long> promotionHeaderIds;
+        private int ruleCount;
+        private long orderCount;
+        private long lineCount;
+        private long skippedLines;
+        private long affectedOrders;
+        private BigDecimal totalOriginalAmount = BigDecimal.ZERO;
+        private BigDecimal totalDiscountAmount = BigDecimal.ZERO;
+        private BigDecimal discountRatePercent = BigDecimal.ZERO;
+        private BigDecimal totalGiftValue = BigDecimal.ZERO;
+        private long elapsedMs;
+        private double ordersPerSecond;
+        private List<PromotionImpact> promotions = new ArrayList<>();
+
+        public LocalDate getStartDate() { return startDate; }
+        public LocalDate getEndDate() { return endDate; }
+        public List<Long> getPromotionHeaderIds() { return promotionHeaderIds; }
+        public int getRuleCount() { return ruleCount; }
+        public long getOrderCount() { return orderCount; }
+        public long getLineCount() { return lineCount; }
+        public long getSkippedLines() { return skippedLines; }
+        public long getAffectedOrders() { return affectedOrders; }
+        public BigDecimal getTotalOriginalAmount() { return totalOriginalAmount; }
+        public BigDecimal getTotalDiscountAmount() { return totalDiscountAmount; }
+        public BigDecimal getDiscountRatePercent() { return discountRatePercent; }
+        public BigDecimal getTotalGiftValue() { return totalGiftValue; }
+        public long getElapsedMs() { return elapsedMs; }
+        public double getOrdersPerSecond() { return ordersPerSecond; }
+        public List<PromotionImpact> getPromotions() { return promotions; }
+    }
+
+    public SimulationResult simulate(LocalDate startDate, LocalDate endDate, List<Long> promotionHeaderIds,
+                                     String authorization) {
+        if (startDate == null || endDate == null || endDate.isBefore(startDate)) {
+            throw new RuntimeException("Invalid date range");
+        }
+        if (ChronoUnit.DAYS.between(startDate, endDate) >= MAX_DAYS) {
+            throw new RuntimeException("Date range cannot exceed " + MAX_DAYS + " days");
+        }
+        if (!running.compareAndSet(false, true)) {
+            throw new RuntimeException("Another simulation is running");
+        }
+        try {
+            long started = System.nanoTime();
+            boolean whatIf = promotionHeaderIds != null && !promotionHeaderIds.isEmpty();
+            PromotionRuleIndex.Schedule schedule = whatIf
+                    ? loadWhatIfSchedule(promotionHeaderIds, startDate, endDate)
+                    : loadActiveSchedule();
+            Map<Long, long[]> units = loadProductUnits();
+
+            Tally total = streamOrders(startDate, endDate, schedule, units, authorization);
+
+            SimulationResult result = total.toResult();
+            result.startDate = startDate;
+            result.endDate = endDate;
+            result.promotionHeaderIds = whatIf ? promotionHeaderIds : null;
+            result.ruleCount = schedule.ruleCount();
+            valueGifts(result);
+
+            long elapsedNanos = Math.max(1L, System.nanoTime() - started);
+            result.elapsedMs = elapsedNanos / 1_000_000;
+            result.ordersPerSecond = result.orderCount * 1_000_000_000.0 / elapsedNanos;
+            log.info("Promotion simulation {}..{}: {} orders ({} lines, {} skipped), {} affected, discount {} in {} ms",
+                    startDate, endDate, result.orderCount, result.lineCount, result.skippedLines,
+                    result.affectedOrders, result.totalDiscountAmount, result.elapsedMs);
+            return result;
+        } finally {
+            running.set(false);
+        }
+    }
+
+    // Chương trình cần thử: bỏ qua trạng thái và ngày thật, cho chạy suốt khoảng mô phỏng
+    private PromotionRuleIndex.Schedule loadWhatIfSchedule(List<Long> headerIds, LocalDate startDate, LocalDate endDate) {
+        List<PromotionHeader> headers = new ArrayList<>();
+        for (PromotionHeader h : promotionHeaderRepository.findAllById(headerIds)) {
+            PromotionHeader copy = new PromotionHeader();
+            copy.setId(h.getId());
+            copy.setName(h.getName());
+            copy.setActive(true);
+            copy.setStackable(h.getStackable());
+            copy.setStartDate(startDate);
+            copy.setEndDate(endDate);
+            headers.add(copy);
+        }
+        if (headers.isEmpty()) {
+            throw new RuntimeException("Promotion headers not found: " + headerIds);
+        }
+        List<PromotionLine> lines = new ArrayList<>();
+        for (PromotionLine l : promotionLineRepository.findByPromotionHeaderIdInAndActiveTrue(idsOf(headers))) {
+            PromotionLine copy = new PromotionLine();
+            copy.setId(l.getId());
+            copy.setPromotionHeader(l.getPromotionHeader());
+            copy.setTargetType(l.getTargetType());
+            copy.setTargetId(l.getTargetId());
+            copy.setType(l.getType());
+            copy.setActive(true);
+            lines.add(copy);
+        }
+        return compileSchedule(headers, lines);
+    }
+
+    private PromotionRuleIndex.Schedule loadActiveSchedule() {
+        List<PromotionHeader> headers = promotionHeaderRepository.findByActiveTrue();
+        return compileSchedule(headers, promotionLineRepository.findByPromotionHeaderIdInAndActiveTrue(idsOf(headers)));
+    }
+
+    private PromotionRuleIndex.Schedule compileSchedule(List<PromotionHeader> headers, List<PromotionLine> lines) {
+        List<Long> lineIds = new ArrayList<>(lines.size());
+        for (PromotionLine l : lines) {
+            lineIds.add(l.getId());
+        }
+        List<PromotionDetail> details = lineIds.isEmpty()
+                ? List.of()
+                : promotionDetailRepository.findByPromotionLineIdInAndActiveTrue(lineIds);
+        return PromotionRuleIndex.compileSchedule(headers, lines, details);
+    }
+
+    private static List<Long> idsOf(List<PromotionHeader> headers) {
+        List<Long> ids = new ArrayList<>(headers.size());
+        for (PromotionHeader h : headers) {
+            ids.add(h.getId());
+        }
+        return ids;
+    }
+
+    // productUnitId -> {productId, categoryId (-1 nếu không có)}
+    private Map<Long, long[]> loadProductUnits() {
+        List<Map<String, Object>> body;
+        try {
+            body = bulkLoadBalancedRestTemplate.exchange("http://" + productServiceName + "/api/products/units/all",
+                    HttpMethod.GET, null, new ParameterizedTypeReference<List<Map<String, Object>>>() {}).getBody();
+        } catch (RestClientException e) {
+            throw new RuntimeException("Không lấy được danh sách đơn vị sản phẩm: " + e.getMessage());
+        }
+        Map<Long, long[]> units = new HashMap<>();
+        if (body == null) return units;
+        for (Map<String, Object> unit : body) {
+            Object id = unit.get("id");
+            Object productId = unit.get("productId");
+            if (id == null || productId == null) continue;
+            Object categoryId = unit.get("categoryId");
+            units.put(((Number) id).longValue(), new long[]{
+                    ((Number) productId).longValue(),
+                    categoryId != null ? ((Number) categoryId).longValue() : -1L});
+        }
+        return units;
+    }
+
+    private Tally streamOrders(LocalDate startDate, LocalDate endDate, PromotionRuleIndex.Schedule schedule,
+                               Map<Long, long[]> units, String authorization) {
+        String url = "http://" + orderServiceName + "/api/orders/export/lines?startDate=" + startDate
+                + "&endDate=" + endDate;
+        try {
+            return bulkLoadBalancedRestTemplate.execute(url, HttpMethod.GET, request -> {
+                if (authorization != null) {
+                    request.getHeaders().set(HttpHeaders.AUTHORIZATION, authorization);
+                }
+            }, response -> {
+                try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(response.getBody(), StandardCharsets.UTF_8), 64 * 1024)) {
+                    return readAndEvaluate(reader, schedule, units);
+                }
+            });
+        } catch (RestClientException e) {
+            throw new RuntimeException("Không đọc được đơn hàng từ order-service: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Gom dòng thành đơn và giao từng nhóm đơn cho pool; khi quá nhiều task đang chờ thì
+     * đợi task cũ nhất xong rồi mới đọc tiếp (giới hạn bộ nhớ, luồng đọc không chạy quá xa)
+     */
+    private Tally readAndEvaluate(BufferedReader reader, PromotionRuleIndex.Schedule schedule,
+                                  Map<Long, long[]> units) throws IOException {
+        int maxInFlight = simulationPool.getParallelism() * 2;
+        Deque<ForkJoinTask<Tally>> inFlight = new ArrayDeque<>();
+        Tally total = new Tally();
+        // Bộ luật theo ngày, dùng lại cho mọi ngày trong cùng khoảng không đổi
+        PromotionRuleIndex.RuleSet rules = null;
+
+        List<HistoricalOrder> chunk = new ArrayList<>(ORDERS_PER_TASK);
+        HistoricalOrder order = null;
+        String line = reader.readLine(); // header CSV
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) continue;
+            int c1 = line.indexOf(',');
+            int c2 = line.indexOf(',', c1 + 1);
+            int c3 = line.indexOf(',', c2 + 1);
+            int c4 = line.indexOf(',', c3 + 1);
+            int c5 = line.indexOf(',', c4 + 1);
+            long orderId = Long.parseLong(line, 0, c1, 10);
+            if (order == null || order.orderId != orderId) {
+                if (order != null) {
+                    chunk.add(order);
+                    if (chunk.size() == ORDERS_PER_TASK) {
+                        submit(chunk, units, inFlight, maxInFlight, total);
+                        chunk = new ArrayList<>(ORDERS_PER_TASK);
+                    }
+                }
+                LocalDate day = LocalDate.parse(line.substring(c2 + 1, c3));
+                if (rules == null || !rules.covers(day)) {
+                    rules = schedule.sliceFor(day);
+                }
+                Long customerId = c2 > c1 + 1 ? Long.parseLong(line, c1 + 1, c2, 10) : null;
+                order = new HistoricalOrder(orderId, customerId, rules);
+            }
+            order.add(Long.parseLong(line, c3 + 1, c4, 10),
+                    Integer.parseInt(line, c4 + 1, c5, 10),
+                    new BigDecimal(line.substring(c5 + 1)));
+        }
+        if (order != null) chunk.add(order);
+        if (!chunk.isEmpty()) {
+            submit(chunk, units, inFlight, maxInFlight, total);
+        }
+        while (!inFlight.isEmpty()) {
+            total.merge(inFlight.poll().join());
+        }
+        return total;
+    }
+
+    private void submit(List<HistoricalOrder> chunk, Map<Long, long[]> units, Deque<ForkJoinTask<Tally>> inFlight,
+                        int maxInFlight, Tally total) {
+        inFlight.add(simulationPool.submit(() -> evaluateChunk(chunk, units)));
+        while (inFlight.size() > maxInFlight) {
+            total.merge(inFlight.poll().join());
+        }
+    }
+
+    private Tally evaluateChunk(List<HistoricalOrder> orders, Map<Long, long[]> units) {
+        Tally tally = new Tally();
+        for (HistoricalOrder order : orders) {
+            List<PromotionCalculationService.ProductPromotionInfo> products = order.toProducts(units, tally);
+            tally.beginOrder();
+            PromotionCalculationService.OrderPromotionResult result = promotionCalculationService.simulateOrder(
+                    products, order.customerId, order.rules, tally);
+            tally.endOrder(result);
+        }
+        return tally;
+    }
+
+    // Quà định giá một lần cho mọi đơn vị quà xuất hiện trong kết quả
+    private void valueGifts(SimulationResult result) {
+        Set<Long> giftUnits = new HashSet<>();
+        for (PromotionImpact impact : result.promotions) {
+            giftUnits.addAll(impact.giftQuantityByUnit.keySet());
+        }
+        if (giftUnits.isEmpty()) return;
+        Map<Long, BigDecimal> prices = giftPriceCache.getPrices(giftUnits);
+        BigDecimal total = BigDecimal.ZERO;
+        for (PromotionImpact impact : result.promotions) {
+            BigDecimal value = BigDecimal.ZERO;
+            for (Map.Entry<Long, Long> gift : impact.giftQuantityByUnit.entrySet()) {
+                BigDecimal price = prices.get(gift.getKey());
+                if (price != null) value = value.add(price.multiply(BigDecimal.valueOf(gift.getValue())));
+            }
+            impact.giftValue = value;
+            total = total.add(value);
+        }
+        result.totalGiftValue = total;
+    }
+
+    private static final class HistoricalOrder {
+        private final long orderId;
+        private final Long customerId;
+        private final PromotionRuleIndex.RuleSet rules;
+        private long[] productUnitIds = new long[4];
+        private int[] quantities = new int[4];
+        private BigDecimal[] unitPrices = new BigDecimal[4];
+        private int size;
+
+        HistoricalOrder(long orderId, Long customerId, PromotionRuleIndex.RuleSet rules) {
+            this.orderId = orderId;
+            this.customerId = customerId;
+            this.rules = rules;
+        }
+
+        void add(long productUnitId, int quantity, BigDecimal unitPrice) {
+            if (size == productUnitIds.length) {
+                productUnitIds = Arrays.copyOf(productUnitIds, size * 2);
+                quantities = Arrays.copyOf(quantities, size * 2);
+                unitPrices = Arrays.copyOf(unitPrices, size * 2);
+            }
+            productUnitIds[size] = productUnitId;
+            quantities[size] = quantity;
+            unitPrices[size] = unitPrice;
+            size++;
+        }
+
+        // Dòng có ProductUnit không còn trong service-product bị bỏ qua (không xác định được sản phẩm)
+        List<PromotionCalculationService.ProductPromotionInfo> toProducts(Map<Long, long[]> units, Tally tally) {
+            List<PromotionCalculationService.ProductPromotionInfo> products = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                long[] unit = units.get(productUnitIds[i]);
+                tally.lines++;
+                if (unit == null) {
+                    tally.skippedLines++;
+                    continue;
+                }
+                products.add(new PromotionCalculationService.ProductPromotionInfo(
+                        unit[0], productUnitIds[i], unit[1] >= 0 ? unit[1] : null, quantities[i], unitPrices[i]));
+            }
+            return products;
+        }
+    }
+
+    /**
+     * Cộng dồn của một task (chỉ một luồng ghi), gộp lại ở luồng đọc
+     */
+    private static final class Tally implements PromotionCalculationService.AppliedRuleListener {
+        private long orders;
+        private long lines;
+        private long skippedLines;
+        private long affectedOrders;
+        private BigDecimal originalAmount = BigDecimal.ZERO;
+        private BigDecimal discountAmount = BigDecimal.ZERO;
+        private final Map<Long, PromotionImpact> byPromotion = new HashMap<>();
+        private boolean currentAffected;
+
+        void beginOrder() {
+            currentAffected = false;
+        }
+
+        @Override
+        public void applied(PromotionRuleIndex.Rule rule, BigDecimal discount, PromotionCalculationService.GiftItem gift) {
+            currentAffected = true;
+            PromotionImpact impact = byPromotion.computeIfAbsent(rule.headerId,
+                    id -> new PromotionImpact(id, rule.promotionName));
+            if (impact.lastOrder != orders) {
+                impact.lastOrder = orders;
+                impact.affectedOrders++;
+            }
+            impact.discountAmount = impact.discountAmount.add(discount);
+            if (gift != null) {
+                impact.giftQuantity += gift.getQuantity();
+                impact.giftQuantityByUnit.merge(gift.getProductUnitId(), (long) gift.getQuantity(), Long::sum);
+            }
+        }
+
+        void endOrder(PromotionCalculationService.OrderPromotionResult result) {
+            orders++;
+            if (currentAffected) affectedOrders++;
+            originalAmount = originalAmount.add(result.getTotalOriginalAmount());
+            discountAmount = discountAmount.add(result.getTotalDiscountAmount());
+        }
+
+        void merge(Tally other) {
+            orders += other.orders;
+            lines += other.lines;
+            skippedLines += other.skippedLines;
+            affectedOrders += other.affectedOrders;
+            originalAmount = originalAmount.add(other.originalAmount);
+            discountAmount = discountAmount.add(other.discountAmount);
+            for (PromotionImpact impact : other.byPromotion.values()) {
+                PromotionImpact mine = byPromotion.get(impact.promotionHeaderId);
+                if (mine == null) {
+                    byPromotion.put(impact.promotionHeaderId, impact);
+                } else {
+                    mine.merge(impact);
+                }
+            }
+        }
+
+        SimulationResult toResult() {
+            SimulationResult result = new SimulationResult();
+            result.orderCount = orders;
+            result.lineCount = lines;
+            result.skippedLines = skippedLines;
+            result.affectedOrders = affectedOrders;
+            result.totalOriginalAmount = originalAmount;
+            result.totalDiscountAmount = discountAmount;
+            if (originalAmount.signum() > 0) {
+                result.discountRatePercent = discountAmount.multiply(BigDecimal.valueOf(100))
+                        .divide(originalAmount, 2, RoundingMode.HALF_UP);
+            }
+            List<PromotionImpact> promotions = new ArrayList<>(byPromotion.values());
+            promotions.sort(Comparator.comparing(PromotionImpact::getDiscountAmount).reversed()
+                    .thenComparing(PromotionImpact::getPromotionHeaderId));
+            result.promotions = promotions;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.smartretail.promotionservice.service;
+
+import com.smartretail.promotionservice.model.PromotionRulesVersion;
+import com.smartretail.promotionservice.repository.PromotionRulesVersionRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.LocalDateTime;
+
+/**
+ * Phiên bản dữ liệu khuyến mãi dùng chung giữa các instance.
+ * - PromotionService tăng version trong cùng transaction với thay đổi (bumpVersion)
+ * - Mỗi instance đọc version định kỳ; thấy version mới hơn bản đang dùng thì nạp lại bộ luật
+ *   và giới hạn lượt dùng, nên các instance lệch nhau tối đa một chu kỳ poll
+ * - currentVersion là version mà bộ nhớ đệm của instance này phản ánh; trả ra qua endpoint
+ *   /api/promotions/rules/version và header X-Promotion-Rules-Version để bên gọi tự làm mới cache.
+ *   Version được nạp một lần khi khởi động; chưa đọc được (DB lỗi) thì không công bố version nào
+ */
+@Service
+@Slf4j
+public class PromotionVersionService {
+
+    @Autowired
+    private PromotionRulesVersionRepository promotionRulesVersionRepository;
+
+    @Autowired
+    private PromotionRuleIndex promotionRuleIndex;
+
+    @Autowired
+    private PromotionRedemptionService promotionRedemptionService;
+
+    // -1: chưa đồng bộ lần nào (không công bố version), lần poll thành công đầu tiên sẽ nạp lại
+    private volatile long currentVersion = -1;
+
+    /**
+     * Tạo dòng version nếu chưa có rồi nạp bộ luật theo version đó, để instance không công bố
+     * version -1 trong lúc chờ lần poll đầu tiên
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void ensureVersionRow() {
+        try {
+            createVersionRowIfMissing();
+        } catch (Exception e) {
+            log.warn("Could not initialize promotion rules version: {}", e.getMessage());
+        }
+        pollVersion();
+    }
+
+    public long getCurrentVersion() {
+        return currentVersion;
+    }
+
+    public boolean isSynced() {
+        return currentVersion >= 0;
+    }
+
+    /**
+     * Tăng version trong transaction hiện tại; sau commit ghi nhận version mới cho instance này
+     * (bộ luật đã được PromotionRuleIndex.reloadAfterCommit nạp lại trước đó)
+     */
+    public void bumpVersion() {
+        // Dòng version được tạo lúc khởi động (hoặc ở lần poll sau đó), không tạo trong transaction của bên gọi
+        int updated = promotionRulesVersionRepository.increment(PromotionRulesVersion.SINGLETON_ID, LocalDateTime.now());
+        if (updated == 0) {
+            throw new RuntimeException("Promotion rules version chưa được khởi tạo, vui lòng thử lại");
+        }
+        long version = promotionRulesVersionRepository.findVersion(PromotionRulesVersion.SINGLETON_ID);
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            onLocalCommit(version);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                onLocalCommit(version);
+            }
+        });
+    }
+
+    @Scheduled(fixedDelayString = "${promotion.rules.version-poll-ms:2000}")
+    public void pollVersion() {
+        try {
+            Long version = promotionRulesVersionRepository.findVersion(PromotionRulesVersion.SINGLETON_ID);
+            if (version == null) {
+                // DB chưa sẵn sàng lúc khởi động
+                createVersionRowIfMissing();
+                return;
+            }
+            if (version > currentVersion) {
+                refresh(version);
+            }
+        } catch (Exception e) {
+            log.warn("Promotion rules version poll failed, will retry: {}", e.getMessage());
+        }
+    }
+
+    private void createVersionRowIfMissing() {
+        try {
+            if (!promotionRulesVersionRepository.existsById(PromotionRulesVersion.SINGLETON_ID)) {
+                promotionRulesVersionRepository.save(
+                        new PromotionRulesVersion(PromotionRulesVersion.SINGLETON_ID, 1L, LocalDateTime.now()));
+            }
+        } catch (DataIntegrityViolationException e) {
+            // Instance khác vừa tạo cùng lúc
+        }
+    }
+
+    private synchronized void onLocalCommit(long version) {
+        if (version <= currentVersion) return;
+        if (version == currentVersion + 1) {
+            // Chỉ có thay đổi của chính instance này, đã nạp lại sau commit
+            currentVersion = version;
+            return;
+        }
+        // Có thay đổi từ instance khác chưa được poll: làm mới toàn bộ
+        try {
+            refresh(version);
+        } catch (Exception e) {
+            log.warn("Promotion refresh after local change failed, next poll will retry: {}", e.getMessage());
+        }
+    }
+
+    // Đọc version trước khi nạp: dữ liệu nạp được luôn mới bằng hoặc hơn version ghi nhận
+    private synchronized void refresh(long version) {
+        if (version <= currentVersion) return;
+        promotionRuleIndex.reload();
+        promotionRedemptionService.invalidateAll();
+        log.info("Promotion data changed (version {} -> {}), caches refreshed", currentVersion, version);
+        currentVersion = version;
+    }
+}
@@ -0,0 +1,78 @@
+package com.smartretail.promotionservice.service;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bộ đếm lượt còn lại của một chương trình, chia thành nhiều ngăn (stripe) để flash sale không dồn
+ * mọi luồng vào một biến CAS duy nhất.
+ * - tryAcquire bắt đầu ở một ngăn ngẫu nhiên, ngăn hết thì lấy ở ngăn kế tiếp; chỉ trả false khi mọi ngăn đều 0
+ * - Mỗi ngăn không bao giờ âm nên tổng số lượt cấp ra không vượt quá số lượt đã nạp (không bán quá)
+ * - Không phụ thuộc Spring/DB để kiểm tra được độc lập (xem benchmark RedemptionQuotaStress)
+ */
+public class RedemptionQuota {
+
+    // Các ngăn cách nhau 16 long (128 byte) trong một AtomicLongArray để hai ngăn không bao giờ nằm chung
+    // cache line, kể cả khi CPU nạp theo cặp line liền kề; các ngăn AtomicLong riêng lẻ không đảm bảo được điều này
+    private static final int STRIDE = 16;
+
+    private final AtomicLongArray slots;
+    private final int stripeCount;
+
+    public RedemptionQuota(long permits, int stripeCount) {
+        this.stripeCount = Math.max(1, stripeCount);
+        this.slots = new AtomicLongArray(this.stripeCount * STRIDE);
+        long base = Math.max(0, permits) / this.stripeCount;
+        long extra = Math.max(0, permits) % this.stripeCount;
+        for (int i = 0; i < this.stripeCount; i++) {
+            slots.set(i * STRIDE, base + (i < extra ? 1 : 0));
+        }
+    }
+
+    public boolean tryAcquire() {
+        int start = ThreadLocalRandom.current().nextInt(stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            int slot = ((start + i) % stripeCount) * STRIDE;
+            long current;
+            while ((current = slots.get(slot)) > 0) {
+                if (slots.compareAndSet(slot, current, current - 1)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Trả lại lượt của reservation bị huỷ hoặc hết hạn
+    public void release() {
+        slots.incrementAndGet(ThreadLocalRandom.current().nextInt(stripeCount) * STRIDE);
+    }
+
+    /**
+     * Thu hồi tối đa count lượt (lượt đã bị instance khác dùng); trả về số lượt thực sự thu hồi được
+     */
+    public long revoke(long count) {
+        long revoked = 0;
+        for (int i = 0; i < stripeCount && revoked < count; i++) {
+            int slot = i * STRIDE;
+            while (revoked < count) {
+                long current = slots.get(slot);
+                if (current <= 0) break;
+                long take = Math.min(current, count - revoked);
+                if (slots.compareAndSet(slot, current, current - take)) {
+                    revoked += take;
+                }
+            }
+        }
+        return revoked;
+    }
+
+    // Chỉ mang tính tham khảo khi đang có luồng khác cập nhật
+    public long available() {
+        long sum = 0;
+        for (int i = 0; i < stripeCount; i++) {
+            sum += slots.get(i * STRIDE);
+        }
+        return sum;
+    }
+}
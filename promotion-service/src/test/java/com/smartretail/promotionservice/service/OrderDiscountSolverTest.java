@@ -0,0 +1,184 @@
+package com.smartretail.promotionservice.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OrderDiscountSolverTest {
+
+    private static final BigDecimal TOTAL = new BigDecimal("1000");
+
+    @Test
+    void exclusiveWinsWhenItBeatsTheBestCombination() {
+        List<PromotionRuleIndex.Rule> rules = new RuleFixtures()
+                .amountOff("Giảm 300k", false, 300, null)
+                .amountOff("Giảm 100k", true, 100, null)
+                .amountOff("Giảm 150k", true, 150, null)
+                .orderRules();
+
+        OrderDiscountSolver.Solution solution = OrderDiscountSolver.solve(rules, TOTAL, rule -> true);
+
+        assertEquals(List.of("Giảm 300k"), names(solution));
+        assertEquals(0, new BigDecimal("300").compareTo(solution.getTotalDiscount()));
+        assertTrue(solution.isExhaustive());
+    }
+
+    @Test
+    void percentRulesApplyBeforeAmountRules() {
+        // 10% trước rồi 150k: 100 + 150 = 250; 150k trước rồi 10% trên 850: 150 + 85 = 235
+        List<PromotionRuleIndex.Rule> rules = new RuleFixtures()
+                .amountOff("Độc quyền 200k", false, 200, null)
+                .amountOff("Giảm 150k", true, 150, null)
+                .percentOff("Giảm 10%", true, 10, null)
+                .orderRules();
+
+        OrderDiscountSolver.Solution solution = OrderDiscountSolver.solve(rules, TOTAL, rule -> true);
+
+        assertEquals(List.of("Giảm 10%", "Giảm 150k"), names(solution));
+        assertEquals(0, new BigDecimal("250").compareTo(solution.getTotalDiscount()));
+    }
+
+    @Test
+    void minAmountIsCheckedAgainstTheRemainder() {
+        // Cả hai cần đơn từ 1 triệu: áp một chương trình xong phần còn lại không đủ cho chương trình kia
+        List<PromotionRuleIndex.Rule> rules = new RuleFixtures()
+                .amountOff("Giảm 150k từ 1tr", true, 150, 1000L)
+                .amountOff("Giảm 120k từ 1tr", true, 120, 1000L)
+                .orderRules();
+
+        OrderDiscountSolver.Solution solution = OrderDiscountSolver.solve(rules, TOTAL, rule -> true);
+
+        assertEquals(List.of("Giảm 150k từ 1tr"), names(solution));
+        assertEquals(0, new BigDecimal("150").compareTo(solution.getTotalDiscount()));
+    }
+
+    @Test
+    void tieGoesToFewerRulesThenToTheEarlierPromotion() {
+        List<PromotionRuleIndex.Rule> fewer = new RuleFixtures()
+                .amountOff("Cộng dồn 150k", true, 150, null)
+                .amountOff("Cộng dồn 50k", true, 50, null)
+                .amountOff("Độc quyền 200k", false, 200, null)
+                .orderRules();
+        assertEquals(List.of("Độc quyền 200k"), names(OrderDiscountSolver.solve(fewer, TOTAL, rule -> true)));
+
+        List<PromotionRuleIndex.Rule> earlier = new RuleFixtures()
+                .amountOff("Tạo trước", false, 100, null)
+                .amountOff("Tạo sau", false, 100, null)
+                .orderRules();
+        assertEquals(List.of("Tạo trước"), names(OrderDiscountSolver.solve(earlier, TOTAL, rule -> true)));
+    }
+
+    @Test
+    void notRedeemableRulesAreSkipped() {
+        List<PromotionRuleIndex.Rule> rules = new RuleFixtures()
+                .amountOff("Hết lượt", false, 300, null)
+                .amountOff("Còn lượt", false, 100, null)
+                .orderRules();
+
+        OrderDiscountSolver.Solution solution = OrderDiscountSolver.solve(rules, TOTAL,
+                rule -> !rule.promotionName.equals("Hết lượt"));
+
+        assertEquals(List.of("Còn lượt"), names(solution));
+    }
+
+    @Test
+    void allStackableRulesAreSearchedAsSubsetsNotOrderings() {
+        // 12 rule cùng áp được: trước đây phải duyệt hoán vị và chạm ngân sách, nay cận cắt mọi tập con thiếu rule
+        RuleFixtures fixtures = new RuleFixtures();
+        long sum = 0;
+        for (int i = 1; i <= OrderDiscountSolver.MAX_STACK_CANDIDATES; i++) {
+            fixtures.amountOff("Cộng dồn " + i, true, 10L * i, null);
+            sum += 10L * i;
+        }
+
+        OrderDiscountSolver.Solution solution = OrderDiscountSolver.solve(fixtures.orderRules(), TOTAL, rule -> true);
+
+        assertTrue(solution.isExhaustive());
+        assertEquals(OrderDiscountSolver.MAX_STACK_CANDIDATES, solution.getRules().size());
+        assertEquals(0, BigDecimal.valueOf(sum).compareTo(solution.getTotalDiscount()));
+    }
+
+    @Test
+    void nodeBudgetReturnsTheBestSolutionFoundSoFar() {
+        // Mỗi rule giảm 50k cho đơn từ 600k: áp được tối đa 9 rule, nhưng cận trên vẫn cộng các rule sẽ hết
+        // điều kiện nên tìm kiếm duyệt nhiều tập con và chạm ngân sách; phương án tham lam (9 rule) được giữ
+        RuleFixtures fixtures = new RuleFixtures();
+        for (int i = 1; i <= OrderDiscountSolver.MAX_STACK_CANDIDATES; i++) {
+            fixtures.amountOff("Cộng dồn " + i, true, 50, 600L);
+        }
+
+        OrderDiscountSolver.Solution solution = OrderDiscountSolver.solve(fixtures.orderRules(), TOTAL, rule -> true);
+
+        assertFalse(solution.isExhaustive());
+        assertEquals(9, solution.getRules().size());
+        assertEquals(0, new BigDecimal("450").compareTo(solution.getTotalDiscount()));
+    }
+
+    @Test
+    void onlyTheLargestStackableRulesAreSearched() {
+        RuleFixtures fixtures = new RuleFixtures();
+        int count = OrderDiscountSolver.MAX_STACK_CANDIDATES + 3;
+        for (int i = 1; i <= count; i++) {
+            fixtures.amountOff("Cộng dồn " + i, true, i, null);
+        }
+
+        OrderDiscountSolver.Solution solution = OrderDiscountSolver.solve(fixtures.orderRules(), TOTAL, rule -> true);
+
+        assertEquals(OrderDiscountSolver.MAX_STACK_CANDIDATES, solution.getRules().size());
+        assertFalse(names(solution).contains("Cộng dồn 1"));
+        assertTrue(solution.getTotalDiscount().compareTo(TOTAL) <= 0);
+    }
+
+    @Test
+    void searchMatchesBruteForceOverSubsetsInApplyOrder() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            RuleFixtures fixtures = new RuleFixtures();
+            for (int i = 0; i < 8; i++) {
+                Long minAmount = random.nextInt(3) == 0 ? 500L + random.nextInt(6) * 100L : null;
+                if (random.nextBoolean()) {
+                    fixtures.percentOff("P" + i, true, 1 + random.nextInt(20), minAmount);
+                } else {
+                    fixtures.amountOff("A" + i, true, 10L + random.nextInt(20) * 10L, minAmount);
+                }
+            }
+            List<PromotionRuleIndex.Rule> rules = fixtures.orderRules();
+
+            OrderDiscountSolver.Solution solution = OrderDiscountSolver.solve(rules, TOTAL, rule -> true);
+
+            assertTrue(solution.isExhaustive());
+            assertEquals(0, bruteForce(rules, TOTAL).compareTo(solution.getTotalDiscount()), "round " + round);
+        }
+    }
+
+    // Thử mọi tập con, áp theo APPLY_ORDER; tập có rule không áp được (minAmount, giảm 0) bị loại
+    private static BigDecimal bruteForce(List<PromotionRuleIndex.Rule> rules, BigDecimal total) {
+        List<PromotionRuleIndex.Rule> ordered = new ArrayList<>(rules);
+        ordered.sort(OrderDiscountSolver.APPLY_ORDER);
+        BigDecimal best = BigDecimal.ZERO;
+        for (int mask = 1; mask < (1 << ordered.size()); mask++) {
+            BigDecimal remaining = total;
+            boolean valid = true;
+            for (int i = 0; i < ordered.size() && valid; i++) {
+                if ((mask & (1 << i)) == 0) continue;
+                PromotionRuleIndex.Rule rule = ordered.get(i);
+                BigDecimal d = OrderDiscountSolver.discountAt(rule, remaining);
+                valid = (rule.minAmount == null || remaining.compareTo(rule.minAmount) >= 0) && d.signum() > 0;
+                remaining = remaining.subtract(d);
+            }
+            BigDecimal discount = total.subtract(remaining);
+            if (valid && discount.compareTo(best) > 0) best = discount;
+        }
+        return best;
+    }
+
+    private static List<String> names(OrderDiscountSolver.Solution solution) {
+        return solution.getRules().stream().map(rule -> rule.promotionName).collect(Collectors.toList());
+    }
+}
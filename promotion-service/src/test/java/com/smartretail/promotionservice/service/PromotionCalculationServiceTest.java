@@ -0,0 +1,87 @@
+package com.smartretail.promotionservice.service;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PromotionCalculationServiceTest {
+
+    @Test
+    void batchReportsFailedCartsInTheirOwnSlot() {
+        PromotionRuleIndex.RuleSet rules = new RuleFixtures()
+                .amountOff("Giảm 50k từ 500k", false, 50, 500L)
+                .ruleSet();
+        PromotionCalculationService service = service(rules);
+        try {
+            List<PromotionCalculationService.CartRequest> carts = new ArrayList<>();
+            carts.add(cart("ok-1", 600));
+            carts.add(PromotionCalculationService.CartRequest.invalid("bad-request", "quantity is required"));
+            carts.add(null);
+            carts.add(new PromotionCalculationService.CartRequest("empty", null, List.of()));
+            // Dòng null làm lỗi khi tính, chỉ giỏ này hỏng
+            carts.add(new PromotionCalculationService.CartRequest("throws", null,
+                    Arrays.asList(product(100), null)));
+            carts.add(cart("ok-2", 200));
+
+            PromotionCalculationService.BatchOrderPromotionResult batch = service.calculateOrderPromotionsBatch(carts);
+
+            assertEquals(6, batch.getCartCount());
+            assertEquals(2, batch.getSuccessCount());
+            assertEquals(4, batch.getFailedCount());
+            List<PromotionCalculationService.CartResult> results = batch.getResults();
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(i, results.get(i).getIndex());
+            }
+
+            assertTrue(results.get(0).isSuccess());
+            assertEquals(0, new BigDecimal("550").compareTo(results.get(0).getResult().getTotalFinalAmount()));
+            assertEquals("quantity is required", results.get(1).getMessage());
+            assertFalse(results.get(2).isSuccess());
+            assertEquals("empty", results.get(3).getCartId());
+            assertFalse(results.get(3).isSuccess());
+            assertEquals("throws", results.get(4).getCartId());
+            assertFalse(results.get(4).isSuccess());
+            assertNull(results.get(4).getResult());
+            // Dưới minAmount: thành công nhưng không giảm
+            assertTrue(results.get(5).isSuccess());
+            assertEquals(0, new BigDecimal("200").compareTo(results.get(5).getResult().getTotalFinalAmount()));
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    void batchRejectsEmptyRequest() {
+        PromotionCalculationService service = service(new RuleFixtures().ruleSet());
+        try {
+            assertThrows(RuntimeException.class, () -> service.calculateOrderPromotionsBatch(List.of()));
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    private static PromotionCalculationService service(PromotionRuleIndex.RuleSet rules) {
+        PromotionCalculationService service = new PromotionCalculationService();
+        ReflectionTestUtils.setField(service, "promotionRuleIndex", new PromotionRuleIndex() {
+            @Override
+            public RuleSet current() {
+                return rules;
+            }
+        });
+        return service;
+    }
+
+    private static PromotionCalculationService.CartRequest cart(String cartId, long amount) {
+        return new PromotionCalculationService.CartRequest(cartId, null, List.of(product(amount)));
+    }
+
+    private static PromotionCalculationService.ProductPromotionInfo product(long unitPrice) {
+        return new PromotionCalculationService.ProductPromotionInfo(1L, 1L, 1L, 1, BigDecimal.valueOf(unitPrice));
+    }
+}
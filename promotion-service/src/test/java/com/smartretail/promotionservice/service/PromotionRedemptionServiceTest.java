@@ -0,0 +1,221 @@
+package com.smartretail.promotionservice.service;
+
+import com.smartretail.promotionservice.model.PromotionHeader;
+import com.smartretail.promotionservice.repository.PromotionHeaderRepository;
+import com.smartretail.promotionservice.repository.PromotionRedemptionRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Chạy PromotionRedemptionService thật trên bảng promotion_redemption giả lập trong bộ nhớ
+ * (dùng chung giữa các instance) để kiểm tra giới hạn theo khách và xác nhận trùng.
+ */
+class PromotionRedemptionServiceTest {
+
+    private static final Long HEADER_ID = 1L;
+    private static final Long CUSTOMER_ID = 7L;
+
+    private final FakeRedemptionTable table = new FakeRedemptionTable();
+
+    @Test
+    void perCustomerLimitHoldsAcrossInstances() {
+        PromotionHeader header = header(10, 1);
+        PromotionRedemptionService first = service(header);
+        PromotionRedemptionService second = service(header);
+
+        // Bộ đếm khách của mỗi instance đều là 0 nên cả hai giữ được lượt
+        String firstToken = first.reserve(HEADER_ID, CUSTOMER_ID);
+        String secondToken = second.reserve(HEADER_ID, CUSTOMER_ID);
+
+        assertTrue(first.confirm(firstToken, "ORD-1"));
+        RuntimeException rejected = assertThrows(RuntimeException.class, () -> second.confirm(secondToken, "ORD-2"));
+        assertTrue(rejected.getMessage().contains("hết lượt"));
+
+        assertEquals(1, table.countByCustomer(HEADER_ID, CUSTOMER_ID));
+        assertFalse(second.canRedeem(HEADER_ID, CUSTOMER_ID));
+        second.flushAndReconcile();
+        // Lượt tổng bị từ chối được trả lại, lượt instance kia dùng được thu hồi
+        assertEquals(9L, second.getUsage(HEADER_ID).get("available"));
+    }
+
+    @Test
+    void duplicateConfirmReturnsPermitOnFlush() {
+        PromotionRedemptionService service = service(header(3, null));
+
+        assertTrue(service.confirm(service.reserve(HEADER_ID, CUSTOMER_ID), "ORD-1"));
+        // order-service gọi lại sau timeout: giữ lượt mới cho cùng đơn
+        assertTrue(service.confirm(service.reserve(HEADER_ID, CUSTOMER_ID), "ORD-1"));
+        service.flushAndReconcile();
+
+        assertEquals(1, table.count(HEADER_ID));
+        assertEquals(2L, service.getUsage(HEADER_ID).get("available"));
+        assertEquals(0L, service.getUsage(HEADER_ID).get("pending"));
+    }
+
+    @Test
+    void duplicateConfirmWithinCustomerLimitReturnsPermit() {
+        PromotionRedemptionService service = service(header(5, 2));
+
+        assertTrue(service.confirm(service.reserve(HEADER_ID, CUSTOMER_ID), "ORD-1"));
+        assertTrue(service.confirm(service.reserve(HEADER_ID, CUSTOMER_ID), "ORD-1"));
+
+        assertEquals(1, table.countByCustomer(HEADER_ID, CUSTOMER_ID));
+        assertEquals(4L, service.getUsage(HEADER_ID).get("available"));
+        // Lượt thứ hai của khách vẫn còn
+        assertTrue(service.canRedeem(HEADER_ID, CUSTOMER_ID));
+        assertTrue(service.confirm(service.reserve(HEADER_ID, CUSTOMER_ID), "ORD-2"));
+        assertFalse(service.canRedeem(HEADER_ID, CUSTOMER_ID));
+    }
+
+    @Test
+    void releasedReservationReturnsPermit() {
+        PromotionRedemptionService service = service(header(1, 1));
+
+        String token = service.reserve(HEADER_ID, CUSTOMER_ID);
+        assertThrows(RuntimeException.class, () -> service.reserve(HEADER_ID, CUSTOMER_ID));
+        assertTrue(service.release(token));
+        assertTrue(service.confirm(service.reserve(HEADER_ID, CUSTOMER_ID), "ORD-1"));
+        assertEquals(0L, service.getUsage(HEADER_ID).get("available"));
+    }
+
+    private PromotionRedemptionService service(PromotionHeader header) {
+        PromotionRedemptionService service = new PromotionRedemptionService();
+        ReflectionTestUtils.setField(service, "promotionHeaderRepository", headerRepository(header));
+        ReflectionTestUtils.setField(service, "promotionRedemptionRepository", table.repository());
+        ReflectionTestUtils.setField(service, "jdbcTemplate", table.jdbcTemplate());
+        ReflectionTestUtils.setField(service, "reservationTtlMs", 60_000L);
+        return service;
+    }
+
+    private static PromotionHeader header(Integer maxRedemptions, Integer maxPerCustomer) {
+        PromotionHeader header = new PromotionHeader();
+        header.setId(HEADER_ID);
+        header.setMaxRedemptions(maxRedemptions);
+        header.setMaxRedemptionsPerCustomer(maxPerCustomer);
+        return header;
+    }
+
+    private static PromotionHeaderRepository headerRepository(PromotionHeader header) {
+        return (PromotionHeaderRepository) Proxy.newProxyInstance(PromotionHeaderRepository.class.getClassLoader(),
+                new Class<?>[]{PromotionHeaderRepository.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("findById")) {
+                        return Optional.ofNullable(header.getId().equals(args[0]) ? header : null);
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+
+    /**
+     * Bảng promotion_redemption với khoá duy nhất (header, order) và INSERT IGNORE như MySQL
+     */
+    private static class FakeRedemptionTable {
+
+        private final List<Object[]> rows = new ArrayList<>();
+
+        synchronized long count(Long headerId) {
+            return rows.stream().filter(r -> headerId.equals(r[0])).count();
+        }
+
+        synchronized long countByCustomer(Long headerId, Long customerId) {
+            return rows.stream().filter(r -> headerId.equals(r[0]) && customerId.equals(r[1])).count();
+        }
+
+        synchronized boolean exists(Long headerId, String orderReference) {
+            return rows.stream().anyMatch(r -> headerId.equals(r[0]) && orderReference.equals(r[2]));
+        }
+
+        synchronized int insertIgnore(Long headerId, Long customerId, String orderReference) {
+            if (exists(headerId, orderReference)) return 0;
+            rows.add(new Object[]{headerId, customerId, orderReference});
+            return 1;
+        }
+
+        PromotionRedemptionRepository repository() {
+            return (PromotionRedemptionRepository) Proxy.newProxyInstance(
+                    PromotionRedemptionRepository.class.getClassLoader(),
+                    new Class<?>[]{PromotionRedemptionRepository.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "countByPromotionHeaderId":
+                                return count((Long) args[0]);
+                            case "countByPromotionHeaderIdAndCustomerId":
+                                return countByCustomer((Long) args[0], (Long) args[1]);
+                            case "existsByPromotionHeaderIdAndOrderReference":
+                                return exists((Long) args[0], (String) args[1]);
+                            case "countByPromotionHeaderIds":
+                                List<PromotionRedemptionRepository.RedemptionCountView> views = new ArrayList<>();
+                                for (Object id : (Collection<?>) args[0]) {
+                                    long redeemed = count((Long) id);
+                                    if (redeemed > 0) views.add(countView((Long) id, redeemed));
+                                }
+                                return views;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+
+        JdbcTemplate jdbcTemplate() {
+            return new JdbcTemplate() {
+                @Override
+                public int update(String sql, Object... args) {
+                    // INSERT ... SELECT ... WHERE (lượt của khách) < giới hạn
+                    synchronized (FakeRedemptionTable.this) {
+                        if (countByCustomer((Long) args[4], (Long) args[5]) >= (Integer) args[6]) return 0;
+                        return insertIgnore((Long) args[0], (Long) args[1], (String) args[2]);
+                    }
+                }
+
+                @Override
+                public <T> int[][] batchUpdate(String sql, Collection<T> batchArgs, int batchSize,
+                                               ParameterizedPreparedStatementSetter<T> pss) {
+                    int[] counts = new int[batchArgs.size()];
+                    int i = 0;
+                    for (T arg : batchArgs) {
+                        Object[] params = new Object[5];
+                        try {
+                            pss.setValues(statement(params), arg);
+                        } catch (SQLException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        counts[i++] = insertIgnore((Long) params[1], (Long) params[2], (String) params[3]);
+                    }
+                    return new int[][]{counts};
+                }
+            };
+        }
+
+        private static PreparedStatement statement(Object[] params) {
+            return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+                        if (method.getName().startsWith("set") && args.length == 2) {
+                            params[(Integer) args[0]] = args[1];
+                            return null;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    });
+        }
+
+        private static PromotionRedemptionRepository.RedemptionCountView countView(Long headerId, long redeemed) {
+            return new PromotionRedemptionRepository.RedemptionCountView() {
+                @Override
+                public Long getPromotionHeaderId() {
+                    return headerId;
+                }
+
+                @Override
+                public Long getRedeemed() {
+                    return redeemed;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.smartretail.promotionservice.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Nhiều luồng cùng tranh một RedemptionQuota: tổng lượt cấp ra không bao giờ vượt số lượt đã nạp.
+ */
+class RedemptionQuotaTest {
+
+    private static final int THREADS = 32;
+
+    @Test
+    void concurrentAcquireNeverOversells() throws Exception {
+        RedemptionQuota quota = new RedemptionQuota(1_000, 8);
+        AtomicLong granted = new AtomicLong();
+
+        runConcurrently(() -> {
+            for (int i = 0; i < 500; i++) {
+                if (quota.tryAcquire()) granted.incrementAndGet();
+            }
+        });
+
+        // 32 x 500 lần thử >> 1000 lượt: phải cấp đúng hết, không hơn
+        assertEquals(1_000L, granted.get());
+        assertEquals(0L, quota.available());
+        assertFalse(quota.tryAcquire());
+    }
+
+    @Test
+    void acquireReleaseAndRevokeKeepPermitsBounded() throws Exception {
+        long permits = 200;
+        RedemptionQuota quota = new RedemptionQuota(permits, 4);
+        AtomicLong held = new AtomicLong();
+        AtomicLong maxHeld = new AtomicLong();
+        AtomicLong revoked = new AtomicLong();
+
+        runConcurrently(() -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int mine = 0;
+            for (int i = 0; i < 20_000; i++) {
+                int action = random.nextInt(10);
+                if (action < 6) {
+                    if (quota.tryAcquire()) {
+                        mine++;
+                        maxHeld.accumulateAndGet(held.incrementAndGet(), Math::max);
+                    }
+                } else if (action < 9) {
+                    if (mine > 0) {
+                        mine--;
+                        held.decrementAndGet();
+                        quota.release();
+                    }
+                } else {
+                    revoked.addAndGet(quota.revoke(1));
+                }
+            }
+        });
+
+        // Lượt đang giữ + lượt còn lại + lượt đã thu hồi luôn bằng số lượt nạp ban đầu
+        assertEquals(permits, held.get() + quota.available() + revoked.get());
+        assertTrue(maxHeld.get() <= permits, "held " + maxHeld.get() + " > " + permits);
+    }
+
+    private static void runConcurrently(Runnable task) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CyclicBarrier start = new CyclicBarrier(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(pool.submit(() -> {
+                    start.await();
+                    task.run();
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
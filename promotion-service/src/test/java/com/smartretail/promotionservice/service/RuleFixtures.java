@@ -0,0 +1,69 @@
+package com.smartretail.promotionservice.service;
+
+import com.smartretail.promotionservice.model.PromotionDetail;
+import com.smartretail.promotionservice.model.PromotionHeader;
+import com.smartretail.promotionservice.model.PromotionLine;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Dựng khuyến mãi cấp hóa đơn (mỗi chương trình một line, một detail) rồi biên dịch như PromotionRuleIndex
+ */
+class RuleFixtures {
+
+    static final LocalDate TODAY = LocalDate.of(2026, 10, 19);
+
+    private final List<PromotionHeader> headers = new ArrayList<>();
+    private final List<PromotionLine> lines = new ArrayList<>();
+    private final List<PromotionDetail> details = new ArrayList<>();
+
+    // Chương trình tạo sau có id lớn hơn nên ordinal lớn hơn
+    RuleFixtures amountOff(String name, boolean stackable, long amount, Long minAmount) {
+        return bill(name, stackable, PromotionHeader.PromotionType.DISCOUNT_AMOUNT, null, BigDecimal.valueOf(amount), minAmount);
+    }
+
+    RuleFixtures percentOff(String name, boolean stackable, float percent, Long minAmount) {
+        return bill(name, stackable, PromotionHeader.PromotionType.DISCOUNT_PERCENT, percent, null, minAmount);
+    }
+
+    private RuleFixtures bill(String name, boolean stackable, PromotionHeader.PromotionType type,
+                              Float percent, BigDecimal amount, Long minAmount) {
+        long id = headers.size() + 1;
+        PromotionHeader header = new PromotionHeader();
+        header.setId(id);
+        header.setName(name);
+        header.setStartDate(TODAY.minusDays(1));
+        header.setEndDate(TODAY.plusDays(1));
+        header.setActive(true);
+        header.setStackable(stackable);
+        headers.add(header);
+
+        PromotionLine line = new PromotionLine();
+        line.setId(id);
+        line.setPromotionHeader(header);
+        line.setActive(true);
+        line.setType(type);
+        lines.add(line);
+
+        PromotionDetail detail = new PromotionDetail();
+        detail.setId(id);
+        detail.setPromotionLine(line);
+        detail.setActive(true);
+        detail.setDiscountPercent(percent);
+        detail.setDiscountAmount(amount);
+        detail.setMinAmount(minAmount != null ? BigDecimal.valueOf(minAmount) : null);
+        details.add(detail);
+        return this;
+    }
+
+    PromotionRuleIndex.RuleSet ruleSet() {
+        return PromotionRuleIndex.compileForDay(headers, lines, details, TODAY);
+    }
+
+    List<PromotionRuleIndex.Rule> orderRules() {
+        return ruleSet().orderRules();
+    }
+}
@@ -80,6 +80,24 @@ public class PriceController {
         }
     }
 
+    // POST /api/products/prices/current/bulk - Giá hiện tại của nhiều đơn vị (body: [productUnitId,...])
+    @PostMapping("/prices/current/bulk")
+    public ResponseEntity<?> getCurrentPrices(@RequestBody List<Long> productUnitIds) {
+        try {
+            Map<Long, BigDecimal> prices = priceListService.getCurrentPrices(productUnitIds);
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", true);
+            response.put("data", prices);
+            response.put("total", prices.size());
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            Map<String, Object> response = new HashMap<>();
+            response.put("success", false);
+            response.put("message", "Error retrieving current prices: " + e.getMessage());
+            return ResponseEntity.badRequest().body(response);
+        }
+    }
+
     // PUT /api/products/{id}/prices/{priceId} - Update price
     @PutMapping("/{productId}/prices/{priceId}")
     public ResponseEntity<?> updatePrice(@PathVariable Long productId, @PathVariable Long priceId,
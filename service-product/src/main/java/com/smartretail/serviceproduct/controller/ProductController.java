@@ -727,7 +727,7 @@ public class ProductController {
     // Lấy danh sách sản phẩm sắp hết hàng
     @GetMapping("/low-stock")
     public ResponseEntity<?> getLowStockProducts(
-            @RequestParam(defaultValue = "10") int threshold,
+            @RequestParam(required = false) Integer threshold,
             @RequestParam(required = false) Long warehouseId) {
         try {
             List<ProductDto> lowStockProducts = productService.getLowStockProducts(threshold, warehouseId);
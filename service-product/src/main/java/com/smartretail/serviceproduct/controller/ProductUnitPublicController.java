@@ -55,6 +55,34 @@ public class ProductUnitPublicController {
             return ResponseEntity.badRequest().build();
         }
     }
-}
 
+    // POST /api/products/units/bulk - Lấy nhiều ProductUnit theo danh sách ID (body: [1,2,3])
+    @PostMapping("/bulk")
+    public ResponseEntity<List<ProductUnitDto>> getByIds(@RequestBody List<Long> ids) {
+        try {
+            return ResponseEntity.ok(productUnitService.getProductUnitsByIds(ids));
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    // POST /api/products/units/bulk/by-products - Toàn bộ đơn vị (kể cả inactive) của nhiều sản phẩm (body: [productId,...])
+    @PostMapping("/bulk/by-products")
+    public ResponseEntity<List<ProductUnitDto>> getByProductIds(@RequestBody List<Long> productIds) {
+        try {
+            return ResponseEntity.ok(productUnitService.getProductUnitsByProductIds(productIds));
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
 
+    // GET /api/products/units/all - Toàn bộ ProductUnit (kể cả inactive), dùng để warm-up cache
+    @GetMapping("/all")
+    public ResponseEntity<List<ProductUnitDto>> getAll() {
+        try {
+            return ResponseEntity.ok(productUnitService.getAllProductUnits());
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+}
@@ -6,6 +6,7 @@ public class ProductUnitDto {
     private Long id;
     private Long productId;
     private String productName;
+    private Long categoryId;
     private Long unitId;
     private String unitName;
     private String unitDescription;
@@ -35,6 +36,9 @@ public class ProductUnitDto {
     public String getProductName() { return productName; }
     public void setProductName(String productName) { this.productName = productName; }
 
+    public Long getCategoryId() { return categoryId; }
+    public void setCategoryId(Long categoryId) { this.categoryId = categoryId; }
+
     public Long getUnitId() { return unitId; }
     public void setUnitId(Long unitId) { this.unitId = unitId; }
 
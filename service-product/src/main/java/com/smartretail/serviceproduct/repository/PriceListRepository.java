@@ -34,6 +34,19 @@ public interface PriceListRepository extends JpaRepository<PriceList, Long> {
 
     Optional<PriceList> findTopByProductUnitIdAndActiveTrueOrderByCreatedAtDesc(Long productUnitId);
 
+    interface CurrentPriceView {
+        Long getProductUnitId();
+        java.math.BigDecimal getPrice();
+    }
+
+    // Giá hiện tại (bản ghi active mới nhất) của nhiều đơn vị trong một câu, cùng quy tắc với findTop...OrderByCreatedAtDesc
+    @Query("SELECT p.productUnit.id as productUnitId, p.price as price FROM PriceList p " +
+           "WHERE p.productUnit.id IN :productUnitIds AND p.active = true " +
+           "AND p.createdAt = (SELECT MAX(p2.createdAt) FROM PriceList p2 " +
+           "WHERE p2.productUnit.id = p.productUnit.id AND p2.active = true) " +
+           "ORDER BY p.id DESC")
+    List<CurrentPriceView> findCurrentPricesByProductUnitIds(@Param("productUnitIds") java.util.Collection<Long> productUnitIds);
+
     @Query("SELECT p FROM PriceList p WHERE p.priceHeader.id = :headerId AND p.active = true ORDER BY p.createdAt DESC")
     List<PriceList> findByHeaderId(@Param("headerId") Long headerId);
 
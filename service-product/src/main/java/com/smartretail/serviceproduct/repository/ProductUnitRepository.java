@@ -29,4 +29,16 @@ public interface ProductUnitRepository extends JpaRepository<ProductUnit, Long>
     @Query("SELECT pu FROM ProductUnit pu WHERE pu.product.id = :productId AND pu.active = true")
     List<ProductUnit> findAllActiveByProductId(@Param("productId") Long productId);
 
+    // Lấy theo danh sách id kèm product/unit trong một câu (tránh N+1 khi convert sang DTO)
+    @Query("SELECT pu FROM ProductUnit pu JOIN FETCH pu.product JOIN FETCH pu.unit WHERE pu.id IN :ids")
+    List<ProductUnit> findAllWithProductAndUnitByIdIn(@Param("ids") java.util.Collection<Long> ids);
+
+    // Toàn bộ đơn vị (kể cả inactive) của nhiều sản phẩm kèm product/unit
+    @Query("SELECT pu FROM ProductUnit pu JOIN FETCH pu.product JOIN FETCH pu.unit WHERE pu.product.id IN :productIds")
+    List<ProductUnit> findAllWithProductAndUnitByProductIdIn(@Param("productIds") java.util.Collection<Long> productIds);
+
+    // Toàn bộ ProductUnit (kể cả inactive) kèm product/unit, dùng cho đồng bộ cache ở service khác
+    @Query("SELECT pu FROM ProductUnit pu JOIN FETCH pu.product JOIN FETCH pu.unit")
+    List<ProductUnit> findAllWithProductAndUnit();
+
 }
@@ -13,6 +13,7 @@ import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.Map;
@@ -236,6 +237,16 @@ public class PriceListService {
                 .map(PriceList::getPrice);
     }
 
+    // Giá hiện tại của nhiều đơn vị: productUnitId -> price (đơn vị chưa có giá thì không có trong map)
+    public Map<Long, BigDecimal> getCurrentPrices(Collection<Long> productUnitIds) {
+        Map<Long, BigDecimal> result = new HashMap<>();
+        if (productUnitIds == null || productUnitIds.isEmpty()) return result;
+        for (PriceListRepository.CurrentPriceView v : priceListRepository.findCurrentPricesByProductUnitIds(productUnitIds)) {
+            result.putIfAbsent(v.getProductUnitId(), v.getPrice());
+        }
+        return result;
+    }
+
     // Update price
     public Optional<PriceListDto> updatePrice(Long id, PriceListDto priceDto) {
         Optional<PriceList> existingPrice = priceListRepository.findById(id);
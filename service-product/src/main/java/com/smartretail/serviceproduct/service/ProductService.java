@@ -859,36 +859,22 @@ public class ProductService {
         }
     }
 
-    // Lấy danh sách sản phẩm sắp hết hàng
-    public List<ProductDto> getLowStockProducts(int threshold, Long warehouseId) {
+    // Lấy danh sách sản phẩm sắp hết hàng.
+    // Không truyền threshold: dùng tập SKU sắp hết theo ngưỡng riêng từng SKU mà inventory-service giữ trong bộ nhớ
+    public List<ProductDto> getLowStockProducts(Integer threshold, Long warehouseId) {
         try {
-            // Gọi inventory-service để lấy danh sách tồn kho thấp
-            String url = "http://" + inventoryServiceName + "/api/inventory/stock";
-            if (warehouseId != null) {
-                url += "?warehouseId=" + warehouseId;
-            }
-
-            StockBalanceDto[] stockBalances = restTemplate.getForObject(url, StockBalanceDto[].class);
-
-            if (stockBalances == null || stockBalances.length == 0) {
+            java.util.Set<Long> lowStockUnitIds = threshold == null
+                    ? getLiveLowStockUnitIds(warehouseId)
+                    : getLowStockUnitIds(threshold, warehouseId);
+            if (lowStockUnitIds.isEmpty()) {
                 return java.util.Collections.emptyList();
             }
 
-            // Lọc các sản phẩm có tồn kho <= threshold
+            // Quy đổi productUnitId -> productId bằng một truy vấn IN
             java.util.Set<Long> lowStockProductIds = new java.util.HashSet<>();
-            for (StockBalanceDto sb : stockBalances) {
-                if (sb == null) continue;
-
-                // Kiểm tra availableQuantity <= threshold
-                if (sb.availableQuantity != null && sb.availableQuantity <= threshold) {
-                    Long productUnitId = sb.productUnitId;
-                    if (productUnitId != null) {
-                        com.smartretail.serviceproduct.model.ProductUnit pu =
-                            productUnitRepository.findById(productUnitId).orElse(null);
-                        if (pu != null && pu.getProduct() != null && Boolean.TRUE.equals(pu.getActive())) {
-                            lowStockProductIds.add(pu.getProduct().getId());
-                        }
-                    }
+            for (ProductUnit pu : productUnitRepository.findAllWithProductAndUnitByIdIn(lowStockUnitIds)) {
+                if (pu.getProduct() != null && Boolean.TRUE.equals(pu.getActive())) {
+                    lowStockProductIds.add(pu.getProduct().getId());
                 }
             }
 
@@ -907,4 +893,44 @@ public class ProductService {
             return java.util.Collections.emptyList();
         }
     }
+
+    private java.util.Set<Long> getLiveLowStockUnitIds(Long warehouseId) {
+        String url = "http://" + inventoryServiceName + "/api/inventory/stock/alerts/low/live";
+        if (warehouseId != null) {
+            url += "?warehouseId=" + warehouseId;
+        }
+        LowStockAlertResponse response = restTemplate.getForObject(url, LowStockAlertResponse.class);
+        java.util.Set<Long> ids = new java.util.HashSet<>();
+        if (response != null && response.data != null) {
+            for (StockBalanceDto item : response.data) {
+                if (item != null && item.productUnitId != null) ids.add(item.productUnitId);
+            }
+        }
+        return ids;
+    }
+
+    private java.util.Set<Long> getLowStockUnitIds(int threshold, Long warehouseId) {
+        String url = "http://" + inventoryServiceName + "/api/inventory/stock";
+        if (warehouseId != null) {
+            url += "?warehouseId=" + warehouseId;
+        }
+        StockBalanceDto[] stockBalances = restTemplate.getForObject(url, StockBalanceDto[].class);
+        java.util.Set<Long> ids = new java.util.HashSet<>();
+        if (stockBalances != null) {
+            for (StockBalanceDto sb : stockBalances) {
+                // Kiểm tra availableQuantity <= threshold
+                if (sb != null && sb.productUnitId != null
+                        && sb.availableQuantity != null && sb.availableQuantity <= threshold) {
+                    ids.add(sb.productUnitId);
+                }
+            }
+        }
+        return ids;
+    }
+
+    // Phản hồi của /api/inventory/stock/alerts/low/live (chỉ lấy các trường cần dùng)
+    private static class LowStockAlertResponse {
+        public Boolean success;
+        public List<StockBalanceDto> data;
+    }
 }
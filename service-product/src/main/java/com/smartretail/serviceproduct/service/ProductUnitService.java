@@ -8,7 +8,13 @@ import com.smartretail.serviceproduct.repository.ProductRepository;
 import com.smartretail.serviceproduct.repository.ProductUnitRepository;
 import com.smartretail.serviceproduct.repository.UnitRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.client.ServiceInstance;
+import org.springframework.cloud.client.discovery.DiscoveryClient;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestTemplate;
+import java.util.Collection;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -24,6 +30,17 @@ public class ProductUnitService {
     @Autowired
     private UnitRepository unitRepository;
 
+    @Autowired
+    private RestTemplate restTemplate;
+
+    @Value("${inventory.service.name:inventory-service}")
+    private String inventoryServiceName;
+
+    @Autowired
+    private DiscoveryClient discoveryClient;
+
+    // Gọi thẳng địa chỉ từng instance (không qua load balancer), timeout ngắn để không giữ thao tác chính
+    private final RestTemplate directRestTemplate = createDirectRestTemplate();
 
     // Thêm đơn vị tính mới cho sản phẩm
     public ProductUnitDto addProductUnit(ProductUnitDto productUnitDto) {
@@ -82,6 +99,7 @@ public class ProductUnitService {
         productUnitDto.setConversionRate(conversionRate);
         productUnitDto.setImageUrl(savedProductUnit.getImageUrl());
 
+        notifyProductUnitsChanged(product.getId());
         return productUnitDto;
     }
 
@@ -105,6 +123,29 @@ public class ProductUnitService {
         return convertToDto(productUnit);
     }
 
+    // Lấy nhiều đơn vị tính theo danh sách ID (kể cả inactive) - cho các service khác đồng bộ/quy đổi
+    public List<ProductUnitDto> getProductUnitsByIds(Collection<Long> ids) {
+        if (ids == null || ids.isEmpty()) return List.of();
+        return productUnitRepository.findAllWithProductAndUnitByIdIn(ids).stream()
+                .map(this::convertToDto)
+                .collect(Collectors.toList());
+    }
+
+    // Lấy toàn bộ đơn vị tính (kể cả inactive) của nhiều sản phẩm
+    public List<ProductUnitDto> getProductUnitsByProductIds(Collection<Long> productIds) {
+        if (productIds == null || productIds.isEmpty()) return List.of();
+        return productUnitRepository.findAllWithProductAndUnitByProductIdIn(productIds).stream()
+                .map(this::convertToDto)
+                .collect(Collectors.toList());
+    }
+
+    // Lấy toàn bộ đơn vị tính (kể cả inactive) để warm-up cache ở inventory-service
+    public List<ProductUnitDto> getAllProductUnits() {
+        return productUnitRepository.findAllWithProductAndUnit().stream()
+                .map(this::convertToDto)
+                .collect(Collectors.toList());
+    }
+
     // Cập nhật đơn vị tính
     public ProductUnitDto updateProductUnit(Long unitId, ProductUnitDto productUnitDto) {
         ProductUnit existingProductUnit = productUnitRepository.findById(unitId)
@@ -131,6 +172,7 @@ public class ProductUnitService {
                 updatedProductUnit = productUnitRepository.save(updatedProductUnit);
             }
         }
+        notifyProductUnitsChanged(updatedProductUnit.getProduct().getId());
         return convertToDto(updatedProductUnit);
     }
 
@@ -141,6 +183,7 @@ public class ProductUnitService {
 
         productUnit.setActive(false);
         productUnitRepository.save(productUnit);
+        notifyProductUnitsChanged(productUnit.getProduct().getId());
         return true;
     }
 
@@ -151,6 +194,7 @@ public class ProductUnitService {
 
         productUnit.setActive(true);
         ProductUnit updatedProductUnit = productUnitRepository.save(productUnit);
+        notifyProductUnitsChanged(updatedProductUnit.getProduct().getId());
         return convertToDto(updatedProductUnit);
     }
 
@@ -161,6 +205,7 @@ public class ProductUnitService {
 
         productUnit.setActive(false);
         ProductUnit updatedProductUnit = productUnitRepository.save(productUnit);
+        notifyProductUnitsChanged(updatedProductUnit.getProduct().getId());
         return convertToDto(updatedProductUnit);
     }
 
@@ -194,6 +239,7 @@ public class ProductUnitService {
         productUnit.setConversionRate(1);
         productUnit = productUnitRepository.save(productUnit);
         unsetOtherDefaults(productUnit);
+        notifyProductUnitsChanged(productId);
         return convertToDto(productUnit);
     }
 
@@ -207,12 +253,43 @@ public class ProductUnitService {
         }
     }
 
+    // Báo mọi instance inventory-service nạp lại cache quy đổi đơn vị của sản phẩm (best-effort, không chặn
+    // thao tác chính). Instance không nhận được sẽ tự nạp lại toàn bộ theo chu kỳ (inventory.product-unit-cache.refresh-ms)
+    private void notifyProductUnitsChanged(Long productId) {
+        List<ServiceInstance> instances;
+        try {
+            instances = discoveryClient.getInstances(inventoryServiceName);
+        } catch (Exception e) {
+            System.err.println("⚠️ Không lấy được danh sách instance " + inventoryServiceName + ": " + e.getMessage());
+            return;
+        }
+        for (ServiceInstance instance : instances) {
+            try {
+                String url = instance.getUri() + "/api/inventory/cache/product-units/invalidate?productId=" + productId;
+                directRestTemplate.postForObject(url, null, Object.class);
+            } catch (Exception e) {
+                System.err.println("⚠️ Không thể báo " + instance.getUri() + " làm mới cache đơn vị của sản phẩm "
+                        + productId + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static RestTemplate createDirectRestTemplate() {
+        SimpleClientHttpRequestFactory factory = new SimpleClientHttpRequestFactory();
+        factory.setConnectTimeout(1000);
+        factory.setReadTimeout(2000);
+        return new RestTemplate(factory);
+    }
+
     // Convert entity to DTO
     private ProductUnitDto convertToDto(ProductUnit productUnit) {
         ProductUnitDto dto = new ProductUnitDto();
         dto.setId(productUnit.getId());
         dto.setProductId(productUnit.getProduct().getId());
         dto.setProductName(productUnit.getProduct().getName());
+        if (productUnit.getProduct().getCategory() != null) {
+            dto.setCategoryId(productUnit.getProduct().getCategory().getId());
+        }
         dto.setUnitId(productUnit.getUnit().getId());
         dto.setUnitName(productUnit.getUnit().getName());
         dto.setUnitDescription(productUnit.getUnit().getDescription());